@@ -0,0 +1,667 @@
+package info.varden.hauk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * A long-lived HTTP client for a single Hauk backend. One client exists per origin (scheme, host
+ * and port), and all requests to that origin are sent through it so that the underlying keep-alive
+ * connection can be reused between location updates instead of doing a new TCP and TLS handshake
+ * for every request.
+ *
+ * Requests on a client are serialized. HttpURLConnection does not support true HTTP/1.1
+ * pipelining, but sending sequential requests back-to-back over the same idle connection gives the
+ * same benefit for Hauk's traffic pattern without opening additional sockets.
+ *
+ * Optionally, requests can be sent over HTTP/2 instead. HTTP/2 multiplexes concurrent requests as
+ * streams over a single connection and compresses the repeated request headers, so requests are not
+ * serialized on this transport. For HTTPS backends, HTTP/2 is negotiated during the TLS handshake
+ * and the connection falls back to HTTP/1.1 if the server does not support it. For plain HTTP
+ * backends, HTTP/2 is used with prior knowledge (h2c); if the backend does not understand it, the
+ * client permanently falls back to HTTP/1.1 for that origin. Whether it does is checked with a GET
+ * request before the first request is sent over h2c, so that requests are never sent twice.
+ *
+ * @author Marius Lindvall
+ */
+public final class HTTPClient {
+    // The connection timeout for new connections to the backend, in milliseconds.
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    // How long a read from the backend may block, in milliseconds. Without this, a request to a
+    // backend that stops responding would hold up the executor that sent it forever.
+    private static final int READ_TIMEOUT = 10000;
+
+    // One client per origin, e.g. "https://example.com:443".
+    private static final HashMap<String, HTTPClient> clients = new HashMap<>();
+
+    /**
+     * The transports that can be used to send requests to the backend.
+     */
+    public enum Transport {
+        /**
+         * HTTP/1.1 with keep-alive, using the platform HTTP stack.
+         */
+        HTTP_1_1,
+
+        /**
+         * HTTP/2 where the backend supports it, falling back to HTTP/1.1 where it does not.
+         */
+        HTTP_2
+    }
+
+    // The transport used for new requests.
+    private static volatile Transport preferred = Transport.HTTP_1_1;
+
+    // The OkHttp client that all per-origin HTTP/2 clients are derived from, so that they share
+    // their connection pool and dispatcher threads. Created when first needed.
+    private static OkHttpClient okHttpBase = null;
+
+    // Per-thread scratch space for reading status lines on the HTTP/2 transport, where requests are
+    // not serialized.
+    private static final ThreadLocal<byte[]> statusBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[512];
+        }
+    };
+
+    private final String origin;
+    private final boolean secure;
+    private final Stats stats;
+
+    // Counts new TLS connections so that connection reuse can be measured. Kept per client so that
+    // the platform connection pool, which is keyed on the socket factory, is shared between all
+    // requests to the same origin.
+    private final SSLSocketFactory socketFactory;
+
+    // Serializes requests so that they reuse one connection rather than racing for new ones.
+    private final Object lock = new Object();
+
+    // The response to status-only requests that succeeded. As the status line is all these
+    // requests need, a single instance is shared.
+    private static final HTTPThread.Response OK = new HTTPThread.Response(new byte[] {'O', 'K'}, 2);
+
+    // Scratch space for reading status lines and skipping response bodies. Only used while holding
+    // the lock.
+    private final byte[] skipBuffer = new byte[512];
+
+    // The HTTP/2 client for this origin, created when HTTP/2 is first used.
+    private OkHttpClient http2 = null;
+
+    // Whether a plain HTTP origin has been found to support h2c, or not to support it. Neither is
+    // set for HTTPS origins, which negotiate the protocol for every connection.
+    private volatile boolean http2Works = false;
+    private volatile boolean http2Unsupported = false;
+
+    // Ensures that h2c support is only checked once, even if the first requests are concurrent.
+    private final Object probeLock = new Object();
+
+    private HTTPClient(String origin, boolean secure) {
+        this.origin = origin;
+        this.secure = secure;
+        this.stats = new Stats(secure);
+        this.socketFactory = new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), this.stats);
+    }
+
+    /**
+     * Returns the shared client for the origin of the given URL, creating it if it does not exist.
+     *
+     * @param url Any URL on the Hauk backend.
+     * @return The HTTP client for the URL's origin.
+     * @throws MalformedURLException if the URL is invalid.
+     */
+    public static HTTPClient forUrl(String url) throws MalformedURLException {
+        URL parsed = new URL(url);
+        String origin = toOrigin(parsed);
+        synchronized (clients) {
+            HTTPClient client = clients.get(origin);
+            if (client == null) {
+                client = new HTTPClient(origin, parsed.getProtocol().equals("https"));
+                clients.put(origin, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Creates a client for the origin of the given URL that is not shared with forUrl(). Its
+     * requests are not serialized with those of other clients, so several unshared clients can
+     * simulate separate devices from one process.
+     *
+     * @param url Any URL on the Hauk backend.
+     * @return A new HTTP client for the URL's origin.
+     * @throws MalformedURLException if the URL is invalid.
+     */
+    public static HTTPClient unshared(String url) throws MalformedURLException {
+        URL parsed = new URL(url);
+        return new HTTPClient(toOrigin(parsed), parsed.getProtocol().equals("https"));
+    }
+
+    private static String toOrigin(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    public String getOrigin() {
+        return this.origin;
+    }
+
+    public Stats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Sets the transport used for subsequent requests to all backends.
+     *
+     * @param transport The transport to use.
+     */
+    public static void setPreferredTransport(Transport transport) {
+        preferred = transport;
+    }
+
+    public static Transport getPreferredTransport() {
+        return preferred;
+    }
+
+    /**
+     * Sends the given request to the backend and returns the response. Requests are POSTed unless
+     * they are GET requests. This call blocks and must not be made on the UI thread.
+     *
+     * @param req The request to send.
+     * @return A response object containing either the response lines or an exception.
+     */
+    public HTTPThread.Response post(HTTPThread.Request req) {
+        this.stats.inFlight.incrementAndGet();
+        try {
+            OkHttpClient http2 = getHttp2Client();
+            if (http2 != null && !this.secure && !this.http2Works && !probeH2c(http2)) http2 = null;
+            if (http2 != null) {
+                // Once a request has been sent, it may have been processed even if reading the
+                // response fails, so it is never sent again over HTTP/1.1.
+                this.stats.requests.incrementAndGet();
+                return sendHttp2(http2, req);
+            }
+            synchronized (this.lock) {
+                this.stats.requests.incrementAndGet();
+                return send(req);
+            }
+        } catch (Exception ex) {
+            this.stats.failures.incrementAndGet();
+            return new HTTPThread.Response(ex, null);
+        } finally {
+            this.stats.inFlight.decrementAndGet();
+        }
+    }
+
+    private HTTPThread.Response send(HTTPThread.Request req) throws Exception {
+        int length = req.getBodyLength();
+
+        HttpURLConnection client = (HttpURLConnection) new URL(req.getURL()).openConnection();
+        if (client instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) client).setSSLSocketFactory(this.socketFactory);
+        }
+        client.setConnectTimeout(CONNECT_TIMEOUT);
+        client.setReadTimeout(READ_TIMEOUT);
+        client.setRequestMethod(req.isGet() ? "GET" : "POST");
+        client.setRequestProperty("Connection", "keep-alive");
+        client.setRequestProperty("User-Agent", "Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent"));
+        client.setDoInput(true);
+        if (!req.isGet()) {
+            client.setRequestProperty("Content-Type", req.getContentType());
+            client.setDoOutput(true);
+            client.setFixedLengthStreamingMode(length);
+
+            OutputStream os = client.getOutputStream();
+            req.writeBody(os);
+            os.close();
+        }
+
+        int response = client.getResponseCode();
+        this.stats.protocol = "http/1.1";
+        if (response == HttpURLConnection.HTTP_OK) {
+            // Closing the fully read stream returns the connection to the keep-alive pool. The
+            // connection must not be disconnect()ed, as that would close the socket.
+            if (req.isStatusOnly()) return readStatus(client.getInputStream(), this.skipBuffer);
+            return readBody(client.getInputStream(), client.getContentLength());
+        } else {
+            // The error body must also be drained for the connection to be reusable.
+            drain(client.getErrorStream());
+            // Hauk only returns HTTP 200; any other response should be considered an error.
+            throw new StatusException(response);
+        }
+    }
+
+    /**
+     * Returns the HTTP/2 client for this origin, or null if requests should be sent over HTTP/1.1.
+     */
+    private OkHttpClient getHttp2Client() {
+        if (preferred != Transport.HTTP_2 || this.http2Unsupported) return null;
+        synchronized (clients) {
+            if (this.http2 == null) {
+                // OkHttp would otherwise silently send a request again if the connection fails
+                // after the request was written, which duplicates location updates.
+                OkHttpClient.Builder builder = getOkHttpBase().newBuilder()
+                        .eventListener(new CountingEventListener(this.stats))
+                        .retryOnConnectionFailure(false);
+                if (this.secure) {
+                    // Negotiated using ALPN; servers without HTTP/2 are spoken to over HTTP/1.1.
+                    builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+                } else {
+                    builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+                }
+                this.http2 = builder.build();
+            }
+            return this.http2;
+        }
+    }
+
+    /**
+     * Returns the OkHttp client shared by all origins, creating it if needed. Must be called while
+     * holding the lock on clients.
+     */
+    private static OkHttpClient getOkHttpBase() {
+        if (okHttpBase == null) {
+            okHttpBase = new OkHttpClient.Builder()
+                    .connectTimeout(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .readTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .socketFactory(new NoDelaySocketFactory())
+                    .build();
+        }
+        return okHttpBase;
+    }
+
+    /**
+     * Checks whether a plain HTTP backend understands h2c, before the first request is sent to it
+     * over h2c. A backend that does not rejects the connection preface, but a request that fails on
+     * a backend that does may already have been processed, so this cannot be told from the failure
+     * of the request itself. The check is a GET request for the root of the origin, which has no
+     * side effects; any HTTP response to it shows that the backend speaks h2c.
+     *
+     * @param http2 The h2c client for this origin.
+     * @return true if requests can be sent over h2c, false if they must be sent over HTTP/1.1.
+     * @throws IOException if the backend could not be reached at all.
+     */
+    private boolean probeH2c(OkHttpClient http2) throws IOException {
+        Request probe = new Request.Builder()
+                .url(this.origin + "/")
+                .header("User-Agent", "Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent"))
+                .build();
+        synchronized (this.probeLock) {
+            if (this.http2Works || this.http2Unsupported) return this.http2Works;
+            try {
+                http2.newCall(probe).execute().close();
+                this.http2Works = true;
+            } catch (IOException ex) {
+                // Failures to reach the backend at all say nothing about h2c support.
+                if (ex instanceof ConnectException || ex instanceof UnknownHostException || ex instanceof SocketTimeoutException) {
+                    throw ex;
+                }
+                this.http2Unsupported = true;
+            }
+            return this.http2Works;
+        }
+    }
+
+    private HTTPThread.Response sendHttp2(OkHttpClient http2, HTTPThread.Request req) throws Exception {
+        Request.Builder builder = new Request.Builder()
+                .url(req.getURL())
+                .header("User-Agent", "Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent"));
+        Request request = req.isGet() ? builder.get().build() : builder.post(new RequestBodyAdapter(req)).build();
+
+        Response response = http2.newCall(request).execute();
+        this.stats.protocol = response.protocol().toString();
+        ResponseBody body = response.body();
+        if (response.code() == HttpURLConnection.HTTP_OK) {
+            if (req.isStatusOnly()) return readStatus(body.byteStream(), statusBuffers.get());
+            return readBody(body.byteStream(), (int) body.contentLength());
+        } else {
+            body.close();
+            // Hauk only returns HTTP 200; any other response should be considered an error.
+            throw new StatusException(response.code());
+        }
+    }
+
+    /**
+     * Creates a URL-encoded data body for an HTTP request.
+     *
+     * @param data The key-value pairs to encode.
+     * @return A form-encoded request body.
+     * @throws IOException if UTF-8 is not supported.
+     */
+    static String encode(Map<String, String> data) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (first) first = false;
+            else sb.append("&");
+            sb.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+            sb.append("=");
+            sb.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a complete response body. The body is kept in its raw form, and only split into lines
+     * and decoded as the caller reads it. The stream is closed once it has been fully read.
+     *
+     * @param is            The response body stream.
+     * @param contentLength The length of the body if known, or -1.
+     * @return A response containing the body.
+     * @throws IOException if the stream could not be read.
+     */
+    static HTTPThread.Response readBody(InputStream is, int contentLength) throws IOException {
+        byte[] buf = new byte[contentLength >= 0 ? contentLength : 256];
+        int n = 0;
+        try {
+            while (true) {
+                if (n == buf.length) {
+                    // Only grow the buffer if there actually is more data.
+                    int b = is.read();
+                    if (b < 0) break;
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, 256));
+                    buf[n++] = (byte) b;
+                }
+                int read = is.read(buf, n, buf.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+        } finally {
+            is.close();
+        }
+        return new HTTPThread.Response(buf, n);
+    }
+
+    /**
+     * Reads the status line of a response and skips the rest of the body. If the status is "OK",
+     * no memory is allocated.
+     *
+     * @param is  The response body stream.
+     * @param buf Scratch space to read the status line into.
+     * @return A response containing only the status line.
+     */
+    static HTTPThread.Response readStatus(InputStream is, byte[] buf) throws IOException {
+        int n = 0;
+        int end = -1;
+        try {
+            // Read until the end of the status line, or until the buffer is full. Status lines are
+            // short, so a longer line is simply truncated.
+            while (end < 0 && n < buf.length) {
+                int read = is.read(buf, n, buf.length - n);
+                if (read < 0) break;
+                for (int i = n; i < n + read && end < 0; i++) {
+                    if (buf[i] == '\n' || buf[i] == '\r') end = i;
+                }
+                n += read;
+            }
+            if (end < 0) end = n;
+
+            HTTPThread.Response resp;
+            if (end == 2 && buf[0] == 'O' && buf[1] == 'K') {
+                resp = OK;
+            } else {
+                resp = new HTTPThread.Response(Arrays.copyOf(buf, end), end);
+            }
+            while (is.read(buf) != -1) {}
+            return resp;
+        } finally {
+            is.close();
+        }
+    }
+
+    private void drain(InputStream is) {
+        if (is == null) return;
+        try {
+            while (is.read(this.skipBuffer) != -1) {}
+            is.close();
+        } catch (IOException e) {
+            // The connection will simply not be reused.
+        }
+    }
+
+    /**
+     * Connection pool statistics for a client. All counters are cumulative since the client was
+     * created, except for the number of in-flight requests.
+     */
+    public static final class Stats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong handshakes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile String protocol = "http/1.1";
+
+        // Whether the client's origin is HTTPS. Clients are per origin, so either all of their
+        // requests are HTTPS or none are.
+        private final boolean secure;
+
+        private Stats(boolean secure) {
+            this.secure = secure;
+        }
+
+        public long getRequests() {
+            return this.requests.get();
+        }
+
+        /**
+         * Returns the number of TLS handshakes performed, i.e. the number of new HTTPS connections
+         * opened. Always zero for plain HTTP backends.
+         */
+        public long getHandshakes() {
+            return this.handshakes.get();
+        }
+
+        public long getFailures() {
+            return this.failures.get();
+        }
+
+        public int getInFlight() {
+            return this.inFlight.get();
+        }
+
+        /**
+         * Returns the protocol of the most recent response, e.g. "http/1.1" or "h2".
+         */
+        public String getProtocol() {
+            return this.protocol;
+        }
+
+        /**
+         * Returns the fraction of HTTPS requests that were sent over an already established
+         * connection, or NaN if no requests have been made or the backend is plain HTTP, where
+         * handshakes are not counted.
+         */
+        public double getReuseRatio() {
+            long req = this.requests.get();
+            if (req == 0 || !this.secure) return Double.NaN;
+            return Math.max(0D, 1D - (double) this.handshakes.get() / req);
+        }
+    }
+
+    /**
+     * Thrown when the backend responds with an HTTP status other than 200 OK.
+     */
+    public static final class StatusException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private StatusException(int status) {
+            super("Received HTTP " + status + " from server!");
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return this.status;
+        }
+    }
+
+    /**
+     * Sends the body of a Hauk request over the HTTP/2 transport without copying it.
+     */
+    private static final class RequestBodyAdapter extends RequestBody {
+        private final HTTPThread.Request req;
+
+        private RequestBodyAdapter(HTTPThread.Request req) {
+            this.req = req;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return MediaType.parse(this.req.getContentType());
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return this.req.getBodyLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            this.req.writeBody(sink.outputStream());
+        }
+    }
+
+    /**
+     * Creates sockets with Nagle's algorithm disabled. HTTP/2 writes the headers and body of a
+     * request as separate frames, and a location update is small enough that the body frame would
+     * otherwise be held back until the headers frame has been acknowledged.
+     */
+    private static final class NoDelaySocketFactory extends SocketFactory {
+        private final SocketFactory delegate = SocketFactory.getDefault();
+
+        private static Socket noDelay(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return noDelay(this.delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return noDelay(this.delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return noDelay(this.delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return noDelay(this.delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return noDelay(this.delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+    /**
+     * Counts TLS handshakes on the HTTP/2 transport, which does not use the platform socket
+     * factory.
+     */
+    private static final class CountingEventListener extends EventListener {
+        private final Stats stats;
+
+        private CountingEventListener(Stats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            this.stats.handshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * An SSL socket factory that delegates to the system default and counts every socket it
+     * creates. The platform only asks the factory for a socket when it cannot reuse a pooled
+     * connection, so this gives an exact count of TLS handshakes.
+     */
+    private static final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final Stats stats;
+
+        private CountingSocketFactory(SSLSocketFactory delegate, Stats stats) {
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return this.delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            this.stats.handshakes.incrementAndGet();
+            return this.delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            this.stats.handshakes.incrementAndGet();
+            return this.delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            this.stats.handshakes.incrementAndGet();
+            return this.delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            this.stats.handshakes.incrementAndGet();
+            return this.delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            this.stats.handshakes.incrementAndGet();
+            return this.delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -1,129 +1,359 @@
 package info.varden.hauk;
 
-import android.os.AsyncTask;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
- * An asynchronous task that POSTs data to a given URL with the given POST fields.
+ * An asynchronous task that POSTs data to a given URL with the given POST fields. The request is
+ * run on a dedicated RequestExecutor rather than the shared AsyncTask thread pool, and the callback
+ * is run on the main thread once the request completes.
  *
  * @author Marius Lindvall
  */
-public class HTTPThread extends AsyncTask<HTTPThread.Request, String, HTTPThread.Response> {
+public class HTTPThread {
 
     // A callback that is called after the request is completed. Contains received data, or errors,
     // if applicable.
     private final Callback callback;
 
+    // The executor that sends the request, and the tag and coalescing key passed to it.
+    private final RequestExecutor executor;
+    private final Object tag;
+    private final Object key;
+
+    /**
+     * Creates a task for a session control request, such as session creation or cancellation.
+     *
+     * @param callback A callback to run when the request completes.
+     */
     public HTTPThread(Callback callback) {
-        this.callback = callback;
+        this(callback, RequestExecutor.CONTROL, null, null);
     }
 
-    @Override
-    protected Response doInBackground(Request... data) {
-        try {
-            // Create a URL-encoded data body for the HTTP request. Only the first request in the
-            // array is ever used.
-            StringBuilder sb = new StringBuilder();
-            boolean first = false;
-            for (Map.Entry<String, String> entry : data[0].data.entrySet()) {
-                if (first) first = false;
-                else sb.append("&");
-                sb.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
-                sb.append("=");
-                sb.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
-            }
-
-            // Open a connection to the Hauk server and post the data.
-            URL url = new URL(data[0].url);
-            HttpURLConnection client = (HttpURLConnection) url.openConnection();
-            client.setConnectTimeout(10000);
-            client.setRequestMethod("POST");
-            client.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            client.setRequestProperty("User-Agent", "Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent"));
-            client.setDoInput(true);
-            client.setDoOutput(true);
-
-            OutputStream os = client.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-            writer.write(sb.toString());
-            writer.flush();
-            os.close();
-
-            int response = client.getResponseCode();
-            if (response == HttpURLConnection.HTTP_OK) {
-                // The response should be returned as an array of strings where each element of the
-                // array is one line of output. Hauk uses this array as an argument array when
-                // processing the response.
-                String line;
-                ArrayList<String> lines = new ArrayList<>();
-                BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                while ((line = br.readLine()) != null) {
-                    lines.add(line);
-                }
-                br.close();
-                return new Response(null, lines.toArray(new String[lines.size()]));
-            } else {
-                // Hauk only returns HTTP 200; any other response should be considered an error.
-                throw new Exception("Received HTTP " + response + " from server!");
-            }
-        } catch (Exception ex) {
-            // If an exception occurred, return no data.
-            return new Response(ex, null);
-        }
+    /**
+     * Creates a task that runs on a specific executor.
+     *
+     * @param callback A callback to run when the request completes.
+     * @param executor The executor on which to send the request.
+     * @param tag      An object identifying the owner of the request, used for cancellation.
+     * @param key      A key identifying requests that may replace each other, or null.
+     */
+    public HTTPThread(Callback callback, RequestExecutor executor, Object tag, Object key) {
+        this.callback = callback;
+        this.executor = executor;
+        this.tag = tag;
+        this.key = key;
     }
 
-    @Override
-    protected void onPostExecute(Response result) {
-        // Call the provided callback once a response has been obtained.
-        this.callback.run(result);
+    /**
+     * Sends the given request asynchronously.
+     *
+     * @param request The request to send.
+     */
+    public void execute(Request request) {
+        this.executor.submit(request, this.tag, this.key, this.callback);
     }
 
     /**
-     * A structure representing an HTTP POST request. Contains a URL as well as a map of key-value
-     * data to be posted to the URL.
+     * A structure representing an HTTP POST request. Contains a URL as well as either a map of
+     * key-value data or a pre-encoded body to be posted to the URL. Requests created with only a
+     * URL are sent as GET requests without a body.
      */
     public static class Request {
+        // The content type of form-encoded requests.
+        public static final String FORM = "application/x-www-form-urlencoded";
+
         private final String url;
         private final Map<String, String> data;
+        private final String body;
+        private final String contentType;
+        private final int length;
+        private byte[] bytes;
+
+        // Whether the sender only needs the status line of the response.
+        private boolean statusOnly = false;
+
+        // Whether this is a GET request.
+        private boolean get = false;
+
+        /**
+         * Creates a GET request, e.g. for api/fetch.php.
+         *
+         * @param url The URL to get, including its query string.
+         */
+        public Request(String url) {
+            this(url, null, new byte[0], 0);
+            this.get = true;
+        }
 
         public Request(String url, Map<String, String> data) {
             this.url = url;
             this.data = data;
+            this.body = null;
+            this.contentType = FORM;
+            this.bytes = null;
+            this.length = -1;
+        }
+
+        /**
+         * Creates a request with an already URL-encoded form body. Used for bodies that cannot be
+         * represented as a map, such as those with repeated array fields.
+         *
+         * @param url  The URL to post to.
+         * @param body An application/x-www-form-urlencoded request body.
+         */
+        public Request(String url, String body) {
+            this.url = url;
+            this.data = null;
+            this.body = body;
+            this.contentType = FORM;
+            this.bytes = null;
+            this.length = -1;
+        }
+
+        /**
+         * Creates a request with a raw body of the given content type.
+         *
+         * @param url         The URL to post to.
+         * @param contentType The MIME type of the body.
+         * @param bytes       The request body.
+         */
+        public Request(String url, String contentType, byte[] bytes) {
+            this(url, contentType, bytes, bytes.length);
+        }
+
+        /**
+         * Creates a request with a raw body of the given content type, taken from the start of a
+         * possibly larger buffer. The buffer is not copied, so it must not be modified until the
+         * request has completed.
+         *
+         * @param url         The URL to post to.
+         * @param contentType The MIME type of the body.
+         * @param bytes       A buffer starting with the request body.
+         * @param length      The length of the request body.
+         */
+        public Request(String url, String contentType, byte[] bytes, int length) {
+            this.url = url;
+            this.data = null;
+            this.body = null;
+            this.contentType = contentType;
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * Marks this request as only needing the status line of its response. The rest of the
+         * response body is then skipped as it is received, and an "OK" response is delivered
+         * without allocating any memory.
+         *
+         * @return This request.
+         */
+        public Request statusOnly() {
+            this.statusOnly = true;
+            return this;
+        }
+
+        public boolean isStatusOnly() {
+            return this.statusOnly;
+        }
+
+        public boolean isGet() {
+            return this.get;
+        }
+
+        public String getURL() {
+            return this.url;
+        }
+
+        public Map<String, String> getData() {
+            return this.data;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * Returns the URL-encoded form body of this request, or null if this request has a raw
+         * body.
+         *
+         * @throws IOException if UTF-8 is not supported.
+         */
+        public String getBody() throws IOException {
+            if (this.length >= 0) return null;
+            return this.body != null ? this.body : HTTPClient.encode(this.data);
+        }
+
+        /**
+         * Returns the body of this request as it is sent over the wire.
+         *
+         * @throws IOException if UTF-8 is not supported.
+         */
+        public byte[] getBodyBytes() throws IOException {
+            if (this.length < 0) {
+                // Form bodies are encoded once, when they are first needed.
+                if (this.bytes == null) this.bytes = getBody().getBytes("UTF-8");
+                return this.bytes;
+            }
+            return this.length == this.bytes.length ? this.bytes : Arrays.copyOf(this.bytes, this.length);
+        }
+
+        /**
+         * Returns the length of the body of this request as it is sent over the wire.
+         *
+         * @throws IOException if UTF-8 is not supported.
+         */
+        public int getBodyLength() throws IOException {
+            return this.length >= 0 ? this.length : getBodyBytes().length;
+        }
+
+        /**
+         * Writes the body of this request to a stream without copying it.
+         *
+         * @param os The stream to write to.
+         * @throws IOException if writing fails.
+         */
+        public void writeBody(OutputStream os) throws IOException {
+            if (this.length >= 0) os.write(this.bytes, 0, this.length);
+            else os.write(getBodyBytes());
         }
     }
 
     /**
-     * A structure representing an HTTP response. Contains either an array of strings representing
-     * each line of the response body, or an exception, if one occurred during the request.
+     * A structure representing an HTTP response. Contains either the response body, or an
+     * exception, if one occurred during the request.
+     *
+     * Hauk responses consist of lines, where the first line is a status, which is "OK" if the
+     * request succeeded. The body is kept as received and only decoded when it is read, so callers
+     * can check the status with isOK() and read just the lines they need with getReader(). The
+     * full array of lines is still available from getData().
      */
     public static class Response {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
         private final Exception ex;
-        private final String[] data;
+        private final byte[] body;
+        private final int length;
+
+        // The lines of the body, decoded on first use.
+        private String[] data;
 
-        private Response(Exception ex, String[] data) {
+        Response(Exception ex, String[] data) {
             this.ex = ex;
             this.data = data;
+            this.body = null;
+            this.length = 0;
+        }
+
+        /**
+         * Creates a response from a received body.
+         *
+         * @param body   A buffer starting with the response body. It is not copied.
+         * @param length The length of the response body.
+         */
+        Response(byte[] body, int length) {
+            this.ex = null;
+            this.data = null;
+            this.body = body;
+            this.length = length;
         }
 
         public Exception getException() {
             return this.ex;
         }
 
+        /**
+         * Checks whether the request succeeded and the backend returned an "OK" status line. This
+         * does not decode the body.
+         */
+        public boolean isOK() {
+            if (this.ex != null) return false;
+            if (this.body == null) return this.data != null && this.data.length > 0 && this.data[0].equals("OK");
+            return this.length >= 2 && this.body[0] == 'O' && this.body[1] == 'K'
+                    && (this.length == 2 || this.body[2] == '\n' || this.body[2] == '\r');
+        }
+
+        /**
+         * Returns a reader that decodes the lines of the response body one at a time, starting
+         * with the status line.
+         */
+        public Reader getReader() {
+            return new Reader(this);
+        }
+
+        /**
+         * Returns all lines of the response body. The lines are decoded on the first call.
+         */
         public String[] getData() {
+            if (this.data == null && this.body != null) {
+                ArrayList<String> lines = new ArrayList<>();
+                Reader reader = getReader();
+                String line;
+                while ((line = reader.next()) != null) lines.add(line);
+                this.data = lines.toArray(new String[lines.size()]);
+            }
             return this.data;
         }
     }
 
+    /**
+     * A cursor over the lines of a response. Lines are terminated by "\n", "\r" or "\r\n", as
+     * with BufferedReader.readLine().
+     */
+    public static final class Reader {
+        private final Response resp;
+        private int pos = 0;
+
+        private Reader(Response resp) {
+            this.resp = resp;
+        }
+
+        /**
+         * Returns the next line of the response, or null if there are no more lines.
+         */
+        public String next() {
+            if (this.resp.body == null) {
+                String[] data = this.resp.data;
+                return data != null && this.pos < data.length ? data[this.pos++] : null;
+            }
+            int start = this.pos;
+            int end = skip();
+            return end < 0 ? null : new String(this.resp.body, start, end - start, Response.UTF_8);
+        }
+
+        /**
+         * Skips the next line of the response without decoding it.
+         *
+         * @return false if there are no more lines, true otherwise.
+         */
+        public boolean skipLine() {
+            if (this.resp.body == null) {
+                String[] data = this.resp.data;
+                return data != null && this.pos++ < data.length;
+            }
+            return skip() >= 0;
+        }
+
+        /**
+         * Advances past the next line, and returns the position where it ended, or -1 if there
+         * are no more lines.
+         */
+        private int skip() {
+            byte[] body = this.resp.body;
+            int length = this.resp.length;
+            if (this.pos >= length) return -1;
+            int end = this.pos;
+            while (end < length && body[end] != '\n' && body[end] != '\r') end++;
+            this.pos = end + 1;
+            if (end < length && body[end] == '\r' && this.pos < length && body[this.pos] == '\n') this.pos++;
+            return end;
+        }
+    }
+
     /**
      * A callback that is run when the HTTP request is complete. The callback is provided the
      * response.
@@ -9,12 +9,12 @@ import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -22,11 +22,14 @@ import androidx.core.app.ActivityCompat;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
 
+import info.varden.hauk.protocol.HaukClient;
+import info.varden.hauk.protocol.Session;
 import info.varden.hauk.service.LocationPushService;
+import info.varden.hauk.service.StartupTrace;
+import info.varden.hauk.service.StreamUplink;
 
 /**
  * The main activity for Hauk.
@@ -40,25 +43,25 @@ public class MainActivity extends AppCompatActivity {
     private EditText txtPassword;
     private EditText txtDuration;
     private EditText txtInterval;
+    private EditText txtBatchSize;
+    private EditText txtBatchDelay;
+    private EditText txtTolerance;
     private Button btnShare;
-    private Button btnLink;
+    private LinearLayout layoutShares;
     private TextView labelStatusCur;
+    private CheckBox chkAdaptive;
+    private CheckBox chkHttp2;
     private CheckBox chkRemember;
 
-    // The publicly sharable link received from the Hauk server during handshake
-    private String viewLink;
-
     // A helper utility class for displaying dialog windows/message boxes.
     private DialogService diagSvc;
 
-    // A runnable task that is executed when location sharing stops. It clears the persistent Hauk
-    // notification, unregisters the location pusher and resets the UI to a fresh state.
-    private StopSharingTask stopTask;
-
-    // A timer that counts down the number of seconds left of the share period.
-    private Timer shareCountdown;
+    // The stop tasks of all active shares. Each task is executed when its share stops. It clears
+    // the share's notification, removes the share from the location pusher and from the UI.
+    private final List<StopSharingTask> shares = new ArrayList<>();
 
-    // A runnable task that resets the UI to a fresh state.
+    // A runnable task that re-enables the UI for starting a share, and resets the status if no
+    // shares are active.
     private Runnable resetTask;
 
     private static final int MY_PERMISSIONS_REQUEST_FINE_LOCATION = 123;
@@ -95,24 +98,43 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
+
+        // Long-pressing the sharing status opens a debug screen with the metrics of the share.
+        labelStatusCur.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                startActivity(new Intent(MainActivity.this, MetricsActivity.class));
+                return true;
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Resume the countdowns on the stop buttons, which are paused while the activity is hidden.
+        for (StopSharingTask share : shares) share.getScheduler().setUiVisible(true);
+    }
+
+    @Override
+    protected void onStop() {
+        for (StopSharingTask share : shares) share.getScheduler().setUiVisible(false);
+        super.onStop();
     }
 
     @Override
     protected void onDestroy() {
-        stopTask.setActivityDestroyed();
+        for (StopSharingTask share : shares) share.setActivityDestroyed();
         super.onDestroy();
     }
 
     /**
-     * On-tap handler for the "start sharing" and "stop sharing" button.
+     * On-tap handler for the "start sharing" button. Shares that are already active keep running,
+     * so this can be used to share to several servers or sessions at the same time.
      */
     public void startSharing(View view) {
-        // If there is an executable stop task, that means that sharing is already active. Shut down
-        // the share by running the stop task instead of starting a new share.
-        if (stopTask.canExecute()) {
-            stopTask.run();
-            return;
-        }
+        // Measure how long it takes from now until the first location update reaches the backend.
+        final StartupTrace trace = new StartupTrace();
 
         // Disable the UI while we attempt to connect to the Hauk backend.
         btnShare.setEnabled(false);
@@ -120,22 +142,35 @@ public class MainActivity extends AppCompatActivity {
         txtPassword.setEnabled(false);
         txtDuration.setEnabled(false);
         txtInterval.setEnabled(false);
+        txtBatchSize.setEnabled(false);
+        txtBatchDelay.setEnabled(false);
+        txtTolerance.setEnabled(false);
+        chkAdaptive.setEnabled(false);
+        chkHttp2.setEnabled(false);
 
         String server = txtServer.getText().toString();
         final String password = txtPassword.getText().toString();
         int duration = Integer.parseInt(txtDuration.getText().toString());
         final int interval = Integer.parseInt(txtInterval.getText().toString());
+        final int batchSize = Integer.parseInt(txtBatchSize.getText().toString());
+        final int batchDelay = Integer.parseInt(txtBatchDelay.getText().toString());
+        final int tolerance = Integer.parseInt(txtTolerance.getText().toString());
+        final boolean adaptive = chkAdaptive.isChecked();
+        boolean http2 = chkHttp2.isChecked();
 
         // Save connection preferences for next launch, so the user doesn't have to enter URL etc.
         // every time.
-        setPreferences(server, duration, interval);
+        setPreferences(server, duration, interval, batchSize, batchDelay, tolerance, adaptive, http2);
 
         // If password saving is enabled, save the password as well.
         if (chkRemember.isChecked()) setPassword(true, password);
 
+        // Both the session creation request and the location pusher use the chosen transport.
+        HTTPClient.setPreferredTransport(http2 ? HTTPClient.Transport.HTTP_2 : HTTPClient.Transport.HTTP_1_1);
+
         // Create a "full" server address, with a following slash if it is missing. This is used to
         // construct subpaths for the Hauk backend.
-        final String serverFull = server.endsWith("/") ? server : server + "/";
+        final String serverFull = HaukClient.toBaseUrl(server);
 
         // The backend takes duration in seconds, so convert the minutes supplied by the user.
         final int durationSec = duration * 60;
@@ -146,15 +181,63 @@ public class MainActivity extends AppCompatActivity {
         if (!hasLocationPermission()) return;
 
         final LocationManager locMan = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        boolean isGPSEnabled = false;
+        // Sharing works with either the GPS or network location, so only refuse to share if both
+        // are disabled.
+        boolean isLocationEnabled = false;
         try {
-            isGPSEnabled = locMan.isProviderEnabled(LocationManager.GPS_PROVIDER);
+            isLocationEnabled = locMan.isProviderEnabled(LocationManager.GPS_PROVIDER) || locMan.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
         } catch (Exception ex) {};
-        if (!isGPSEnabled) {
+        if (!isLocationEnabled) {
             diagSvc.showDialog(R.string.err_client, R.string.err_location_disabled, resetTask);
             return;
         }
 
+        // The row that represents the share in the UI once it has started. When the share stops,
+        // the row is removed again.
+        final View row = getLayoutInflater().inflate(R.layout.share_row, layoutShares, false);
+        final StopSharingTask stopTask = new StopSharingTask(this, diagSvc, new Runnable() {
+            @Override
+            public void run() {
+                layoutShares.removeView(row);
+                shares.remove(row.getTag());
+                resetTask.run();
+            }
+        });
+        row.setTag(stopTask);
+
+        // Start the share in the location pusher right away, so that the location providers warm up
+        // while the session is being created. Location updates are buffered by the pusher until the
+        // session ID is passed to it. If other shares are active, they share the location updates.
+        final Intent pusher = new Intent(MainActivity.this, LocationPushService.class);
+        pusher.setAction(LocationPushService.ACTION_ID);
+        pusher.putExtra("share", stopTask.getShareId());
+        pusher.putExtra("baseUrl", serverFull);
+        pusher.putExtra("interval", (long) interval * 1000L);
+        pusher.putExtra("tolerance", (double) tolerance);
+        pusher.putExtra("adaptive", adaptive);
+        // Everything registered for the share is released, and all of its timed jobs are cancelled,
+        // when it ends.
+        ReceiverDataRegistry.Scope scope = ReceiverDataRegistry.openScope();
+        final ShareScheduler scheduler = ShareScheduler.onMainThread();
+        stopTask.setShare(scope, scheduler);
+        pusher.putExtra("trace", scope.register(trace));
+        pusher.putExtra("stopTask", scope.register(stopTask));
+        pusher.putExtra("gnssActiveTask", scope.register(new Runnable() {
+
+            @Override
+            public void run() {
+                // Indicate to the user that GPS data is being received when the location pusher
+                // starts receiving GPS data.
+                labelStatusCur.setText(getString(R.string.label_status_ok));
+                labelStatusCur.setTextColor(getColor(R.color.statusOn));
+            }
+        }));
+        if (Build.VERSION.SDK_INT >= 26) {
+            startForegroundService(pusher);
+        } else {
+            startService(pusher);
+        }
+
         // Create a progress dialog while doing initial handshake. This could end up taking a while
         // (e.g. if the host is unreachable, it will eventually time out), and having a progress bar
         // makes for better UX since it visually shows that something is actually happening in the
@@ -170,10 +253,6 @@ public class MainActivity extends AppCompatActivity {
         // Create a handshake request and handle the response. The handshake transmits the duration
         // and interval to the server and waits for the server to return a session ID to confirm
         // session creation.
-        HashMap<String, String> data = new HashMap<>();
-        data.put("pwd", password);
-        data.put("dur", String.valueOf(durationSec));
-        data.put("int", String.valueOf(interval));
         HTTPThread req = new HTTPThread(new HTTPThread.Callback() {
             @Override
             public void run(HTTPThread.Response resp) {
@@ -185,96 +264,109 @@ public class MainActivity extends AppCompatActivity {
                 if (e == null) {
 
                     // A successful session initiation contains "OK" on line 1, the session ID on
-                    // line 2, and a publicly sharable tracking link on line 3.
-                    String[] data = resp.getData();
-
-                    // Somehow the data array is empty.
-                    if (data.length < 1) {
+                    // line 2, and a publicly sharable tracking link on line 3. Newer backends
+                    // also list the optional protocol features they support on line 4. The lines
+                    // are decoded as they are read.
+                    HTTPThread.Reader lines = resp.getReader();
+
+                    // Somehow the response is empty.
+                    if (!lines.skipLine()) {
+                        stopTask.cancel();
                         diagSvc.showDialog(R.string.err_server, R.string.err_empty, resetTask);
                         return;
                     }
 
-                    if (data[0].equals("OK")) {
-                        String session = data[1];
-                        viewLink = data[2];
-
-                        // We now have a link to share, so we enable the link sharing button.
-                        btnLink.setEnabled(true);
+                    if (resp.isOK()) {
+                        trace.mark(StartupTrace.Stage.SESSION_CREATED);
+                        Session created = Session.read(lines);
+                        final String viewLink = created.getViewUrl();
 
                         // Even though we previously requested location permission, we still have to
                         // check for it when we actually use the location API (user could have
                         // disabled it while connecting).
                         if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
 
-                            // Create a client that receives location updates and pushes these to
-                            // the Hauk backend.
-                            Intent pusher = new Intent(MainActivity.this, LocationPushService.class);
-                            pusher.setAction(LocationPushService.ACTION_ID);
-                            pusher.putExtra("baseUrl", serverFull);
-                            pusher.putExtra("viewUrl", viewLink);
-                            pusher.putExtra("session", session);
-                            pusher.putExtra("interval", (long) interval * 1000L);
-                            pusher.putExtra("stopTask", ReceiverDataRegistry.register(stopTask));
-                            pusher.putExtra("gnssActiveTask", ReceiverDataRegistry.register(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    // Indicate to the user that GPS data is being received when the
-                                    // location pusher starts receiving GPS data.
-                                    labelStatusCur.setText(getString(R.string.label_status_ok));
-                                    labelStatusCur.setTextColor(getColor(R.color.statusOn));
-                                }
-                            }));
-                            if (Build.VERSION.SDK_INT >= 26) {
-                                startForegroundService(pusher);
-                            } else {
-                                startService(pusher);
-                            }
+                            // Pass the session to the location pusher, which then starts pushing
+                            // location updates to the Hauk backend.
+                            Intent session = new Intent(MainActivity.this, LocationPushService.class);
+                            session.setAction(LocationPushService.ACTION_ID);
+                            session.putExtra("share", stopTask.getShareId());
+                            session.putExtra("session", created.getId());
+                            session.putExtra("viewUrl", viewLink);
+                            session.putExtra("expire", System.currentTimeMillis() + durationSec * 1000L);
+                            session.putExtra("batchSize", batchSize);
+                            session.putExtra("batchDelay", (long) batchDelay * 1000L);
+                            session.putExtra("format", created.getFormat().name());
+                            session.putExtra("stream", created.supports(StreamUplink.CAPABILITY));
+                            startService(session);
 
                             // When both the notification and pusher are created, we can update the
-                            // stop task with these so that they can be canceled when the location
-                            // share ends.
-                            stopTask.updateTask(pusher);
+                            // stop task so that they can be canceled when the location share ends.
+                            stopTask.updateTask();
+                            shares.add(stopTask);
 
                             // stopTask is scheduled for expiration, but it could also be called if
                             // the user manually stops the share, or if the app is destroyed.
-                            final Handler handler = new Handler();
-                            handler.postDelayed(stopTask, durationSec * 1000L);
-
-                            // Now that sharing is active, we will turn the start button into a stop
-                            // button with a countdown.
-                            shareCountdown = new Timer();
-                            shareCountdown.scheduleAtFixedRate(new TimerTask() {
-                                private int counter = durationSec;
-
+                            scheduler.postDelayed(stopTask, durationSec * 1000L);
+
+                            // Now that sharing is active, we will add a row for the share with
+                            // buttons to share its link, and to stop it with a countdown. The time
+                            // left is derived from the expiry time rather than counted, so it stays
+                            // correct if ticks are skipped while the activity is hidden.
+                            ((TextView) row.findViewById(R.id.labelShare)).setText(String.format(getString(R.string.label_share), serverFull));
+                            row.findViewById(R.id.btnShareLink).setOnClickListener(new View.OnClickListener() {
+                                @Override
+                                public void onClick(View view) {
+                                    shareLink(viewLink);
+                                }
+                            });
+                            final Button btnStop = row.findViewById(R.id.btnShareStop);
+                            btnStop.setOnClickListener(new View.OnClickListener() {
+                                @Override
+                                public void onClick(View view) {
+                                    stopTask.run();
+                                }
+                            });
+                            final long expiry = scheduler.now() + durationSec * 1000L;
+                            scheduler.repeatUi(new Runnable() {
                                 @Override
                                 public void run() {
-                                    if (counter >= 0) {
-                                        btnShare.setText(String.format(getString(R.string.btn_stop), secondsToTime(counter)));
-                                    }
-                                    counter -= 1;
+                                    long left = Math.max(0L, expiry - scheduler.now() + 500L) / 1000L;
+                                    btnStop.setText(String.format(getString(R.string.btn_stop), secondsToTime((int) left)));
                                 }
                             }, 0L, 1000L);
-
-                            // Re-enable the start (stop) button and inform the user.
-                            btnShare.setEnabled(true);
-                            labelStatusCur.setText(getString(R.string.label_status_wait));
-                            labelStatusCur.setTextColor(getColor(R.color.statusWait));
+                            layoutShares.addView(row);
+
+                            // Re-enable the UI so that another share can be started, and inform the
+                            // user. The status only waits for a location fix if no other share has
+                            // received one already.
+                            resetTask.run();
+                            if (shares.size() == 1) {
+                                labelStatusCur.setText(getString(R.string.label_status_wait));
+                                labelStatusCur.setTextColor(getColor(R.color.statusWait));
+                            }
                             diagSvc.showDialog(R.string.ok_title, R.string.ok_message, null);
                         } else {
+                            stopTask.cancel();
                             diagSvc.showDialog(R.string.err_client, R.string.err_missing_perms, resetTask);
                         }
                     } else {
                         // If the first line of the response is not "OK", an error of some sort has
                         // occurred and should be displayed to the user.
+                        stopTask.cancel();
                         StringBuilder err = new StringBuilder();
-                        for (String line : data) {
+                        for (String line : resp.getData()) {
                             err.append(line);
                             err.append("\n");
                         }
                         diagSvc.showDialog(R.string.err_server, err.toString(), resetTask);
                     }
-                } else if (e instanceof MalformedURLException) {
+                    return;
+                }
+
+                // Session creation failed, so the share is removed from the location pusher.
+                stopTask.cancel();
+                if (e instanceof MalformedURLException) {
                     e.printStackTrace();
                     diagSvc.showDialog(R.string.err_client, R.string.err_malformed_url, resetTask);
                 } else if (e instanceof IOException) {
@@ -286,13 +378,15 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
-        req.execute(new HTTPThread.Request(serverFull + "api/create.php", data));
+        req.execute(HaukClient.createRequest(serverFull, password, durationSec, interval));
     }
 
     /**
-     * On-tap handler for the "share link" button. Opens a share menu.
+     * Opens a share menu for the link of a share. Used by the "share link" button of the share.
+     *
+     * @param viewLink The publicly sharable link of the share.
      */
-    public void shareLink(View view) {
+    private void shareLink(String viewLink) {
         Intent shareIntent = new Intent(Intent.ACTION_SEND);
         shareIntent.setType("text/plain");
         shareIntent.putExtra(Intent.EXTRA_SUBJECT, getResources().getString(R.string.share_subject));
@@ -321,8 +415,7 @@ public class MainActivity extends AppCompatActivity {
                  */
                 @Override
                 public void run() {
-                    btnShare.setEnabled(true);
-                    btnLink.setEnabled(false);
+                    resetTask.run();
                     ActivityCompat.requestPermissions(MainActivity.this, new String[] {
                             Manifest.permission.ACCESS_FINE_LOCATION
                     }, MY_PERMISSIONS_REQUEST_FINE_LOCATION);
@@ -335,8 +428,7 @@ public class MainActivity extends AppCompatActivity {
                  */
                 @Override
                 public void run() {
-                    btnShare.setEnabled(true);
-                    btnLink.setEnabled(false);
+                    resetTask.run();
                 }
             });
             return false;
@@ -354,41 +446,45 @@ public class MainActivity extends AppCompatActivity {
         txtPassword = findViewById(R.id.txtPassword);
         txtDuration = findViewById(R.id.txtDuration);
         txtInterval = findViewById(R.id.txtInterval);
+        txtBatchSize = findViewById(R.id.txtBatchSize);
+        txtBatchDelay = findViewById(R.id.txtBatchDelay);
+        txtTolerance = findViewById(R.id.txtTolerance);
         btnShare = findViewById(R.id.btnShare);
-        btnLink = findViewById(R.id.btnLink);
+        layoutShares = findViewById(R.id.layoutShares);
         labelStatusCur = findViewById(R.id.labelStatusCur);
+        chkAdaptive = findViewById(R.id.chkAdaptive);
+        chkHttp2 = findViewById(R.id.chkHttp2);
         chkRemember = findViewById(R.id.chkRemember);
 
         resetTask = new Runnable() {
 
             /**
-             * A function which resets the user interface to its default settings, as if the app was
-             * just opened. Used to reset the UI after errors and after sharing has expired.
+             * A function which re-enables the user interface for starting a new share. If no
+             * shares are active, the status is reset as if the app was just opened. Used to reset
+             * the UI after errors, after a share has started and after sharing has expired.
              */
             @Override
             public void run() {
-                if (shareCountdown != null) {
-                    shareCountdown.cancel();
-                    shareCountdown.purge();
+                if (shares.isEmpty()) {
+                    labelStatusCur.setText(getString(R.string.label_status_none));
+                    labelStatusCur.setTextColor(getColor(R.color.statusOff));
                 }
 
-                labelStatusCur.setText(getString(R.string.label_status_none));
-                labelStatusCur.setTextColor(getColor(R.color.statusOff));
-
                 btnShare.setEnabled(true);
-                btnShare.setText(R.string.btn_start);
-                btnLink.setEnabled(false);
 
                 txtServer.setEnabled(true);
                 txtPassword.setEnabled(true);
                 txtDuration.setEnabled(true);
                 txtInterval.setEnabled(true);
+                txtBatchSize.setEnabled(true);
+                txtBatchDelay.setEnabled(true);
+                txtTolerance.setEnabled(true);
+                chkAdaptive.setEnabled(true);
+                chkHttp2.setEnabled(true);
             }
         };
 
         diagSvc = new DialogService(this);
-        stopTask = new StopSharingTask(this, diagSvc, resetTask);
-        shareCountdown = null;
     }
 
     private void loadPreferences() {
@@ -396,17 +492,27 @@ public class MainActivity extends AppCompatActivity {
         txtServer.setText(settings.getString("server", ""));
         txtDuration.setText(String.valueOf(settings.getInt("duration", 30)));
         txtInterval.setText(String.valueOf(settings.getInt("interval", 1)));
+        txtBatchSize.setText(String.valueOf(settings.getInt("batchSize", 1)));
+        txtBatchDelay.setText(String.valueOf(settings.getInt("batchDelay", 30)));
+        txtTolerance.setText(String.valueOf(settings.getInt("tolerance", 0)));
+        chkAdaptive.setChecked(settings.getBoolean("adaptive", true));
+        chkHttp2.setChecked(settings.getBoolean("http2", false));
         txtPassword.setText(settings.getString("password", ""));
         chkRemember.setChecked(settings.getBoolean("rememberPassword", false));
     }
 
-    private void setPreferences(String server, int duration, int interval) {
+    private void setPreferences(String server, int duration, int interval, int batchSize, int batchDelay, int tolerance, boolean adaptive, boolean http2) {
         SharedPreferences settings = getApplicationContext().getSharedPreferences("connectionPrefs", MODE_PRIVATE);
         SharedPreferences.Editor editor = settings.edit();
 
         editor.putString("server", server);
         editor.putInt("duration", duration);
         editor.putInt("interval", interval);
+        editor.putInt("batchSize", batchSize);
+        editor.putInt("batchDelay", batchDelay);
+        editor.putInt("tolerance", tolerance);
+        editor.putBoolean("adaptive", adaptive);
+        editor.putBoolean("http2", http2);
         editor.apply();
     }
 
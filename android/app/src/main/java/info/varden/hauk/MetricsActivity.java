@@ -0,0 +1,92 @@
+package info.varden.hauk;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.util.List;
+
+import info.varden.hauk.metrics.Metrics;
+import info.varden.hauk.service.LocationPushService;
+
+/**
+ * A debug screen that shows the metrics of every active share while it is open, and lets the user
+ * export them as JSON, e.g. to attach to a bug report. It is opened by long-pressing the status
+ * label in the main activity.
+ *
+ * @author Marius Lindvall
+ */
+public class MetricsActivity extends AppCompatActivity {
+    // How often the displayed metrics are refreshed.
+    private static final long REFRESH_INTERVAL = 1000L;
+
+    private TextView labelMetrics;
+    private Button btnExport;
+
+    private final Handler handler = new Handler();
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            List<Metrics> shares = LocationPushService.getMetrics();
+            if (shares.isEmpty()) {
+                labelMetrics.setText(R.string.metrics_none);
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < shares.size(); i++) {
+                    if (i > 0) sb.append("\n\n");
+                    sb.append(getString(R.string.metrics_share, i + 1, shares.size())).append('\n');
+                    sb.append(shares.get(i).snapshot().toString());
+                }
+                labelMetrics.setText(sb.toString());
+            }
+            btnExport.setEnabled(!shares.isEmpty());
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        setTitle(R.string.metrics_title);
+        labelMetrics = findViewById(R.id.labelMetrics);
+        btnExport = findViewById(R.id.btnExport);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refreshTask);
+    }
+
+    @Override
+    protected void onPause() {
+        handler.removeCallbacks(refreshTask);
+        super.onPause();
+    }
+
+    /**
+     * On-tap handler for the "export" button. Shares JSON snapshots of the metrics of all active
+     * shares, as an array.
+     */
+    public void exportMetrics(View view) {
+        List<Metrics> shares = LocationPushService.getMetrics();
+        if (shares.isEmpty()) return;
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < shares.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(shares.get(i).snapshot().toJson());
+        }
+        sb.append(']');
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("application/json");
+        shareIntent.putExtra(Intent.EXTRA_SUBJECT, getResources().getString(R.string.export_subject));
+        shareIntent.putExtra(Intent.EXTRA_TEXT, sb.toString());
+        startActivity(Intent.createChooser(shareIntent, getResources().getString(R.string.share_via)));
+    }
+}
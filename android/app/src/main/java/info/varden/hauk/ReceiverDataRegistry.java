@@ -1,7 +1,11 @@
 package info.varden.hauk;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Receiver classes and services are instantiated by Android itself, and we cannot pass arbitrary
@@ -12,31 +16,191 @@ import java.util.Random;
  * to retrieve the object itself from the registry, allowing transfers of complex objects to
  * receiver classes.
  *
+ * The registry is used from the UI thread, broadcast receivers and services at the same time, and
+ * is safe to use from any thread. Indices are handed out in increasing order and are never reused
+ * while the object they refer to is still registered. Objects that belong to a location share
+ * should be registered in the share's Scope, which releases all of them when the share ends.
+ * Objects registered outside of a scope are released when they are retrieved, or after a while if
+ * they never are, e.g. because a notification button was never tapped.
+ *
  * @author Marius Lindvall
  */
 public class ReceiverDataRegistry {
-    private static HashMap<Integer, Object> data = new HashMap<>();
-    private static Random random = new Random();
+    // The time after which objects registered outside of a scope are released.
+    static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    // The minimum time between sweeps for expired objects.
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ConcurrentHashMap<Integer, Entry> data = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+    private static final AtomicLong lastSweep = new AtomicLong(now());
 
     /**
-     * Registers the given object in the registry.
+     * Registers the given object in the registry. The object is released when it is retrieved, or
+     * when it has not been retrieved within a few minutes.
      *
      * @param obj The object to register.
      * @return An index which can be used to retrieve the object later using retrieve().
      */
     public static int register(Object obj) {
-        int index = random.nextInt();
-        data.put(index, obj);
-        return index;
+        return register(obj, DEFAULT_TTL);
+    }
+
+    /**
+     * Registers the given object in the registry for at most the given time.
+     *
+     * @param obj The object to register.
+     * @param ttl The time after which the object is released, in milliseconds.
+     * @return An index which can be used to retrieve the object later.
+     */
+    static int register(Object obj, long ttl) {
+        long now = now();
+        sweep(now);
+        return put(new Entry(obj, now + ttl, null));
+    }
+
+    /**
+     * Opens a new scope, in which objects can be registered until it is closed.
+     */
+    public static Scope openScope() {
+        return new Scope();
     }
 
     /**
-     * Retrieves an object from the registry given its index.
+     * Retrieves an object from the registry given its index, and releases it. Use this for objects
+     * that are handed over to a single receiver.
      *
      * @param index The index obtained when registering the object using register().
-     * @return The object that was stored in the registry.
+     * @return The object that was stored in the registry, or null if it has been released.
      */
     public static Object retrieve(int index) {
-        return data.remove(index);
+        Entry entry = data.remove(index);
+        if (entry == null) return null;
+        if (entry.scope != null) entry.scope.entries.remove(index, entry);
+        return entry.isExpired(now()) ? null : entry.obj;
+    }
+
+    /**
+     * Retrieves an object from the registry given its index, and keeps it registered. Use this for
+     * objects that may be retrieved more than once, e.g. by a notification button that can be
+     * tapped repeatedly.
+     *
+     * @param index The index obtained when registering the object.
+     * @return The object that was stored in the registry, or null if it has been released.
+     */
+    public static Object get(int index) {
+        Entry entry = data.get(index);
+        if (entry == null) return null;
+        if (entry.isExpired(now())) {
+            data.remove(index, entry);
+            return null;
+        }
+        return entry.obj;
+    }
+
+    /**
+     * Returns the number of objects currently registered, including expired objects that have not
+     * been swept yet.
+     */
+    static int size() {
+        return data.size();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Stores an entry under a new index. Indices wrap around after 2^31 registrations; an index
+     * that is still in use is skipped rather than overwritten.
+     */
+    private static int put(Entry entry) {
+        while (true) {
+            int index = nextIndex.incrementAndGet() & Integer.MAX_VALUE;
+            // Zero is skipped, as -1 and 0 are commonly used as defaults for missing intent extras.
+            if (index != 0 && data.putIfAbsent(index, entry) == null) return index;
+        }
+    }
+
+    /**
+     * Releases expired objects, unless this was done recently.
+     */
+    private static void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) return;
+        for (Iterator<Map.Entry<Integer, Entry>> it = data.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().isExpired(now)) it.remove();
+        }
+    }
+
+    /**
+     * A registered object, and the scope it was registered in or the time it expires in
+     * milliseconds on the monotonic clock.
+     */
+    private static final class Entry {
+        private final Object obj;
+        private final long expires;
+        private final Scope scope;
+
+        private Entry(Object obj, long expires, Scope scope) {
+            this.obj = obj;
+            this.expires = expires;
+            this.scope = scope;
+        }
+
+        private boolean isExpired(long now) {
+            return this.scope == null && now - this.expires >= 0L;
+        }
+    }
+
+    /**
+     * A group of objects that are registered for as long as something lives, typically a location
+     * share. Objects registered in a scope do not expire, and are all released when the scope is
+     * closed.
+     */
+    public static final class Scope {
+        private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+
+        private Scope() {
+        }
+
+        /**
+         * Registers the given object in this scope. If the scope has already been closed, the
+         * object is released right away, and the returned index refers to nothing.
+         *
+         * @param obj The object to register.
+         * @return An index which can be used to retrieve the object later.
+         */
+        public int register(Object obj) {
+            sweep(now());
+            Entry entry = new Entry(obj, 0L, this);
+            int index = put(entry);
+            this.entries.put(index, entry);
+            // If the scope was closed concurrently, close() may not have seen this entry.
+            if (this.closed) release(index, entry);
+            return index;
+        }
+
+        /**
+         * Releases all objects registered in this scope. Closing a scope more than once has no
+         * further effect.
+         */
+        public void close() {
+            this.closed = true;
+            for (Map.Entry<Integer, Entry> entry : this.entries.entrySet()) {
+                release(entry.getKey(), entry.getValue());
+            }
+        }
+
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        private void release(Integer index, Entry entry) {
+            data.remove(index, entry);
+            this.entries.remove(index, entry);
+        }
     }
 }
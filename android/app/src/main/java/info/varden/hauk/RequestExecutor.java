@@ -0,0 +1,398 @@
+package info.varden.hauk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dedicated executor for HTTP requests to the Hauk backend. Requests are run in order on a single
+ * worker thread, and the number of requests waiting to run is bounded. When the queue is full, the
+ * executor's backpressure policy decides what happens to new requests.
+ *
+ * Callbacks are always run on the main thread. If a request is dropped or cancelled before it
+ * completes, its callback receives a response containing a CancellationException. Requests that
+ * were replaced by a newer request receive a SupersededException, and requests dropped or rejected
+ * because the queue was full receive a DroppedException, so that their owners can tell them apart
+ * from requests they cancelled themselves.
+ *
+ * Location updates are sent on an executor of their own for every share, created with
+ * forLocationUpdates(), so that a slow backend only holds up the shares that send to it.
+ *
+ * @author Marius Lindvall
+ */
+public final class RequestExecutor {
+    /**
+     * Executor for session control requests, such as session creation and cancellation. Waiting
+     * requests are never dropped, but as these requests are made from the main thread, new
+     * requests fail at once if too many are already waiting for a slow backend.
+     */
+    public static final RequestExecutor CONTROL = new RequestExecutor("Hauk-Control", 16, Policy.REJECT);
+
+    /**
+     * Creates an executor for the location updates of a single share. If the backend is slow, only
+     * the newest single-point update is kept waiting, so that the location shown to viewers stays
+     * fresh. The executor must be shut down when the share ends.
+     */
+    public static RequestExecutor forLocationUpdates() {
+        return new RequestExecutor("Hauk-Push", 32, Policy.COALESCE);
+    }
+
+    /**
+     * Backpressure policies for when requests arrive faster than they can be sent.
+     */
+    public enum Policy {
+        /**
+         * A new request replaces any waiting request with the same coalescing key. If the queue is
+         * still full, the oldest waiting request is dropped.
+         */
+        COALESCE,
+
+        /**
+         * The oldest waiting request is dropped to make room for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new request is rejected if the queue is full. Unlike BLOCK, this never holds up the
+         * submitting thread, so it is safe to use from the main thread.
+         */
+        REJECT,
+
+        /**
+         * The submitting thread blocks until there is room in the queue. Must not be used from the
+         * main thread if the backend may be slow.
+         */
+        BLOCK
+    }
+
+    private final String name;
+    private final int capacity;
+    private final Policy policy;
+    private final Stats stats = new Stats();
+
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private final Object lock = new Object();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // The request currently being sent, if any.
+    private Task current = null;
+    private Thread worker = null;
+    private boolean shutdown = false;
+
+    /**
+     * Creates an executor.
+     *
+     * @param name     The name of the worker thread.
+     * @param capacity The maximum number of requests waiting to be sent.
+     * @param policy   The policy to apply when the queue is full.
+     */
+    public RequestExecutor(String name, int capacity, Policy policy) {
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public Stats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Schedules a request to be sent.
+     *
+     * @param request  The request to send.
+     * @param tag      An object identifying the owner of the request, used for cancellation. May be
+     *                 null.
+     * @param key      A key identifying requests that may replace each other under the COALESCE
+     *                 policy, or null if the request should never be replaced.
+     * @param callback A callback to run on the main thread when the request completes.
+     */
+    public void submit(HTTPThread.Request request, Object tag, Object key, HTTPThread.Callback callback) {
+        Task task = new Task(request, tag, key, callback);
+        synchronized (this.lock) {
+            if (this.shutdown) {
+                reject(task, "Executor has been shut down");
+                return;
+            }
+            if (this.policy == Policy.COALESCE && key != null) {
+                Iterator<Task> it = this.queue.iterator();
+                while (it.hasNext()) {
+                    Task waiting = it.next();
+                    if (key.equals(waiting.key)) {
+                        it.remove();
+                        this.stats.coalesced.incrementAndGet();
+                        deliver(waiting, new HTTPThread.Response(new SupersededException(), null));
+                    }
+                }
+            }
+
+            if (this.policy == Policy.BLOCK) {
+                while (this.queue.size() >= this.capacity) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        reject(task, "Interrupted while waiting for queue space");
+                        return;
+                    }
+                    if (this.shutdown) {
+                        reject(task, "Executor has been shut down");
+                        return;
+                    }
+                }
+            } else if (this.queue.size() >= this.capacity) {
+                this.stats.dropped.incrementAndGet();
+                if (this.policy == Policy.REJECT) {
+                    deliver(task, new HTTPThread.Response(new DroppedException("Too many requests are waiting for the server"), null));
+                    return;
+                }
+                deliver(this.queue.poll(), new HTTPThread.Response(new DroppedException("Dropped due to backpressure"), null));
+            }
+
+            this.queue.add(task);
+            this.stats.submitted.incrementAndGet();
+            this.stats.updateMaxDepth(this.queue.size());
+            if (this.worker == null) {
+                this.worker = new Thread(new Worker(), this.name);
+                this.worker.setDaemon(true);
+                this.worker.start();
+            }
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Cancels all waiting and in-flight requests with the given tag. Requests that are already
+     * being sent cannot be aborted, but their callbacks receive a cancellation instead of the
+     * response.
+     *
+     * @param tag The tag passed when the requests were submitted.
+     */
+    public void cancel(Object tag) {
+        synchronized (this.lock) {
+            Iterator<Task> it = this.queue.iterator();
+            while (it.hasNext()) {
+                Task waiting = it.next();
+                if (tag.equals(waiting.tag)) {
+                    it.remove();
+                    this.stats.cancelled.incrementAndGet();
+                    reject(waiting, "Cancelled");
+                }
+            }
+            if (this.current != null && tag.equals(this.current.tag)) {
+                this.current.cancelled = true;
+            }
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Rejects requests submitted from now on. Requests that are already waiting are still sent,
+     * unless they are cancelled, and the worker thread exits once there are none left.
+     */
+    public void shutdown() {
+        synchronized (this.lock) {
+            this.shutdown = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of requests currently waiting to be sent.
+     */
+    public int getQueueDepth() {
+        synchronized (this.lock) {
+            return this.queue.size();
+        }
+    }
+
+    private void reject(Task task, String reason) {
+        deliver(task, new HTTPThread.Response(new CancellationException(reason), null));
+    }
+
+    private void deliver(Task task, HTTPThread.Response resp) {
+        task.response = resp;
+        this.mainHandler.post(task);
+    }
+
+    /**
+     * Delivered to the callback of a request that was replaced by a newer request with the same
+     * coalescing key before it was sent.
+     */
+    public static final class SupersededException extends CancellationException {
+        private static final long serialVersionUID = 1L;
+
+        private SupersededException() {
+            super("Superseded by a newer request");
+        }
+    }
+
+    /**
+     * Delivered to the callback of a request that was dropped or rejected because the queue was
+     * full. Nothing has replaced the request, so its owner may want to send it again later.
+     */
+    public static final class DroppedException extends CancellationException {
+        private static final long serialVersionUID = 1L;
+
+        private DroppedException(String reason) {
+            super(reason);
+        }
+    }
+
+    /**
+     * The worker loop that sends queued requests one at a time.
+     */
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                synchronized (lock) {
+                    while (queue.isEmpty()) {
+                        if (shutdown) {
+                            worker = null;
+                            return;
+                        }
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    task = queue.poll();
+                    current = task;
+                    // Wake up any submitters blocked on a full queue.
+                    lock.notifyAll();
+                }
+                stats.recordWait(System.nanoTime() - task.enqueued);
+
+                HTTPThread.Response resp;
+                try {
+                    resp = HTTPClient.forUrl(task.request.getURL()).post(task.request);
+                } catch (Exception ex) {
+                    resp = new HTTPThread.Response(ex, null);
+                }
+
+                boolean cancelled;
+                synchronized (lock) {
+                    cancelled = task.cancelled;
+                    current = null;
+                }
+                if (cancelled) {
+                    stats.cancelled.incrementAndGet();
+                    reject(task, "Cancelled");
+                } else {
+                    stats.completed.incrementAndGet();
+                    deliver(task, resp);
+                }
+            }
+        }
+    }
+
+    /**
+     * A request waiting to be sent. Once the request completes, the task is posted to the main
+     * thread to deliver the response to the callback.
+     */
+    private static final class Task implements Runnable {
+        private final HTTPThread.Request request;
+        private final Object tag;
+        private final Object key;
+        private final HTTPThread.Callback callback;
+        private final long enqueued = System.nanoTime();
+        private boolean cancelled = false;
+        private HTTPThread.Response response = null;
+
+        private Task(HTTPThread.Request request, Object tag, Object key, HTTPThread.Callback callback) {
+            this.request = request;
+            this.tag = tag;
+            this.key = key;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            this.callback.run(this.response);
+        }
+    }
+
+    /**
+     * Executor statistics. All counters are cumulative since the executor was created.
+     */
+    public static final class Stats {
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong totalWait = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        private Stats() {
+        }
+
+        private void recordWait(long nanos) {
+            this.waits.incrementAndGet();
+            this.totalWait.addAndGet(nanos);
+            long max;
+            do max = this.maxWait.get(); while (nanos > max && !this.maxWait.compareAndSet(max, nanos));
+        }
+
+        private void updateMaxDepth(int depth) {
+            long max;
+            do max = this.maxDepth.get(); while (depth > max && !this.maxDepth.compareAndSet(max, depth));
+        }
+
+        public long getSubmitted() {
+            return this.submitted.get();
+        }
+
+        public long getCompleted() {
+            return this.completed.get();
+        }
+
+        /**
+         * Returns the number of requests dropped or rejected because the queue was full.
+         */
+        public long getDropped() {
+            return this.dropped.get();
+        }
+
+        /**
+         * Returns the number of requests replaced by a newer request with the same key.
+         */
+        public long getCoalesced() {
+            return this.coalesced.get();
+        }
+
+        public long getCancelled() {
+            return this.cancelled.get();
+        }
+
+        /**
+         * Returns the highest number of requests that have been waiting at the same time.
+         */
+        public long getMaxQueueDepth() {
+            return this.maxDepth.get();
+        }
+
+        /**
+         * Returns the average time requests spent waiting in the queue, in milliseconds.
+         */
+        public double getAverageWaitMillis() {
+            long n = this.waits.get();
+            return n == 0 ? 0D : this.totalWait.get() / 1000000D / n;
+        }
+
+        /**
+         * Returns the longest time a request spent waiting in the queue, in milliseconds.
+         */
+        public double getMaxWaitMillis() {
+            return this.maxWait.get() / 1000000D;
+        }
+    }
+}
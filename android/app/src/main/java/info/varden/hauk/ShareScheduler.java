@@ -0,0 +1,295 @@
+package info.varden.hauk;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs all timed work of a location share: the share's expiry, the countdown shown in the UI, and
+ * periodic jobs such as heartbeats, batch flushes and retries. Only a single wakeup is ever
+ * pending on the host, for the earliest job; jobs that are due at about the same time run together
+ * in one tick, and repeating jobs that missed several runs only run once.
+ *
+ * Jobs that update the UI are paused while the UI is not visible, and run as soon as it becomes
+ * visible again. When the share ends, shutdown() cancels everything, and jobs posted afterwards,
+ * e.g. by network callbacks that complete late, are ignored.
+ *
+ * Jobs are identified by their Runnable, as with Handler: posting a job that is already scheduled
+ * replaces its pending run. Jobs may be posted from any thread, and always run on the host's
+ * thread.
+ *
+ * @author Marius Lindvall
+ */
+public final class ShareScheduler {
+    // Jobs due within this time of a tick run in that tick rather than waking the host again.
+    static final long COALESCE_WINDOW = 50L;
+
+    private final Host host;
+    private final HashMap<Runnable, Job> jobs = new HashMap<>();
+
+    // Whether the UI is visible, and whether the scheduler has been shut down.
+    private boolean uiVisible = true;
+    private boolean shutdown = false;
+
+    // The time the host has been asked to run a tick, or -1 if no tick is pending.
+    private long wakeAt = -1L;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * Creates a scheduler that runs jobs on the given host.
+     *
+     * @param host The thread and clock to run jobs on.
+     */
+    public ShareScheduler(Host host) {
+        this.host = host;
+    }
+
+    /**
+     * Creates a scheduler that runs jobs on the main thread.
+     */
+    public static ShareScheduler onMainThread() {
+        return new ShareScheduler(new HandlerHost(new Handler(Looper.getMainLooper())));
+    }
+
+    /**
+     * Returns the current time of the host's clock, in milliseconds. This clock is monotonic, but
+     * not related to the wall clock.
+     */
+    public long now() {
+        return this.host.now();
+    }
+
+    /**
+     * Runs a job once, as soon as possible.
+     */
+    public void post(Runnable task) {
+        postDelayed(task, 0L);
+    }
+
+    /**
+     * Runs a job once after the given delay. If the job is already scheduled, it is rescheduled.
+     *
+     * @param task  The job to run.
+     * @param delay The delay in milliseconds.
+     */
+    public void postDelayed(Runnable task, long delay) {
+        schedule(task, delay, 0L, false);
+    }
+
+    /**
+     * Runs a job repeatedly at a fixed rate, starting after the given delay.
+     *
+     * @param task   The job to run.
+     * @param delay  The delay before the first run, in milliseconds.
+     * @param period The time between runs, in milliseconds.
+     */
+    public void repeat(Runnable task, long delay, long period) {
+        if (period <= 0L) throw new IllegalArgumentException("Period must be positive");
+        schedule(task, delay, period, false);
+    }
+
+    /**
+     * Runs a job that updates the UI repeatedly at a fixed rate, starting after the given delay.
+     * The job does not run while the UI is not visible.
+     *
+     * @param task   The job to run.
+     * @param delay  The delay before the first run, in milliseconds.
+     * @param period The time between runs, in milliseconds.
+     */
+    public void repeatUi(Runnable task, long delay, long period) {
+        if (period <= 0L) throw new IllegalArgumentException("Period must be positive");
+        schedule(task, delay, period, true);
+    }
+
+    /**
+     * Cancels a job, if it is scheduled.
+     */
+    public synchronized void removeCallbacks(Runnable task) {
+        Job job = this.jobs.remove(task);
+        if (job != null) {
+            job.cancelled = true;
+            rearm();
+        }
+    }
+
+    /**
+     * Pauses or resumes jobs that update the UI. Call this when the activity is started and
+     * stopped.
+     *
+     * @param visible Whether the UI is visible.
+     */
+    public synchronized void setUiVisible(boolean visible) {
+        if (this.uiVisible == visible) return;
+        this.uiVisible = visible;
+        rearm();
+    }
+
+    /**
+     * Cancels all jobs. Jobs posted after this are ignored.
+     */
+    public synchronized void shutdown() {
+        this.shutdown = true;
+        for (Job job : this.jobs.values()) job.cancelled = true;
+        this.jobs.clear();
+        rearm();
+    }
+
+    public synchronized boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    /**
+     * Returns the number of jobs that are scheduled, including paused jobs.
+     */
+    public synchronized int size() {
+        return this.jobs.size();
+    }
+
+    private synchronized void schedule(Runnable task, long delay, long period, boolean ui) {
+        if (this.shutdown) return;
+        Job old = this.jobs.put(task, new Job(task, this.host.now() + Math.max(0L, delay), period, ui));
+        if (old != null) old.cancelled = true;
+        rearm();
+    }
+
+    /**
+     * Makes sure that the host wakes up for the earliest runnable job, and only for that job. Must
+     * be called while holding the lock.
+     */
+    private void rearm() {
+        long next = -1L;
+        for (Job job : this.jobs.values()) {
+            if (job.firing || (job.ui && !this.uiVisible)) continue;
+            if (next < 0L || job.deadline < next) next = job.deadline;
+        }
+        if (next == this.wakeAt) return;
+        this.host.removeCallbacks(this.tick);
+        this.wakeAt = next;
+        if (next >= 0L) this.host.postDelayed(this.tick, Math.max(0L, next - this.host.now()));
+    }
+
+    /**
+     * Runs all jobs that are due, and schedules the next tick.
+     */
+    private void tick() {
+        List<Job> due = new ArrayList<>();
+        synchronized (this) {
+            this.wakeAt = -1L;
+            long now = this.host.now();
+            for (Job job : this.jobs.values()) {
+                if (job.firing || (job.ui && !this.uiVisible)) continue;
+                if (job.deadline <= now + COALESCE_WINDOW) due.add(job);
+            }
+            sort(due);
+            for (Job job : due) {
+                if (job.period > 0L) {
+                    // Runs that were missed, e.g. while the UI was hidden, are skipped rather than
+                    // run in a burst. The job keeps its original phase.
+                    long behind = Math.max(0L, now - job.deadline);
+                    job.deadline += (behind / job.period + 1L) * job.period;
+                } else {
+                    // The job stays scheduled until it runs, so that a job that runs before it in
+                    // this tick can still cancel it.
+                    job.firing = true;
+                }
+            }
+            rearm();
+        }
+        // Jobs run without holding the lock, so that they can post and cancel jobs themselves.
+        for (Job job : due) {
+            synchronized (this) {
+                if (job.cancelled) continue;
+                if (job.firing) this.jobs.remove(job.task);
+            }
+            job.task.run();
+        }
+    }
+
+    /**
+     * Sorts jobs by deadline. There are only ever a handful of jobs, so insertion sort is enough.
+     */
+    private static void sort(List<Job> jobs) {
+        for (int i = 1; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            int j = i - 1;
+            while (j >= 0 && jobs.get(j).deadline > job.deadline) {
+                jobs.set(j + 1, jobs.get(j));
+                j--;
+            }
+            jobs.set(j + 1, job);
+        }
+    }
+
+    /**
+     * A scheduled job. Repeating jobs have a positive period.
+     */
+    private static final class Job {
+        private final Runnable task;
+        private final long period;
+        private final boolean ui;
+        private long deadline;
+        // Set when the job is cancelled or replaced, and when a one-shot job is about to run.
+        private boolean cancelled = false;
+        private boolean firing = false;
+
+        private Job(Runnable task, long deadline, long period, boolean ui) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+            this.ui = ui;
+        }
+    }
+
+    /**
+     * The thread and clock that jobs run on. This is a Handler on Android, and can be replaced by
+     * a fake implementation for testing.
+     */
+    public interface Host {
+        /**
+         * Returns the current time of a monotonic clock, in milliseconds.
+         */
+        long now();
+
+        void postDelayed(Runnable task, long delay);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * Runs jobs on the looper of a Handler.
+     */
+    private static final class HandlerHost implements Host {
+        private final Handler handler;
+
+        private HandlerHost(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public long now() {
+            // This must be the clock the handler schedules on. Like the handler, it stops while the
+            // device is in deep sleep, so jobs are delayed by the time spent sleeping.
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            this.handler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            this.handler.removeCallbacks(task);
+        }
+    }
+}
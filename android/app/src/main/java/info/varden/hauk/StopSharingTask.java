@@ -3,12 +3,13 @@ package info.varden.hauk;
 import android.content.Context;
 import android.content.Intent;
 
-import java.util.HashMap;
+import info.varden.hauk.protocol.HaukClient;
+import info.varden.hauk.service.LocationPushService;
 
 /**
- * This class is a runnable task that will stop location sharing and reset the UI to the state it
- * was in when the app launched. Only one copy of this task exists in the MainActivity class. This
- * class should not be instantiated elsewhere.
+ * This class is a runnable task that will stop a location share and remove it from the UI. One copy
+ * of this task exists in the MainActivity class for every share that has been started, and it
+ * identifies the share to the location pusher. This class should not be instantiated elsewhere.
  *
  * @author Marius Lindvall
  */
@@ -17,11 +18,18 @@ public class StopSharingTask implements Runnable {
     private final DialogService diagSvc;
     private final Runnable resetTask;
 
+    // The ID of the share in the location pusher. IDs are unique within the process.
+    private static int nextId = 0;
+    private final int id;
+
+    // The number of shares that are currently active. Tasks are only created and run on the main
+    // thread.
+    private static int active = 0;
+
     // The task does not have a notification and pusher until updateTask() is called, and the stop
-    // task cannot be executed until that is the case. If this task is executable, then location
-    // sharing is currently active.
+    // task cannot be executed until that is the case. If this task is executable, then the share is
+    // currently active.
     private boolean canExecute = false;
-    private Intent pusher = null;
 
     // This task can be run when the activity no longer exists. In that case, do not attempt to
     // reset the UI and show dialogs.
@@ -32,23 +40,59 @@ public class StopSharingTask implements Runnable {
     private String baseUrl = null;
     private String session = null;
 
+    // Objects registered in ReceiverDataRegistry for the current share, and the scheduler that
+    // runs its timed jobs. Both are shut down when sharing stops.
+    private ReceiverDataRegistry.Scope scope = null;
+    private ShareScheduler scheduler = null;
+
     protected StopSharingTask(Context ctx, DialogService diagSvc, Runnable resetTask) {
         this.ctx = ctx;
         this.diagSvc = diagSvc;
         this.resetTask = resetTask;
+        this.id = ++nextId;
     }
 
     /**
-     * Sets the stop task executable. When the task is executed with run(), the provided
-     * notification is cleared and the pusher unregistered from the Android location manager.
-     *
-     * @param pusher A location handler that should be unregistered when sharing is stopped.
+     * Returns the ID of the share, which is passed to the location pusher as the "share" extra.
+     */
+    public int getShareId() {
+        return this.id;
+    }
+
+    /**
+     * Sets the stop task executable once the share has been started in the location pusher. When
+     * the task is executed with run(), the share's notification is cleared and the share removed
+     * from the pusher.
      */
-    public void updateTask(Intent pusher) {
-        this.pusher = pusher;
+    public void updateTask() {
+        if (!this.canExecute) active++;
         this.canExecute = true;
     }
 
+    /**
+     * Sets the registry scope and scheduler of a share that is being started. All objects
+     * registered in the scope are released, and all jobs on the scheduler cancelled, when the share
+     * is stopped.
+     *
+     * @param scope     The registry scope of the share.
+     * @param scheduler The scheduler of the share.
+     */
+    public void setShare(ReceiverDataRegistry.Scope scope, ShareScheduler scheduler) {
+        this.scope = scope;
+        this.scheduler = scheduler;
+    }
+
+    public ReceiverDataRegistry.Scope getScope() {
+        return this.scope;
+    }
+
+    /**
+     * Returns the scheduler of the share, or null if the share has not been started.
+     */
+    public ShareScheduler getScheduler() {
+        return this.scheduler;
+    }
+
     /**
      * Informs the stop task that the main activity no longer exists, and that it should not attempt
      * to reset the UI or show dialogs.
@@ -81,40 +125,69 @@ public class StopSharingTask implements Runnable {
     }
 
     /**
-     * Executes the stop task. When run, this will unregister the location handler, clear Hauk's
-     * persistent notification, reset the UI to a fresh state and inform the user that sharing has
-     * been stopped.
+     * Stops a share that failed to start, without informing the user. The location pusher is told
+     * to drop the share, and the jobs of the share are cancelled.
+     */
+    public void cancel() {
+        stopPusher();
+        if (this.scheduler != null) this.scheduler.shutdown();
+    }
+
+    /**
+     * Executes the stop task. When run, this will remove the share from the location pusher, clear
+     * its notification, remove it from the UI and inform the user that sharing has been stopped.
+     * Other shares are not affected.
      */
     @Override
     public void run() {
         if (!this.canExecute) return;
         this.canExecute = false;
-        this.ctx.stopService(this.pusher);
+        active--;
+        stopPusher();
+        this.scheduler.shutdown();
+        this.scope.close();
 
         // If a session is currently active, send a cancellation request to the backend to remove
         // session data from the server.
         if (this.baseUrl != null && this.session != null) {
-            HashMap<String, String> data = new HashMap<>();
-            data.put("sid", this.session);
+            // Location updates that have not been sent yet are cancelled when the location pusher
+            // stops the share.
             HTTPThread req = new HTTPThread(new HTTPThread.Callback() {
                 @Override
                 public void run(HTTPThread.Response resp) {
                     resetApp();
                 }
             });
-            req.execute(new HTTPThread.Request(this.baseUrl + "api/stop.php", data));
+            req.execute(HaukClient.stopRequest(this.baseUrl, this.session));
         } else {
             resetApp();
         }
     }
 
+    /**
+     * Tells the location pusher to stop the share. The pusher stops itself once no shares are left.
+     */
+    private void stopPusher() {
+        Intent stop = new Intent(this.ctx, LocationPushService.class);
+        stop.setAction(LocationPushService.ACTION_ID);
+        stop.putExtra("share", this.id);
+        stop.putExtra("stop", true);
+        try {
+            this.ctx.startService(stop);
+        } catch (IllegalStateException e) {
+            // The pusher is no longer running and cannot be started from the background, so
+            // there is nothing to stop.
+            e.printStackTrace();
+        }
+    }
+
     private void resetApp() {
         if (this.activityExists) {
             this.resetTask.run();
             this.diagSvc.showDialog(R.string.ended_title, R.string.ended_message, this.resetTask);
-        } else {
-            // If the main activity is already destroyed, there is no reason to keep the app
-            // running.
+        } else if (active == 0) {
+            // If the main activity is already destroyed and no other share is active, there is no
+            // reason to keep the app running.
             System.exit(0);
         }
     }
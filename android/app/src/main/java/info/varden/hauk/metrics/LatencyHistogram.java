@@ -0,0 +1,118 @@
+package info.varden.hauk.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, e.g. latencies in microseconds, in the style of
+ * HdrHistogram. Values are counted in log-linear buckets: each power of two is split into 32
+ * buckets of equal width, so that every recorded value is known to within about 3% while only a
+ * few hundred counters are needed. Recording a value costs a handful of atomic increments and
+ * never allocates, so histograms can be updated from any thread on the hot path.
+ *
+ * Readers see a consistent count per bucket, but a snapshot taken while values are being recorded
+ * may be off by the values recorded concurrently.
+ *
+ * @author Marius Lindvall
+ */
+public final class LatencyHistogram {
+    // Each power of two is split into 2^SUB_BUCKET_BITS buckets. Values below twice that are
+    // counted exactly.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Larger values are recorded as this value.
+    private final long highest;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param highest The highest value that can be told apart from larger values.
+     */
+    public LatencyHistogram(long highest) {
+        if (highest < 1L) throw new IllegalArgumentException("Highest value must be positive");
+        this.highest = highest;
+        this.counts = new AtomicLongArray(indexOf(highest) + 1);
+    }
+
+    /**
+     * Returns the bucket that counts the given value.
+     */
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the largest value counted by the given bucket.
+     */
+    static long highestEquivalent(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0L) value = 0L;
+        else if (value > this.highest) value = this.highest;
+        this.counts.incrementAndGet(indexOf(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long prev;
+        while ((prev = this.max.get()) < value && !this.max.compareAndSet(prev, value)) {}
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Returns the mean of all recorded values, or 0 if no values have been recorded.
+     */
+    public long getMean() {
+        long n = this.count.get();
+        return n == 0L ? 0L : this.sum.get() / n;
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall, rounded up to
+     * the largest value of its bucket, or 0 if no values have been recorded.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long getValueAtPercentile(double percentile) {
+        // The total is counted from the buckets rather than taken from the counter, so that it
+        // matches the buckets walked below.
+        long[] snapshot = new long[this.counts.length()];
+        long total = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) return 0L;
+
+        long target = Math.max(1L, (long) Math.ceil(Math.min(100D, percentile) / 100D * total));
+        long seen = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) return Math.min(highestEquivalent(i), this.max.get());
+        }
+        return this.max.get();
+    }
+}
@@ -0,0 +1,377 @@
+package info.varden.hauk.metrics;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.net.ssl.SSLException;
+
+import info.varden.hauk.HTTPClient;
+
+/**
+ * Counters and latency histograms for one share, from location fixes to delivered uploads. All
+ * recording methods are lock-free and allocation-free, so that metrics can be kept in production
+ * builds. A consistent view of all metrics is obtained with snapshot(), which can be shown in the
+ * UI or exported as JSON.
+ *
+ * Every share keeps its own metrics. The metrics of the active shares are available from
+ * LocationPushService.getMetrics(), so that they can be inspected from the debug screen.
+ *
+ * @author Marius Lindvall
+ */
+public final class Metrics {
+    // Upload latencies are recorded in microseconds, up to a bit over an hour.
+    private static final long HIGHEST_LATENCY = 1L << 32;
+
+    /**
+     * The reasons an upload can fail.
+     */
+    public enum Failure {
+        /**
+         * The backend did not answer in time.
+         */
+        TIMEOUT,
+
+        /**
+         * The backend could not be reached, e.g. because the device is offline.
+         */
+        CONNECT,
+
+        /**
+         * The TLS handshake or encrypted connection failed.
+         */
+        TLS,
+
+        /**
+         * The backend answered with an HTTP status other than 200 OK.
+         */
+        HTTP,
+
+        /**
+         * The backend answered, but rejected the updates, e.g. because the session expired.
+         */
+        REJECTED,
+
+        /**
+         * The upload was cancelled before it was sent, because it was superseded or sharing stopped.
+         */
+        CANCELLED,
+
+        /**
+         * Any other error.
+         */
+        OTHER;
+
+        /**
+         * Determines why an upload failed from the exception it failed with.
+         *
+         * @param e The exception thrown by the request.
+         */
+        public static Failure classify(Exception e) {
+            if (e instanceof CancellationException) return CANCELLED;
+            if (e instanceof SocketTimeoutException) return TIMEOUT;
+            if (e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException) return CONNECT;
+            if (e instanceof SSLException) return TLS;
+            if (e instanceof HTTPClient.StatusException) return HTTP;
+            return OTHER;
+        }
+    }
+
+    /**
+     * Provides the current value of a gauge when a snapshot is taken.
+     */
+    public abstract static class Gauge {
+        public abstract long get();
+    }
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long started = System.nanoTime();
+
+    private final AtomicLong fixes = new AtomicLong();
+    private final AtomicLong lastFix = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong points = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLongArray failures = new AtomicLongArray(Failure.values().length);
+    private final LatencyHistogram latency = new LatencyHistogram(HIGHEST_LATENCY);
+
+    // The number of location updates waiting in the offline queue, or null if there is no queue.
+    private volatile Gauge queueDepth = null;
+
+    /**
+     * Records a location fix received from the GPS, whether or not it is uploaded.
+     */
+    public void recordFix() {
+        this.fixes.incrementAndGet();
+        this.lastFix.set(System.nanoTime());
+    }
+
+    /**
+     * Records an upload that is about to be sent.
+     *
+     * @param points The number of location updates in the upload.
+     * @param bytes  The size of the request body.
+     */
+    public void recordUpload(int points, long bytes) {
+        this.uploads.incrementAndGet();
+        this.points.addAndGet(points);
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Records location updates that the backend has accepted.
+     *
+     * @param points  The number of location updates accepted.
+     * @param latency The time between sending the updates and the backend accepting them, in
+     *                nanoseconds.
+     */
+    public void recordDelivery(int points, long latency) {
+        this.delivered.addAndGet(points);
+        this.latency.record(latency / 1000L);
+    }
+
+    /**
+     * Records an upload of updates that were sent before and failed.
+     */
+    public void recordRetry() {
+        this.retries.incrementAndGet();
+    }
+
+    public void recordFailure(Failure failure) {
+        this.failures.incrementAndGet(failure.ordinal());
+    }
+
+    /**
+     * Sets the gauge that reports the number of location updates waiting in the offline queue.
+     */
+    public void setQueueDepth(Gauge gauge) {
+        this.queueDepth = gauge;
+    }
+
+    /**
+     * Takes a snapshot of all metrics.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * An immutable view of a share's metrics at a point in time.
+     */
+    public static final class Snapshot {
+        private final long startedAt;
+        private final long uptime;
+        private final long fixes;
+        private final long lastFixAge;
+        private final long uploads;
+        private final long points;
+        private final long bytesSent;
+        private final long delivered;
+        private final long retries;
+        private final long[] failures;
+        private final long queueDepth;
+        private final long latencyCount;
+        private final long latencyMean;
+        private final long latencyP50;
+        private final long latencyP90;
+        private final long latencyP99;
+        private final long latencyMax;
+
+        private Snapshot(Metrics metrics) {
+            long now = System.nanoTime();
+            this.startedAt = metrics.startedAt;
+            this.uptime = (now - metrics.started) / 1000000L;
+            this.fixes = metrics.fixes.get();
+            long last = metrics.lastFix.get();
+            this.lastFixAge = last == Long.MIN_VALUE ? -1L : (now - last) / 1000000L;
+            this.uploads = metrics.uploads.get();
+            this.points = metrics.points.get();
+            this.bytesSent = metrics.bytesSent.get();
+            this.delivered = metrics.delivered.get();
+            this.retries = metrics.retries.get();
+            this.failures = new long[Failure.values().length];
+            for (int i = 0; i < this.failures.length; i++) this.failures[i] = metrics.failures.get(i);
+            Gauge gauge = metrics.queueDepth;
+            this.queueDepth = gauge == null ? 0L : gauge.get();
+            this.latencyCount = metrics.latency.getCount();
+            this.latencyMean = metrics.latency.getMean();
+            this.latencyP50 = metrics.latency.getValueAtPercentile(50D);
+            this.latencyP90 = metrics.latency.getValueAtPercentile(90D);
+            this.latencyP99 = metrics.latency.getValueAtPercentile(99D);
+            this.latencyMax = metrics.latency.getMax();
+        }
+
+        /**
+         * Returns the time the share was started, in milliseconds since the UNIX epoch.
+         */
+        public long getStartedAt() {
+            return this.startedAt;
+        }
+
+        /**
+         * Returns the time since the share was started, in milliseconds.
+         */
+        public long getUptime() {
+            return this.uptime;
+        }
+
+        public long getFixes() {
+            return this.fixes;
+        }
+
+        /**
+         * Returns the average number of location fixes received per minute since the share was
+         * started.
+         */
+        public double getFixRate() {
+            return this.uptime == 0L ? 0D : this.fixes * 60000D / this.uptime;
+        }
+
+        /**
+         * Returns the time since the last location fix was received in milliseconds, or -1 if no
+         * fix has been received.
+         */
+        public long getLastFixAge() {
+            return this.lastFixAge;
+        }
+
+        public long getUploads() {
+            return this.uploads;
+        }
+
+        /**
+         * Returns the number of location updates sent, counting every upload attempt.
+         */
+        public long getPoints() {
+            return this.points;
+        }
+
+        public long getBytesSent() {
+            return this.bytesSent;
+        }
+
+        /**
+         * Returns the number of location updates that the backend has accepted.
+         */
+        public long getDelivered() {
+            return this.delivered;
+        }
+
+        public long getRetries() {
+            return this.retries;
+        }
+
+        public long getFailures(Failure failure) {
+            return this.failures[failure.ordinal()];
+        }
+
+        /**
+         * Returns the total number of failed uploads, including cancelled uploads.
+         */
+        public long getFailures() {
+            long total = 0L;
+            for (long count : this.failures) total += count;
+            return total;
+        }
+
+        public long getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        /**
+         * Returns the number of uploads whose latency was recorded.
+         */
+        public long getLatencyCount() {
+            return this.latencyCount;
+        }
+
+        /**
+         * Returns the mean upload latency in microseconds.
+         */
+        public long getLatencyMean() {
+            return this.latencyMean;
+        }
+
+        /**
+         * Returns the given upload latency percentile in microseconds. Only the 50th, 90th and 99th
+         * percentiles are kept in a snapshot.
+         *
+         * @param percentile 50, 90 or 99.
+         */
+        public long getLatency(int percentile) {
+            switch (percentile) {
+                case 50: return this.latencyP50;
+                case 90: return this.latencyP90;
+                case 99: return this.latencyP99;
+                default: throw new IllegalArgumentException("Percentile not kept: " + percentile);
+            }
+        }
+
+        /**
+         * Returns the highest upload latency in microseconds.
+         */
+        public long getLatencyMax() {
+            return this.latencyMax;
+        }
+
+        /**
+         * Serializes the snapshot as a JSON object. Latencies are given in microseconds, and times
+         * in milliseconds.
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("{\"started_at\":").append(this.startedAt);
+            sb.append(",\"uptime_ms\":").append(this.uptime);
+            sb.append(",\"fixes\":").append(this.fixes);
+            sb.append(",\"fixes_per_min\":").append(String.format(Locale.US, "%.2f", getFixRate()));
+            sb.append(",\"last_fix_age_ms\":").append(this.lastFixAge);
+            sb.append(",\"uploads\":").append(this.uploads);
+            sb.append(",\"points\":").append(this.points);
+            sb.append(",\"bytes_sent\":").append(this.bytesSent);
+            sb.append(",\"delivered\":").append(this.delivered);
+            sb.append(",\"retries\":").append(this.retries);
+            sb.append(",\"queue_depth\":").append(this.queueDepth);
+            sb.append(",\"failures\":{");
+            for (Failure failure : Failure.values()) {
+                if (failure.ordinal() > 0) sb.append(',');
+                sb.append('"').append(failure.name().toLowerCase(Locale.US)).append("\":").append(this.failures[failure.ordinal()]);
+            }
+            sb.append("},\"upload_latency_us\":{");
+            sb.append("\"count\":").append(this.latencyCount);
+            sb.append(",\"mean\":").append(this.latencyMean);
+            sb.append(",\"p50\":").append(this.latencyP50);
+            sb.append(",\"p90\":").append(this.latencyP90);
+            sb.append(",\"p99\":").append(this.latencyP99);
+            sb.append(",\"max\":").append(this.latencyMax);
+            sb.append("}}");
+            return sb.toString();
+        }
+
+        /**
+         * Formats the snapshot as a human readable list of metrics, one per line.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append(String.format(Locale.US, "Uptime: %d s%n", this.uptime / 1000L));
+            sb.append(String.format(Locale.US, "Fixes: %d (%.1f/min, last %s)%n", this.fixes, getFixRate(), this.lastFixAge < 0L ? "never" : this.lastFixAge / 1000L + " s ago"));
+            sb.append(String.format(Locale.US, "Uploads: %d (%d points, %d bytes)%n", this.uploads, this.points, this.bytesSent));
+            sb.append(String.format(Locale.US, "Delivered: %d points%n", this.delivered));
+            sb.append(String.format(Locale.US, "Retries: %d%n", this.retries));
+            sb.append(String.format(Locale.US, "Queued: %d points%n", this.queueDepth));
+            sb.append(String.format(Locale.US, "Latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms (%d samples)%n", this.latencyP50 / 1000D, this.latencyP90 / 1000D, this.latencyP99 / 1000D, this.latencyMax / 1000D, this.latencyCount));
+            sb.append("Failures:");
+            for (Failure failure : Failure.values()) {
+                sb.append(String.format(Locale.US, "%n  %s: %d", failure.name().toLowerCase(Locale.US), this.failures[failure.ordinal()]));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -32,8 +32,10 @@ public abstract class HaukBroadcastReceiver<T> extends BroadcastReceiver {
     @Override
     public final void onReceive(Context ctx, Intent intent) {
         // Retrieve the registry index of the data stored for this receiver, then pass that data on
-        // to the subclass.
+        // to the subclass. The data is kept in the registry, as the button may be tapped again. If
+        // the data has been released, the share it belonged to has ended, and the tap is ignored.
         int index = intent.getIntExtra(Intent.EXTRA_INDEX, -1);
-        handle(ctx, (T) ReceiverDataRegistry.retrieve(index));
+        T data = (T) ReceiverDataRegistry.get(index);
+        if (data != null) handle(ctx, data);
     }
 }
@@ -8,8 +8,9 @@ import info.varden.hauk.ReceiverDataRegistry;
 
 /**
  * This class is used to create intents for use in notification buttons that can store an object for
- * retrieval by the associated receiver class. The class maintains a registry of objects for each
- * receiver registered; these objects are returned to the receiver when it is called.
+ * retrieval by the associated receiver class. The object is registered in ReceiverDataRegistry the
+ * first time an intent is created, and returned to the receiver every time the button is tapped,
+ * until the scope it was registered in is closed.
  *
  * @author Marius Lindvall
  * @param <T> The type of data to be passed to the receiving listener.
@@ -18,6 +19,11 @@ public class Receiver<T> {
     private final Class<? extends HaukBroadcastReceiver<T>> receiver;
     private final Context ctx;
     private final T data;
+    private final ReceiverDataRegistry.Scope scope;
+
+    // The registry index of the data object, or NO_INDEX if it has not been registered yet.
+    private static final int NO_INDEX = -1;
+    private int index = NO_INDEX;
 
     /**
      * Creates a receiver instance.
@@ -25,11 +31,14 @@ public class Receiver<T> {
      * @param ctx      The Android application context.
      * @param receiver The class that Android will instantiate when the proper broadcast is issued.
      * @param data     A data object that will be passed to the broadcast receiver instance.
+     * @param scope    The registry scope that the data object is released with, e.g. the scope of
+     *                 the location share the notification belongs to.
      */
-    public Receiver(Context ctx, Class<? extends HaukBroadcastReceiver<T>> receiver, T data) {
+    public Receiver(Context ctx, Class<? extends HaukBroadcastReceiver<T>> receiver, T data, ReceiverDataRegistry.Scope scope) {
         this.receiver = receiver;
         this.ctx = ctx;
         this.data = data;
+        this.scope = scope;
     }
 
     /**
@@ -48,9 +57,14 @@ public class Receiver<T> {
         intent.setAction(instance.getActionID());
 
         // Store the provided data in the registry for later retrieval, and pass the data index to
-        // the intent.
-        intent.putExtra(Intent.EXTRA_INDEX, ReceiverDataRegistry.register(this.data));
+        // the intent. Notifications are rebuilt whenever they are updated, so the data is only
+        // registered once.
+        if (this.index == NO_INDEX) this.index = this.scope.register(this.data);
+        intent.putExtra(Intent.EXTRA_INDEX, this.index);
 
-        return PendingIntent.getBroadcast(ctx, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        // Intents that differ only in their extras are considered the same by PendingIntent, so the
+        // index is also used as the request code. Otherwise, the buttons of one share's notification
+        // would act on whichever share posted its notification last.
+        return PendingIntent.getBroadcast(ctx, this.index, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 }
@@ -6,7 +6,9 @@ import android.content.Context;
 import androidx.core.app.NotificationCompat;
 
 import info.varden.hauk.R;
+import info.varden.hauk.ReceiverDataRegistry;
 import info.varden.hauk.StopSharingTask;
+import info.varden.hauk.metrics.Metrics;
 
 /**
  * Hauk's persistent notification that prevents Hauk from being stopped while in the background.
@@ -17,26 +19,54 @@ public class SharingNotification extends HaukNotification {
     // The Hauk backend base URL e.g. https://example.com/.
     private final String baseUrl;
 
-    // The publicly sharable URL for this share, e.g. https://example.com?ABCD-1234.
-    private final String viewUrl;
+    // The registry scope of the share, which the data for the notification buttons is released with.
+    private final ReceiverDataRegistry.Scope scope;
 
-    // A task to be executed when sharing stops. In the case of this notification, it is executed if
-    // the user taps the "Stop sharing" button on the notification.
-    private final StopSharingTask stopSharingTask;
+    // Receivers for the "Copy link" button, which carries the publicly sharable URL for this share,
+    // e.g. https://example.com?ABCD-1234, and the "Stop sharing" button, which carries a task to be
+    // executed when sharing stops. The link is null while the session is still being created.
+    private Receiver<String> copyLink = null;
+    private final Receiver<StopSharingTask> stopSharing;
+
+    // The most recent metrics of the share, summarized in the expanded notification, or null if
+    // not available yet.
+    private Metrics.Snapshot metrics = null;
 
     /**
      * Creates a persistent notification.
      *
      * @param ctx             Android application context.
      * @param baseUrl         The Hauk backend base URL.
-     * @param viewUrl         The publicly sharable link for this share.
+     * @param viewUrl         The publicly sharable link for this share, or null if not known yet.
      * @param stopSharingTask A task to run if the user stops sharing their location.
+     * @param scope           The registry scope of the share.
      */
-    public SharingNotification(Context ctx, String baseUrl, String viewUrl, StopSharingTask stopSharingTask) {
+    public SharingNotification(Context ctx, String baseUrl, String viewUrl, StopSharingTask stopSharingTask, ReceiverDataRegistry.Scope scope) {
         super(ctx);
         this.baseUrl = baseUrl;
-        this.viewUrl = viewUrl;
-        this.stopSharingTask = stopSharingTask;
+        this.scope = scope;
+        this.stopSharing = new Receiver<>(ctx, StopSharingReceiver.class, stopSharingTask, scope);
+        if (viewUrl != null) setViewUrl(viewUrl);
+    }
+
+    /**
+     * Sets the publicly sharable link once the session has been created. The notification must be
+     * posted again for the change to be visible.
+     *
+     * @param viewUrl The publicly sharable link for this share.
+     */
+    public void setViewUrl(String viewUrl) {
+        this.copyLink = new Receiver<>(getContext(), CopyLinkReceiver.class, viewUrl, this.scope);
+    }
+
+    /**
+     * Sets the metrics to summarize in the notification. The notification must be posted again for
+     * the change to be visible.
+     *
+     * @param metrics A snapshot of the share's metrics.
+     */
+    public void setMetrics(Metrics.Snapshot metrics) {
+        this.metrics = metrics;
     }
 
     @Override
@@ -47,14 +77,25 @@ public class SharingNotification extends HaukNotification {
     @Override
     public void build(NotificationCompat.Builder builder) throws Exception {
         builder.setContentTitle(getContext().getString(R.string.notify_title));
-        builder.setContentText(String.format(getContext().getString(R.string.notify_body), baseUrl));
+        String body = String.format(getContext().getString(R.string.notify_body), baseUrl);
+        builder.setContentText(body);
+        if (this.metrics != null) {
+            String summary = String.format(getContext().getString(R.string.notify_metrics), this.metrics.getDelivered(), this.metrics.getLatency(50) / 1000L, this.metrics.getQueueDepth(), this.metrics.getFailures() - this.metrics.getFailures(Metrics.Failure.CANCELLED));
+            builder.setStyle(new NotificationCompat.BigTextStyle().bigText(body + "\n" + summary));
+        }
         builder.setSmallIcon(R.drawable.ic_notify);
         builder.setPriority(NotificationCompat.PRIORITY_DEFAULT);
 
         // Add "Copy link" and "Stop sharing" buttons to the notification.
-        builder.addAction(R.drawable.ic_notify, getContext().getString(R.string.action_copy), new Receiver<>(getContext(), CopyLinkReceiver.class, this.viewUrl).toPending());
-        builder.addAction(R.drawable.ic_notify, getContext().getString(R.string.action_stop), new Receiver<>(getContext(), StopSharingReceiver.class, this.stopSharingTask).toPending());
+        // The link can only be copied once the session has been created.
+        if (this.copyLink != null) {
+            builder.addAction(R.drawable.ic_notify, getContext().getString(R.string.action_copy), this.copyLink.toPending());
+        }
+        builder.addAction(R.drawable.ic_notify, getContext().getString(R.string.action_stop), this.stopSharing.toPending());
 
         builder.setOngoing(true);
+        // The notification is updated periodically with new metrics, which should not make a sound
+        // every time.
+        builder.setOnlyAlertOnce(true);
     }
 }
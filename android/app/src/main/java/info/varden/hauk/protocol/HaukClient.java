@@ -0,0 +1,215 @@
+package info.varden.hauk.protocol;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+
+import info.varden.hauk.HTTPClient;
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.service.LocationBatch;
+
+/**
+ * The client side of the Hauk backend API: a share is created with api/create.php, location
+ * updates are pushed to api/post.php for as long as it lasts, and it is removed with api/stop.php.
+ * Viewers of the share follow its trail with api/fetch.php.
+ *
+ * The app builds its requests here and sends them asynchronously through HTTPThread and
+ * RequestExecutor. The instance methods send the same requests synchronously on the calling
+ * thread, for use outside of the app, e.g. by the load generator. This class and the classes it
+ * uses do not depend on Android.
+ *
+ * @author Marius Lindvall
+ */
+public final class HaukClient {
+    private final String baseUrl;
+    private final String postUrl;
+    private final HTTPClient http;
+
+    /**
+     * Creates a client for a Hauk backend. Clients for the same backend share its connections.
+     *
+     * @param server The URL of the Hauk backend, with or without a trailing slash.
+     * @throws MalformedURLException if the URL is invalid.
+     */
+    public HaukClient(String server) throws MalformedURLException {
+        this(server, true);
+    }
+
+    /**
+     * Creates a client for a Hauk backend.
+     *
+     * @param server The URL of the Hauk backend, with or without a trailing slash.
+     * @param shared Whether to share connections with other clients for the same backend. An
+     *               unshared client sends its requests independently of all other clients.
+     * @throws MalformedURLException if the URL is invalid.
+     */
+    public HaukClient(String server, boolean shared) throws MalformedURLException {
+        this.baseUrl = toBaseUrl(server);
+        this.postUrl = toPostUrl(this.baseUrl);
+        this.http = shared ? HTTPClient.forUrl(this.baseUrl) : HTTPClient.unshared(this.baseUrl);
+    }
+
+    /**
+     * Returns the base URL of a Hauk backend, with a trailing slash. This is used to construct
+     * subpaths for the Hauk backend.
+     *
+     * @param server The URL entered by the user.
+     */
+    public static String toBaseUrl(String server) {
+        return server.endsWith("/") ? server : server + "/";
+    }
+
+    /**
+     * Returns the URL that location updates are pushed to.
+     *
+     * @param baseUrl The base URL of the Hauk backend.
+     */
+    public static String toPostUrl(String baseUrl) {
+        return baseUrl + "api/post.php";
+    }
+
+    /**
+     * Creates a request for a new session. The backend responds with a session that can be read
+     * with Session.read().
+     *
+     * @param baseUrl  The base URL of the Hauk backend.
+     * @param password The password of the backend.
+     * @param duration The duration of the share, in seconds.
+     * @param interval The interval between location updates, in seconds.
+     */
+    public static HTTPThread.Request createRequest(String baseUrl, String password, int duration, int interval) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("pwd", password);
+        data.put("dur", String.valueOf(duration));
+        data.put("int", String.valueOf(interval));
+        return new HTTPThread.Request(baseUrl + "api/create.php", data);
+    }
+
+    /**
+     * Creates a request that ends a session and erases its data from the backend.
+     *
+     * @param baseUrl The base URL of the Hauk backend.
+     * @param session The session ID.
+     */
+    public static HTTPThread.Request stopRequest(String baseUrl, String session) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("sid", session);
+        return new HTTPThread.Request(baseUrl + "api/stop.php", data);
+    }
+
+    /**
+     * Creates a request for the trail of a share.
+     *
+     * @param baseUrl The base URL of the Hauk backend.
+     * @param link    The link ID of the share.
+     * @param since   The sequence number of the last point the viewer has, to only fetch newer
+     *                points, or -1 to fetch the whole trail.
+     */
+    public static HTTPThread.Request fetchRequest(String baseUrl, String link, long since) {
+        String url;
+        try {
+            url = baseUrl + "api/fetch.php?id=" + URLEncoder.encode(link, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+        if (since >= 0L) url += "&since=" + since;
+        return new HTTPThread.Request(url);
+    }
+
+    public String getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    /**
+     * Returns the connection statistics of the HTTP client, which are shared by all shared clients
+     * for the backend.
+     */
+    public HTTPClient.Stats getStats() {
+        return this.http.getStats();
+    }
+
+    /**
+     * Creates a new session.
+     *
+     * @param password The password of the backend.
+     * @param duration The duration of the share, in seconds.
+     * @param interval The interval between location updates, in seconds.
+     * @return The session.
+     * @throws RejectedException if the backend refused to create the session.
+     * @throws Exception if the request failed.
+     */
+    public Session create(String password, int duration, int interval) throws Exception {
+        HTTPThread.Response resp = this.http.post(createRequest(this.baseUrl, password, duration, interval));
+        if (resp.getException() != null) throw resp.getException();
+
+        if (!resp.isOK()) {
+            StringBuilder err = new StringBuilder();
+            String[] data = resp.getData();
+            if (data != null) {
+                for (String line : data) {
+                    err.append(line);
+                    err.append("\n");
+                }
+            }
+            throw new RejectedException(err.toString());
+        }
+        HTTPThread.Reader lines = resp.getReader();
+        lines.skipLine();
+        return Session.read(lines);
+    }
+
+    /**
+     * Pushes a batch of location updates. Only the status line of the response is read.
+     *
+     * @param batch The batch of location updates.
+     * @return The response. If the request failed, the response holds the exception.
+     */
+    public HTTPThread.Response post(LocationBatch batch) {
+        return this.http.post(batch.toRequest(this.postUrl).statusOnly());
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param session The session ID.
+     * @return The response. If the request failed, the response holds the exception.
+     */
+    public HTTPThread.Response stop(String session) {
+        return this.http.post(stopRequest(this.baseUrl, session));
+    }
+
+    /**
+     * Fetches the points of a share that the given trail does not have yet, and adds them to it.
+     *
+     * @param trail The trail to update.
+     * @return The number of points added.
+     * @throws RejectedException if the share does not exist or has expired.
+     * @throws Exception if the request failed or the response is invalid.
+     */
+    public int fetch(SharedTrail trail) throws Exception {
+        HTTPThread.Response resp = this.http.post(fetchRequest(this.baseUrl, trail.getLink(), trail.getCursor()));
+        if (resp.getException() != null) throw resp.getException();
+
+        StringBuilder body = new StringBuilder();
+        String[] data = resp.getData();
+        if (data != null) {
+            for (String line : data) body.append(line).append("\n");
+        }
+        // Errors are reported as plain text rather than JSON.
+        if (!body.toString().trim().startsWith("{")) throw new RejectedException(body.toString());
+        return trail.update(body.toString());
+    }
+
+    /**
+     * Thrown when the backend responds to a request with an error message rather than "OK".
+     */
+    public static final class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+}
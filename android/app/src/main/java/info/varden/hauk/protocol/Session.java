@@ -0,0 +1,74 @@
+package info.varden.hauk.protocol;
+
+import java.util.Arrays;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.service.LocationBatch;
+
+/**
+ * A location sharing session created by the Hauk backend in response to api/create.php.
+ *
+ * @author Marius Lindvall
+ */
+public final class Session {
+    private final String id;
+    private final String viewUrl;
+    private final String capabilities;
+
+    /**
+     * Creates a session.
+     *
+     * @param id           The session ID.
+     * @param viewUrl      The publicly sharable link for the session.
+     * @param capabilities The optional protocol features supported by the backend, separated by
+     *                     spaces, or null if the backend does not list any.
+     */
+    public Session(String id, String viewUrl, String capabilities) {
+        this.id = id;
+        this.viewUrl = viewUrl;
+        this.capabilities = capabilities != null ? capabilities.trim() : "";
+    }
+
+    /**
+     * Reads a session from a successful api/create.php response. The response has "OK" on line 1,
+     * the session ID on line 2, and a publicly sharable tracking link on line 3. Newer backends
+     * also list the optional protocol features they support on line 4.
+     *
+     * @param lines A reader positioned after the status line.
+     * @return The session.
+     */
+    public static Session read(HTTPThread.Reader lines) {
+        String id = lines.next();
+        String viewUrl = lines.next();
+        String capabilities = lines.next();
+        return new Session(id, viewUrl, capabilities);
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getViewUrl() {
+        return this.viewUrl;
+    }
+
+    public String getCapabilities() {
+        return this.capabilities;
+    }
+
+    /**
+     * Checks whether the backend supports an optional protocol feature.
+     *
+     * @param capability The name of the feature, e.g. "binary" or "stream".
+     */
+    public boolean supports(String capability) {
+        return !this.capabilities.isEmpty() && Arrays.asList(this.capabilities.split(" ")).contains(capability);
+    }
+
+    /**
+     * Returns the most compact encoding for location updates that the backend supports.
+     */
+    public LocationBatch.Format getFormat() {
+        return LocationBatch.Format.forCapabilities(this.capabilities);
+    }
+}
@@ -0,0 +1,268 @@
+package info.varden.hauk.protocol;
+
+/**
+ * The trail of a share as seen by a viewer of its link, kept up to date by repeatedly fetching
+ * api/fetch.php. The first fetch returns the whole trail. After that, the trail passes the sequence
+ * number of the last point it has received, and the backend only returns newer points. Backends
+ * that do not number their points always return the whole trail, so points are only added if they
+ * are newer than the last point in the trail, as the web viewer does.
+ *
+ * Only the most recent points are kept, up to a given limit.
+ *
+ * @author Marius Lindvall
+ */
+public final class SharedTrail {
+    private final String link;
+
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] time;
+    private final double[] acc;
+    private final double[] spd;
+
+    // The index of the oldest point, and the number of points held.
+    private int head = 0;
+    private int size = 0;
+
+    private double interval = 0D;
+    private long expire = 0L;
+
+    // The sequence number of the last point received, or -1 if the whole trail must be fetched.
+    private long cursor = -1L;
+
+    /**
+     * Creates an empty trail.
+     *
+     * @param link      The link ID of the share.
+     * @param maxPoints The number of points kept.
+     */
+    public SharedTrail(String link, int maxPoints) {
+        this.link = link;
+        this.lat = new double[maxPoints];
+        this.lon = new double[maxPoints];
+        this.time = new double[maxPoints];
+        this.acc = new double[maxPoints];
+        this.spd = new double[maxPoints];
+    }
+
+    public String getLink() {
+        return this.link;
+    }
+
+    /**
+     * Returns the interval between location updates of the share, in seconds.
+     */
+    public synchronized double getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * Returns the time the share expires, in seconds since the UNIX epoch.
+     */
+    public synchronized long getExpire() {
+        return this.expire;
+    }
+
+    /**
+     * Returns the sequence number to pass as "since" in the next fetch, or -1 to fetch the whole
+     * trail.
+     */
+    public synchronized long getCursor() {
+        return this.cursor;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns a point of the trail, where 0 is the oldest point. Unknown accuracy and speed
+     * values are NaN.
+     */
+    public synchronized double getLatitude(int index) {
+        return this.lat[at(index)];
+    }
+
+    public synchronized double getLongitude(int index) {
+        return this.lon[at(index)];
+    }
+
+    public synchronized double getTime(int index) {
+        return this.time[at(index)];
+    }
+
+    public synchronized double getAccuracy(int index) {
+        return this.acc[at(index)];
+    }
+
+    public synchronized double getSpeed(int index) {
+        return this.spd[at(index)];
+    }
+
+    private int at(int index) {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+        return (this.head + index) % this.lat.length;
+    }
+
+    /**
+     * Applies an api/fetch.php response to the trail.
+     *
+     * @param json The response body.
+     * @return The number of points added.
+     * @throws IllegalArgumentException if the response is not valid.
+     */
+    public synchronized int update(String json) {
+        Parser parser = new Parser(json);
+        long sequence = -1L;
+        int added = 0;
+
+        parser.expect('{');
+        if (!parser.skip('}')) {
+            do {
+                String key = parser.readString();
+                parser.expect(':');
+                switch (key) {
+                    case "i": this.interval = parser.readNumber(); break;
+                    case "x": this.expire = (long) parser.readNumber(); break;
+                    case "s": sequence = (long) parser.readNumber(); break;
+                    case "l": added = readPoints(parser); break;
+                    default: parser.skipValue(); break;
+                }
+            } while (parser.skip(','));
+            parser.expect('}');
+        }
+        // If the backend is behind the cursor, e.g. because it was restarted, it has sent the whole
+        // trail, and the new cursor starts over from its sequence number.
+        this.cursor = sequence;
+        return added;
+    }
+
+    private int readPoints(Parser parser) {
+        int added = 0;
+        parser.expect('[');
+        if (parser.skip(']')) return 0;
+        do {
+            parser.expect('[');
+            double pLat = parser.readNumber();
+            parser.expect(',');
+            double pLon = parser.readNumber();
+            parser.expect(',');
+            double pTime = parser.readNumber();
+            parser.expect(',');
+            double pAcc = parser.readNumber();
+            parser.expect(',');
+            double pSpd = parser.readNumber();
+            parser.expect(']');
+            if (this.size == 0 || pTime > this.time[at(this.size - 1)]) {
+                append(pLat, pLon, pTime, pAcc, pSpd);
+                added++;
+            }
+        } while (parser.skip(','));
+        parser.expect(']');
+        return added;
+    }
+
+    private void append(double pLat, double pLon, double pTime, double pAcc, double pSpd) {
+        int capacity = this.lat.length;
+        int index = (this.head + this.size) % capacity;
+        this.lat[index] = pLat;
+        this.lon[index] = pLon;
+        this.time[index] = pTime;
+        this.acc[index] = pAcc;
+        this.spd[index] = pSpd;
+        if (this.size < capacity) this.size++;
+        else this.head = (this.head + 1) % capacity;
+    }
+
+    /**
+     * A minimal reader for the JSON produced by api/fetch.php. Values of unknown keys are skipped.
+     */
+    private static final class Parser {
+        private final String json;
+        private int pos = 0;
+
+        private Parser(String json) {
+            this.json = json;
+        }
+
+        private char peek() {
+            while (this.pos < this.json.length() && Character.isWhitespace(this.json.charAt(this.pos))) this.pos++;
+            if (this.pos == this.json.length()) throw new IllegalArgumentException("Unexpected end of response");
+            return this.json.charAt(this.pos);
+        }
+
+        private boolean skip(char c) {
+            if (peek() != c) return false;
+            this.pos++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (!skip(c)) throw new IllegalArgumentException("Expected '" + c + "' at " + this.pos);
+        }
+
+        /**
+         * Reads a number, or null as NaN.
+         */
+        private double readNumber() {
+            char c = peek();
+            if (this.json.startsWith("null", this.pos)) {
+                this.pos += 4;
+                return Double.NaN;
+            }
+            int start = this.pos;
+            while (this.pos < this.json.length() && "+-0123456789.eE".indexOf(this.json.charAt(this.pos)) >= 0) this.pos++;
+            if (start == this.pos) throw new IllegalArgumentException("Expected a number at " + start + ", got '" + c + "'");
+            return Double.parseDouble(this.json.substring(start, this.pos));
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (this.pos == this.json.length()) throw new IllegalArgumentException("Unterminated string");
+                char c = this.json.charAt(this.pos++);
+                if (c == '"') return sb.toString();
+                if (c == '\\') {
+                    if (this.pos == this.json.length()) throw new IllegalArgumentException("Unterminated string");
+                    c = this.json.charAt(this.pos++);
+                    if (c == 'u') {
+                        if (this.pos + 4 > this.json.length()) throw new IllegalArgumentException("Unterminated string");
+                        c = (char) Integer.parseInt(this.json.substring(this.pos, this.pos + 4), 16);
+                        this.pos += 4;
+                    } else if (c == 'n') {
+                        c = '\n';
+                    } else if (c == 't') {
+                        c = '\t';
+                    }
+                }
+                sb.append(c);
+            }
+        }
+
+        private void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                this.pos++;
+                if (skip(close)) return;
+                do {
+                    if (c == '{') {
+                        readString();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (skip(','));
+                expect(close);
+            } else if (this.json.startsWith("true", this.pos)) {
+                this.pos += 4;
+            } else if (this.json.startsWith("false", this.pos)) {
+                this.pos += 5;
+            } else {
+                readNumber();
+            }
+        }
+    }
+}
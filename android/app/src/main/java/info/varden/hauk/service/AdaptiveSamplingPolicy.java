@@ -0,0 +1,184 @@
+package info.varden.hauk.service;
+
+/**
+ * A sampling policy that adapts the GPS rate to how the device is moving.
+ *
+ * The interval configured for the share is the fastest rate at which location updates are
+ * requested. Independently of that, at least one update is uploaded per heartbeat interval. Within
+ * those bounds, the policy works as follows:
+ *
+ * - Updates that lie within the accuracy radius of the last uploaded update carry no new
+ *   information and are suppressed, unless a heartbeat is due.
+ * - When the device has been stationary for a few consecutive updates, updates are only requested
+ *   once per heartbeat interval, together with a minimum distance, so that the GPS can stay idle
+ *   until the device moves. Heartbeats must then be generated by the caller from the last known
+ *   location, as the GPS will not deliver updates on its own.
+ * - At walking speed, the GPS rate is halved.
+ * - When moving faster, or when the direction of travel changes sharply, updates are requested at
+ *   the full configured rate so that the trail stays accurate.
+ *
+ * If the GPS does not report speed, it is estimated from the distance to the last uploaded update.
+ *
+ * @author Marius Lindvall
+ */
+public final class AdaptiveSamplingPolicy implements SamplingPolicy {
+    // The heartbeat interval as a multiple of the interval configured for the share, and the
+    // bounds it is kept within, in milliseconds.
+    private static final int HEARTBEAT_INTERVALS = 10;
+    private static final long MIN_HEARTBEAT = 10000L;
+    private static final long MAX_HEARTBEAT = 300000L;
+
+    // Speeds in meters per second below which the device is considered stationary or walking.
+    private static final float STATIONARY_SPEED = 0.5F;
+    private static final float WALKING_SPEED = 3F;
+
+    // The number of consecutive stationary updates before the GPS rate is reduced.
+    private static final int STATIONARY_UPDATES = 3;
+
+    // How much the GPS interval is stretched at walking speed.
+    private static final int WALKING_FACTOR = 2;
+
+    // The minimum distance in meters requested while stationary.
+    private static final float STATIONARY_DISTANCE = 10F;
+
+    // A change of direction in degrees that is treated as a turn.
+    private static final float TURN_ANGLE = 30F;
+
+    // A heartbeat is considered due once this fraction of the heartbeat interval has elapsed, to
+    // allow for jitter in the timing of location updates.
+    private static final float HEARTBEAT_SLACK = 0.9F;
+
+    private static final double EARTH_RADIUS = 6371000D;
+
+    private final long fastest;
+    private final long heartbeat;
+    private long interval;
+    private float minDistance = 0F;
+
+    // The last uploaded update.
+    private boolean hasSent = false;
+    private double sentLat;
+    private double sentLon;
+    private long sentTime;
+    private float sentAcc;
+
+    // The direction of travel of the last received update, and the number of consecutive
+    // stationary updates.
+    private float lastBearing = Float.NaN;
+    private int stationary = 0;
+
+    /**
+     * Creates an adaptive sampling policy with a heartbeat interval that scales with the interval
+     * configured for the share, so that shares with a short interval also go quiet for less time.
+     *
+     * @param interval The interval configured for the share, in milliseconds.
+     */
+    public AdaptiveSamplingPolicy(long interval) {
+        this(interval, Math.min(MAX_HEARTBEAT, Math.max(MIN_HEARTBEAT, interval * HEARTBEAT_INTERVALS)));
+    }
+
+    /**
+     * Creates an adaptive sampling policy.
+     *
+     * @param interval  The interval configured for the share, in milliseconds.
+     * @param heartbeat The longest time between uploaded updates, in milliseconds. Values shorter
+     *                  than the interval are raised to the interval.
+     */
+    public AdaptiveSamplingPolicy(long interval, long heartbeat) {
+        this.fastest = interval;
+        this.heartbeat = Math.max(interval, heartbeat);
+        this.interval = interval;
+    }
+
+    @Override
+    public boolean accept(double lat, double lon, long time, float acc, float spd, float bearing) {
+        if (!this.hasSent) {
+            this.lastBearing = bearing;
+            markSent(lat, lon, time, acc);
+            return true;
+        }
+
+        double distance = distance(this.sentLat, this.sentLon, lat, lon);
+        float radius = Math.max(orZero(acc), orZero(this.sentAcc));
+        if (Float.isNaN(spd) && time > this.sentTime) {
+            spd = distance > radius ? (float) (distance * 1000D / (time - this.sentTime)) : 0F;
+        }
+
+        boolean turning = !Float.isNaN(spd) && spd >= STATIONARY_SPEED && angle(this.lastBearing, bearing) >= TURN_ANGLE;
+        this.lastBearing = bearing;
+
+        if (distance <= radius || (!Float.isNaN(spd) && spd < STATIONARY_SPEED)) {
+            this.stationary++;
+        } else {
+            this.stationary = 0;
+        }
+
+        if (this.stationary >= STATIONARY_UPDATES) {
+            this.interval = this.heartbeat;
+            this.minDistance = STATIONARY_DISTANCE;
+        } else if (!turning && !Float.isNaN(spd) && spd < WALKING_SPEED) {
+            this.interval = Math.min(this.fastest * WALKING_FACTOR, this.heartbeat);
+            this.minDistance = 0F;
+        } else {
+            this.interval = this.fastest;
+            this.minDistance = 0F;
+        }
+
+        boolean heartbeatDue = time - this.sentTime >= (long) (this.heartbeat * HEARTBEAT_SLACK);
+        if (distance > radius || turning || heartbeatDue) {
+            markSent(lat, lon, time, acc);
+            return true;
+        }
+        return false;
+    }
+
+    private void markSent(double lat, double lon, long time, float acc) {
+        this.hasSent = true;
+        this.sentLat = lat;
+        this.sentLon = lon;
+        this.sentTime = time;
+        this.sentAcc = acc;
+    }
+
+    @Override
+    public long getInterval() {
+        return this.interval;
+    }
+
+    @Override
+    public float getMinDistance() {
+        return this.minDistance;
+    }
+
+    @Override
+    public long getHeartbeat() {
+        return this.heartbeat;
+    }
+
+    private static float orZero(float value) {
+        return Float.isNaN(value) ? 0F : value;
+    }
+
+    /**
+     * Returns the difference between two bearings in degrees, between 0 and 180, or 0 if either is
+     * unknown.
+     */
+    private static float angle(float a, float b) {
+        if (Float.isNaN(a) || Float.isNaN(b)) return 0F;
+        float d = Math.abs(a - b) % 360F;
+        return d > 180F ? 360F - d : d;
+    }
+
+    /**
+     * Calculates the great-circle distance between two points using the haversine formula.
+     *
+     * @return The distance in meters.
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2D * EARTH_RADIUS * Math.asin(Math.min(1D, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,76 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Handler;
+
+import info.varden.hauk.ShareScheduler;
+
+/**
+ * The location providers and timers of an Android device, for use by LocationSource.
+ *
+ * @author Marius Lindvall
+ */
+final class AndroidLocationPlatform implements LocationSource.Platform {
+    private final LocationManager locMan;
+    private final Handler handler;
+    private final ShareScheduler scheduler;
+
+    /**
+     * Creates a platform backed by the given location manager.
+     *
+     * @param locMan    The system location manager.
+     * @param handler   A handler on the thread that should receive location updates.
+     * @param scheduler The scheduler of the share, which runs timers on the same thread.
+     */
+    AndroidLocationPlatform(LocationManager locMan, Handler handler, ShareScheduler scheduler) {
+        this.locMan = locMan;
+        this.handler = handler;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public boolean isEnabled(String provider) {
+        try {
+            return this.locMan.isProviderEnabled(provider);
+        } catch (IllegalArgumentException e) {
+            // The device does not have this provider.
+            return false;
+        }
+    }
+
+    @Override
+    public void request(String provider, long interval, float minDistance, LocationListener listener) throws SecurityException {
+        this.locMan.requestLocationUpdates(provider, interval, minDistance, listener, this.handler.getLooper());
+    }
+
+    @Override
+    public void remove(LocationListener listener) {
+        this.locMan.removeUpdates(listener);
+    }
+
+    @Override
+    public Location getLastKnown(String provider) throws SecurityException {
+        try {
+            return this.locMan.getLastKnownLocation(provider);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        this.scheduler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        this.scheduler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,55 @@
+package info.varden.hauk.service;
+
+/**
+ * Describes when a batch of buffered location updates should be flushed to the Hauk backend. A
+ * batch is flushed as soon as any one of its limits is reached.
+ *
+ * @author Marius Lindvall
+ */
+public final class BatchPolicy {
+    // The largest number of points that may be buffered, regardless of user settings. This keeps
+    // the buffer bounded if the user enters a very large batch size.
+    public static final int MAX_POINTS = 500;
+
+    // The default upper bound for the size of a single batch request body, in bytes.
+    public static final int DEFAULT_MAX_BYTES = 8192;
+
+    private final int maxPoints;
+    private final long maxAge;
+    private final int maxBytes;
+
+    /**
+     * Creates a flush policy.
+     *
+     * @param maxPoints The number of buffered points that triggers a flush. A value of 1 or less
+     *                  disables batching.
+     * @param maxAge    The longest time, in milliseconds, a point may wait in the buffer.
+     * @param maxBytes  The encoded body size, in bytes, that triggers a flush.
+     */
+    public BatchPolicy(int maxPoints, long maxAge, int maxBytes) {
+        this.maxPoints = Math.max(1, Math.min(maxPoints, MAX_POINTS));
+        this.maxAge = Math.max(0L, maxAge);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * Checks whether this policy buffers points at all.
+     *
+     * @return true if more than one point may be sent per request, false otherwise.
+     */
+    public boolean isBatching() {
+        return this.maxPoints > 1;
+    }
+
+    public int getMaxPoints() {
+        return this.maxPoints;
+    }
+
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    public int getMaxBytes() {
+        return this.maxBytes;
+    }
+}
@@ -0,0 +1,165 @@
+package info.varden.hauk.service;
+
+/**
+ * Encodes and decodes batches of location updates in Hauk's compact binary format. This format is
+ * an alternative to the form-encoded api/post.php body, and is only used if the backend announces
+ * support for it when the session is created.
+ *
+ * All numbers are big-endian. A body has the following layout:
+ *
+ *   offset  size  field
+ *   0       1     magic byte 'H' (0x48)
+ *   1       1     format version (1)
+ *   2       1     length n of the session ID
+ *   3       n     session ID, ASCII
+ *   3+n     2     number of points c, unsigned
+ *   5+n     20*c  point records
+ *
+ * Each point record has the following layout:
+ *
+ *   0       4     latitude, signed, in units of 10^-7 degrees
+ *   4       4     longitude, signed, in units of 10^-7 degrees
+ *   8       8     timestamp, signed, in milliseconds since the UNIX epoch
+ *   16      2     accuracy, unsigned, in decimeters; 0xFFFF if unknown
+ *   18      2     speed, unsigned, in centimeters per second; 0xFFFF if unknown
+ *
+ * Accuracy and speed values that are too large to be represented are saturated to 0xFFFE.
+ *
+ * The encoder does not allocate any memory, so it can be used with a reusable output buffer.
+ *
+ * @author Marius Lindvall
+ */
+public final class BinaryLocationCodec {
+    // The MIME type of binary api/post.php requests.
+    public static final String CONTENT_TYPE = "application/x-hauk-location";
+
+    // The capability announced by backends that accept this format.
+    public static final String CAPABILITY = "binary";
+
+    private static final int MAGIC = 0x48;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int RECORD_SIZE = 20;
+    private static final int UNKNOWN = 0xFFFF;
+    private static final int MAX_VALUE = 0xFFFE;
+
+    private BinaryLocationCodec() {
+    }
+
+    /**
+     * Calculates the size of an encoded body.
+     *
+     * @param sessionLength The length of the session ID.
+     * @param count         The number of points.
+     * @return The encoded size in bytes.
+     */
+    public static int getEncodedSize(int sessionLength, int count) {
+        return HEADER_SIZE + sessionLength + count * RECORD_SIZE;
+    }
+
+    /**
+     * Encodes a batch into the given buffer.
+     *
+     * @param batch  The batch to encode.
+     * @param out    The output buffer, which must have room for getEncodedSize() bytes.
+     * @param offset The position in the buffer at which to start writing.
+     * @return The number of bytes written.
+     */
+    public static int encode(LocationBatch batch, byte[] out, int offset) {
+        String session = batch.getSession();
+        int count = batch.size();
+        int pos = offset;
+
+        out[pos++] = (byte) MAGIC;
+        out[pos++] = (byte) VERSION;
+        out[pos++] = (byte) session.length();
+        for (int i = 0; i < session.length(); i++) out[pos++] = (byte) session.charAt(i);
+        pos = putShort(out, pos, count);
+
+        for (int i = 0; i < count; i++) {
+            pos = putInt(out, pos, (int) Math.round(batch.getLatitude(i) * 1E7D));
+            pos = putInt(out, pos, (int) Math.round(batch.getLongitude(i) * 1E7D));
+            pos = putLong(out, pos, Math.round(batch.getTime(i) * 1000D));
+            pos = putShort(out, pos, scale(batch.getAccuracy(i), 10F));
+            pos = putShort(out, pos, scale(batch.getSpeed(i), 100F));
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Decodes a body produced by encode().
+     *
+     * @param in     The buffer containing the body.
+     * @param offset The position of the body in the buffer.
+     * @param length The length of the body.
+     * @return The decoded batch.
+     * @throws IllegalArgumentException if the body is not a valid binary location body.
+     */
+    public static LocationBatch decode(byte[] in, int offset, int length) {
+        if (length < HEADER_SIZE || (in[offset] & 0xFF) != MAGIC || (in[offset + 1] & 0xFF) != VERSION) {
+            throw new IllegalArgumentException("Not a binary location body");
+        }
+        int sessionLength = in[offset + 2] & 0xFF;
+        if (length < HEADER_SIZE + sessionLength) throw new IllegalArgumentException("Truncated header");
+
+        StringBuilder session = new StringBuilder(sessionLength);
+        for (int i = 0; i < sessionLength; i++) session.append((char) (in[offset + 3 + i] & 0xFF));
+        int pos = offset + 3 + sessionLength;
+        int count = getShort(in, pos);
+        pos += 2;
+        if (length != getEncodedSize(sessionLength, count)) throw new IllegalArgumentException("Invalid body length");
+
+        LocationBatch batch = new LocationBatch(session.toString(), Math.max(count, 1), LocationBatch.Format.BINARY);
+        for (int i = 0; i < count; i++) {
+            double lat = getInt(in, pos) / 1E7D;
+            double lon = getInt(in, pos + 4) / 1E7D;
+            double time = getLong(in, pos + 8) / 1000D;
+            float acc = unscale(getShort(in, pos + 16), 10F);
+            float spd = unscale(getShort(in, pos + 18), 100F);
+            batch.add(lat, lon, time, acc, spd);
+            pos += RECORD_SIZE;
+        }
+        return batch;
+    }
+
+    private static int scale(float value, float factor) {
+        if (Float.isNaN(value)) return UNKNOWN;
+        return Math.max(0, Math.min(MAX_VALUE, Math.round(value * factor)));
+    }
+
+    private static float unscale(int value, float factor) {
+        return value == UNKNOWN ? Float.NaN : value / factor;
+    }
+
+    private static int putShort(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 8);
+        out[pos + 1] = (byte) value;
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] out, int pos, long value) {
+        putInt(out, pos, (int) (value >>> 32));
+        putInt(out, pos + 4, (int) value);
+        return pos + 8;
+    }
+
+    private static int getShort(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 8) | (in[pos + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 24) | ((in[pos + 1] & 0xFF) << 16) | ((in[pos + 2] & 0xFF) << 8) | (in[pos + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] in, int pos) {
+        return ((long) getInt(in, pos) << 32) | (getInt(in, pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,239 @@
+package info.varden.hauk.service;
+
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes trails of location updates as deltas between consecutive points. As the
+ * points of a share are highly correlated, most deltas fit in one or two bytes, which makes this
+ * format considerably smaller than BinaryLocationCodec for batched and queued trails. It is only
+ * used if the backend announces support for it when the session is created.
+ *
+ * The body shares its MIME type and header with BinaryLocationCodec, but has format version 2 and
+ * no point count:
+ *
+ *   offset  size  field
+ *   0       1     magic byte 'H' (0x48)
+ *   1       1     format version (2)
+ *   2       1     length n of the session ID
+ *   3       n     session ID, ASCII
+ *   3+n     ...   point records until the end of the body
+ *
+ * Each point record consists of five variable-length integers:
+ *
+ *   latitude delta, in units of 10^-7 degrees, zigzag-encoded
+ *   longitude delta, in units of 10^-7 degrees, zigzag-encoded
+ *   timestamp delta, in milliseconds, zigzag-encoded
+ *   accuracy in decimeters plus one, or 0 if unknown
+ *   speed in centimeters per second plus one, or 0 if unknown
+ *
+ * Integers are stored as little-endian base-128 varints, where the high bit of each byte is set if
+ * more bytes follow. Zigzag encoding maps signed values to unsigned ones so that small negative
+ * deltas also stay short. The deltas of the first point in a body are relative to zero, so every
+ * body can be decoded on its own, and a lost request does not affect the decoding of later ones.
+ *
+ * @author Marius Lindvall
+ */
+public final class DeltaLocationCodec {
+    // The capability announced by backends that accept this format.
+    public static final String CAPABILITY = "delta";
+
+    private static final int MAGIC = 0x48;
+    private static final int VERSION = 2;
+
+    // Accuracy and speed are clamped so that they can always be represented in a Java int.
+    private static final long MAX_VALUE = Integer.MAX_VALUE - 1;
+
+    private DeltaLocationCodec() {
+    }
+
+    /**
+     * An incremental encoder for a single body. Points are encoded as soon as they are added, so
+     * that the encoded size is always known, and only the encoded bytes of the unsent points are
+     * held in memory.
+     */
+    public static final class Encoder {
+        private final String session;
+        private byte[] buf;
+        private int size;
+
+        // The previous point, in scaled integer units.
+        private long lastLat;
+        private long lastLon;
+        private long lastTime;
+
+        /**
+         * Creates an encoder for a sharing session.
+         *
+         * @param session  The session ID provided by the Hauk backend.
+         * @param capacity The expected number of points, used to size the initial buffer.
+         */
+        public Encoder(String session, int capacity) {
+            this.session = session;
+            this.buf = new byte[3 + session.length() + Math.max(capacity, 1) * 8];
+            reset();
+        }
+
+        /**
+         * Discards all encoded points, so that the encoder can be reused for a new body.
+         */
+        public void reset() {
+            this.size = 0;
+            this.lastLat = 0L;
+            this.lastLon = 0L;
+            this.lastTime = 0L;
+            this.buf[this.size++] = (byte) MAGIC;
+            this.buf[this.size++] = (byte) VERSION;
+            this.buf[this.size++] = (byte) this.session.length();
+            for (int i = 0; i < this.session.length(); i++) this.buf[this.size++] = (byte) this.session.charAt(i);
+        }
+
+        /**
+         * Appends a location update to the body.
+         *
+         * @param lat  Latitude in degrees.
+         * @param lon  Longitude in degrees.
+         * @param time Timestamp in seconds since the UNIX epoch.
+         * @param acc  Accuracy radius in meters, or NaN if unknown.
+         * @param spd  Speed in meters per second, or NaN if unknown.
+         */
+        public void add(double lat, double lon, double time, float acc, float spd) {
+            long sLat = Math.round(lat * 1E7D);
+            long sLon = Math.round(lon * 1E7D);
+            long sTime = Math.round(time * 1000D);
+
+            // Five varints of at most ten bytes each.
+            if (this.size + 50 > this.buf.length) this.buf = Arrays.copyOf(this.buf, this.buf.length * 2 + 50);
+
+            putVarint(zigzag(sLat - this.lastLat));
+            putVarint(zigzag(sLon - this.lastLon));
+            putVarint(zigzag(sTime - this.lastTime));
+            putVarint(scale(acc, 10F));
+            putVarint(scale(spd, 100F));
+
+            this.lastLat = sLat;
+            this.lastLon = sLon;
+            this.lastTime = sTime;
+        }
+
+        private void putVarint(long value) {
+            while ((value & ~0x7FL) != 0L) {
+                this.buf[this.size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buf[this.size++] = (byte) value;
+        }
+
+        /**
+         * Returns the length of the encoded body, in bytes.
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Copies the encoded body into the given buffer.
+         *
+         * @param out    The output buffer, which must have room for size() bytes.
+         * @param offset The position in the buffer at which to start writing.
+         * @return The number of bytes written.
+         */
+        public int writeTo(byte[] out, int offset) {
+            System.arraycopy(this.buf, 0, out, offset, this.size);
+            return this.size;
+        }
+
+        /**
+         * Returns a copy of the encoded body.
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(this.buf, this.size);
+        }
+    }
+
+    /**
+     * Decodes a body produced by an Encoder.
+     *
+     * @param in     The buffer containing the body.
+     * @param offset The position of the body in the buffer.
+     * @param length The length of the body.
+     * @return The decoded batch.
+     * @throws IllegalArgumentException if the body is not a valid delta location body.
+     */
+    public static LocationBatch decode(byte[] in, int offset, int length) {
+        if (length < 3 || (in[offset] & 0xFF) != MAGIC || (in[offset + 1] & 0xFF) != VERSION) {
+            throw new IllegalArgumentException("Not a delta location body");
+        }
+        int sessionLength = in[offset + 2] & 0xFF;
+        if (length < 3 + sessionLength) throw new IllegalArgumentException("Truncated header");
+
+        StringBuilder session = new StringBuilder(sessionLength);
+        for (int i = 0; i < sessionLength; i++) session.append((char) (in[offset + 3 + i] & 0xFF));
+
+        // Decode all varints first to find the number of points.
+        Reader reader = new Reader(in, offset + 3 + sessionLength, offset + length);
+        long[] values = new long[Math.max(length / 2, 5)];
+        int n = 0;
+        while (reader.hasMore()) {
+            if (n == values.length) values = Arrays.copyOf(values, n * 2);
+            values[n++] = reader.next();
+        }
+        if (n % 5 != 0) throw new IllegalArgumentException("Truncated point record");
+
+        LocationBatch batch = new LocationBatch(session.toString(), Math.max(n / 5, 1), LocationBatch.Format.DELTA);
+        long lat = 0L, lon = 0L, time = 0L;
+        for (int i = 0; i < n; i += 5) {
+            lat += unzigzag(values[i]);
+            lon += unzigzag(values[i + 1]);
+            time += unzigzag(values[i + 2]);
+            batch.add(lat / 1E7D, lon / 1E7D, time / 1000D, unscale(values[i + 3], 10F), unscale(values[i + 4], 100F));
+        }
+        return batch;
+    }
+
+    /**
+     * A cursor over the varints of a body.
+     */
+    private static final class Reader {
+        private final byte[] in;
+        private final int end;
+        private int pos;
+
+        private Reader(byte[] in, int pos, int end) {
+            this.in = in;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private boolean hasMore() {
+            return this.pos < this.end;
+        }
+
+        private long next() {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.pos == this.end) throw new IllegalArgumentException("Truncated varint");
+                int b = this.in[this.pos++] & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    private static long scale(float value, float factor) {
+        if (Float.isNaN(value)) return 0L;
+        return Math.max(0L, Math.min(MAX_VALUE, (long) Math.round(value * factor))) + 1L;
+    }
+
+    private static float unscale(long value, float factor) {
+        return value == 0L ? Float.NaN : (value - 1L) / factor;
+    }
+}
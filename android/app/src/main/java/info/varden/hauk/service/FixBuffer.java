@@ -0,0 +1,88 @@
+package info.varden.hauk.service;
+
+/**
+ * Holds location updates that arrive before the backend has created the session, so that they can
+ * be sent as soon as the session ID is known. If the buffer is full, the oldest update is dropped.
+ *
+ * @author Marius Lindvall
+ */
+public final class FixBuffer {
+    // The default maximum number of buffered updates. At the highest update rate, this covers the
+    // longest time session creation can take before the request times out.
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // Buffered updates, stored as parallel arrays in a ring starting at index head.
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] time;
+    private final float[] acc;
+    private final float[] spd;
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0L;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param capacity The maximum number of updates to hold.
+     */
+    public FixBuffer(int capacity) {
+        this.lat = new double[capacity];
+        this.lon = new double[capacity];
+        this.time = new double[capacity];
+        this.acc = new float[capacity];
+        this.spd = new float[capacity];
+    }
+
+    /**
+     * Adds a location update to the buffer, dropping the oldest update if the buffer is full.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    public void add(double lat, double lon, double time, float acc, float spd) {
+        int i = (this.head + this.count) % this.lat.length;
+        if (this.count == this.lat.length) {
+            this.head = (this.head + 1) % this.lat.length;
+            this.dropped++;
+        } else {
+            this.count++;
+        }
+        this.lat[i] = lat;
+        this.lon[i] = lon;
+        this.time[i] = time;
+        this.acc[i] = acc;
+        this.spd[i] = spd;
+    }
+
+    /**
+     * Moves all buffered updates to a batcher, oldest first, and empties the buffer.
+     *
+     * @param batcher The batcher to add the updates to.
+     */
+    public void drainTo(LocationBatcher batcher) {
+        for (int n = 0; n < this.count; n++) {
+            int i = (this.head + n) % this.lat.length;
+            batcher.add(this.lat[i], this.lon[i], this.time[i], this.acc[i], this.spd[i]);
+        }
+        this.head = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Returns the number of buffered updates.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the number of updates that were dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+}
@@ -0,0 +1,39 @@
+package info.varden.hauk.service;
+
+/**
+ * A sampling policy that requests location updates at a fixed interval and uploads all of them.
+ *
+ * @author Marius Lindvall
+ */
+public final class FixedSamplingPolicy implements SamplingPolicy {
+    private final long interval;
+
+    /**
+     * Creates a fixed sampling policy.
+     *
+     * @param interval The interval between location updates, in milliseconds.
+     */
+    public FixedSamplingPolicy(long interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public boolean accept(double lat, double lon, long time, float acc, float spd, float bearing) {
+        return true;
+    }
+
+    @Override
+    public long getInterval() {
+        return this.interval;
+    }
+
+    @Override
+    public float getMinDistance() {
+        return 0F;
+    }
+
+    @Override
+    public long getHeartbeat() {
+        return this.interval;
+    }
+}
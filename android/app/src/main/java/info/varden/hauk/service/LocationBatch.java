@@ -0,0 +1,307 @@
+package info.varden.hauk.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import info.varden.hauk.HTTPThread;
+
+/**
+ * A bounded list of location updates for a single sharing session, together with its encoded
+ * api/post.php request body. For the form encoding, the body is built as points are added, so that
+ * the size of the request is always known exactly.
+ *
+ * A batch of several points is encoded with every point field sent as an array, with one entry per
+ * point in chronological order:
+ *
+ *   sid=SESSION&lat[]=LAT1&lon[]=LON1&time[]=TIME1&acc[]=ACC1&spd[]=SPD1&lat[]=LAT2&...
+ *
+ * All five arrays always have the same length. If a point has no accuracy or speed, the
+ * corresponding acc[] or spd[] entry is sent as an empty string. A batch of one point is encoded
+ * with plain scalar fields instead, so that single updates remain compatible with backends that do
+ * not support batches.
+ *
+ * Batches can alternatively be encoded in the compact binary format described in
+ * BinaryLocationCodec, or as deltas between consecutive points as described in DeltaLocationCodec,
+ * if the backend supports it. The delta encoding is also built as points are added.
+ *
+ * Numbers in the form encoding are written in plain decimal notation with a fixed maximum number
+ * of decimals - seven for coordinates, three for timestamps and two for accuracy and speed - which
+ * matches the precision of the binary formats.
+ *
+ * Batches are meant to be reused through reset() once they have been sent. A reused batch encodes
+ * its request body into a buffer it owns, so that sending location updates does not create garbage
+ * in the steady state. The buffer is shared by all requests created from the batch, so the batch
+ * must not be reset until its request has completed.
+ *
+ * @author Marius Lindvall
+ */
+public final class LocationBatch {
+    /**
+     * The encodings that can be used for api/post.php requests.
+     */
+    public enum Format {
+        FORM,
+        BINARY,
+        DELTA;
+
+        /**
+         * Picks the most compact format supported by a backend.
+         *
+         * @param capabilities The space-separated list of optional features announced by the
+         *                     backend, or null if the backend did not announce any.
+         * @return The format to use for api/post.php requests.
+         */
+        public static Format forCapabilities(String capabilities) {
+            if (capabilities == null) return FORM;
+            List<String> list = Arrays.asList(capabilities.trim().split(" "));
+            if (list.contains(DeltaLocationCodec.CAPABILITY)) return DELTA;
+            if (list.contains(BinaryLocationCodec.CAPABILITY)) return BINARY;
+            return FORM;
+        }
+    }
+
+    // URL-encoded array field prefixes.
+    private static final String LAT = "&lat%5B%5D=";
+    private static final String LON = "&lon%5B%5D=";
+    private static final String TIME = "&time%5B%5D=";
+    private static final String ACC = "&acc%5B%5D=";
+    private static final String SPD = "&spd%5B%5D=";
+
+    // Powers of ten, used to write decimal numbers without allocating.
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L};
+
+    private final String session;
+    private final Format format;
+
+    // Point data, stored as parallel arrays. Unknown accuracy and speed are stored as NaN.
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] time;
+    private final float[] acc;
+    private final float[] spd;
+    private int count = 0;
+
+    // The request body in array form. Only built for the form encoding.
+    private final StringBuilder body = new StringBuilder();
+
+    // The request body in delta form. Only built for the delta encoding.
+    private final DeltaLocationCodec.Encoder delta;
+
+    // Scratch space for the scalar form encoding of a single point.
+    private final StringBuilder single = new StringBuilder();
+
+    // The request body as sent over the wire. Grown as needed and reused between requests.
+    private byte[] wire = new byte[0];
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param session  The session ID provided by the Hauk backend.
+     * @param capacity The maximum number of points in the batch.
+     * @param format   The encoding to use when the batch is sent.
+     */
+    public LocationBatch(String session, int capacity, Format format) {
+        this.session = session;
+        this.format = format;
+        this.lat = new double[capacity];
+        this.lon = new double[capacity];
+        this.time = new double[capacity];
+        this.acc = new float[capacity];
+        this.spd = new float[capacity];
+        this.delta = format == Format.DELTA ? new DeltaLocationCodec.Encoder(session, capacity) : null;
+        // Session IDs are hexadecimal and need no escaping.
+        this.body.append("sid=").append(session);
+    }
+
+    /**
+     * Removes all points from the batch so that it can be reused for the same session. This must
+     * not be called while a request created from this batch is still being sent.
+     */
+    public void reset() {
+        this.count = 0;
+        this.body.setLength(0);
+        this.body.append("sid=").append(this.session);
+        if (this.delta != null) this.delta.reset();
+    }
+
+    /**
+     * Adds a location update to the batch.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     * @return true if the point was added, false if the batch is full.
+     */
+    public boolean add(double lat, double lon, double time, float acc, float spd) {
+        if (this.count == this.lat.length) return false;
+        this.lat[this.count] = lat;
+        this.lon[this.count] = lon;
+        this.time[this.count] = time;
+        this.acc[this.count] = acc;
+        this.spd[this.count] = spd;
+        this.count++;
+
+        if (this.format == Format.FORM) appendPoint(this.body, this.count - 1);
+        else if (this.format == Format.DELTA) this.delta.add(lat, lon, time, acc, spd);
+        return true;
+    }
+
+    private void appendPoint(StringBuilder sb, int index) {
+        sb.append(LAT);
+        appendDecimal(sb, this.lat[index], 7);
+        sb.append(LON);
+        appendDecimal(sb, this.lon[index], 7);
+        sb.append(TIME);
+        appendDecimal(sb, this.time[index], 3);
+        sb.append(ACC);
+        if (!Float.isNaN(this.acc[index])) appendDecimal(sb, this.acc[index], 2);
+        sb.append(SPD);
+        if (!Float.isNaN(this.spd[index])) appendDecimal(sb, this.spd[index], 2);
+    }
+
+    private void appendSingle(StringBuilder sb) {
+        sb.append("sid=").append(this.session);
+        sb.append("&lat=");
+        appendDecimal(sb, this.lat[0], 7);
+        sb.append("&lon=");
+        appendDecimal(sb, this.lon[0], 7);
+        sb.append("&time=");
+        appendDecimal(sb, this.time[0], 3);
+        if (!Float.isNaN(this.acc[0])) {
+            sb.append("&acc=");
+            appendDecimal(sb, this.acc[0], 2);
+        }
+        if (!Float.isNaN(this.spd[0])) {
+            sb.append("&spd=");
+            appendDecimal(sb, this.spd[0], 2);
+        }
+    }
+
+    /**
+     * Appends a number in plain decimal notation, rounded to the given number of decimals, with
+     * trailing zeros removed but at least one decimal kept. Unlike StringBuilder.append(double),
+     * this does not allocate any memory.
+     */
+    static void appendDecimal(StringBuilder sb, double value, int decimals) {
+        if (value < 0D) {
+            sb.append('-');
+            value = -value;
+        }
+        long scaled = Math.round(value * POW10[decimals]);
+        long frac = scaled % POW10[decimals];
+        sb.append(scaled / POW10[decimals]);
+        sb.append('.');
+        while (decimals > 1 && frac % 10L == 0L) {
+            frac /= 10L;
+            decimals--;
+        }
+        for (int i = decimals - 1; i >= 0; i--) sb.append((char) ('0' + frac / POW10[i] % 10L));
+    }
+
+    public String getSession() {
+        return this.session;
+    }
+
+    public Format getFormat() {
+        return this.format;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the length of the encoded request body for this batch, in bytes.
+     */
+    public int getEncodedSize() {
+        switch (this.format) {
+            case BINARY:
+                return BinaryLocationCodec.getEncodedSize(this.session.length(), this.count);
+            case DELTA:
+                return this.delta.size();
+            default:
+                return this.body.length();
+        }
+    }
+
+    public double getLatitude(int index) {
+        return this.lat[index];
+    }
+
+    public double getLongitude(int index) {
+        return this.lon[index];
+    }
+
+    public double getTime(int index) {
+        return this.time[index];
+    }
+
+    public float getAccuracy(int index) {
+        return this.acc[index];
+    }
+
+    public float getSpeed(int index) {
+        return this.spd[index];
+    }
+
+    /**
+     * Creates an api/post.php request for this batch in the batch's format. The request body is
+     * written to a buffer owned by this batch, which is overwritten the next time this function is
+     * called.
+     *
+     * @param url The URL of the api/post.php endpoint.
+     * @return A request that can be sent with HTTPThread.
+     */
+    public HTTPThread.Request toRequest(String url) {
+        int length;
+        switch (this.format) {
+            case BINARY:
+                length = getEncodedSize();
+                ensureWire(length);
+                BinaryLocationCodec.encode(this, this.wire, 0);
+                return new HTTPThread.Request(url, BinaryLocationCodec.CONTENT_TYPE, this.wire, length);
+            case DELTA:
+                length = this.delta.size();
+                ensureWire(length);
+                this.delta.writeTo(this.wire, 0);
+                return new HTTPThread.Request(url, BinaryLocationCodec.CONTENT_TYPE, this.wire, length);
+            default:
+                StringBuilder sb = this.body;
+                if (this.count == 1) {
+                    this.single.setLength(0);
+                    appendSingle(this.single);
+                    sb = this.single;
+                }
+                // The form body is pure ASCII, so it can be copied to the wire byte by byte.
+                length = sb.length();
+                ensureWire(length);
+                for (int i = 0; i < length; i++) this.wire[i] = (byte) sb.charAt(i);
+                return new HTTPThread.Request(url, HTTPThread.Request.FORM, this.wire, length);
+        }
+    }
+
+    private void ensureWire(int length) {
+        if (this.wire.length < length) this.wire = new byte[Math.max(length, this.wire.length * 2)];
+    }
+
+    /**
+     * Encodes this batch as an application/x-www-form-urlencoded api/post.php request body,
+     * regardless of the batch's format.
+     */
+    public String encode() {
+        StringBuilder sb;
+        if (this.count != 1) {
+            if (this.format == Format.FORM) return this.body.toString();
+            sb = new StringBuilder();
+            sb.append("sid=").append(this.session);
+            for (int i = 0; i < this.count; i++) appendPoint(sb, i);
+            return sb.toString();
+        }
+
+        sb = new StringBuilder();
+        appendSingle(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package info.varden.hauk.service;
+
+import java.util.ArrayDeque;
+
+/**
+ * Buffers location updates and flushes them to the Hauk backend as a single multi-point request
+ * once the buffer reaches the limits of its BatchPolicy. See LocationBatch for the wire format.
+ *
+ * Batches that have been sent can be handed back with recycle(), so that the same few batches and
+ * their buffers are reused for the whole share instead of allocating a new batch for every flush.
+ *
+ * @author Marius Lindvall
+ */
+public final class LocationBatcher {
+    private final String session;
+    private final LocationBatch.Format format;
+    private final BatchPolicy policy;
+    private final Flusher flusher;
+
+    // The largest number of recycled batches kept for reuse. Batches are only in flight for the
+    // duration of a request, so a few are enough unless the backend is very slow.
+    private static final int POOL_SIZE = 4;
+    private final ArrayDeque<LocationBatch> pool = new ArrayDeque<>();
+
+    // The pending batch and the time the oldest point in it was added.
+    private LocationBatch batch;
+    private long oldest = 0L;
+
+    /**
+     * Creates a batcher for a sharing session.
+     *
+     * @param session The session ID provided by the Hauk backend.
+     * @param format  The encoding to use for batches.
+     * @param policy  The policy that decides when batches are flushed.
+     * @param flusher A callback that receives each completed batch.
+     */
+    public LocationBatcher(String session, LocationBatch.Format format, BatchPolicy policy, Flusher flusher) {
+        this.session = session;
+        this.format = format;
+        this.policy = policy;
+        this.flusher = flusher;
+        this.batch = new LocationBatch(session, policy.getMaxPoints(), format);
+    }
+
+    /**
+     * Adds a location update to the pending batch, flushing the batch if the update makes it reach
+     * any of the limits of the policy. As the age limit must be enforced even if no new location
+     * updates arrive, the caller is responsible for calling flush() when the oldest point reaches
+     * the maximum age.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    public synchronized void add(double lat, double lon, double time, float acc, float spd) {
+        long now = System.currentTimeMillis();
+        if (this.batch.size() == 0) this.oldest = now;
+
+        this.batch.add(lat, lon, time, acc, spd);
+
+        if (this.batch.size() >= this.policy.getMaxPoints()
+                || this.batch.getEncodedSize() >= this.policy.getMaxBytes()
+                || now - this.oldest >= this.policy.getMaxAge()) {
+            flush();
+        }
+    }
+
+    /**
+     * Immediately flushes the pending batch, if any points are buffered.
+     */
+    public synchronized void flush() {
+        LocationBatch pending = take();
+        if (pending != null) this.flusher.flush(pending);
+    }
+
+    /**
+     * Removes the pending batch from the buffer without flushing it.
+     *
+     * @return The pending batch, or null if no points are buffered.
+     */
+    public synchronized LocationBatch take() {
+        if (this.batch.size() == 0) return null;
+        LocationBatch pending = this.batch;
+        this.batch = this.pool.poll();
+        if (this.batch == null) this.batch = new LocationBatch(this.session, this.policy.getMaxPoints(), this.format);
+        return pending;
+    }
+
+    /**
+     * Returns a batch to the batcher for reuse once it has been sent and is no longer needed. The
+     * batch must have been created by this batcher.
+     *
+     * @param batch A batch previously passed to the flusher or returned by take().
+     */
+    public synchronized void recycle(LocationBatch batch) {
+        if (batch == this.batch || this.pool.size() >= POOL_SIZE) return;
+        batch.reset();
+        this.pool.add(batch);
+    }
+
+    public BatchPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Returns the number of points currently waiting in the buffer.
+     */
+    public synchronized int size() {
+        return this.batch.size();
+    }
+
+    /**
+     * A callback that receives completed batches.
+     */
+    public abstract static class Flusher {
+        /**
+         * Called when a batch is flushed.
+         *
+         * @param batch The batch of location updates to send.
+         */
+        public abstract void flush(LocationBatch batch);
+    }
+}
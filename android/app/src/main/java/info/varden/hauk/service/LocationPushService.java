@@ -1,49 +1,122 @@
 package info.varden.hauk.service;
 
 import android.Manifest;
+import android.app.NotificationManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Bundle;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.BatteryManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
 
-import java.util.HashMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import info.varden.hauk.HTTPThread;
-import info.varden.hauk.ReceiverDataRegistry;
-import info.varden.hauk.StopSharingTask;
+import info.varden.hauk.RequestExecutor;
+import info.varden.hauk.ShareScheduler;
+import info.varden.hauk.metrics.Metrics;
 import info.varden.hauk.notify.SharingNotification;
 
 /**
- * This class is a location listener that POSTs all location updates to Hauk as it receives them. It
- * creates a persistent notification when it launches in order to stay running while the app is
+ * This class is a service that POSTs all location updates from a LocationSource to Hauk as it
+ * receives them. It creates a persistent notification when it launches in order to stay running while the app is
  * minimized.
  *
+ * Several shares, e.g. to different Hauk servers, can be active at the same time. The service is
+ * started once for every share when the user taps the share button, and once more for the share
+ * when the backend has created its session, identified by the "share" extra. A single location
+ * subscription is kept for all shares, and each location update is passed on to the upload
+ * pipelines of the shares through a ShareRegistry. A share is stopped by starting the service with
+ * the "stop" extra, and the service stops itself when no shares are left.
+ *
+ * Each share is started before the backend has created its session, so that the location providers
+ * warm up while the session is being created. Location updates received in the meantime are
+ * buffered, and sent as soon as the session ID is delivered to the service.
+ *
  * @author Marius Lindvall
  */
-public class LocationPushService extends Service implements LocationListener {
+public class LocationPushService extends Service {
 
     public static final String ACTION_ID = "info.varden.hauk.LOCATION_SERVICE";
 
-    // The base URL of the Hauk server.
-    private String baseUrl;
-    // The publicly sharable link for the current share.
-    private String viewUrl;
-    // A task that should be run when sharing ends, either automatically or by user request.
-    private StopSharingTask stopTask;
-    // A task that should be run when locations start registering. Used to change a label on the
-    // main activity.
-    private Runnable gnssActiveTask;
-    private boolean hasRunActiveTask = false;
+    // The shares that are currently active.
+    private final ShareRegistry<SharePipeline> shares = new ShareRegistry<>();
+
+    // The shares of the running service, or null if the service is not running. The debug screen
+    // reads the metrics of the active shares from here.
+    private static volatile ShareRegistry<SharePipeline> running = null;
+
+    // The notification that keeps the service in the foreground, which belongs to the oldest
+    // share. The notifications of other shares are posted separately.
+    private SharingNotification foreground = null;
+
+    // The GPS interval and minimum distance currently requested from the location manager.
+    private long requestedInterval;
+    private float requestedDistance;
+
+    // Delivers location updates from the cheapest location provider that is accurate enough, or
+    // null if location updates have not been requested yet.
+    private LocationSource source = null;
+
+    // Switches the location source to battery saving mode when the battery is low or the device
+    // is in power saving mode.
+    private boolean batteryLow = false;
+
+    // The battery level at or below which the battery is considered low on Android versions that
+    // do not report it, as a fraction. This matches the level of ACTION_BATTERY_LOW.
+    private static final float LOW_BATTERY = 0.15F;
+    private final BroadcastReceiver powerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_LOW.equals(intent.getAction())) batteryLow = true;
+            else if (Intent.ACTION_BATTERY_OKAY.equals(intent.getAction())) batteryLow = false;
+            updatePowerSaving();
+        }
+    };
+
+    // Runs the timed jobs of the service itself, such as those of the location source and of the
+    // queues of earlier shares, which outlive any single share. Location updates are delivered on
+    // the handler's thread, which is the same thread. Each share uses the scheduler of its stop
+    // task, which it shares with the main activity.
+    private final ShareScheduler scheduler = ShareScheduler.onMainThread();
+    private final Handler handler = new Handler();
 
-    private String session;
-    private long interval;
+    // Drainers for queues left behind by earlier shares that were killed while offline. These are
+    // recovered when the first session is started.
+    private final List<QueueDrainer> recovered = new ArrayList<>();
+    private boolean hasRecovered = false;
+
+    // Resumes draining of all offline queues when a network becomes available.
+    private boolean hasNetworkCallback = false;
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (SharePipeline share : shares.all()) share.resume();
+                    for (QueueDrainer d : recovered) d.resume();
+                }
+            });
+        }
+    };
 
     private LocationManager locMan;
+    private ConnectivityManager connMan;
+    private PowerManager powerMan;
+    private NotificationManager notiMan;
 
     /**
      * Called when the Service is created.
@@ -51,79 +124,247 @@ public class LocationPushService extends Service implements LocationListener {
     @Override
     public void onCreate() {
         this.locMan = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        this.connMan = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.powerMan = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        this.notiMan = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        running = this.shares;
+    }
+
+    /**
+     * Returns the metrics of the shares that are currently active, in the order they were started.
+     * This may be called from any thread.
+     */
+    public static List<Metrics> getMetrics() {
+        ShareRegistry<SharePipeline> shares = running;
+        return shares != null ? shares.getMetrics() : Collections.<Metrics>emptyList();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        this.baseUrl = intent.getStringExtra("baseUrl");
-        this.viewUrl = intent.getStringExtra("viewUrl");
-        this.session = intent.getStringExtra("session");
-        this.interval = intent.getLongExtra("interval", -1L);
-        this.stopTask = (StopSharingTask) ReceiverDataRegistry.retrieve(intent.getIntExtra("stopTask", -1));
-        this.gnssActiveTask = (Runnable) ReceiverDataRegistry.retrieve(intent.getIntExtra("gnssActiveTask", -1));
+        try {
+            int id = intent.getIntExtra("share", -1);
+            if (intent.getBooleanExtra("stop", false)) {
+                stopShare(id);
+            } else {
+                SharePipeline share = this.shares.get(id);
+                if (share == null) {
+                    share = startShare(id, intent);
+                }
+                if (!share.hasSession() && intent.hasExtra("session")) {
+                    startSession(share, intent);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // If the last share was stopped or failed to start, there is nothing left to run. A share
+        // that is started while the service is stopping keeps it running.
+        if (this.shares.isEmpty()) stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Starts a new share, and starts requesting location updates if this is the first share. This
+     * may be called before the backend has created the session.
+     *
+     * @param id     The ID of the share.
+     * @param intent The intent that started the share.
+     */
+    private SharePipeline startShare(int id, Intent intent) throws Exception {
+        SharePipeline share = new SharePipeline(this, intent);
+        this.shares.add(id, share);
+
+        // Create a persistent notification for Hauk. This notification does have some buttons that
+        // let the user interact with Hauk while in the background, but the real reason we need a
+        // notification is so that Android does not kill our app while it is in the background.
+        // Having an active notification stops this from happening. This must be done right away, as
+        // creating the session may take longer than Android allows a foreground service to start.
+        // Every share started with startForegroundService() must be followed by startForeground(),
+        // even if the service is already in the foreground.
+        if (this.foreground == null) this.foreground = share.getNotification();
+        else showNotification(share);
+        startForeground(this.foreground.getID(), this.foreground.create());
+
+        // Even though we previously requested location permission, we still have to check for it
+        // when we actually use the location API.
+        if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            updateRequest();
+            if (share.getTrace() != null) share.getTrace().mark(StartupTrace.Stage.LOCATION_REQUESTED);
+        }
+        return share;
+    }
+
+    /**
+     * Sets up uploading of location updates for a share once the backend has created its session.
+     *
+     * @param share  The share.
+     * @param intent The intent carrying the session details.
+     */
+    private void startSession(SharePipeline share, Intent intent) throws Exception {
+        File queueDir = new File(getFilesDir(), "queue");
+        share.startSession(intent, queueDir);
+
+        // Resume draining queues from earlier shares that still have undelivered updates. Queues
+        // from earlier shares may belong to other backends, so they are always replayed in the
+        // form encoding, which all backends support. This is only done once, when no other share
+        // has opened a queue yet.
+        if (!this.hasRecovered) {
+            this.hasRecovered = true;
+            for (OfflineQueue old : OfflineQueue.recover(queueDir, share.getSession())) {
+                QueueDrainer d = new QueueDrainer(old, RequestExecutor.forLocationUpdates(), LocationBatch.Format.FORM, this.scheduler, share.getMetrics());
+                this.recovered.add(d);
+                d.resume();
+            }
+        }
+        if (!this.hasNetworkCallback) {
+            this.hasNetworkCallback = true;
+            this.connMan.registerNetworkCallback(new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), this.networkCallback);
+        }
+    }
+
+    /**
+     * Stops a share. The service stops itself when the last share has been stopped.
+     *
+     * @param id The ID of the share.
+     */
+    private void stopShare(int id) {
+        SharePipeline share = this.shares.remove(id);
+        if (share == null) return;
+        share.stop(true);
+
+        int notifyId = share.getNotification().getID();
+        if (share.getNotification() == this.foreground) {
+            // Another share's notification takes over keeping the service in the foreground.
+            SharePipeline next = this.shares.first();
+            this.foreground = next != null ? next.getNotification() : null;
+            if (this.foreground != null) {
+                try {
+                    startForeground(this.foreground.getID(), this.foreground.create());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        this.notiMan.cancel(notifyId);
+
+        // The remaining shares may not need location updates as often.
+        if (!this.shares.isEmpty()) updateRequest();
+    }
 
+    /**
+     * Posts or updates the notification of a share.
+     *
+     * @param share The share.
+     */
+    void showNotification(SharePipeline share) {
+        SharingNotification notify = share.getNotification();
         try {
-            // Even though we previously requested location permission, we still have to check for
-            // it when we actually use the location API.
-            if (this.interval >= 0L && checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-                this.stopTask.setSession(this.baseUrl, this.session);
-
-                // Create a persistent notification for Hauk. This notification does have some
-                // buttons that let the user interact with Hauk while in the background, but the
-                // real reason we need a notification is so that Android does not kill our app while
-                // it is in the background. Having an active notification stops this from happening.
-                final SharingNotification notify = new SharingNotification(this, this.baseUrl, this.viewUrl, this.stopTask);
+            if (notify == this.foreground) {
                 startForeground(notify.getID(), notify.create());
-
-                locMan.requestLocationUpdates(LocationManager.GPS_PROVIDER, this.interval, 0F, this);
+            } else {
+                this.notiMan.notify(notify.getID(), notify.create());
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return START_NOT_STICKY;
     }
 
-    @Override
-    public void onDestroy() {
-        locMan.removeUpdates(this);
-        stopForeground(true);
-        super.onDestroy();
+    /**
+     * Requests location updates at the fastest interval and smallest minimum distance that any of
+     * the shares currently prefers, if this has changed since the last request. Shares call this
+     * after their sampling policy has seen a location update.
+     */
+    void updateRequest() {
+        long interval = this.shares.getInterval();
+        float distance = this.shares.getMinDistance();
+        if (interval < 0L || (this.source != null && interval == this.requestedInterval && distance == this.requestedDistance)) return;
+        try {
+            requestUpdates(interval, distance);
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
     }
 
-    @Override
-    public void onLocationChanged(Location location) {
-        // Notify the main activity that GPS data is now being received, such that the UI can be
-        // updated.
-        if (!hasRunActiveTask) {
-            gnssActiveTask.run();
-            hasRunActiveTask = true;
+    /**
+     * Requests location updates at the given interval and minimum distance. Any previous request
+     * is replaced.
+     */
+    private void requestUpdates(long interval, float distance) throws SecurityException {
+        this.requestedInterval = interval;
+        this.requestedDistance = distance;
+        if (this.source != null) {
+            this.source.update(this.requestedInterval, this.requestedDistance);
+            return;
         }
 
-        HashMap<String, String> data = new HashMap<>();
-        data.put("lat", String.valueOf(location.getLatitude()));
-        data.put("lon", String.valueOf(location.getLongitude()));
-        data.put("time", String.valueOf((double) System.currentTimeMillis() / 1000D));
-        data.put("sid", session);
-        if (location.hasSpeed()) data.put("spd", String.valueOf(location.getSpeed()));
-        if (location.hasAccuracy()) data.put("acc", String.valueOf(location.getAccuracy()));
-        HTTPThread req = new HTTPThread(new HTTPThread.Callback() {
+        this.source = new LocationSource(new AndroidLocationPlatform(this.locMan, this.handler, this.scheduler), new LocationSource.Callback() {
             @Override
-            public void run(HTTPThread.Response resp) {
-                // The response to this HTTP request can be ignored - there is no need for two-way
-                // communication in this case, as the pusher is only meant to push data.
+            public void onLocation(Location location) {
+                shares.dispatch(location, System.currentTimeMillis());
             }
         });
-        req.execute(new HTTPThread.Request(this.baseUrl + "api/post.php", data));
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_LOW);
+        filter.addAction(Intent.ACTION_BATTERY_OKAY);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        registerReceiver(this.powerReceiver, filter);
+
+        // The low battery broadcasts are only sent when the level crosses the threshold, so the
+        // current state is read from the sticky battery status.
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        this.batteryLow = battery != null && isBatteryLow(battery);
+        updatePowerSaving();
+        this.source.start(this.requestedInterval, this.requestedDistance);
     }
 
-    @Override
-    public void onStatusChanged(String s, int i, Bundle bundle) {}
+    private void updatePowerSaving() {
+        if (this.source != null) this.source.setPowerSaving(this.batteryLow || this.powerMan.isPowerSaveMode());
+    }
 
-    @Override
-    public void onProviderEnabled(String s) {}
+    /**
+     * Checks whether a battery status intent reports a low battery.
+     *
+     * @param battery The sticky ACTION_BATTERY_CHANGED intent.
+     */
+    private static boolean isBatteryLow(Intent battery) {
+        // BatteryManager.EXTRA_BATTERY_LOW; reported since Android 9.
+        if (battery.hasExtra("battery_low")) return battery.getBooleanExtra("battery_low", false);
+
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) return false;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level <= scale * LOW_BATTERY;
+    }
 
     @Override
-    public void onProviderDisabled(String s) {}
+    public void onDestroy() {
+        if (running == this.shares) running = null;
+        if (this.source != null) {
+            this.source.stop();
+            unregisterReceiver(this.powerReceiver);
+        }
+        if (this.hasNetworkCallback) connMan.unregisterNetworkCallback(this.networkCallback);
+
+        // Shares that are still active, e.g. because the service was stopped by the system, are
+        // stopped along with the service. Their offline queues are kept on disk, and recovered
+        // when the service is started again.
+        for (SharePipeline share : this.shares.all()) {
+            share.stop(false);
+            this.notiMan.cancel(share.getNotification().getID());
+        }
+        this.scheduler.shutdown();
+
+        // Queues from earlier shares are kept on disk so that they can be drained later.
+        for (QueueDrainer d : this.recovered) {
+            d.stop();
+            d.getExecutor().shutdown();
+            d.getQueue().close();
+        }
+
+        stopForeground(true);
+        super.onDestroy();
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -0,0 +1,396 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+
+/**
+ * Acquires location updates from a combination of the GPS, network and passive location providers,
+ * choosing the cheapest provider that meets the current accuracy requirement.
+ *
+ * When started, the source delivers a recent last known location immediately if there is one, and
+ * requests updates from both the network provider and the GPS, so that a coarse first fix reaches
+ * viewers within seconds while the GPS warms up. As soon as one provider delivers a fix that is
+ * accurate enough, the source switches to that provider alone. As the network provider usually
+ * answers first and uses much less power than the GPS, it is used whenever it is accurate enough.
+ * If the active provider stops delivering accurate fixes, both providers are requested again. The
+ * passive provider is always used, as it costs nothing and picks up fixes requested by other apps.
+ *
+ * In battery saving mode, the accuracy requirement is relaxed so that the network provider is
+ * usually sufficient and the GPS can be turned off.
+ *
+ * Fixes are only passed on if they are newer than the last delivered fix. While a provider is
+ * active, less accurate fixes from other providers are dropped.
+ *
+ * @author Marius Lindvall
+ */
+public final class LocationSource {
+    // The accuracy in meters that a provider must deliver to be used alone, normally and in battery
+    // saving mode.
+    public static final float REQUIRED_ACCURACY = 20F;
+    public static final float POWER_SAVING_ACCURACY = 100F;
+
+    // The maximum age in milliseconds of a last known location delivered on startup.
+    private static final long MAX_LAST_KNOWN_AGE = 60000L;
+
+    // If the active provider delivers no fixes for this many intervals, but at least the minimum
+    // timeout in milliseconds, both providers are requested again.
+    private static final int TIMEOUT_INTERVALS = 3;
+    private static final long MIN_TIMEOUT = 30000L;
+
+    /**
+     * The providers that are currently requested.
+     */
+    public enum Mode {
+        /**
+         * Both the GPS and network providers, while waiting for an accurate fix.
+         */
+        ACQUIRING,
+
+        /**
+         * The network provider alone.
+         */
+        NETWORK,
+
+        /**
+         * The GPS alone.
+         */
+        GPS
+    }
+
+    private final Platform platform;
+    private final Callback callback;
+    private final Stats stats = new Stats();
+
+    private final ProviderListener gps = new ProviderListener(LocationManager.GPS_PROVIDER);
+    private final ProviderListener network = new ProviderListener(LocationManager.NETWORK_PROVIDER);
+    private final ProviderListener passive = new ProviderListener(LocationManager.PASSIVE_PROVIDER);
+
+    private boolean running = false;
+    private Mode mode = Mode.ACQUIRING;
+    private long interval;
+    private float minDistance;
+    private boolean powerSaving = false;
+
+    private long startTime;
+    private Location last = null;
+
+    // Falls back to acquiring mode if the active provider stops delivering fixes.
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (running && mode != Mode.ACQUIRING) switchTo(Mode.ACQUIRING);
+        }
+    };
+
+    /**
+     * Creates a location source.
+     *
+     * @param platform The location providers and timers to use.
+     * @param callback A callback that receives location updates.
+     */
+    public LocationSource(Platform platform, Callback callback) {
+        this.platform = platform;
+        this.callback = callback;
+    }
+
+    public Stats getStats() {
+        return this.stats;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Checks whether any location provider that can be used for sharing is enabled.
+     */
+    public boolean isAvailable() {
+        return this.platform.isEnabled(LocationManager.GPS_PROVIDER) || this.platform.isEnabled(LocationManager.NETWORK_PROVIDER);
+    }
+
+    /**
+     * Starts requesting location updates.
+     *
+     * @param interval    The interval between location updates, in milliseconds.
+     * @param minDistance The minimum distance between location updates, in meters.
+     */
+    public void start(long interval, float minDistance) {
+        this.running = true;
+        this.interval = interval;
+        this.minDistance = minDistance;
+        this.startTime = this.platform.now();
+        this.mode = Mode.ACQUIRING;
+
+        // Deliver a recent location immediately, so that viewers see something right away.
+        Location best = null;
+        for (String provider : new String[] {LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER, LocationManager.PASSIVE_PROVIDER}) {
+            Location loc = this.platform.getLastKnown(provider);
+            if (loc == null || this.startTime - loc.getTime() > MAX_LAST_KNOWN_AGE) continue;
+            if (best == null || loc.getTime() > best.getTime()) best = loc;
+        }
+        apply();
+        if (best != null) deliver(best);
+    }
+
+    /**
+     * Changes the interval and minimum distance of location updates.
+     *
+     * @param interval    The interval between location updates, in milliseconds.
+     * @param minDistance The minimum distance between location updates, in meters.
+     */
+    public void update(long interval, float minDistance) {
+        if (interval == this.interval && minDistance == this.minDistance) return;
+        this.interval = interval;
+        this.minDistance = minDistance;
+        if (!this.running) return;
+        this.gps.requested = false;
+        this.network.requested = false;
+        this.passive.requested = false;
+        apply();
+    }
+
+    /**
+     * Enables or disables battery saving mode.
+     *
+     * @param powerSaving Whether the device is low on battery.
+     */
+    public void setPowerSaving(boolean powerSaving) {
+        if (powerSaving == this.powerSaving) return;
+        this.powerSaving = powerSaving;
+        // Re-evaluate the choice of provider with the new accuracy requirement.
+        if (this.running && this.mode != Mode.ACQUIRING) switchTo(Mode.ACQUIRING);
+    }
+
+    /**
+     * Stops requesting location updates.
+     */
+    public void stop() {
+        this.running = false;
+        this.platform.removeCallbacks(this.timeoutTask);
+        this.gps.remove();
+        this.network.remove();
+        this.passive.remove();
+    }
+
+    private float getRequiredAccuracy() {
+        return this.powerSaving ? POWER_SAVING_ACCURACY : REQUIRED_ACCURACY;
+    }
+
+    private void switchTo(Mode mode) {
+        this.mode = mode;
+        this.stats.switches++;
+        apply();
+    }
+
+    /**
+     * Requests updates from the providers used in the current mode, and removes the others.
+     */
+    private void apply() {
+        boolean useGps = this.mode != Mode.NETWORK && this.platform.isEnabled(LocationManager.GPS_PROVIDER);
+        boolean useNetwork = this.mode != Mode.GPS && this.platform.isEnabled(LocationManager.NETWORK_PROVIDER);
+
+        // If the provider for the current mode has been disabled, fall back to the other one.
+        if (this.mode != Mode.ACQUIRING && !useGps && !useNetwork) {
+            this.mode = Mode.ACQUIRING;
+            this.stats.switches++;
+            apply();
+            return;
+        }
+
+        if (useGps) this.gps.request();
+        else this.gps.remove();
+        if (useNetwork) this.network.request();
+        else this.network.remove();
+        this.passive.request();
+        resetTimeout();
+    }
+
+    private void resetTimeout() {
+        this.platform.removeCallbacks(this.timeoutTask);
+        // With a minimum distance, providers are silent while the device is not moving, so the
+        // silence cannot be treated as a failure.
+        if (this.mode != Mode.ACQUIRING && this.minDistance <= 0F) {
+            this.platform.postDelayed(this.timeoutTask, Math.max(this.interval * TIMEOUT_INTERVALS, MIN_TIMEOUT));
+        }
+    }
+
+    private void onFix(String provider, Location location) {
+        if (!this.running) return;
+        this.stats.countFix(provider);
+        boolean accurate = location.hasAccuracy() && location.getAccuracy() <= getRequiredAccuracy();
+
+        if (provider.equals(LocationManager.GPS_PROVIDER) || provider.equals(LocationManager.NETWORK_PROVIDER)) {
+            Mode own = provider.equals(LocationManager.GPS_PROVIDER) ? Mode.GPS : Mode.NETWORK;
+            if (this.mode == Mode.ACQUIRING && accurate) {
+                switchTo(own);
+            } else if (this.mode == own) {
+                if (accurate) resetTimeout();
+                else switchTo(Mode.ACQUIRING);
+            }
+        }
+
+        // While a provider is active, drop less accurate fixes from other sources.
+        if (this.last != null && this.mode != Mode.ACQUIRING && !this.last.getProvider().equals(provider)
+                && location.hasAccuracy() && this.last.hasAccuracy() && location.getAccuracy() > this.last.getAccuracy()
+                && location.getTime() - this.last.getTime() < this.interval * TIMEOUT_INTERVALS) {
+            return;
+        }
+        deliver(location);
+    }
+
+    private void deliver(Location location) {
+        if (this.last != null && location.getTime() <= this.last.getTime()) return;
+        this.last = location;
+        long now = this.platform.now();
+        if (this.stats.firstFix < 0L) this.stats.firstFix = now - this.startTime;
+        if (this.stats.firstAccurateFix < 0L && location.hasAccuracy() && location.getAccuracy() <= getRequiredAccuracy()) {
+            this.stats.firstAccurateFix = now - this.startTime;
+        }
+        this.stats.delivered++;
+        this.callback.onLocation(location);
+    }
+
+    /**
+     * Receives updates from a single provider.
+     */
+    private final class ProviderListener implements LocationListener {
+        private final String provider;
+        private boolean requested = false;
+
+        private ProviderListener(String provider) {
+            this.provider = provider;
+        }
+
+        private void request() {
+            if (this.requested) return;
+            try {
+                platform.request(this.provider, interval, minDistance, this);
+                this.requested = true;
+            } catch (SecurityException | IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void remove() {
+            if (!this.requested) return;
+            platform.remove(this);
+            this.requested = false;
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            onFix(this.provider, location);
+        }
+
+        @Override
+        public void onStatusChanged(String s, int i, Bundle bundle) {}
+
+        @Override
+        public void onProviderEnabled(String s) {
+            if (running) apply();
+        }
+
+        @Override
+        public void onProviderDisabled(String s) {
+            if (running) apply();
+        }
+    }
+
+    /**
+     * The location providers and timers used by the source. This is implemented by the location
+     * service on Android, and can be replaced by a fake implementation for testing.
+     */
+    public interface Platform {
+        boolean isEnabled(String provider);
+
+        void request(String provider, long interval, float minDistance, LocationListener listener) throws SecurityException;
+
+        void remove(LocationListener listener);
+
+        Location getLastKnown(String provider) throws SecurityException;
+
+        /**
+         * Returns the current time in milliseconds since the UNIX epoch.
+         */
+        long now();
+
+        void postDelayed(Runnable task, long delay);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * A callback that receives location updates.
+     */
+    public abstract static class Callback {
+        /**
+         * Called when a new location is available.
+         *
+         * @param location The location update.
+         */
+        public abstract void onLocation(Location location);
+    }
+
+    /**
+     * Location source statistics.
+     */
+    public static final class Stats {
+        private long firstFix = -1L;
+        private long firstAccurateFix = -1L;
+        private long switches = 0L;
+        private long delivered = 0L;
+        private long gpsFixes = 0L;
+        private long networkFixes = 0L;
+        private long passiveFixes = 0L;
+
+        private Stats() {
+        }
+
+        private void countFix(String provider) {
+            if (provider.equals(LocationManager.GPS_PROVIDER)) this.gpsFixes++;
+            else if (provider.equals(LocationManager.NETWORK_PROVIDER)) this.networkFixes++;
+            else this.passiveFixes++;
+        }
+
+        /**
+         * Returns the time from starting the source to the first delivered fix in milliseconds, or
+         * -1 if there has been no fix yet.
+         */
+        public long getTimeToFirstFix() {
+            return this.firstFix;
+        }
+
+        /**
+         * Returns the time from starting the source to the first fix that met the accuracy
+         * requirement in milliseconds, or -1 if there has been no such fix yet.
+         */
+        public long getTimeToFirstAccurateFix() {
+            return this.firstAccurateFix;
+        }
+
+        /**
+         * Returns the number of times the source has changed which providers it uses.
+         */
+        public long getSwitches() {
+            return this.switches;
+        }
+
+        public long getDelivered() {
+            return this.delivered;
+        }
+
+        public long getGpsFixes() {
+            return this.gpsFixes;
+        }
+
+        public long getNetworkFixes() {
+            return this.networkFixes;
+        }
+
+        public long getPassiveFixes() {
+            return this.passiveFixes;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package info.varden.hauk.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A durable queue of location updates that could not be sent to the Hauk backend. Updates are
+ * stored as fixed-size records in a memory-mapped file, so that they survive both loss of
+ * connectivity and the app process being killed, and can be replayed in order once the backend is
+ * reachable again.
+ *
+ * The file is a ring of records with monotonically increasing head and tail sequence numbers. When
+ * the queue is full, appending a new update evicts the oldest one. The file header also stores the
+ * backend URL, session ID and expiry time of the share, so that queues left behind by a killed
+ * process can be recovered and drained later.
+ *
+ * @author Marius Lindvall
+ */
+public final class OfflineQueue {
+    // The default number of updates a queue can hold. At 32 bytes per record, this is about 320 KiB,
+    // or almost three hours of updates at a 1 second interval.
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final String FILE_SUFFIX = ".queue";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // File layout.
+    private static final int MAGIC = 0x4841554B; // "HAUK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 1024;
+    private static final int RECORD_SIZE = 32;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_HEAD = 16;
+    private static final int OFFSET_TAIL = 24;
+    private static final int OFFSET_EXPIRE = 32;
+    private static final int OFFSET_STRINGS = 40;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final int capacity;
+
+    private final String baseUrl;
+    private final String session;
+    private final long expire;
+
+    // Sequence numbers of the oldest record in the queue and the next record to be written.
+    private long head;
+    private long tail;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    private OfflineQueue(File file, int capacity, String baseUrl, String session, long expire, boolean create) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            if (create) this.raf.setLength(0);
+            int size = HEADER_SIZE + capacity * RECORD_SIZE;
+            this.map = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            this.raf.close();
+            throw e;
+        }
+        this.capacity = capacity;
+        this.baseUrl = baseUrl;
+        this.session = session;
+        this.expire = expire;
+
+        if (create) {
+            this.head = 0L;
+            this.tail = 0L;
+            this.map.putInt(0, MAGIC);
+            this.map.putInt(4, VERSION);
+            this.map.putInt(OFFSET_CAPACITY, capacity);
+            this.map.putLong(OFFSET_EXPIRE, expire);
+            this.map.position(OFFSET_STRINGS);
+            putString(baseUrl);
+            putString(session);
+            writePointers();
+        } else {
+            this.head = this.map.getLong(OFFSET_HEAD);
+            this.tail = this.map.getLong(OFFSET_TAIL);
+        }
+    }
+
+    /**
+     * Opens the queue for a sharing session, creating it if it does not exist. Any updates left in
+     * an existing queue for the same session are kept.
+     *
+     * @param dir      The directory in which queue files are stored.
+     * @param capacity The maximum number of updates to store.
+     * @param baseUrl  The base URL of the Hauk backend.
+     * @param session  The session ID provided by the Hauk backend.
+     * @param expire   The time at which the share expires, in milliseconds since the UNIX epoch.
+     * @return An open queue.
+     * @throws IOException if the queue file cannot be created or mapped.
+     */
+    public static OfflineQueue open(File dir, int capacity, String baseUrl, String session, long expire) throws IOException {
+        File file = new File(dir, session + FILE_SUFFIX);
+        if (file.exists()) {
+            try {
+                OfflineQueue existing = load(file);
+                if (existing.session.equals(session) && existing.capacity == capacity) return existing;
+                existing.close();
+            } catch (IOException e) {
+                // Corrupt queue; recreate it below.
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        return new OfflineQueue(file, capacity, baseUrl, session, expire, true);
+    }
+
+    /**
+     * Finds queues left behind by previous sharing sessions, e.g. because the app was killed while
+     * it was offline. Queues for shares that have already expired are deleted.
+     *
+     * @param dir     The directory in which queue files are stored.
+     * @param exclude A session ID whose queue should not be returned, or null.
+     * @return A list of open queues that still contain updates for unexpired shares.
+     */
+    public static List<OfflineQueue> recover(File dir, String exclude) {
+        List<OfflineQueue> queues = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return queues;
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) continue;
+            if (exclude != null && file.getName().equals(exclude + FILE_SUFFIX)) continue;
+            try {
+                OfflineQueue queue = load(file);
+                if (queue.expire > now && queue.size() > 0) {
+                    queues.add(queue);
+                } else {
+                    queue.delete();
+                }
+            } catch (IOException e) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        return queues;
+    }
+
+    private static OfflineQueue load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("Not a queue file: " + file);
+            }
+            raf.seek(OFFSET_CAPACITY);
+            int capacity = raf.readInt();
+            raf.seek(OFFSET_EXPIRE);
+            long expire = raf.readLong();
+            String baseUrl = raf.readUTF();
+            String session = raf.readUTF();
+            if (capacity <= 0 || raf.length() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                throw new IOException("Truncated queue file: " + file);
+            }
+            return new OfflineQueue(file, capacity, baseUrl, session, expire, false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Writes a string in the same format as DataOutput.writeUTF() for ASCII strings.
+    private void putString(String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        if (this.map.position() + 2 + bytes.length > HEADER_SIZE) throw new IOException("Header overflow");
+        this.map.putShort((short) bytes.length);
+        this.map.put(bytes);
+    }
+
+    private void writePointers() {
+        this.map.putLong(OFFSET_HEAD, this.head);
+        this.map.putLong(OFFSET_TAIL, this.tail);
+    }
+
+    public String getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    public String getSession() {
+        return this.session;
+    }
+
+    /**
+     * Appends a location update to the end of the queue. If the queue is full, the oldest update
+     * is evicted to make room.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    public synchronized void offer(double lat, double lon, double time, float acc, float spd) {
+        if (this.tail - this.head == this.capacity) {
+            this.head++;
+            this.dropped.incrementAndGet();
+        }
+        int offset = HEADER_SIZE + (int) (this.tail % this.capacity) * RECORD_SIZE;
+        this.map.putDouble(offset, lat);
+        this.map.putDouble(offset + 8, lon);
+        this.map.putDouble(offset + 16, time);
+        this.map.putFloat(offset + 24, acc);
+        this.map.putFloat(offset + 28, spd);
+        this.tail++;
+        writePointers();
+        this.queued.incrementAndGet();
+    }
+
+    /**
+     * Appends all updates in the given batch to the end of the queue.
+     *
+     * @param batch A batch of location updates.
+     */
+    public synchronized void offer(LocationBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            offer(batch.getLatitude(i), batch.getLongitude(i), batch.getTime(i), batch.getAccuracy(i), batch.getSpeed(i));
+        }
+    }
+
+    /**
+     * Returns a batch containing the oldest updates in the queue without removing them. Once the
+     * batch has been delivered, remove() must be called with the size of the batch.
+     *
+     * @param max    The maximum number of updates to return.
+     * @param format The encoding to use for the batch.
+     * @return A batch of up to max updates, which is empty if the queue is empty.
+     */
+    public synchronized LocationBatch peek(int max, LocationBatch.Format format) {
+        int count = (int) Math.min(max, this.tail - this.head);
+        LocationBatch batch = new LocationBatch(this.session, Math.max(count, 1), format);
+        for (long seq = this.head; seq < this.head + count; seq++) {
+            int offset = HEADER_SIZE + (int) (seq % this.capacity) * RECORD_SIZE;
+            batch.add(this.map.getDouble(offset), this.map.getDouble(offset + 8), this.map.getDouble(offset + 16), this.map.getFloat(offset + 24), this.map.getFloat(offset + 28));
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the oldest updates from the queue after they have been delivered to the backend.
+     *
+     * @param count The number of updates to remove.
+     */
+    public synchronized void remove(int count) {
+        count = (int) Math.min(count, this.tail - this.head);
+        this.head += count;
+        writePointers();
+        this.replayed.addAndGet(count);
+    }
+
+    /**
+     * Removes the oldest updates from the queue without delivering them, e.g. because the backend
+     * rejected them.
+     *
+     * @param count The number of updates to discard.
+     */
+    public synchronized void discard(int count) {
+        count = (int) Math.min(count, this.tail - this.head);
+        this.head += count;
+        writePointers();
+        this.dropped.addAndGet(count);
+    }
+
+    public synchronized int size() {
+        return (int) (this.tail - this.head);
+    }
+
+    /**
+     * Returns the number of updates that have been added to the queue.
+     */
+    public long getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * Returns the number of updates that were evicted or rejected without being delivered.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Returns the number of updates that have been delivered from the queue.
+     */
+    public long getReplayed() {
+        return this.replayed.get();
+    }
+
+    /**
+     * Closes the queue file. Updates remaining in the queue are kept on disk.
+     */
+    public synchronized void close() {
+        try {
+            this.map.force();
+            this.raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes and deletes the queue file, discarding any updates remaining in it.
+     */
+    public synchronized void delete() {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        this.file.delete();
+    }
+}
@@ -0,0 +1,142 @@
+package info.varden.hauk.service;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.RequestExecutor;
+import info.varden.hauk.ShareScheduler;
+import info.varden.hauk.metrics.Metrics;
+import info.varden.hauk.protocol.HaukClient;
+
+/**
+ * Replays location updates from an OfflineQueue to the Hauk backend in the order they were queued.
+ * Updates are sent as multi-point batches. If delivery fails, it is retried with exponential
+ * backoff, up to a limited number of attempts; after that, draining pauses until resume() is
+ * called, e.g. when network connectivity is restored.
+ *
+ * @author Marius Lindvall
+ */
+final class QueueDrainer implements Runnable {
+    // The maximum number of updates replayed per request.
+    private static final int MAX_BATCH = 50;
+
+    // Retry backoff parameters. The delay doubles for each failed attempt.
+    private static final long BASE_DELAY = 1000L;
+    private static final long MAX_DELAY = 300000L;
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final OfflineQueue queue;
+    private final RequestExecutor executor;
+    private final LocationBatch.Format format;
+    private final ShareScheduler scheduler;
+    private final String url;
+    private final Metrics metrics;
+
+    // Whether a replay request is currently in progress, and whether one is scheduled to start.
+    private boolean busy = false;
+    private boolean scheduled = false;
+
+    // Set when the drainer is stopped, so that responses to in-flight requests are ignored.
+    private boolean stopped = false;
+
+    // The number of consecutive failed attempts.
+    private int attempts = 0;
+
+    /**
+     * Creates a drainer for a queue. All callbacks run on the main thread, which the scheduler must
+     * also run on.
+     *
+     * @param queue     The queue to drain.
+     * @param executor  The executor to send replayed updates on.
+     * @param format    The encoding to use when replaying updates.
+     * @param scheduler The scheduler of the share, used to schedule retries.
+     * @param metrics   The metrics to record replayed uploads in.
+     */
+    QueueDrainer(OfflineQueue queue, RequestExecutor executor, LocationBatch.Format format, ShareScheduler scheduler, Metrics metrics) {
+        this.queue = queue;
+        this.executor = executor;
+        this.format = format;
+        this.scheduler = scheduler;
+        this.url = HaukClient.toPostUrl(queue.getBaseUrl());
+        this.metrics = metrics;
+    }
+
+    OfflineQueue getQueue() {
+        return this.queue;
+    }
+
+    RequestExecutor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Starts draining after the initial backoff delay, unless draining is already in progress or
+     * has been paused after too many failed attempts.
+     */
+    void start() {
+        if (this.stopped || this.busy || this.scheduled || this.attempts >= MAX_ATTEMPTS) return;
+        schedule(BASE_DELAY);
+    }
+
+    /**
+     * Resets the backoff and starts draining immediately. Called when connectivity returns.
+     */
+    void resume() {
+        this.attempts = 0;
+        if (!this.stopped && !this.busy) schedule(0L);
+    }
+
+    /**
+     * Cancels any scheduled retries.
+     */
+    void stop() {
+        this.stopped = true;
+        this.scheduler.removeCallbacks(this);
+        this.scheduled = false;
+    }
+
+    private void schedule(long delay) {
+        this.scheduler.postDelayed(this, delay);
+        this.scheduled = true;
+    }
+
+    @Override
+    public void run() {
+        this.scheduled = false;
+        if (this.busy || this.queue.size() == 0) return;
+        this.busy = true;
+
+        final LocationBatch batch = this.queue.peek(MAX_BATCH, this.format);
+        final long started = System.nanoTime();
+        this.metrics.recordUpload(batch.size(), batch.getEncodedSize());
+        this.metrics.recordRetry();
+        HTTPThread req = new HTTPThread(new HTTPThread.Callback() {
+            @Override
+            public void run(HTTPThread.Response resp) {
+                busy = false;
+                if (resp.getException() != null) metrics.recordFailure(Metrics.Failure.classify(resp.getException()));
+                else if (!resp.isOK()) metrics.recordFailure(Metrics.Failure.REJECTED);
+                else metrics.recordDelivery(batch.size(), System.nanoTime() - started);
+
+                if (stopped) return;
+                if (resp.getException() != null) {
+                    // The backend is still unreachable. Back off and try again, unless we have
+                    // already tried too many times.
+                    attempts++;
+                    if (attempts < MAX_ATTEMPTS) schedule(Math.min(MAX_DELAY, BASE_DELAY << attempts));
+                    return;
+                }
+
+                if (resp.isOK()) {
+                    queue.remove(batch.size());
+                } else {
+                    // The backend rejected the updates, e.g. because the session expired. Retrying
+                    // would not help, so they are dropped.
+                    queue.discard(batch.size());
+                }
+
+                attempts = 0;
+                if (queue.size() > 0) schedule(0L);
+            }
+        }, this.executor, this.queue.getSession(), null);
+        req.execute(batch.toRequest(this.url));
+    }
+}
@@ -0,0 +1,43 @@
+package info.varden.hauk.service;
+
+/**
+ * Decides how often location updates are requested from the GPS, and which of the received updates
+ * are uploaded to the Hauk backend.
+ *
+ * The policy is consulted for every received location update. After each call to accept(), the
+ * caller checks getInterval() and getMinDistance() and re-requests location updates if they have
+ * changed.
+ *
+ * @author Marius Lindvall
+ */
+public interface SamplingPolicy {
+    /**
+     * Called for every received location update.
+     *
+     * @param lat     Latitude in degrees.
+     * @param lon     Longitude in degrees.
+     * @param time    The time the update was received, in milliseconds since the UNIX epoch.
+     * @param acc     Accuracy radius in meters, or NaN if unknown.
+     * @param spd     Speed in meters per second, or NaN if unknown.
+     * @param bearing Direction of travel in degrees, or NaN if unknown.
+     * @return true if the update should be uploaded, false if it should be suppressed.
+     */
+    boolean accept(double lat, double lon, long time, float acc, float spd, float bearing);
+
+    /**
+     * Returns the interval at which location updates should currently be requested, in
+     * milliseconds.
+     */
+    long getInterval();
+
+    /**
+     * Returns the minimum distance between location updates that should currently be requested,
+     * in meters.
+     */
+    float getMinDistance();
+
+    /**
+     * Returns the longest time that may pass between uploaded updates, in milliseconds.
+     */
+    long getHeartbeat();
+}
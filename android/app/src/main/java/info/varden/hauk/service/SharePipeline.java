@@ -0,0 +1,496 @@
+package info.varden.hauk.service;
+
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.ReceiverDataRegistry;
+import info.varden.hauk.RequestExecutor;
+import info.varden.hauk.ShareScheduler;
+import info.varden.hauk.StopSharingTask;
+import info.varden.hauk.metrics.Metrics;
+import info.varden.hauk.notify.SharingNotification;
+import info.varden.hauk.protocol.HaukClient;
+
+/**
+ * Uploads the location updates of a single location share to its Hauk backend. Each share started
+ * in the location pusher has its own pipeline, with its own session, sampling policy, batching,
+ * offline queue and notification, while the location subscription and the connections to each
+ * backend are shared between all shares.
+ *
+ * The pipeline is created before the backend has created the session. Location updates received in
+ * the meantime are buffered, and sent as soon as the session ID is delivered to the service.
+ *
+ * @author Marius Lindvall
+ */
+final class SharePipeline implements ShareRegistry.Share {
+    private final LocationPushService service;
+
+    // The base URL of the Hauk server, and the URL of its api/post.php endpoint.
+    private final String baseUrl;
+    private final String postUrl;
+    // The publicly sharable link for the share.
+    private String viewUrl;
+    // A task that should be run when sharing ends, either automatically or by user request.
+    private final StopSharingTask stopTask;
+    // A task that should be run when locations start registering. Used to change a label on the
+    // main activity.
+    private final Runnable gnssActiveTask;
+    private boolean hasRunActiveTask = false;
+
+    private String session = null;
+    private final long interval;
+
+    // Holds location updates received before the session was created.
+    private final FixBuffer early = new FixBuffer(FixBuffer.DEFAULT_CAPACITY);
+
+    // Measures the time taken by each stage of starting the share, or null if not measured.
+    private StartupTrace trace = null;
+
+    private final SharingNotification notify;
+
+    // Counts fixes, uploads and failures for this share, and how long uploads take.
+    private final Metrics metrics = new Metrics();
+
+    // Decides how often the GPS is sampled for this share and which updates are uploaded.
+    private final SamplingPolicy sampling;
+
+    // Drops buffered updates that are not needed to keep the shared trail within the tolerance
+    // configured for this share, or null if trail simplification is disabled.
+    private TrajectorySimplifier simplifier = null;
+
+    // The last location received from the GPS, used to generate heartbeats while the sampling
+    // policy has slowed down the GPS.
+    private Location lastFix = null;
+    private final Runnable heartbeatTask = new Runnable() {
+        @Override
+        public void run() {
+            if (lastFix != null && (sampling.getInterval() > interval || sampling.getMinDistance() > 0F)) {
+                onFix(lastFix, System.currentTimeMillis());
+            }
+        }
+    };
+
+    // Buffers location updates until they are sent. Unless batched uploads are enabled for this
+    // share, every update is flushed as soon as it is added. The batcher is null until the session
+    // has been created.
+    private LocationBatcher batcher = null;
+
+    // Callbacks for pushed batches kept for reuse.
+    private final ArrayDeque<PushCallback> callbacks = new ArrayDeque<>();
+
+    // Sends the location updates of this share, including those replayed from the offline queue,
+    // so that a slow backend does not hold up other shares.
+    private final RequestExecutor push = RequestExecutor.forLocationUpdates();
+
+    // Streams batches to the backend over a single long-lived api/stream.php request if the backend
+    // supports it, or null if batches are sent as api/post.php requests.
+    private StreamUplink uplink = null;
+
+    // Runs all timed jobs of the share: heartbeats, batch flushes, retries and notification updates.
+    // This is the same thread that location updates are delivered on. The scheduler belongs to the
+    // stop task, and also runs the share's expiry and the countdown in the main activity.
+    private final ShareScheduler scheduler;
+
+    // Enforces the maximum age of buffered location updates in batched mode.
+    private final Runnable batchAgeTask = new Runnable() {
+        @Override
+        public void run() {
+            batcher.flush();
+        }
+    };
+
+    // Stores location updates that could not be sent while the backend is unreachable, and
+    // replays them when connectivity returns. The queue is null if it could not be opened.
+    private OfflineQueue queue = null;
+    private QueueDrainer drainer = null;
+
+    // Updates the metrics summary in the notification.
+    private static final long NOTIFY_INTERVAL = 10000L;
+    private final Runnable notifyTask = new Runnable() {
+        @Override
+        public void run() {
+            notify.setMetrics(metrics.snapshot());
+            service.showNotification(SharePipeline.this);
+        }
+    };
+
+    /**
+     * Creates the pipeline of a share that is being started.
+     *
+     * @param service The location pusher.
+     * @param intent  The intent that started the share.
+     */
+    SharePipeline(LocationPushService service, Intent intent) {
+        this.service = service;
+        this.baseUrl = intent.getStringExtra("baseUrl");
+        this.postUrl = HaukClient.toPostUrl(this.baseUrl);
+        this.interval = intent.getLongExtra("interval", -1L);
+        this.stopTask = (StopSharingTask) ReceiverDataRegistry.retrieve(intent.getIntExtra("stopTask", -1));
+        this.scheduler = this.stopTask.getScheduler();
+        this.gnssActiveTask = (Runnable) ReceiverDataRegistry.retrieve(intent.getIntExtra("gnssActiveTask", -1));
+        if (intent.hasExtra("trace")) this.trace = (StartupTrace) ReceiverDataRegistry.retrieve(intent.getIntExtra("trace", -1));
+
+        // Unless the user disabled it, the GPS rate adapts to how the device is moving.
+        if (intent.getBooleanExtra("adaptive", false)) {
+            this.sampling = new AdaptiveSamplingPolicy(this.interval);
+        } else {
+            this.sampling = new FixedSamplingPolicy(this.interval);
+        }
+
+        // Simplify each batch before uploading if the user configured a tolerance. The newest
+        // update is never held back, so only batched uploads are simplified, and at least one
+        // update per heartbeat interval is kept.
+        double tolerance = intent.getDoubleExtra("tolerance", 0D);
+        if (tolerance > 0D) {
+            this.simplifier = new TrajectorySimplifier(tolerance, this.sampling.getHeartbeat() / 1000D, TrajectorySimplifier.DEFAULT_WINDOW, null);
+        }
+
+        this.notify = new SharingNotification(service, this.baseUrl, null, this.stopTask, this.stopTask.getScope());
+    }
+
+    SharingNotification getNotification() {
+        return this.notify;
+    }
+
+    StartupTrace getTrace() {
+        return this.trace;
+    }
+
+    boolean hasSession() {
+        return this.session != null;
+    }
+
+    String getSession() {
+        return this.session;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public SamplingPolicy getSampling() {
+        return this.sampling;
+    }
+
+    /**
+     * Sets up uploading of location updates once the backend has created the session, and sends
+     * any location updates that were received while waiting for it.
+     *
+     * @param intent   The intent carrying the session details.
+     * @param queueDir The directory to keep the offline queue in.
+     */
+    void startSession(Intent intent, File queueDir) throws Exception {
+        this.session = intent.getStringExtra("session");
+        this.viewUrl = intent.getStringExtra("viewUrl");
+        this.stopTask.setSession(this.baseUrl, this.session);
+
+        // The link can now be copied from the notification.
+        this.notify.setViewUrl(this.viewUrl);
+        this.service.showNotification(this);
+
+        // Use the most compact encoding for location updates that the backend supports.
+        String formatName = intent.getStringExtra("format");
+        LocationBatch.Format format = formatName != null ? LocationBatch.Format.valueOf(formatName) : LocationBatch.Format.FORM;
+
+        // Set up batched uploads if the user requested more than one point per upload.
+        BatchPolicy policy = new BatchPolicy(intent.getIntExtra("batchSize", 1), intent.getLongExtra("batchDelay", 0L), BatchPolicy.DEFAULT_MAX_BYTES);
+        this.batcher = new LocationBatcher(this.session, format, policy, new LocationBatcher.Flusher() {
+            @Override
+            public void flush(LocationBatch batch) {
+                scheduler.removeCallbacks(batchAgeTask);
+                if (simplifier != null) simplifier.simplify(batch);
+                push(batch);
+            }
+        });
+
+        // Open the offline queue for this share.
+        try {
+            long expire = intent.getLongExtra("expire", System.currentTimeMillis());
+            this.queue = OfflineQueue.open(queueDir, OfflineQueue.DEFAULT_CAPACITY, this.baseUrl, this.session, expire);
+            this.drainer = new QueueDrainer(this.queue, this.push, format, this.scheduler, this.metrics);
+            this.metrics.setQueueDepth(new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    OfflineQueue q = queue;
+                    return q != null ? q.size() : 0L;
+                }
+            });
+            if (this.queue.size() > 0) this.drainer.resume();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Stream updates over a single connection if the backend supports it. Streaming requires
+        // one of the binary formats, which all streaming backends support.
+        if (intent.getBooleanExtra("stream", false) && format != LocationBatch.Format.FORM) {
+            try {
+                this.uplink = new StreamUplink(this.baseUrl, this.session, StreamUplink.DEFAULT_HEARTBEAT, new UplinkListener());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Send the updates received while the session was being created right away, in a single
+        // request regardless of the batch policy, so that viewers see a location immediately.
+        if (this.early.size() > 0) {
+            this.early.drainTo(this.batcher);
+            this.batcher.flush();
+        }
+        if (this.lastFix != null) onSharingActive();
+        this.scheduler.repeat(this.notifyTask, NOTIFY_INTERVAL, NOTIFY_INTERVAL);
+    }
+
+    /**
+     * Resumes draining of the offline queue. Called when a network becomes available.
+     */
+    void resume() {
+        if (this.drainer != null) this.drainer.resume();
+    }
+
+    /**
+     * Stops the pipeline. When the share has ended, updates still waiting in the batch buffer or
+     * offline queue are discarded, as the session is being removed from the server anyway. When
+     * the service is torn down while the share is still active, they are kept in the offline queue
+     * so that they can be delivered once the service runs again.
+     *
+     * @param discard Whether to delete the offline queue of the share.
+     */
+    void stop(boolean discard) {
+        // The scheduler is shared with the main activity, so only the jobs of this pipeline are
+        // cancelled. Jobs of the stop task, such as the countdown, keep running.
+        this.scheduler.removeCallbacks(this.heartbeatTask);
+        this.scheduler.removeCallbacks(this.batchAgeTask);
+        this.scheduler.removeCallbacks(this.notifyTask);
+        List<LocationBatch> streamed = this.uplink != null ? this.uplink.stop() : null;
+        // Location updates that have not been sent yet are no longer needed if the share is
+        // discarded. Otherwise they are still sent, but nothing new is.
+        if (discard && this.session != null) this.push.cancel(this.session);
+        this.push.shutdown();
+        if (this.drainer != null) {
+            this.drainer.stop();
+            if (discard) {
+                this.queue.delete();
+            } else {
+                // Updates the backend has not acknowledged are kept in order, before the updates
+                // that were still being batched.
+                if (streamed != null) {
+                    for (LocationBatch batch : streamed) this.queue.offer(batch);
+                }
+                LocationBatch pending = this.batcher.take();
+                if (pending != null) this.queue.offer(pending);
+                this.queue.close();
+            }
+            this.drainer = null;
+            this.queue = null;
+        }
+
+        // The notification buttons no longer exist, so the objects they refer to can be released.
+        // This also covers shares that fail to start, for which the stop task is never run.
+        this.stopTask.getScope().close();
+    }
+
+    @Override
+    public void onLocation(Location location, long now) {
+        if (this.trace != null) this.trace.mark(StartupTrace.Stage.FIRST_FIX);
+        this.lastFix = location;
+        this.metrics.recordFix();
+        if (this.session != null) onSharingActive();
+        onFix(location, now);
+    }
+
+    /**
+     * Notifies the main activity that location data is now being shared, such that the UI can be
+     * updated. This happens once both the session has been created and a location received.
+     */
+    private void onSharingActive() {
+        if (!this.hasRunActiveTask) {
+            this.gnssActiveTask.run();
+            this.hasRunActiveTask = true;
+        }
+    }
+
+    /**
+     * Passes a location update through the sampling policy, and uploads it if the policy accepts
+     * it. Heartbeats are handled by calling this function again with the last received location.
+     *
+     * @param location The location update.
+     * @param now      The current time, in milliseconds since the UNIX epoch.
+     */
+    private void onFix(Location location, long now) {
+        float acc = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+        float spd = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+        float bearing = location.hasBearing() ? location.getBearing() : Float.NaN;
+
+        boolean accepted = this.sampling.accept(location.getLatitude(), location.getLongitude(), now, acc, spd, bearing);
+        this.service.updateRequest();
+        if (!accepted) return;
+
+        // While the sampling policy keeps the GPS idle, this ensures that the backend still
+        // receives an update at least once per heartbeat interval.
+        this.scheduler.postDelayed(this.heartbeatTask, this.sampling.getHeartbeat());
+
+        upload(location.getLatitude(), location.getLongitude(), (double) now / 1000D, acc, spd);
+    }
+
+    /**
+     * Buffers a location update for uploading to the Hauk backend.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    private void upload(double lat, double lon, double time, float acc, float spd) {
+        // Until the session has been created, updates are held in memory.
+        if (this.batcher == null) {
+            this.early.add(lat, lon, time, acc, spd);
+            return;
+        }
+
+        // While there are undelivered updates in the offline queue, new updates are queued behind
+        // them so that the backend receives all updates in order.
+        if (this.queue != null && this.queue.size() > 0) {
+            this.queue.offer(lat, lon, time, acc, spd);
+            this.drainer.start();
+            return;
+        }
+
+        // The update is buffered and sent when the batch is flushed. Make sure the batch is flushed
+        // when it reaches its age limit even if no more updates arrive.
+        this.batcher.add(lat, lon, time, acc, spd);
+        if (this.batcher.size() == 1) {
+            this.scheduler.postDelayed(this.batchAgeTask, this.batcher.getPolicy().getMaxAge());
+        }
+    }
+
+    /**
+     * Sends a batch of location updates to the Hauk backend. If the backend cannot be reached, the
+     * updates are moved to the offline queue.
+     *
+     * @param batch The batch of location updates to send.
+     */
+    private void push(LocationBatch batch) {
+        if (this.trace != null) this.trace.mark(StartupTrace.Stage.FIRST_UPLOAD);
+
+        if (this.uplink != null) {
+            if (this.uplink.offer(batch)) {
+                this.metrics.recordUpload(batch.size(), batch.getEncodedSize());
+                this.batcher.recycle(batch);
+                return;
+            }
+            // The uplink has fallen back to api/post.php requests, and has queued its pending
+            // updates. This batch must be sent after them.
+            this.uplink = null;
+            if (this.queue != null && this.queue.size() > 0) {
+                this.queue.offer(batch);
+                this.batcher.recycle(batch);
+                this.drainer.start();
+                return;
+            }
+        }
+
+        PushCallback callback = this.callbacks.poll();
+        if (callback == null) callback = new PushCallback();
+        callback.batch = batch;
+        callback.started = System.nanoTime();
+        this.metrics.recordUpload(batch.size(), batch.getEncodedSize());
+        // The executor is used directly rather than through HTTPThread to avoid allocating a
+        // wrapper for every update. Shares on the same backend share its connections. Only single
+        // fixes may be replaced by a newer fix; a batch carries trail points that no later request
+        // contains.
+        Object key = batch.size() == 1 ? this.session : null;
+        this.push.submit(batch.toRequest(this.postUrl).statusOnly(), this.session, key, callback);
+    }
+
+    /**
+     * Handles the response to a pushed batch, and returns the batch to the batcher for reuse.
+     * Callbacks are pooled, as one is needed for every request.
+     */
+    private final class PushCallback extends HTTPThread.Callback {
+        private LocationBatch batch;
+        private long started;
+
+        @Override
+        public void run(HTTPThread.Response resp) {
+            // Only the status line of the response is read - there is no need for two-way
+            // communication in this case, as the pusher is only meant to push data. Connection
+            // failures, and batches dropped because the executor was full, are handled by queueing
+            // the updates for later delivery. Fixes that were superseded by newer ones, and
+            // updates cancelled because sharing stopped, are not retried.
+            Exception e = resp.getException();
+            if (e != null) metrics.recordFailure(Metrics.Failure.classify(e));
+            else if (!resp.isOK()) metrics.recordFailure(Metrics.Failure.REJECTED);
+            else metrics.recordDelivery(this.batch.size(), System.nanoTime() - this.started);
+
+            if (resp.isOK() && trace != null && trace.mark(StartupTrace.Stage.DELIVERED)) {
+                Log.i("Hauk", trace.toString());
+            }
+            boolean retry = e != null && (e instanceof RequestExecutor.DroppedException || !(e instanceof CancellationException));
+            if (retry && queue != null) {
+                queue.offer(this.batch);
+
+                // Updates buffered after this batch must be queued behind it to keep order.
+                LocationBatch pending = batcher.take();
+                if (pending != null) {
+                    scheduler.removeCallbacks(batchAgeTask);
+                    queue.offer(pending);
+                    batcher.recycle(pending);
+                }
+                drainer.start();
+            }
+
+            batcher.recycle(this.batch);
+            this.batch = null;
+            callbacks.add(this);
+        }
+    }
+
+    /**
+     * Handles the progress of the stream uplink. The callbacks are made on a background thread.
+     */
+    private final class UplinkListener extends StreamUplink.Listener {
+        @Override
+        public void onDelivered(int points, long latency) {
+            metrics.recordDelivery(points, latency);
+            if (trace != null && trace.mark(StartupTrace.Stage.DELIVERED)) {
+                Log.i("Hauk", trace.toString());
+            }
+        }
+
+        @Override
+        public void onRejected(String message) {
+            // As with api/post.php requests, there is nothing to do if the session is rejected;
+            // sharing stops when the share expires.
+            metrics.recordFailure(Metrics.Failure.REJECTED);
+            Log.i("Hauk", "Stream rejected: " + message);
+        }
+
+        @Override
+        public void onFallback(List<LocationBatch> pending) {
+            // The pending updates are queued in order before any newer update is pushed, and then
+            // sent as api/post.php requests by the drainer. The queue is thread-safe, but the
+            // drainer must be started on the service thread. Without a queue, the updates are
+            // lost, as they are when an api/post.php request fails.
+            final OfflineQueue q = queue;
+            if (q == null) return;
+            for (LocationBatch batch : pending) q.offer(batch);
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (drainer != null) drainer.start();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import info.varden.hauk.metrics.Metrics;
+
+/**
+ * Keeps track of the location shares that are active in the location pusher. Every share has its
+ * own session and upload pipeline, but all shares are fed from a single location subscription: the
+ * GPS is requested at the fastest interval and smallest distance that any share currently wants,
+ * and each location update is passed on to every share that is due for one. Shares that sample
+ * more slowly than the subscription do not receive every update.
+ *
+ * Shares are identified by an ID chosen by the app when the share is started, and are kept in the
+ * order they were added. The registry must only be used from the service thread, except for
+ * getMetrics(), which the debug screen calls to show the metrics of every active share.
+ *
+ * @author Marius Lindvall
+ * @param <S> The type of the shares.
+ */
+final class ShareRegistry<S extends ShareRegistry.Share> {
+    // Updates are passed on to a share if at least this fraction of its interval has passed since
+    // the previous one, as location providers do not deliver updates at exact intervals.
+    private static final double INTERVAL_SLACK = 0.9D;
+
+    private final LinkedHashMap<Integer, Entry<S>> shares = new LinkedHashMap<>();
+
+    // An immutable copy of the entries, which is replaced when shares are added or removed. This
+    // allows shares to be removed while an update is being passed on to them, and the metrics of
+    // the shares to be read from other threads.
+    private volatile List<Entry<S>> entries = Collections.emptyList();
+
+    /**
+     * Adds a share.
+     *
+     * @param id    The ID of the share.
+     * @param share The share.
+     * @return true if the share was added, false if a share with the same ID already exists.
+     */
+    boolean add(int id, S share) {
+        if (this.shares.containsKey(id)) return false;
+        this.shares.put(id, new Entry<>(share));
+        update();
+        return true;
+    }
+
+    /**
+     * Removes a share.
+     *
+     * @param id The ID of the share.
+     * @return The share that was removed, or null if there is no share with the given ID.
+     */
+    S remove(int id) {
+        Entry<S> entry = this.shares.remove(id);
+        if (entry == null) return null;
+        update();
+        return entry.share;
+    }
+
+    /**
+     * Returns the share with the given ID, or null if there is no such share.
+     */
+    S get(int id) {
+        Entry<S> entry = this.shares.get(id);
+        return entry != null ? entry.share : null;
+    }
+
+    /**
+     * Returns the share that was added first of those still active, or null if there are none.
+     */
+    S first() {
+        return this.entries.isEmpty() ? null : this.entries.get(0).share;
+    }
+
+    /**
+     * Returns all active shares, in the order they were added.
+     */
+    List<S> all() {
+        List<S> all = new ArrayList<>(this.entries.size());
+        for (Entry<S> entry : this.entries) all.add(entry.share);
+        return all;
+    }
+
+    /**
+     * Returns the metrics of all active shares, in the order the shares were added. The metrics of
+     * a share are no longer returned once it has been removed. This may be called from any thread.
+     */
+    List<Metrics> getMetrics() {
+        List<Entry<S>> entries = this.entries;
+        List<Metrics> metrics = new ArrayList<>(entries.size());
+        for (Entry<S> entry : entries) metrics.add(entry.share.getMetrics());
+        return metrics;
+    }
+
+    int size() {
+        return this.entries.size();
+    }
+
+    boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    /**
+     * Returns the interval at which location updates should be requested so that every share
+     * receives updates as often as it wants them, in milliseconds, or -1 if there are no shares.
+     */
+    long getInterval() {
+        long interval = -1L;
+        for (int i = 0; i < this.entries.size(); i++) {
+            long wanted = this.entries.get(i).share.getSampling().getInterval();
+            if (interval < 0L || wanted < interval) interval = wanted;
+        }
+        return interval;
+    }
+
+    /**
+     * Returns the minimum distance between location updates that should be requested so that
+     * every share receives updates as often as it wants them, in meters.
+     */
+    float getMinDistance() {
+        float distance = -1F;
+        for (int i = 0; i < this.entries.size(); i++) {
+            float wanted = this.entries.get(i).share.getSampling().getMinDistance();
+            if (distance < 0F || wanted < distance) distance = wanted;
+        }
+        return Math.max(0F, distance);
+    }
+
+    /**
+     * Passes a location update on to every share that is due for one according to its current
+     * sampling interval.
+     *
+     * @param location The location update.
+     * @param now      The current time, in milliseconds since the UNIX epoch.
+     */
+    void dispatch(Location location, long now) {
+        // The list is replaced rather than modified if a share is removed by this call.
+        List<Entry<S>> entries = this.entries;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<S> entry = entries.get(i);
+            long interval = entry.share.getSampling().getInterval();
+            if (entry.last >= 0L && now - entry.last < (long) (interval * INTERVAL_SLACK)) continue;
+            entry.last = now;
+            entry.share.onLocation(location, now);
+        }
+    }
+
+    private void update() {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(this.shares.values()));
+    }
+
+    /**
+     * A share that location updates are passed on to.
+     */
+    interface Share {
+        /**
+         * Returns the sampling policy of the share, which decides how often it wants location
+         * updates.
+         */
+        SamplingPolicy getSampling();
+
+        /**
+         * Returns the metrics of the share.
+         */
+        Metrics getMetrics();
+
+        /**
+         * Called on the service thread for every location update passed on to the share.
+         *
+         * @param location The location update.
+         * @param now      The current time, in milliseconds since the UNIX epoch.
+         */
+        void onLocation(Location location, long now);
+    }
+
+    /**
+     * A share, and the time the most recent location update was passed on to it.
+     */
+    private static final class Entry<S> {
+        private final S share;
+        private long last = -1L;
+
+        private Entry(S share) {
+            this.share = share;
+        }
+    }
+}
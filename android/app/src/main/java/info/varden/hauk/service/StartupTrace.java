@@ -0,0 +1,106 @@
+package info.varden.hauk.service;
+
+import java.util.Locale;
+
+/**
+ * Records how long each stage of starting a share takes, measured from the moment the user taps
+ * the share button. Session creation and location warm-up run concurrently, so the stages are not
+ * necessarily reached in the order they are declared.
+ *
+ * Each stage is only recorded the first time it is reached. The end-to-end time to first update is
+ * the time until the stage DELIVERED is reached, i.e. until the first location update has been
+ * accepted by the backend and is visible to viewers.
+ *
+ * @author Marius Lindvall
+ */
+public final class StartupTrace {
+    /**
+     * The stages of starting a share.
+     */
+    public enum Stage {
+        /**
+         * Location updates have been requested from the location providers.
+         */
+        LOCATION_REQUESTED,
+
+        /**
+         * The first location update has been received from a location provider.
+         */
+        FIRST_FIX,
+
+        /**
+         * The backend has created the session and returned a session ID.
+         */
+        SESSION_CREATED,
+
+        /**
+         * The first location update has been sent to the backend.
+         */
+        FIRST_UPLOAD,
+
+        /**
+         * The backend has confirmed receipt of the first location update.
+         */
+        DELIVERED
+    }
+
+    private final long start;
+    private final long[] elapsed = new long[Stage.values().length];
+
+    /**
+     * Creates a trace. The current time is taken as the time the user tapped the share button.
+     */
+    public StartupTrace() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * Creates a trace with a given start time.
+     *
+     * @param start The start time, as returned by System.nanoTime().
+     */
+    StartupTrace(long start) {
+        this.start = start;
+        for (int i = 0; i < this.elapsed.length; i++) this.elapsed[i] = -1L;
+    }
+
+    /**
+     * Records that a stage has been reached now, unless it has already been reached.
+     *
+     * @param stage The stage that was reached.
+     * @return true if this is the first time the stage was reached, false otherwise.
+     */
+    public boolean mark(Stage stage) {
+        return mark(stage, System.nanoTime());
+    }
+
+    synchronized boolean mark(Stage stage, long now) {
+        if (this.elapsed[stage.ordinal()] >= 0L) return false;
+        this.elapsed[stage.ordinal()] = (now - this.start) / 1000000L;
+        return true;
+    }
+
+    /**
+     * Returns the time from tapping the share button until the given stage was reached in
+     * milliseconds, or -1 if the stage has not been reached yet.
+     */
+    public synchronized long getElapsed(Stage stage) {
+        return this.elapsed[stage.ordinal()];
+    }
+
+    /**
+     * Returns a summary of all stages on one line, suitable for logging.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Startup:");
+        for (Stage stage : Stage.values()) {
+            sb.append(' ');
+            sb.append(stage.name().toLowerCase(Locale.US));
+            sb.append('=');
+            long ms = this.elapsed[stage.ordinal()];
+            sb.append(ms >= 0L ? ms + "ms" : "-");
+        }
+        return sb.toString();
+    }
+}
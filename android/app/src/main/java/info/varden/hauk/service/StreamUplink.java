@@ -0,0 +1,783 @@
+package info.varden.hauk.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import info.varden.hauk.BuildConfig;
+
+/**
+ * Streams location updates to the Hauk backend as frames in the body of a single long-lived
+ * api/stream.php request, instead of making one api/post.php request per update. This removes the
+ * per-request HTTP overhead, which dominates at update intervals of a second or less. Backends that
+ * support streaming announce the "stream" capability.
+ *
+ * The request is an HTTP/1.1 POST with a chunked body, which the backend reads as it arrives while
+ * it writes acknowledgements to the chunked response at the same time. HttpURLConnection cannot
+ * read a response before the request body is complete, so the request is made on a socket of its
+ * own. The request names the session and a random stream ID that identifies this uplink across
+ * reconnects. The backend answers "READY <seq>" with the sequence number of the last frame it has
+ * accepted on this stream, or 0. Each frame consists of a 64-bit big-endian sequence number
+ * starting at 1, a 32-bit length, and an api/post.php request body in the binary or delta format.
+ * The backend acknowledges frames with "ACK <seq>", which covers all frames up to and including
+ * seq. If the backend rejects the session or a frame, it sends "ERR <message>" and ends the
+ * response.
+ *
+ * Frames are kept until they are acknowledged. If the connection is lost, the uplink reconnects
+ * with exponential backoff and resends the frames that the backend did not report as accepted in
+ * its READY message, so no update is lost or applied twice. While no frames are sent, a heartbeat
+ * frame is sent at the heartbeat interval, which the backend acknowledges. If nothing is received
+ * for two heartbeat intervals, the connection is considered dead and replaced.
+ *
+ * If the backend cannot be streamed to at all, or too many frames pile up while the uplink is
+ * disconnected, the uplink falls back permanently and hands all unacknowledged frames back to its
+ * listener, to be sent as classic api/post.php requests.
+ *
+ * @author Marius Lindvall
+ */
+public final class StreamUplink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The capability announced by backends that accept streamed location updates.
+    public static final String CAPABILITY = "stream";
+
+    // The default interval between heartbeats, in milliseconds.
+    public static final long DEFAULT_HEARTBEAT = 15000L;
+
+    // The largest number of unacknowledged frames that are kept. Beyond this, the uplink falls back
+    // to api/post.php requests, which have their own offline queue.
+    static final int MAX_WINDOW = 512;
+
+    // The number of consecutive failed connection attempts after which the uplink falls back, if
+    // it has never been connected.
+    static final int MAX_ATTEMPTS = 3;
+
+    // The delays before reconnecting, in milliseconds.
+    private static final long MIN_BACKOFF = 1000L;
+    private static final long MAX_BACKOFF = 60000L;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    // The header of a heartbeat frame: sequence number 0 and no body.
+    private static final byte[] HEARTBEAT = new byte[12];
+
+    /**
+     * The states of the uplink.
+     */
+    public enum State {
+        /**
+         * Connecting to the backend, or waiting for its READY message.
+         */
+        CONNECTING,
+
+        /**
+         * Connected; frames are sent as soon as they are offered.
+         */
+        READY,
+
+        /**
+         * Waiting to reconnect after the connection was lost. Frames are kept until reconnected.
+         */
+        RECONNECTING,
+
+        /**
+         * Streaming is not possible, and updates must be sent as api/post.php requests.
+         */
+        FALLBACK,
+
+        /**
+         * The uplink has been stopped, or the backend rejected the session.
+         */
+        CLOSED
+    }
+
+    private final URL url;
+    private final String session;
+    private final String stream;
+    private final long heartbeat;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final Listener listener;
+    private final Stats stats = new Stats();
+
+    // Frames that have not been acknowledged, oldest first. Guarded by this, as is all state below.
+    private final ArrayDeque<Frame> window = new ArrayDeque<>();
+
+    private State state = State.CONNECTING;
+    // The current connection, or null while not connected.
+    private Connection connection = null;
+    private long nextSeq = 1L;
+    // The sequence number of the last frame sent on the current connection.
+    private long sentSeq = 0L;
+    private int failures = 0;
+    private boolean connected = false;
+
+    // The delivery latency of the most recently acknowledged frame, in nanoseconds.
+    private long latency = 0L;
+
+    /**
+     * Creates an uplink and starts connecting to the backend on a thread of its own.
+     *
+     * @param baseUrl   The base URL of the Hauk backend.
+     * @param session   The session ID provided by the Hauk backend.
+     * @param heartbeat The interval between heartbeats, in milliseconds.
+     * @param listener  A listener that is notified of deliveries and fallback.
+     */
+    public StreamUplink(String baseUrl, String session, long heartbeat, Listener listener) throws IOException {
+        this(baseUrl, session, heartbeat, MIN_BACKOFF, MAX_BACKOFF, listener);
+    }
+
+    StreamUplink(String baseUrl, String session, long heartbeat, long minBackoff, long maxBackoff, Listener listener) throws IOException {
+        this.stream = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+        this.url = new URL(baseUrl + "api/stream.php?sid=" + URLEncoder.encode(session, "UTF-8") + "&stream=" + this.stream);
+        this.session = session;
+        this.heartbeat = heartbeat;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.listener = listener;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StreamUplink.this.run();
+            }
+        }, "Hauk-Stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks whether a backend accepts streamed location updates.
+     *
+     * @param capabilities The space-separated list of optional features announced by the backend,
+     *                     or null if the backend did not announce any.
+     */
+    public static boolean isSupported(String capabilities) {
+        return capabilities != null && Arrays.asList(capabilities.trim().split(" ")).contains(CAPABILITY);
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    public Stats getStats() {
+        return this.stats;
+    }
+
+    public String getSession() {
+        return this.session;
+    }
+
+    /**
+     * Returns the number of frames that have not been acknowledged by the backend.
+     */
+    public synchronized int getPending() {
+        return this.window.size();
+    }
+
+    /**
+     * Sends a batch of location updates as a frame, or keeps it until the uplink is reconnected.
+     * The batch is copied, so it can be reused as soon as this call returns. The batch must be
+     * in the binary or delta format. This never blocks on the network, so it may be called from
+     * the main thread.
+     *
+     * If this returns false, the batch must be sent as an api/post.php request instead. Any frames
+     * that were not acknowledged have then already been handed to the listener's onFallback(), so
+     * the batch must be sent after those to keep the updates in order.
+     *
+     * @param batch The batch of location updates to send.
+     * @return true if the uplink accepted the batch, false otherwise.
+     */
+    public synchronized boolean offer(LocationBatch batch) {
+        if (this.state == State.FALLBACK || this.state == State.CLOSED) return false;
+        if (this.window.size() >= MAX_WINDOW) {
+            fallBack();
+            return false;
+        }
+        this.window.add(new Frame(this.nextSeq++, batch));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Closes the uplink. The request body is ended cleanly by the uplink's thread.
+     *
+     * @return The batches that were not acknowledged, oldest first. They may or may not have
+     *         reached the backend.
+     */
+    public synchronized List<LocationBatch> stop() {
+        List<LocationBatch> pending = new ArrayList<>(this.window.size());
+        if (this.state == State.CLOSED || this.state == State.FALLBACK) return pending;
+        this.state = State.CLOSED;
+        for (Frame frame : this.window) pending.add(frame.batch);
+        this.window.clear();
+        notifyAll();
+        return pending;
+    }
+
+    /**
+     * Connects, sends frames and reconnects until the uplink is closed or falls back.
+     */
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                if (this.state == State.CLOSED || this.state == State.FALLBACK) return;
+                this.state = State.CONNECTING;
+                this.stats.connects++;
+            }
+
+            Connection conn = new Connection();
+            String rejected = null;
+            boolean finish = false;
+            try {
+                long ready = conn.open();
+                int delivered;
+                long latency;
+                boolean opened;
+                synchronized (this) {
+                    opened = this.state == State.CONNECTING;
+                    if (opened) {
+                        // Frames the backend accepted before the connection was lost are dropped,
+                        // and all others are sent again in order.
+                        delivered = acknowledge(ready);
+                        latency = this.latency;
+                        this.state = State.READY;
+                        this.connection = conn;
+                        this.sentSeq = ready;
+                        this.failures = 0;
+                        if (this.connected) this.stats.resumes++;
+                        this.connected = true;
+                    } else {
+                        // The uplink was stopped while connecting.
+                        delivered = 0;
+                        latency = 0L;
+                    }
+                }
+                if (delivered > 0) this.listener.onDelivered(delivered, latency);
+                if (opened) {
+                    conn.startReader();
+                    finish = send(conn);
+                } else {
+                    finish = true;
+                }
+            } catch (RejectedException e) {
+                rejected = e.getMessage();
+            } catch (IOException e) {
+                // Handled below.
+            }
+            conn.close(finish);
+
+            long delay;
+            synchronized (this) {
+                if (this.connection == conn) this.connection = null;
+                if (rejected != null) reject();
+                if (this.state == State.CLOSED || this.state == State.FALLBACK) {
+                    delay = -1L;
+                } else {
+                    this.failures++;
+                    if (!this.connected && this.failures >= MAX_ATTEMPTS) {
+                        // The backend does not accept streams, e.g. because it is older, or a proxy
+                        // buffers request bodies.
+                        fallBack();
+                        return;
+                    }
+                    this.state = State.RECONNECTING;
+                    delay = Math.min(this.maxBackoff, this.minBackoff << Math.min(this.failures - 1, 16));
+                }
+            }
+            if (rejected != null) this.listener.onRejected(rejected);
+            if (delay < 0L) return;
+            if (!sleep(delay)) return;
+        }
+    }
+
+    /**
+     * Waits before reconnecting, unless the uplink is closed in the meantime.
+     *
+     * @return false if the thread was interrupted.
+     */
+    private synchronized boolean sleep(long delay) {
+        long until = System.currentTimeMillis() + delay;
+        try {
+            while (this.state == State.RECONNECTING && delay > 0L) {
+                wait(delay);
+                delay = until - System.currentTimeMillis();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes frames to a connection as they are offered, and heartbeats while there are none,
+     * until the connection is lost or the uplink is closed.
+     *
+     * @return true if the uplink was closed, and the request body should be ended cleanly.
+     */
+    private boolean send(Connection conn) throws IOException {
+        long lastWrite = System.currentTimeMillis();
+        while (true) {
+            Frame next = null;
+            synchronized (this) {
+                while (true) {
+                    if (this.state == State.CLOSED) return true;
+                    if (this.connection != conn || this.state != State.READY) return false;
+                    for (Frame frame : this.window) {
+                        if (frame.seq > this.sentSeq) {
+                            next = frame;
+                            break;
+                        }
+                    }
+                    if (next != null) break;
+                    long wait = lastWrite + this.heartbeat - System.currentTimeMillis();
+                    if (wait <= 0L) break;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                if (next != null) {
+                    this.sentSeq = next.seq;
+                    next.sent = System.nanoTime();
+                }
+            }
+
+            if (next != null) {
+                conn.write(next.data);
+                this.stats.frames++;
+                this.stats.bytes += next.data.length;
+            } else {
+                conn.write(HEARTBEAT);
+                this.stats.heartbeats++;
+            }
+            lastWrite = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Handles a message from the backend, received on the reader thread of a connection.
+     */
+    private void onMessage(Connection conn, String message) {
+        int delivered = 0;
+        long latency = 0L;
+        synchronized (this) {
+            if (conn != this.connection) return;
+            if (message.startsWith("ACK ")) {
+                try {
+                    delivered = acknowledge(Long.parseLong(message.substring(4).trim()));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+                latency = this.latency;
+            }
+        }
+        if (delivered > 0) this.listener.onDelivered(delivered, latency);
+    }
+
+    /**
+     * Called on the reader thread of a connection when the connection is lost. Closing the socket
+     * also interrupts a blocked write on the uplink's thread.
+     */
+    private void onLost(Connection conn) {
+        synchronized (this) {
+            if (conn != this.connection) return;
+            this.connection = null;
+            notifyAll();
+        }
+        conn.close(false);
+    }
+
+    /**
+     * Closes the uplink after the backend rejected the session. Pending updates are discarded, as
+     * they would be rejected by api/post.php as well. Must be called while holding the lock.
+     */
+    private void reject() {
+        this.state = State.CLOSED;
+        this.window.clear();
+        notifyAll();
+    }
+
+    /**
+     * Switches to fallback mode, and hands all unacknowledged frames to the listener. Must be
+     * called while holding the lock, so that no new batch can be offered until the listener has
+     * taken care of the older ones.
+     */
+    private void fallBack() {
+        this.state = State.FALLBACK;
+        notifyAll();
+        List<LocationBatch> pending = new ArrayList<>(this.window.size());
+        for (Frame frame : this.window) pending.add(frame.batch);
+        this.window.clear();
+        this.listener.onFallback(pending);
+    }
+
+    /**
+     * Removes all frames up to and including the given sequence number from the window, and sets
+     * the delivery latency to the time since the last of them was sent. Must be called while
+     * holding the lock.
+     *
+     * @return The number of location updates in the removed frames.
+     */
+    private int acknowledge(long seq) {
+        int points = 0;
+        Frame last = null;
+        while (!this.window.isEmpty() && this.window.peek().seq <= seq) {
+            last = this.window.poll();
+            points += last.batch.size();
+        }
+        if (last != null && last.sent != 0L) this.latency = System.nanoTime() - last.sent;
+        return points;
+    }
+
+    /**
+     * Thrown when the backend refuses to accept the stream.
+     */
+    private static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One api/stream.php request. The request body is written by the uplink's thread, and the
+     * response is read by a reader thread of the connection.
+     */
+    private final class Connection {
+        private Socket socket = null;
+        private InputStream in;
+        private OutputStream out;
+
+        // Whether the response body is chunked, and the bytes left in the current chunk.
+        private boolean chunked = false;
+        private long chunkLeft = 0L;
+        private boolean firstChunk = true;
+        private boolean ended = false;
+
+        private final StringBuilder line = new StringBuilder();
+
+        /**
+         * Connects, sends the request headers and waits for the backend to accept the stream.
+         *
+         * @return The sequence number of the last frame the backend has accepted on the stream.
+         * @throws RejectedException if the backend rejected the stream.
+         * @throws IOException if the connection failed, or the backend does not accept streams.
+         */
+        private long open() throws IOException {
+            boolean secure = "https".equals(url.getProtocol());
+            int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+            Socket socket = new Socket();
+            synchronized (this) {
+                this.socket = socket;
+            }
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(url.getHost(), port), CONNECT_TIMEOUT);
+            if (secure) {
+                SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, url.getHost(), port, true);
+                tls.startHandshake();
+                socket = tls;
+                synchronized (this) {
+                    this.socket = socket;
+                }
+            }
+            // A backend or proxy that buffers the request body never answers until the body ends,
+            // so the handshake must not wait longer than the connection itself would.
+            socket.setSoTimeout((int) Math.min(CONNECT_TIMEOUT, 2L * heartbeat));
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+
+            String host = url.getHost() + (url.getPort() >= 0 ? ":" + url.getPort() : "");
+            String head = "POST " + url.getFile() + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "User-Agent: Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent") + "\r\n"
+                    + "Content-Type: application/x-hauk-stream\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "\r\n";
+            this.out.write(head.getBytes(UTF_8));
+            this.out.flush();
+
+            String status = readRawLine();
+            String[] parts = status != null ? status.split(" ") : new String[0];
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/1.") || !parts[1].equals("200")) {
+                throw new IOException("Unexpected response: " + status);
+            }
+            String header;
+            while ((header = readRawLine()) != null && !header.isEmpty()) {
+                String lower = header.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) this.chunked = true;
+            }
+
+            String ready = readLine();
+            if (ready != null && ready.startsWith("READY ")) {
+                // The backend answers every frame and heartbeat, so a connection on which nothing
+                // is received for two heartbeats is dead.
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 2L * heartbeat));
+                try {
+                    return Long.parseLong(ready.substring(6).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid response: " + ready);
+                }
+            }
+            if (ready != null && ready.startsWith("ERR ")) throw new RejectedException(ready.substring(4));
+            // E.g. a backend without api/stream.php that serves a page for any path.
+            throw new IOException("Unexpected response: " + ready);
+        }
+
+        /**
+         * Starts reading acknowledgements on a thread of the connection.
+         */
+        private void startReader() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String message;
+                        while ((message = readLine()) != null) {
+                            if (message.startsWith("ERR ")) {
+                                String reason = message.substring(4);
+                                synchronized (StreamUplink.this) {
+                                    if (connection != Connection.this) return;
+                                    reject();
+                                }
+                                listener.onRejected(reason);
+                                return;
+                            }
+                            onMessage(Connection.this, message);
+                        }
+                    } catch (IOException e) {
+                        // Includes the read timeout.
+                    } finally {
+                        onLost(Connection.this);
+                    }
+                }
+            }, "Hauk-Stream-Reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Writes a frame to the request body as a chunk of its own.
+         */
+        private void write(byte[] frame) throws IOException {
+            this.out.write((Integer.toHexString(frame.length) + "\r\n").getBytes(UTF_8));
+            this.out.write(frame);
+            this.out.write('\r');
+            this.out.write('\n');
+            this.out.flush();
+        }
+
+        /**
+         * Closes the connection.
+         *
+         * @param finish Whether to end the request body first, so that the backend sees a clean
+         *               end of the stream rather than a lost connection.
+         */
+        private void close(boolean finish) {
+            Socket socket;
+            synchronized (this) {
+                socket = this.socket;
+            }
+            if (socket == null) return;
+            if (finish && this.out != null) {
+                try {
+                    this.out.write("0\r\n\r\n".getBytes(UTF_8));
+                    this.out.flush();
+                    // Wait briefly for the backend to end the response, so that it does not see a
+                    // reset connection.
+                    socket.setSoTimeout(1000);
+                    while (readLine() != null) ;
+                } catch (IOException e) {
+                    // The connection is closed either way.
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is closed either way.
+            }
+        }
+
+        /**
+         * Reads a line of the response body, or returns null at the end of the body.
+         */
+        private String readLine() throws IOException {
+            this.line.setLength(0);
+            while (true) {
+                int b = readBodyByte();
+                if (b < 0) return this.line.length() > 0 ? this.line.toString() : null;
+                if (b == '\n') return this.line.toString();
+                if (b != '\r') this.line.append((char) b);
+            }
+        }
+
+        private int readBodyByte() throws IOException {
+            if (this.ended) return -1;
+            if (!this.chunked) return this.in.read();
+            if (this.chunkLeft == 0L) {
+                // Each chunk but the first is preceded by the line break that ended the last one.
+                if (!this.firstChunk) readRawLine();
+                this.firstChunk = false;
+                String size = readRawLine();
+                if (size == null) return -1;
+                int ext = size.indexOf(';');
+                try {
+                    this.chunkLeft = Long.parseLong((ext >= 0 ? size.substring(0, ext) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + size);
+                }
+                if (this.chunkLeft == 0L) {
+                    this.ended = true;
+                    return -1;
+                }
+            }
+            this.chunkLeft--;
+            return this.in.read();
+        }
+
+        /**
+         * Reads a line of the response head or chunk framing, or returns null at the end of the
+         * stream.
+         */
+        private String readRawLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int b = this.in.read();
+                if (b < 0) return sb.length() > 0 ? sb.toString() : null;
+                if (b == '\n') return sb.toString();
+                if (b != '\r') sb.append((char) b);
+            }
+        }
+    }
+
+    /**
+     * A location update frame that has been sent or is waiting to be sent. The frame keeps a copy
+     * of the batch, so that the updates can be sent as an api/post.php request if the uplink falls
+     * back.
+     */
+    private static final class Frame {
+        private final long seq;
+        private final LocationBatch batch;
+        private final byte[] data;
+
+        // The time the frame was last sent, from System.nanoTime(), or 0 if it was never sent.
+        private long sent = 0L;
+
+        private Frame(long seq, LocationBatch batch) {
+            this.seq = seq;
+            this.batch = new LocationBatch(batch.getSession(), batch.size(), batch.getFormat());
+            for (int i = 0; i < batch.size(); i++) {
+                this.batch.add(batch.getLatitude(i), batch.getLongitude(i), batch.getTime(i), batch.getAccuracy(i), batch.getSpeed(i));
+            }
+
+            byte[] body;
+            try {
+                body = this.batch.toRequest(null).getBodyBytes();
+            } catch (IOException e) {
+                // Encoding a batch in memory does not fail.
+                throw new IllegalStateException(e);
+            }
+            int length = this.batch.getEncodedSize();
+            this.data = new byte[12 + length];
+            for (int i = 0; i < 8; i++) this.data[i] = (byte) (seq >>> (56 - 8 * i));
+            for (int i = 0; i < 4; i++) this.data[8 + i] = (byte) (length >>> (24 - 8 * i));
+            System.arraycopy(body, 0, this.data, 12, length);
+        }
+    }
+
+    /**
+     * A listener that is notified of the progress of the uplink. Callbacks are made on a
+     * background thread.
+     */
+    public abstract static class Listener {
+        /**
+         * Called when the backend has acknowledged location updates.
+         *
+         * @param points  The number of location updates that were acknowledged.
+         * @param latency The time between sending the most recent of the updates and the backend
+         *                acknowledging it, in nanoseconds.
+         */
+        public abstract void onDelivered(int points, long latency);
+
+        /**
+         * Called when the backend rejected the session, e.g. because it has expired. The uplink is
+         * closed, and pending updates are discarded.
+         *
+         * @param message The error message sent by the backend.
+         */
+        public abstract void onRejected(String message);
+
+        /**
+         * Called when the uplink falls back to api/post.php requests. This is called while the
+         * uplink is locked, so that the pending updates can be queued before any newer update is
+         * offered; the listener must not call back into the uplink.
+         *
+         * @param pending All batches that were not acknowledged, oldest first.
+         */
+        public abstract void onFallback(List<LocationBatch> pending);
+    }
+
+    /**
+     * Uplink statistics. All counters are cumulative since the uplink was created.
+     */
+    public static final class Stats {
+        private volatile long connects = 0L;
+        private volatile long resumes = 0L;
+        private volatile long frames = 0L;
+        private volatile long heartbeats = 0L;
+        private volatile long bytes = 0L;
+
+        private Stats() {
+        }
+
+        /**
+         * Returns the number of connection attempts, including the first.
+         */
+        public long getConnects() {
+            return this.connects;
+        }
+
+        /**
+         * Returns the number of times the uplink resumed the stream after reconnecting.
+         */
+        public long getResumes() {
+            return this.resumes;
+        }
+
+        /**
+         * Returns the number of frames sent, including frames sent again after reconnecting.
+         */
+        public long getFrames() {
+            return this.frames;
+        }
+
+        /**
+         * Returns the number of heartbeats sent while there were no frames to send.
+         */
+        public long getHeartbeats() {
+            return this.heartbeats;
+        }
+
+        public long getBytes() {
+            return this.bytes;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package info.varden.hauk.service;
+
+/**
+ * An online trajectory simplifier that decides which location updates need to reach the backend
+ * for the shared trail to stay within a given tolerance of the actual path.
+ *
+ * This is a streaming variant of the Douglas-Peucker algorithm, using an opening window. The last
+ * emitted update is the anchor. Updates received after it are held in a window for as long as all
+ * of them lie within the tolerance of the straight line from the anchor to the newest update. When
+ * a new update breaks this corridor, the previous update is emitted and becomes the new anchor.
+ * Every update that is not emitted is therefore within the tolerance of the line between the two
+ * emitted updates around it.
+ *
+ * As the newest update is held back until the next one arrives, it is also emitted if it is older
+ * than the maximum delay relative to the anchor, or if the window is full. This bounds both the
+ * staleness of the shared location and the memory and time used per update to O(window).
+ *
+ * A live share cannot hold back the newest update at all, as it is the location viewers see. For
+ * that case, simplify() only thins out a batch that is about to be sent: the newest update of the
+ * batch is always kept, and the updates before it are dropped where they lie within the tolerance.
+ *
+ * Distances are calculated on a local equirectangular projection around the anchor, which is
+ * accurate to well below a meter over the distances covered by a window.
+ *
+ * @author Marius Lindvall
+ */
+public final class TrajectorySimplifier {
+    // The default maximum number of held updates.
+    public static final int DEFAULT_WINDOW = 32;
+
+    private static final double METERS_PER_DEGREE = 6371000D * Math.PI / 180D;
+
+    private final double tolerance;
+    private final double maxDelay;
+    private final Sink sink;
+
+    // The batch that emitted updates are written back to while simplify() runs, or null.
+    private LocationBatch target = null;
+
+    // The last emitted update, and the scale of longitude degrees at its latitude.
+    private boolean hasAnchor = false;
+    private double anchorLat;
+    private double anchorLon;
+    private double anchorTime;
+    private double lonScale;
+
+    // Held updates, in the order they were received. The coordinates are stored both as received
+    // and projected to meters relative to the anchor.
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] time;
+    private final float[] acc;
+    private final float[] spd;
+    private final double[] x;
+    private final double[] y;
+    private int count = 0;
+
+    private long received = 0L;
+    private long emitted = 0L;
+
+    /**
+     * Creates a simplifier.
+     *
+     * @param tolerance The largest allowed distance between a dropped update and the shared trail,
+     *                  in meters.
+     * @param maxDelay  The longest time an update may be held back, in seconds.
+     * @param window    The maximum number of held updates.
+     * @param sink      A callback that receives the updates that should be uploaded, or null if
+     *                  only simplify() is used.
+     */
+    public TrajectorySimplifier(double tolerance, double maxDelay, int window, Sink sink) {
+        this.tolerance = tolerance;
+        this.maxDelay = maxDelay;
+        this.sink = sink;
+        this.lat = new double[window];
+        this.lon = new double[window];
+        this.time = new double[window];
+        this.acc = new float[window];
+        this.spd = new float[window];
+        this.x = new double[window];
+        this.y = new double[window];
+    }
+
+    /**
+     * Adds a location update to the trail, emitting any updates that must be uploaded.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy radius in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    public void add(double lat, double lon, double time, float acc, float spd) {
+        this.received++;
+        if (!this.hasAnchor) {
+            emit(lat, lon, time, acc, spd);
+            return;
+        }
+
+        // If the new update breaks the corridor, the previous update is a vertex of the trail and
+        // becomes the new anchor.
+        if (this.count == this.lat.length || (this.count > 0 && !withinCorridor(projectX(lon), projectY(lat)))) {
+            emitNewest();
+        }
+
+        if (time - this.anchorTime >= this.maxDelay) {
+            emit(lat, lon, time, acc, spd);
+            return;
+        }
+
+        int i = this.count++;
+        this.lat[i] = lat;
+        this.lon[i] = lon;
+        this.time[i] = time;
+        this.acc[i] = acc;
+        this.spd[i] = spd;
+        this.x[i] = projectX(lon);
+        this.y[i] = projectY(lat);
+    }
+
+    /**
+     * Immediately emits the newest held update, if any, e.g. because sharing is about to end.
+     */
+    public void flush() {
+        if (this.count > 0) emitNewest();
+    }
+
+    /**
+     * Drops the updates of a batch that are not needed to keep the trail within the tolerance. The
+     * newest update of the batch is always kept and becomes the anchor for the next batch, so the
+     * batch must be sent or queued after this call.
+     *
+     * @param batch A batch of updates newer than any update previously passed to the simplifier.
+     */
+    public void simplify(LocationBatch batch) {
+        int n = batch.size();
+        // Updates are emitted in order and never ahead of the update being added, so the batch can
+        // be rewritten in place: each slot is read before it is overwritten.
+        batch.reset();
+        this.target = batch;
+        try {
+            for (int i = 0; i < n; i++) {
+                add(batch.getLatitude(i), batch.getLongitude(i), batch.getTime(i), batch.getAccuracy(i), batch.getSpeed(i));
+            }
+            flush();
+        } finally {
+            this.target = null;
+        }
+    }
+
+    private double projectX(double lon) {
+        return (lon - this.anchorLon) * this.lonScale;
+    }
+
+    private double projectY(double lat) {
+        return (lat - this.anchorLat) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Checks whether all held updates lie within the tolerance of the line from the anchor to the
+     * given point.
+     */
+    private boolean withinCorridor(double px, double py) {
+        double len2 = px * px + py * py;
+        double tol2 = this.tolerance * this.tolerance;
+        for (int i = 0; i < this.count; i++) {
+            double d2;
+            if (len2 == 0D) {
+                d2 = this.x[i] * this.x[i] + this.y[i] * this.y[i];
+            } else {
+                // Distance to the segment, clamping the projection to its end points.
+                double t = Math.max(0D, Math.min(1D, (this.x[i] * px + this.y[i] * py) / len2));
+                double dx = this.x[i] - t * px;
+                double dy = this.y[i] - t * py;
+                d2 = dx * dx + dy * dy;
+            }
+            if (d2 > tol2) return false;
+        }
+        return true;
+    }
+
+    private void emitNewest() {
+        int i = this.count - 1;
+        emit(this.lat[i], this.lon[i], this.time[i], this.acc[i], this.spd[i]);
+    }
+
+    private void emit(double lat, double lon, double time, float acc, float spd) {
+        this.hasAnchor = true;
+        this.anchorLat = lat;
+        this.anchorLon = lon;
+        this.anchorTime = time;
+        this.lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        this.count = 0;
+        this.emitted++;
+        if (this.target != null) this.target.add(lat, lon, time, acc, spd);
+        else this.sink.emit(lat, lon, time, acc, spd);
+    }
+
+    /**
+     * Returns the number of updates that have been added to the simplifier.
+     */
+    public long getReceived() {
+        return this.received;
+    }
+
+    /**
+     * Returns the number of updates that have been emitted for uploading.
+     */
+    public long getEmitted() {
+        return this.emitted;
+    }
+
+    /**
+     * A callback that receives the updates that should be uploaded.
+     */
+    public abstract static class Sink {
+        /**
+         * Called when an update should be uploaded. Updates are emitted in chronological order.
+         *
+         * @param lat  Latitude in degrees.
+         * @param lon  Longitude in degrees.
+         * @param time Timestamp in seconds since the UNIX epoch.
+         * @param acc  Accuracy radius in meters, or NaN if unknown.
+         * @param spd  Speed in meters per second, or NaN if unknown.
+         */
+        public abstract void emit(double lat, double lon, double time, float acc, float spd);
+    }
+}
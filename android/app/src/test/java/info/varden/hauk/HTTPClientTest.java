@@ -0,0 +1,300 @@
+package info.varden.hauk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests connection reuse in HTTPClient against a loopback stand-in for the Hauk backend.
+ */
+public class HTTPClientTest {
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        HTTPClient.setPreferredTransport(HTTPClient.Transport.HTTP_1_1);
+    }
+
+    @Test
+    public void sequentialPosts_reuseOneConnection() throws Exception {
+        HTTPClient client = HTTPClient.forUrl(server.baseUrl() + "api/post.php");
+        for (int i = 0; i < 20; i++) {
+            HTTPThread.Response resp = client.post(new HTTPThread.Request(server.baseUrl() + "api/post.php", point(i)));
+            assertNull(resp.getException());
+            assertArrayEquals(new String[] {"OK"}, resp.getData());
+        }
+
+        assertEquals(20, server.requests.get());
+        assertEquals(1, server.connections.get());
+        assertEquals(20, client.getStats().getRequests());
+        assertEquals(0, client.getStats().getInFlight());
+        assertEquals(0, client.getStats().getFailures());
+        // Handshakes are only counted for HTTPS, so reuse cannot be measured here.
+        assertTrue(Double.isNaN(client.getStats().getReuseRatio()));
+    }
+
+    @Test
+    public void errorResponse_keepsConnectionReusable() throws Exception {
+        HTTPClient client = HTTPClient.forUrl(server.baseUrl());
+        HTTPThread.Response resp = client.post(new HTTPThread.Request(server.baseUrl() + "fail", point(0)));
+        assertNotNull(resp.getException());
+        resp = client.post(new HTTPThread.Request(server.baseUrl() + "api/post.php", point(1)));
+        assertNull(resp.getException());
+
+        assertEquals(1, server.connections.get());
+        assertEquals(1, client.getStats().getFailures());
+    }
+
+    @Test
+    public void statusOnlyPosts_reuseOneConnection() throws Exception {
+        HTTPClient client = HTTPClient.forUrl(server.baseUrl() + "api/post.php");
+        for (int i = 0; i < 5; i++) {
+            HTTPThread.Response resp = client.post(new HTTPThread.Request(server.baseUrl() + "api/post.php", point(i)).statusOnly());
+            assertTrue(resp.isOK());
+            assertArrayEquals(new String[] {"OK"}, resp.getData());
+        }
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void reader_splitsLinesLikeBufferedReader() throws Exception {
+        String[] bodies = {"OK\nabc\nhttps://example.com/?A\nbatch delta\n", "OK\r\nx\r\n\r\ny", "a\rb\n\nc\u00e6\u00f8\u00e5\n", "", "\n", "OK"};
+        for (String body : bodies) {
+            byte[] bytes = body.getBytes("UTF-8");
+            HTTPThread.Response resp = HTTPClient.readBody(new ByteArrayInputStream(bytes), body.length() % 2 == 0 ? bytes.length : -1);
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+            HTTPThread.Reader reader = resp.getReader();
+            String expected;
+            while ((expected = br.readLine()) != null) assertEquals(expected, reader.next());
+            assertNull(reader.next());
+            assertEquals(body.startsWith("OK"), resp.isOK());
+        }
+    }
+
+    @Test
+    public void reader_readsFieldsLazily() throws Exception {
+        HTTPThread.Response resp = HTTPClient.readBody(new ByteArrayInputStream("OK\nsession\nlink\n".getBytes("UTF-8")), -1);
+        HTTPThread.Reader reader = resp.getReader();
+        assertTrue(reader.skipLine());
+        assertEquals("session", reader.next());
+        assertEquals("link", reader.next());
+        assertNull(reader.next());
+        assertFalse(reader.skipLine());
+        assertArrayEquals(new String[] {"OK", "session", "link"}, resp.getData());
+    }
+
+    @Test
+    public void readStatus_keepsOnlyStatusLine() throws Exception {
+        byte[] buf = new byte[512];
+        HTTPThread.Response ok = HTTPClient.readStatus(new ByteArrayInputStream("OK\nignored\n".getBytes("UTF-8")), buf);
+        assertTrue(ok.isOK());
+        assertSame(ok, HTTPClient.readStatus(new ByteArrayInputStream("OK".getBytes("UTF-8")), buf));
+
+        HTTPThread.Response expired = HTTPClient.readStatus(new ByteArrayInputStream("Session expired!\nmore\n".getBytes("UTF-8")), buf);
+        assertFalse(expired.isOK());
+        assertArrayEquals(new String[] {"Session expired!"}, expired.getData());
+        assertFalse(HTTPClient.readStatus(new ByteArrayInputStream("OKAY\n".getBytes("UTF-8")), buf).isOK());
+    }
+
+    @Test
+    public void http2_multiplexesConcurrentPostsOverOneConnection() throws Exception {
+        MockWebServer h2c = new MockWebServer();
+        h2c.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        // The first response answers the check for h2c support.
+        for (int i = 0; i < 21; i++) h2c.enqueue(new MockResponse().setBody("OK\n"));
+        h2c.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            HTTPClient.setPreferredTransport(HTTPClient.Transport.HTTP_2);
+            final String url = "http://127.0.0.1:" + h2c.getPort() + "/api/post.php";
+            final HTTPClient client = HTTPClient.forUrl(url);
+
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            List<Future<HTTPThread.Response>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final int n = i;
+                results.add(pool.submit(new Callable<HTTPThread.Response>() {
+                    @Override
+                    public HTTPThread.Response call() {
+                        return client.post(new HTTPThread.Request(url, point(n)).statusOnly());
+                    }
+                }));
+            }
+            for (Future<HTTPThread.Response> result : results) assertTrue(result.get().isOK());
+            pool.shutdown();
+
+            assertEquals(21, h2c.getRequestCount());
+            assertEquals("GET / HTTP/1.1", h2c.takeRequest().getRequestLine());
+            // Sequence numbers are counted per connection, so they are only unique if all requests
+            // were multiplexed over the same connection.
+            Set<Integer> sequence = new HashSet<>();
+            for (int i = 0; i < 20; i++) sequence.add(h2c.takeRequest().getSequenceNumber());
+            assertEquals(20, sequence.size());
+            assertEquals("h2_prior_knowledge", client.getStats().getProtocol());
+            assertEquals(20, client.getStats().getRequests());
+            assertEquals(0, client.getStats().getFailures());
+        } finally {
+            h2c.shutdown();
+        }
+    }
+
+    @Test
+    public void http2_fallsBackToHttp11() throws Exception {
+        HTTPClient.setPreferredTransport(HTTPClient.Transport.HTTP_2);
+        HTTPClient client = HTTPClient.forUrl(server.baseUrl() + "api/post.php");
+        for (int i = 0; i < 3; i++) {
+            HTTPThread.Response resp = client.post(new HTTPThread.Request(server.baseUrl() + "api/post.php", point(i)).statusOnly());
+            assertTrue(resp.isOK());
+        }
+        assertEquals("http/1.1", client.getStats().getProtocol());
+        assertEquals(3, server.requests.get());
+        assertEquals(3, client.getStats().getRequests());
+        assertEquals(0, client.getStats().getFailures());
+    }
+
+    @Test
+    public void http2_doesNotResendRequestsTheBackendMayHaveProcessed() throws Exception {
+        MockWebServer h2c = new MockWebServer();
+        h2c.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        h2c.enqueue(new MockResponse().setBody("OK\n"));
+        // The backend reads the request, but the connection is lost before it answers.
+        h2c.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        h2c.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            HTTPClient.setPreferredTransport(HTTPClient.Transport.HTTP_2);
+            String url = "http://127.0.0.1:" + h2c.getPort() + "/api/post.php";
+            HTTPClient client = HTTPClient.unshared(url);
+            HTTPThread.Response resp = client.post(new HTTPThread.Request(url, point(0)).statusOnly());
+            assertNotNull(resp.getException());
+            assertEquals(2, h2c.getRequestCount());
+            assertEquals(1, client.getStats().getRequests());
+            assertEquals(1, client.getStats().getFailures());
+        } finally {
+            h2c.shutdown();
+        }
+    }
+
+    @Test
+    public void forUrl_sharesClientPerOrigin() throws Exception {
+        assertSame(HTTPClient.forUrl(server.baseUrl() + "api/create.php"), HTTPClient.forUrl(server.baseUrl() + "api/post.php"));
+    }
+
+    private static HashMap<String, String> point(int i) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("lat", String.valueOf(59.9 + i / 1000D));
+        data.put("lon", String.valueOf(10.7));
+        data.put("time", String.valueOf(1567602256D + i));
+        data.put("sid", "abc");
+        return data;
+    }
+
+    /**
+     * A minimal HTTP/1.1 server that answers every request with "OK" over keep-alive connections
+     * and counts how many connections and requests it has received. Requests to /fail are
+     * answered with HTTP 500. HTTP/2 connections are refused.
+     */
+    private static final class StandInServer extends Thread {
+        private final ServerSocket socket;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private StandInServer() throws IOException {
+            this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        private String baseUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/";
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket conn = socket.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(conn);
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Server closed.
+            }
+        }
+
+        private void serve(Socket conn) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+                OutputStream out = conn.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    // Like any HTTP/1.1-only server, reject the HTTP/2 connection preface.
+                    if (requestLine.startsWith("PRI ")) break;
+                    int length = 0;
+                    String header;
+                    while ((header = in.readLine()) != null && !header.isEmpty()) {
+                        if (header.toLowerCase().startsWith("content-length:")) {
+                            length = Integer.parseInt(header.substring(15).trim());
+                        }
+                    }
+                    for (int i = 0; i < length; i++) in.read();
+                    requests.incrementAndGet();
+
+                    boolean fail = requestLine.contains(" /fail ");
+                    String body = fail ? "Internal error\n" : "OK\n";
+                    out.write(((fail ? "HTTP/1.1 500 Internal Server Error" : "HTTP/1.1 200 OK") + "\r\n"
+                            + "Content-Type: text/plain\r\n"
+                            + "Content-Length: " + body.length() + "\r\n"
+                            + "Connection: keep-alive\r\n\r\n" + body).getBytes("UTF-8"));
+                    out.flush();
+                }
+                conn.close();
+            } catch (IOException e) {
+                // Connection closed by the client.
+            }
+        }
+
+        private void close() throws IOException {
+            socket.close();
+        }
+    }
+}
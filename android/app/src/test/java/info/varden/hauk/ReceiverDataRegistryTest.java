@@ -0,0 +1,117 @@
+package info.varden.hauk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the registry used to pass objects to receivers and services.
+ */
+public class ReceiverDataRegistryTest {
+    @Test
+    public void retrieve_releasesObject() {
+        Object obj = new Object();
+        int index = ReceiverDataRegistry.register(obj);
+
+        assertSame(obj, ReceiverDataRegistry.retrieve(index));
+        assertNull(ReceiverDataRegistry.retrieve(index));
+        assertNull(ReceiverDataRegistry.retrieve(-1));
+    }
+
+    @Test
+    public void indices_areIncreasingAndUnique() {
+        int previous = ReceiverDataRegistry.register("first");
+        for (int i = 0; i < 1000; i++) {
+            int index = ReceiverDataRegistry.register(i);
+            assertTrue(index > previous);
+            assertEquals(i, ReceiverDataRegistry.retrieve(index));
+            previous = index;
+        }
+        ReceiverDataRegistry.retrieve(previous);
+    }
+
+    @Test
+    public void unscopedObjects_expire() throws InterruptedException {
+        int index = ReceiverDataRegistry.register("short-lived", 20L);
+        Thread.sleep(50L);
+
+        assertNull(ReceiverDataRegistry.get(index));
+        assertNull(ReceiverDataRegistry.retrieve(index));
+    }
+
+    @Test
+    public void closingScope_releasesAllObjects() {
+        ReceiverDataRegistry.Scope scope = ReceiverDataRegistry.openScope();
+        int copy = scope.register("https://example.com/?ABCD-1234");
+        int stop = scope.register(new Object());
+
+        // Notification buttons may be tapped more than once.
+        assertEquals("https://example.com/?ABCD-1234", ReceiverDataRegistry.get(copy));
+        assertEquals("https://example.com/?ABCD-1234", ReceiverDataRegistry.get(copy));
+
+        scope.close();
+        assertTrue(scope.isClosed());
+        assertNull(ReceiverDataRegistry.get(copy));
+        assertNull(ReceiverDataRegistry.get(stop));
+
+        // Objects registered after the scope was closed are released immediately.
+        assertNull(ReceiverDataRegistry.get(scope.register(new Object())));
+    }
+
+    @Test
+    public void concurrentRegisterAndRetrieve_neverLosesOrMixesUpObjects() throws Throwable {
+        final int threads = 8;
+        final int perThread = 20000;
+        final ReceiverDataRegistry.Scope scope = ReceiverDataRegistry.openScope();
+        final Set<Integer> indices = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            String obj = thread + ":" + i;
+                            // Alternate between one-shot handovers and scoped objects.
+                            int index = i % 2 == 0 ? ReceiverDataRegistry.register(obj) : scope.register(obj);
+                            if (!indices.add(index)) throw new AssertionError("Index handed out twice: " + index);
+                            if (i % 2 == 0) {
+                                assertSame(obj, ReceiverDataRegistry.retrieve(index));
+                            } else {
+                                assertSame(obj, ReceiverDataRegistry.get(index));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        if (failure.get() != null) throw failure.get();
+
+        assertEquals(threads * perThread, indices.size());
+        int before = ReceiverDataRegistry.size();
+        scope.close();
+        assertEquals(before - threads * perThread / 2, ReceiverDataRegistry.size());
+    }
+}
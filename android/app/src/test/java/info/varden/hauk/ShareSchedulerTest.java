@@ -0,0 +1,185 @@
+package info.varden.hauk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the share scheduler against a fake clock.
+ */
+public class ShareSchedulerTest {
+    private FakeHost host;
+    private ShareScheduler scheduler;
+    private List<String> log;
+
+    @Before
+    public void setUp() {
+        this.host = new FakeHost();
+        this.scheduler = new ShareScheduler(this.host);
+        this.log = new ArrayList<>();
+    }
+
+    /**
+     * A fake thread and clock. Posted tasks run when the clock is advanced past their time.
+     */
+    private static final class FakeHost implements ShareScheduler.Host {
+        private final Map<Runnable, Long> timers = new LinkedHashMap<>();
+        private long now = 100000L;
+        private int wakeups = 0;
+
+        @Override
+        public long now() {
+            return this.now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            this.timers.put(task, this.now + delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            this.timers.remove(task);
+        }
+
+        /**
+         * Advances the clock, running every timer that becomes due at the time it is due.
+         */
+        private void advance(long millis) {
+            long end = this.now + millis;
+            while (true) {
+                Runnable next = null;
+                long at = Long.MAX_VALUE;
+                for (Map.Entry<Runnable, Long> timer : this.timers.entrySet()) {
+                    if (timer.getValue() < at) {
+                        next = timer.getKey();
+                        at = timer.getValue();
+                    }
+                }
+                if (next == null || at > end) break;
+                this.now = Math.max(this.now, at);
+                this.timers.remove(next);
+                this.wakeups++;
+                next.run();
+            }
+            this.now = end;
+        }
+    }
+
+    private Runnable job(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name + "@" + (host.now - 100000L));
+            }
+        };
+    }
+
+    @Test
+    public void jobsDueTogether_runInOneTickInDeadlineOrder() {
+        this.scheduler.postDelayed(job("b"), 1020L);
+        this.scheduler.postDelayed(job("a"), 1000L);
+        this.scheduler.postDelayed(job("c"), 2000L);
+
+        // Only the earliest job is ever waiting on the host.
+        assertEquals(1, this.host.timers.size());
+        this.host.advance(3000L);
+
+        assertEquals(list("a@1000", "b@1000", "c@2000"), this.log);
+        assertEquals(2, this.host.wakeups);
+        assertEquals(0, this.scheduler.size());
+        assertTrue(this.host.timers.isEmpty());
+    }
+
+    @Test
+    public void postingAgain_replacesPendingRun() {
+        Runnable heartbeat = job("heartbeat");
+        this.scheduler.postDelayed(heartbeat, 1000L);
+        this.host.advance(500L);
+        this.scheduler.postDelayed(heartbeat, 1000L);
+        this.host.advance(2000L);
+
+        assertEquals(list("heartbeat@1500"), this.log);
+    }
+
+    @Test
+    public void repeatingJob_keepsPhaseAndSkipsMissedRuns() {
+        this.scheduler.repeat(job("notify"), 1000L, 1000L);
+        this.host.advance(3000L);
+        assertEquals(list("notify@1000", "notify@2000", "notify@3000"), this.log);
+
+        // The host was busy for 3.5 seconds, e.g. because the device slept; the missed runs are
+        // coalesced into one.
+        this.host.now += 3500L;
+        this.host.advance(0L);
+        this.host.advance(1000L);
+        assertEquals(list("notify@1000", "notify@2000", "notify@3000", "notify@6500", "notify@7000"), this.log);
+    }
+
+    @Test
+    public void uiJobs_pauseWhileHidden() {
+        this.scheduler.repeatUi(job("countdown"), 0L, 1000L);
+        this.scheduler.postDelayed(job("expiry"), 10000L);
+        this.host.advance(1500L);
+        assertEquals(list("countdown@0", "countdown@1000"), this.log);
+
+        // Nothing wakes the host for the UI while it is hidden.
+        this.scheduler.setUiVisible(false);
+        int wakeups = this.host.wakeups;
+        this.host.advance(5000L);
+        assertEquals(wakeups, this.host.wakeups);
+
+        // When the UI is shown again, the countdown is updated right away, and then again on its
+        // original schedule. Other jobs were not affected.
+        this.scheduler.setUiVisible(true);
+        this.host.advance(1000L);
+        assertEquals(list("countdown@0", "countdown@1000", "countdown@6500", "countdown@7000"), this.log);
+        this.host.advance(3000L);
+        assertTrue(this.log.contains("expiry@10000"));
+    }
+
+    @Test
+    public void jobCancelledByEarlierJobInSameTick_doesNotRun() {
+        final Runnable flush = job("flush");
+        this.scheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                log.add("stop");
+                scheduler.removeCallbacks(flush);
+            }
+        }, 1000L);
+        this.scheduler.postDelayed(flush, 1010L);
+        this.host.advance(2000L);
+
+        assertEquals(list("stop"), this.log);
+    }
+
+    @Test
+    public void shutdown_cancelsEverythingAndIgnoresLaterJobs() {
+        this.scheduler.repeat(job("notify"), 1000L, 1000L);
+        this.scheduler.repeatUi(job("countdown"), 0L, 1000L);
+        this.scheduler.postDelayed(job("retry"), 5000L);
+        this.scheduler.shutdown();
+
+        assertTrue(this.host.timers.isEmpty());
+        this.scheduler.postDelayed(job("late"), 0L);
+        this.host.advance(10000L);
+
+        assertTrue(this.log.isEmpty());
+        assertEquals(0, this.scheduler.size());
+        assertTrue(this.scheduler.isShutdown());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,135 @@
+package info.varden.hauk.metrics;
+
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the metrics registry and its latency histogram.
+ */
+public class MetricsTest {
+    @Test
+    public void histogram_bucketsCoverEveryValue() {
+        for (long value = 0L; value < 1L << 20; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.highestEquivalent(index) >= value);
+            if (index > 0) assertTrue(LatencyHistogram.highestEquivalent(index - 1) < value);
+        }
+        long large = (1L << 40) + 12345L;
+        assertTrue(LatencyHistogram.highestEquivalent(LatencyHistogram.indexOf(large)) >= large);
+    }
+
+    @Test
+    public void histogram_countsSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram(1000L);
+        for (long value = 1L; value <= 60L; value++) histogram.record(value);
+
+        assertEquals(60L, histogram.getCount());
+        assertEquals(30L, histogram.getValueAtPercentile(50D));
+        assertEquals(54L, histogram.getValueAtPercentile(90D));
+        assertEquals(60L, histogram.getValueAtPercentile(100D));
+        assertEquals(30L, histogram.getMean());
+    }
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram(1L << 32);
+        for (long value = 1L; value <= 100000L; value++) histogram.record(value * 10L);
+
+        assertEquals(500000D, histogram.getValueAtPercentile(50D), 500000D / 32D);
+        assertEquals(990000D, histogram.getValueAtPercentile(99D), 990000D / 32D);
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500005L, histogram.getMean());
+    }
+
+    @Test
+    public void histogram_clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram(1000L);
+        histogram.record(-5L);
+        histogram.record(1L << 40);
+
+        assertEquals(0L, histogram.getValueAtPercentile(50D));
+        assertEquals(1000L, histogram.getValueAtPercentile(100D));
+        assertEquals(1000L, histogram.getMax());
+        assertEquals(0L, new LatencyHistogram(1000L).getValueAtPercentile(50D));
+    }
+
+    @Test
+    public void concurrentRecording_losesNoUpdates() throws InterruptedException {
+        final Metrics metrics = new Metrics();
+        final int threads = 4;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        metrics.recordFix();
+                        metrics.recordUpload(2, 40L);
+                        metrics.recordDelivery(2, (i % 1000) * 1000000L);
+                        if (i % 10 == 0) metrics.recordFailure(Metrics.Failure.CONNECT);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(threads * perThread, snapshot.getFixes());
+        assertEquals(threads * perThread, snapshot.getUploads());
+        assertEquals(2L * threads * perThread, snapshot.getDelivered());
+        assertEquals(40L * threads * perThread, snapshot.getBytesSent());
+        assertEquals(threads * perThread / 10, snapshot.getFailures(Metrics.Failure.CONNECT));
+        assertEquals(threads * perThread, snapshot.getLatencyCount());
+        assertEquals(999000L, snapshot.getLatencyMax());
+    }
+
+    @Test
+    public void failures_areClassifiedByException() {
+        assertEquals(Metrics.Failure.TIMEOUT, Metrics.Failure.classify(new SocketTimeoutException()));
+        assertEquals(Metrics.Failure.CONNECT, Metrics.Failure.classify(new ConnectException()));
+        assertEquals(Metrics.Failure.TLS, Metrics.Failure.classify(new SSLHandshakeException("")));
+        assertEquals(Metrics.Failure.CANCELLED, Metrics.Failure.classify(new CancellationException()));
+        assertEquals(Metrics.Failure.OTHER, Metrics.Failure.classify(new IllegalStateException()));
+    }
+
+    @Test
+    public void snapshot_exportsJson() {
+        Metrics metrics = new Metrics();
+        metrics.setQueueDepth(new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return 7L;
+            }
+        });
+        metrics.recordUpload(3, 120L);
+        metrics.recordRetry();
+        metrics.recordFailure(Metrics.Failure.HTTP);
+        metrics.recordDelivery(3, 2500000L);
+
+        String json = metrics.snapshot().toJson();
+        assertTrue(json, json.startsWith("{\"started_at\":"));
+        assertTrue(json, json.contains(",\"fixes\":0,"));
+        assertTrue(json, json.contains(",\"last_fix_age_ms\":-1,"));
+        assertTrue(json, json.contains(",\"uploads\":1,\"points\":3,\"bytes_sent\":120,\"delivered\":3,\"retries\":1,\"queue_depth\":7,"));
+        assertTrue(json, json.contains("\"failures\":{\"timeout\":0,\"connect\":0,\"tls\":0,\"http\":1,\"rejected\":0,\"cancelled\":0,\"other\":0}"));
+        assertTrue(json, json.endsWith("\"upload_latency_us\":{\"count\":1,\"mean\":2500,\"p50\":2500,\"p90\":2500,\"p99\":2500,\"max\":2500}}"));
+    }
+}
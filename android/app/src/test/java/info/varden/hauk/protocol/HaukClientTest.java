@@ -0,0 +1,89 @@
+package info.varden.hauk.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.service.LocationBatch;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the create, post and stop requests of the plain-Java backend client.
+ */
+public class HaukClientTest {
+    private MockWebServer server;
+    private HaukClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new HaukClient(server.url("/hauk").toString(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void create_readsSessionAndCapabilities() throws Exception {
+        server.enqueue(new MockResponse().setBody("OK\nabc123\nhttps://example.com/?abc123\nbinary delta\n"));
+
+        Session session = client.create("hunter2", 3600, 5);
+
+        assertEquals("abc123", session.getId());
+        assertEquals("https://example.com/?abc123", session.getViewUrl());
+        assertTrue(session.supports("delta"));
+        assertFalse(session.supports("stream"));
+        assertEquals(LocationBatch.Format.DELTA, session.getFormat());
+
+        RecordedRequest req = server.takeRequest();
+        assertEquals("/hauk/api/create.php", req.getPath());
+        String body = req.getBody().readUtf8();
+        assertTrue(body.contains("pwd=hunter2"));
+        assertTrue(body.contains("dur=3600"));
+        assertTrue(body.contains("int=5"));
+    }
+
+    @Test
+    public void create_olderBackendWithoutCapabilities_usesForms() throws Exception {
+        server.enqueue(new MockResponse().setBody("OK\nabc123\nhttps://example.com/?abc123\n"));
+
+        Session session = client.create("", 60, 1);
+
+        assertEquals("", session.getCapabilities());
+        assertFalse(session.supports("binary"));
+        assertEquals(LocationBatch.Format.FORM, session.getFormat());
+    }
+
+    @Test(expected = HaukClient.RejectedException.class)
+    public void create_wrongPassword_isRejected() throws Exception {
+        server.enqueue(new MockResponse().setBody("Incorrect password!\n"));
+        client.create("wrong", 60, 1);
+    }
+
+    @Test
+    public void postAndStop_sendSessionToBackend() throws Exception {
+        server.enqueue(new MockResponse().setBody("OK\n"));
+        server.enqueue(new MockResponse().setBody("Session expired!\n"));
+
+        LocationBatch batch = new LocationBatch("abc123", 2, LocationBatch.Format.FORM);
+        batch.add(59.9D, 10.7D, 1000D, 5F, Float.NaN);
+        HTTPThread.Response resp = client.post(batch);
+        assertTrue(resp.isOK());
+        assertEquals("/hauk/api/post.php", server.takeRequest().getPath());
+
+        resp = client.stop("abc123");
+        assertNull(resp.getException());
+        assertFalse(resp.isOK());
+        RecordedRequest req = server.takeRequest();
+        assertEquals("/hauk/api/stop.php", req.getPath());
+        assertEquals("sid=abc123", req.getBody().readUtf8());
+    }
+}
@@ -0,0 +1,223 @@
+package info.varden.hauk.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.server.Config;
+import info.varden.hauk.server.HaukServer;
+import info.varden.hauk.service.LocationBatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the app's backend client against the JVM backend, in each of the upload formats.
+ */
+public class HaukServerTest {
+    private HaukServer server;
+    private HaukClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new HaukServer(new Config()
+                .setPassword("hunter2")
+                .setPublicUrl("https://example.com/")
+                .setAddress("127.0.0.1", 0)
+                .setThreads(2)
+                .setMaxCachedPoints(4));
+        server.start();
+        client = new HaukClient(server.getBaseUrl(), false);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void create_announcesAllUploadFormats() throws Exception {
+        Session session = client.create("hunter2", 600, 1);
+
+        assertEquals(64, session.getId().length());
+        assertTrue(session.getViewUrl().matches("https://example\\.com/\\?[0-9A-Z]{4}-[0-9A-Z]{4}"));
+        assertEquals(LocationBatch.Format.DELTA, session.getFormat());
+    }
+
+    @Test(expected = HaukClient.RejectedException.class)
+    public void create_wrongPassword_isRejected() throws Exception {
+        client.create("wrong", 600, 1);
+    }
+
+    @Test
+    public void postedPoints_areFetchedInOrder() throws Exception {
+        for (LocationBatch.Format format : LocationBatch.Format.values()) {
+            Session session = client.create("hunter2", 600, 1);
+            LocationBatch batch = new LocationBatch(session.getId(), 3, format);
+            batch.add(52.52D, 13.405D, 1567602256D, 4.5F, Float.NaN);
+            batch.add(52.53D, 13.406D, 1567602257D, Float.NaN, 1.25F);
+            assertTrue(format.name(), client.post(batch).isOK());
+
+            String json = fetch(link(session));
+            assertTrue(format.name() + ": " + json, json.startsWith("{\"i\":1,\"x\":"));
+            assertTrue(format.name() + ": " + json, json.endsWith(",\"l\":[[52.52,13.405,1567602256,4.5,null],[52.53,13.406,1567602257,null,1.25]],\"s\":2,\"e\":1}"));
+        }
+    }
+
+    @Test
+    public void viewer_fetchesOnlyNewPoints() throws Exception {
+        Session session = client.create("hunter2", 600, 1);
+        SharedTrail trail = new SharedTrail(link(session), 100);
+        LocationBatch batch = new LocationBatch(session.getId(), 3, LocationBatch.Format.BINARY);
+        for (int i = 0; i < 3; i++) batch.add(52.52D, 13.405D, 1567602256D + i, Float.NaN, Float.NaN);
+        assertTrue(client.post(batch).isOK());
+
+        assertEquals(3, client.fetch(trail));
+        assertEquals(3L, trail.getCursor());
+        assertEquals(0, client.fetch(trail));
+        assertEquals("{\"i\":1,\"x\":" + trail.getExpire() + ",\"l\":[],\"s\":3,\"e\":1}", fetch(link(session) + "&since=3"));
+
+        batch.reset();
+        batch.add(52.53D, 13.406D, 1567602300D, 5F, 2F);
+        assertTrue(client.post(batch).isOK());
+        assertEquals(1, client.fetch(trail));
+        assertEquals(4, trail.size());
+        assertEquals(1567602300D, trail.getTime(3), 0D);
+        assertEquals(2D, trail.getSpeed(3), 0D);
+    }
+
+    @Test(expected = HaukClient.RejectedException.class)
+    public void viewer_unknownLink_isRejected() throws Exception {
+        client.fetch(new SharedTrail("ABCD-1234", 100));
+    }
+
+    @Test
+    public void viewer_receivesPushedPoints() throws Exception {
+        Session session = client.create("hunter2", 600, 1);
+        LocationBatch batch = new LocationBatch(session.getId(), 2, LocationBatch.Format.DELTA);
+        batch.add(52.52D, 13.405D, 1567602256D, Float.NaN, Float.NaN);
+        assertTrue(client.post(batch).isOK());
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(server.getBaseUrl() + "api/events.php?id=" + link(session) + "&since=0").openConnection();
+        assertEquals("text/event-stream", conn.getContentType());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+        assertEquals("id: 1", reader.readLine());
+        assertTrue(reader.readLine().endsWith(",\"l\":[[52.52,13.405,1567602256,null,null]],\"s\":1}"));
+        assertEquals("", reader.readLine());
+
+        // Only the new points are pushed, once they are posted.
+        batch.reset();
+        batch.add(52.53D, 13.406D, 1567602257D, Float.NaN, Float.NaN);
+        batch.add(52.54D, 13.407D, 1567602258D, Float.NaN, Float.NaN);
+        assertTrue(client.post(batch).isOK());
+        assertEquals("id: 3", reader.readLine());
+        assertTrue(reader.readLine().endsWith(",\"l\":[[52.53,13.406,1567602257,null,null],[52.54,13.407,1567602258,null,null]],\"s\":3}"));
+        assertEquals("", reader.readLine());
+        assertEquals(1, server.getDispatcher().getSubscribers());
+
+        // The stream ends when the share is stopped.
+        assertTrue(client.stop(session.getId()).isOK());
+        assertEquals("event: end", reader.readLine());
+        assertEquals("data: ", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+        assertEquals(1L, server.getDispatcher().getPublished());
+    }
+
+    @Test
+    public void fetch_isEncodedOncePerPost() throws Exception {
+        Session session = client.create("hunter2", 600, 1);
+        LocationBatch batch = new LocationBatch(session.getId(), 1, LocationBatch.Format.FORM);
+        batch.add(52.52D, 13.405D, 1567602256D, Float.NaN, Float.NaN);
+        assertTrue(client.post(batch).isOK());
+
+        // Viewers fetching the whole trail, and up-to-date viewers, each share one encoding.
+        String full = fetch(link(session));
+        for (int i = 0; i < 4; i++) assertEquals(full, fetch(link(session)));
+        for (int i = 0; i < 3; i++) fetch(link(session) + "&since=1");
+        assertEquals(2L, server.getCacheMisses());
+        assertEquals(6L, server.getCacheHits());
+
+        batch.reset();
+        batch.add(52.53D, 13.406D, 1567602257D, Float.NaN, Float.NaN);
+        assertTrue(client.post(batch).isOK());
+        assertTrue(fetch(link(session)).endsWith(",\"l\":[[52.52,13.405,1567602256,null,null],[52.53,13.406,1567602257,null,null]],\"s\":2,\"e\":1}"));
+        assertEquals(3L, server.getCacheMisses());
+    }
+
+    @Test
+    public void largeFetch_isCompressedForViewersAcceptingGzip() throws Exception {
+        // Four points are too few to be worth compressing.
+        Session session = client.create("hunter2", 600, 1);
+        LocationBatch batch = new LocationBatch(session.getId(), 4, LocationBatch.Format.BINARY);
+        for (int i = 0; i < 4; i++) batch.add(52.52D + i / 1000D, 13.405D, 1567602256D + i, 4.5F, 1.25F);
+        assertTrue(client.post(batch).isOK());
+        assertNull(gzipFetch(link(session)).getContentEncoding());
+
+        server.stop();
+        server = new HaukServer(new Config()
+                .setPassword("hunter2")
+                .setPublicUrl("https://example.com/")
+                .setAddress("127.0.0.1", 0)
+                .setThreads(2)
+                .setMaxCachedPoints(20));
+        server.start();
+        client = new HaukClient(server.getBaseUrl(), false);
+        session = client.create("hunter2", 600, 1);
+        batch = new LocationBatch(session.getId(), 20, LocationBatch.Format.BINARY);
+        for (int i = 0; i < 20; i++) batch.add(52.52D + i / 1000D, 13.405D, 1567602256D + i, 4.5F, 1.25F);
+        assertTrue(client.post(batch).isOK());
+
+        String plain = fetch(link(session));
+        HttpURLConnection conn = gzipFetch(link(session));
+        assertEquals("gzip", conn.getContentEncoding());
+        assertTrue(conn.getContentLength() < plain.length() / 2);
+        assertEquals(plain, read(new GZIPInputStream(conn.getInputStream())));
+    }
+
+    @Test
+    public void stoppedSession_isExpired() throws Exception {
+        Session session = client.create("hunter2", 600, 1);
+        assertTrue(client.stop(session.getId()).isOK());
+
+        LocationBatch batch = new LocationBatch(session.getId(), 1, LocationBatch.Format.FORM);
+        batch.add(52.52D, 13.405D, 1567602256D, Float.NaN, Float.NaN);
+        HTTPThread.Response resp = client.post(batch);
+        assertNull(resp.getException());
+        assertFalse(resp.isOK());
+        assertEquals("Invalid session!\n", fetch(link(session)));
+    }
+
+    private static String link(Session session) {
+        return session.getViewUrl().substring(session.getViewUrl().indexOf('?') + 1);
+    }
+
+    private String fetch(String link) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(server.getBaseUrl() + "api/fetch.php?id=" + link).openConnection();
+        return read(conn.getInputStream());
+    }
+
+    private HttpURLConnection gzipFetch(String link) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(server.getBaseUrl() + "api/fetch.php?id=" + link).openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        return conn;
+    }
+
+    private static String read(InputStream is) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = is.read(buf)) > 0) out.write(buf, 0, read);
+        is.close();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,66 @@
+package info.varden.hauk.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how a viewer's trail applies full and incremental api/fetch.php responses.
+ */
+public class SharedTrailTest {
+    @Test
+    public void fullResponse_setsCursorAndMetadata() {
+        SharedTrail trail = new SharedTrail("ABCD-1234", 10);
+        assertEquals(-1L, trail.getCursor());
+
+        int added = trail.update("{\"i\":5.0,\"x\":1567688656,\"s\":7,\"l\":[[52.52,13.405,1567602256.5,4.5,null],[52.53,13.406,1567602261,null,1.25]]}");
+
+        assertEquals(2, added);
+        assertEquals(7L, trail.getCursor());
+        assertEquals(5D, trail.getInterval(), 0D);
+        assertEquals(1567688656L, trail.getExpire());
+        assertEquals(52.52D, trail.getLatitude(0), 0D);
+        assertEquals(1567602256.5D, trail.getTime(0), 0D);
+        assertTrue(Double.isNaN(trail.getSpeed(0)));
+        assertTrue(Double.isNaN(trail.getAccuracy(1)));
+    }
+
+    @Test
+    public void incrementalResponses_appendAndKeepMostRecentPoints() {
+        SharedTrail trail = new SharedTrail("ABCD-1234", 3);
+        trail.update("{\"i\":1,\"x\":100,\"s\":2,\"l\":[[1,1,1,null,null],[2,2,2,null,null]]}");
+        assertEquals(0, trail.update("{\"i\":1,\"x\":100,\"l\":[],\"s\":2}"));
+        assertEquals(2, trail.update("{\"i\":1,\"x\":3700,\"l\":[[3,3,3,null,null],[4,4,4,null,null]],\"s\":4}"));
+
+        assertEquals(4L, trail.getCursor());
+        assertEquals(3700L, trail.getExpire());
+        assertEquals(3, trail.size());
+        assertEquals(2D, trail.getTime(0), 0D);
+        assertEquals(4D, trail.getTime(2), 0D);
+    }
+
+    @Test
+    public void olderBackend_resendingWholeTrail_onlyAddsNewerPoints() {
+        SharedTrail trail = new SharedTrail("ABCD-1234", 10);
+        trail.update("{\"i\":1,\"x\":100,\"l\":[[1,1,1,null,null],[2,2,2,null,null]]}");
+        assertEquals(-1L, trail.getCursor());
+
+        assertEquals(1, trail.update("{\"i\":1,\"x\":100,\"l\":[[2,2,2,null,null],[3,3,3,null,null]]}"));
+        assertEquals(3, trail.size());
+    }
+
+    @Test
+    public void restartedBackend_startsCursorOver() {
+        SharedTrail trail = new SharedTrail("ABCD-1234", 10);
+        trail.update("{\"i\":1,\"x\":100,\"s\":50,\"l\":[[1,1,1,null,null]]}");
+        trail.update("{\"i\":1,\"x\":100,\"s\":1,\"l\":[[1,1,1,null,null]],\"extra\":{\"a\":[true,\"b\"]}}");
+        assertEquals(1L, trail.getCursor());
+        assertEquals(1, trail.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidResponse_isRejected() {
+        new SharedTrail("ABCD-1234", 10).update("{\"i\":1,\"l\":[[1,2]]}");
+    }
+}
@@ -0,0 +1,108 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the adaptive sampling policy.
+ */
+public class AdaptiveSamplingPolicyTest {
+    private static final long INTERVAL = 1000L;
+    private static final long HEARTBEAT = 30000L;
+    private static final long START = 1567602256000L;
+
+    // Roughly one meter in degrees of latitude.
+    private static final double METER = 1D / 111195D;
+
+    @Test
+    public void heartbeat_scalesWithInterval() {
+        assertEquals(10000L, new AdaptiveSamplingPolicy(1000L).getHeartbeat());
+        assertEquals(50000L, new AdaptiveSamplingPolicy(5000L).getHeartbeat());
+        assertEquals(300000L, new AdaptiveSamplingPolicy(60000L).getHeartbeat());
+        // The heartbeat is never shorter than the interval.
+        assertEquals(600000L, new AdaptiveSamplingPolicy(600000L).getHeartbeat());
+    }
+
+    @Test
+    public void parkedDevice_slowsDownAndOnlySendsHeartbeats() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        int sent = 0;
+        long time = START;
+        // Ten minutes of fixes jittering within a few meters, delivered at whatever interval the
+        // policy currently requests.
+        for (int i = 0; time < START + 600000L; i++) {
+            double jitter = ((i * 7) % 5 - 2) * METER;
+            if (policy.accept(59.9139 + jitter, 10.7522 - jitter, time, 8F, 0F, Float.NaN)) sent++;
+            time += policy.getInterval();
+        }
+
+        assertEquals(HEARTBEAT, policy.getInterval());
+        assertTrue(policy.getMinDistance() > 0F);
+        // The first fix, plus one heartbeat per heartbeat interval.
+        assertTrue("sent " + sent, sent <= 600000L / HEARTBEAT + 2);
+        assertTrue("sent " + sent, sent >= 600000L / HEARTBEAT);
+    }
+
+    @Test
+    public void heartbeat_isSentAtLeastOncePerHeartbeatInterval() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        long lastSent = START;
+        for (long time = START; time < START + 600000L; time += INTERVAL) {
+            if (policy.accept(59.9139, 10.7522, time, 5F, 0F, Float.NaN)) lastSent = time;
+            assertTrue(time - lastSent < HEARTBEAT);
+        }
+    }
+
+    @Test
+    public void fixWithinAccuracyRadius_isSuppressed() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        assertTrue(policy.accept(59.9139, 10.7522, START, 20F, Float.NaN, Float.NaN));
+        assertFalse(policy.accept(59.9139 + 15 * METER, 10.7522, START + 1000L, 20F, Float.NaN, Float.NaN));
+        assertTrue(policy.accept(59.9139 + 30 * METER, 10.7522, START + 2000L, 20F, Float.NaN, Float.NaN));
+    }
+
+    @Test
+    public void motorway_usesFullRateAndSendsEveryFix() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        for (int i = 0; i < 300; i++) {
+            assertTrue(policy.accept(59.9139 + i * 30 * METER, 10.7522, START + i * INTERVAL, 5F, 30F, 0F));
+            assertEquals(INTERVAL, policy.getInterval());
+            assertEquals(0F, policy.getMinDistance(), 0F);
+        }
+    }
+
+    @Test
+    public void walking_halvesRateUntilTurning() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        long time = START;
+        for (int i = 0; i < 10; i++, time += 2 * INTERVAL) {
+            policy.accept(59.9139 + i * 3 * METER, 10.7522, time, 2F, 1.4F, 0F);
+        }
+        assertEquals(2 * INTERVAL, policy.getInterval());
+
+        // A sharp turn restores the full rate and is always sent.
+        assertTrue(policy.accept(59.9139 + 27 * METER, 10.7522 + METER, time, 5F, 1.4F, 90F));
+        assertEquals(INTERVAL, policy.getInterval());
+    }
+
+    @Test
+    public void movingAgain_restoresFullRate() {
+        AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy(INTERVAL, HEARTBEAT);
+        long time = START;
+        for (int i = 0; i < 5; i++, time += policy.getInterval()) policy.accept(59.9139, 10.7522, time, 5F, 0F, Float.NaN);
+        assertEquals(HEARTBEAT, policy.getInterval());
+
+        assertTrue(policy.accept(59.9139 + 100 * METER, 10.7522, time, 5F, 10F, 0F));
+        assertEquals(INTERVAL, policy.getInterval());
+        assertEquals(0F, policy.getMinDistance(), 0F);
+    }
+
+    @Test
+    public void distance_matchesKnownValue() {
+        // Oslo to Bergen is about 305 km as the crow flies.
+        assertEquals(305000D, AdaptiveSamplingPolicy.distance(59.9139, 10.7522, 60.3913, 5.3221), 2000D);
+    }
+}
@@ -0,0 +1,96 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the binary location format.
+ */
+public class BinaryLocationCodecTest {
+    private static final String SESSION = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private static LocationBatch track(int count, LocationBatch.Format format) {
+        LocationBatch batch = new LocationBatch(SESSION, count, format);
+        for (int i = 0; i < count; i++) {
+            batch.add(59.9139 + i * 1E-4, 10.7522 - i * 1E-4, 1567602256.994 + i, 4.5F + i, 1.25F * i);
+        }
+        return batch;
+    }
+
+    private static LocationBatch roundTrip(LocationBatch batch) {
+        byte[] buf = new byte[batch.getEncodedSize()];
+        assertEquals(buf.length, BinaryLocationCodec.encode(batch, buf, 0));
+        return BinaryLocationCodec.decode(buf, 0, buf.length);
+    }
+
+    @Test
+    public void roundTrip_preservesPoints() {
+        LocationBatch in = track(50, LocationBatch.Format.BINARY);
+        LocationBatch out = roundTrip(in);
+
+        assertEquals(SESSION, out.getSession());
+        assertEquals(in.size(), out.size());
+        for (int i = 0; i < in.size(); i++) {
+            assertEquals(in.getLatitude(i), out.getLatitude(i), 1E-7);
+            assertEquals(in.getLongitude(i), out.getLongitude(i), 1E-7);
+            assertEquals(in.getTime(i), out.getTime(i), 1E-3);
+            assertEquals(in.getAccuracy(i), out.getAccuracy(i), 0.05F);
+            assertEquals(in.getSpeed(i), out.getSpeed(i), 0.005F);
+        }
+    }
+
+    @Test
+    public void roundTrip_handlesUnknownAndExtremeValues() {
+        LocationBatch in = new LocationBatch(SESSION, 3, LocationBatch.Format.BINARY);
+        in.add(-90D, -180D, 0D, Float.NaN, Float.NaN);
+        in.add(90D, 180D, 4102444800D, 1E6F, 1E6F);
+        in.add(0D, 0D, 1567602256.994, -1F, 0F);
+        LocationBatch out = roundTrip(in);
+
+        assertEquals(-90D, out.getLatitude(0), 1E-7);
+        assertEquals(-180D, out.getLongitude(0), 1E-7);
+        assertTrue(Float.isNaN(out.getAccuracy(0)));
+        assertTrue(Float.isNaN(out.getSpeed(0)));
+        assertEquals(90D, out.getLatitude(1), 1E-7);
+        assertEquals(180D, out.getLongitude(1), 1E-7);
+        assertEquals(4102444800D, out.getTime(1), 1E-3);
+        // Values that are too large saturate rather than wrapping around or becoming unknown.
+        assertEquals(0xFFFE / 10F, out.getAccuracy(1), 0F);
+        assertEquals(0xFFFE / 100F, out.getSpeed(1), 0F);
+        assertEquals(0F, out.getAccuracy(2), 0F);
+    }
+
+    @Test
+    public void encode_writesAtOffset() {
+        LocationBatch in = track(3, LocationBatch.Format.BINARY);
+        byte[] buf = new byte[in.getEncodedSize() + 10];
+        int len = BinaryLocationCodec.encode(in, buf, 7);
+        assertEquals(in.getEncodedSize(), len);
+        assertEquals(3, BinaryLocationCodec.decode(buf, 7, len).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsTruncatedBody() {
+        LocationBatch in = track(2, LocationBatch.Format.BINARY);
+        byte[] buf = new byte[in.getEncodedSize()];
+        BinaryLocationCodec.encode(in, buf, 0);
+        BinaryLocationCodec.decode(buf, 0, buf.length - 1);
+    }
+
+    @Test
+    public void binaryBody_isSmallerThanFormBody() {
+        for (int count : new int[] {1, 10, 100}) {
+            int form = track(count, LocationBatch.Format.FORM).encode().length();
+            int binary = track(count, LocationBatch.Format.BINARY).getEncodedSize();
+            assertTrue(binary < form);
+        }
+    }
+
+    @Test
+    public void formEncoding_isIndependentOfBatchFormat() {
+        assertEquals(track(5, LocationBatch.Format.FORM).encode(), track(5, LocationBatch.Format.BINARY).encode());
+        assertEquals(track(1, LocationBatch.Format.FORM).encode(), track(1, LocationBatch.Format.BINARY).encode());
+    }
+}
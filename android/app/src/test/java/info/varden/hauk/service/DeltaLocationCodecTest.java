@@ -0,0 +1,142 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the delta location format.
+ */
+public class DeltaLocationCodecTest {
+    private static final String SESSION = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    // A walk northeast at about 1.4 m/s with jittery accuracy, sampled once per second.
+    private static double lat(int i) {
+        return 59.9139 + i * 9E-6 + ((i * 7919) % 13 - 6) * 1E-7;
+    }
+
+    private static double lon(int i) {
+        return 10.7522 + i * 1.6E-5 - ((i * 104729) % 11 - 5) * 1E-7;
+    }
+
+    private static double time(int i) {
+        return 1567602256.994 + i + (i % 3) * 0.001;
+    }
+
+    private static float acc(int i) {
+        return 3F + (i % 5);
+    }
+
+    private static float spd(int i) {
+        return i % 10 == 0 ? Float.NaN : 1.4F;
+    }
+
+    private static LocationBatch track(int from, int count, LocationBatch.Format format) {
+        LocationBatch batch = new LocationBatch(SESSION, count, format);
+        for (int i = from; i < from + count; i++) batch.add(lat(i), lon(i), time(i), acc(i), spd(i));
+        return batch;
+    }
+
+    private static byte[] body(LocationBatch batch) {
+        try {
+            return batch.toRequest("http://localhost/api/post.php").getBodyBytes();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static LocationBatch roundTrip(LocationBatch batch) {
+        byte[] body = body(batch);
+        assertEquals(batch.getEncodedSize(), body.length);
+        return DeltaLocationCodec.decode(body, 0, body.length);
+    }
+
+    private static void assertSamePoints(LocationBatch expected, LocationBatch actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getLatitude(i), actual.getLatitude(i), 1E-7);
+            assertEquals(expected.getLongitude(i), actual.getLongitude(i), 1E-7);
+            assertEquals(expected.getTime(i), actual.getTime(i), 1E-3);
+            if (Float.isNaN(expected.getAccuracy(i))) assertTrue(Float.isNaN(actual.getAccuracy(i)));
+            else assertEquals(expected.getAccuracy(i), actual.getAccuracy(i), 0.05F);
+            if (Float.isNaN(expected.getSpeed(i))) assertTrue(Float.isNaN(actual.getSpeed(i)));
+            else assertEquals(expected.getSpeed(i), actual.getSpeed(i), 0.005F);
+        }
+    }
+
+    @Test
+    public void roundTrip_preservesPoints() {
+        LocationBatch in = track(0, 100, LocationBatch.Format.DELTA);
+        LocationBatch out = roundTrip(in);
+        assertEquals(SESSION, out.getSession());
+        assertSamePoints(in, out);
+    }
+
+    @Test
+    public void roundTrip_handlesSignChangesAndLargeJumps() {
+        LocationBatch in = new LocationBatch(SESSION, 4, LocationBatch.Format.DELTA);
+        in.add(-89.9999999, -179.9999999, 0D, 0F, Float.NaN);
+        in.add(89.9999999, 179.9999999, 4102444800D, 1E6F, 0F);
+        in.add(0.0000001, -0.0000001, 1D, Float.NaN, 300F);
+        in.add(0.0000001, -0.0000001, 1D, 2.5F, 0.01F);
+        assertSamePoints(in, roundTrip(in));
+    }
+
+    @Test
+    public void encoder_resetStartsNewBody() {
+        DeltaLocationCodec.Encoder enc = new DeltaLocationCodec.Encoder(SESSION, 1);
+        for (int i = 0; i < 100; i++) enc.add(lat(i), lon(i), time(i), acc(i), spd(i));
+        enc.reset();
+        enc.add(lat(100), lon(100), time(100), acc(100), spd(100));
+
+        byte[] body = enc.toByteArray();
+        assertSamePoints(track(100, 1, LocationBatch.Format.FORM), DeltaLocationCodec.decode(body, 0, body.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsTruncatedBody() {
+        byte[] body = body(track(0, 10, LocationBatch.Format.DELTA));
+        DeltaLocationCodec.decode(body, 0, body.length - 1);
+    }
+
+    @Test
+    public void deltaBody_isSmallerThanBinaryBody() {
+        for (int count : new int[] {10, 100, 500}) {
+            int binary = track(0, count, LocationBatch.Format.BINARY).getEncodedSize();
+            int delta = track(0, count, LocationBatch.Format.DELTA).getEncodedSize();
+            assertTrue(delta < binary);
+        }
+    }
+
+    @Test
+    public void longShare_isStreamedInIndependentBatches() {
+        // A 12 hour share at a 1 second interval, flushed once per minute.
+        final int total = 12 * 3600;
+        final List<LocationBatch> decoded = new ArrayList<>();
+        final long[] bytes = new long[1];
+        LocationBatcher batcher = new LocationBatcher(SESSION, LocationBatch.Format.DELTA, new BatchPolicy(60, 60000L, 8192), new LocationBatcher.Flusher() {
+            @Override
+            public void flush(LocationBatch batch) {
+                byte[] body = body(batch);
+                bytes[0] += body.length;
+                decoded.add(DeltaLocationCodec.decode(body, 0, body.length));
+            }
+        });
+        for (int i = 0; i < total; i++) {
+            batcher.add(lat(i), lon(i), time(i), acc(i), spd(i));
+            assertTrue(batcher.size() < 60);
+        }
+        batcher.flush();
+
+        assertEquals(total / 60, decoded.size());
+        for (int b = 0; b < decoded.size(); b++) assertSamePoints(track(b * 60, 60, LocationBatch.Format.FORM), decoded.get(b));
+        // Each batch starts from an absolute point, but the trail as a whole stays smaller than
+        // it would be in the binary format.
+        assertTrue(bytes[0] < (long) decoded.size() * track(0, 60, LocationBatch.Format.BINARY).getEncodedSize());
+    }
+}
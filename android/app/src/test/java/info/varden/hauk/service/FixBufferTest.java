@@ -0,0 +1,62 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the buffer that holds location updates received before the session was created.
+ */
+public class FixBufferTest {
+    private static List<LocationBatch> drain(FixBuffer buffer, int batchSize) {
+        final List<LocationBatch> batches = new ArrayList<>();
+        LocationBatcher batcher = new LocationBatcher("session", LocationBatch.Format.FORM, new BatchPolicy(batchSize, 60000L, BatchPolicy.DEFAULT_MAX_BYTES), new LocationBatcher.Flusher() {
+            @Override
+            public void flush(LocationBatch batch) {
+                batches.add(batch);
+            }
+        });
+        buffer.drainTo(batcher);
+        batcher.flush();
+        return batches;
+    }
+
+    @Test
+    public void drain_sendsAllUpdatesInOneBatch() {
+        FixBuffer buffer = new FixBuffer(8);
+        for (int i = 0; i < 5; i++) buffer.add(59.9, 10.7, 1000D + i, 5F, Float.NaN);
+        assertEquals(5, buffer.size());
+
+        List<LocationBatch> batches = drain(buffer, 50);
+        assertEquals(1, batches.size());
+        assertEquals(5, batches.get(0).size());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void fullBuffer_dropsOldestUpdates() {
+        FixBuffer buffer = new FixBuffer(4);
+        for (int i = 0; i < 10; i++) buffer.add(59.9, 10.7, 1000D + i, 5F, Float.NaN);
+        assertEquals(4, buffer.size());
+        assertEquals(6L, buffer.getDropped());
+
+        LocationBatch batch = drain(buffer, 50).get(0);
+        assertEquals(4, batch.size());
+        assertTrue(batch.encode().contains("&time%5B%5D=1006.0&"));
+    }
+
+    @Test
+    public void startupTrace_recordsEachStageOnce() {
+        StartupTrace trace = new StartupTrace(0L);
+        assertEquals(-1L, trace.getElapsed(StartupTrace.Stage.FIRST_FIX));
+        assertTrue(trace.mark(StartupTrace.Stage.FIRST_FIX, 1500000000L));
+        assertFalse(trace.mark(StartupTrace.Stage.FIRST_FIX, 2500000000L));
+        assertEquals(1500L, trace.getElapsed(StartupTrace.Stage.FIRST_FIX));
+        assertEquals("Startup: location_requested=- first_fix=1500ms session_created=- first_upload=- delivered=-", trace.toString());
+    }
+}
@@ -0,0 +1,271 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the location source against a fake set of location providers.
+ */
+public class LocationSourceTest {
+    private static final String GPS = LocationManager.GPS_PROVIDER;
+    private static final String NETWORK = LocationManager.NETWORK_PROVIDER;
+    private static final String PASSIVE = LocationManager.PASSIVE_PROVIDER;
+
+    /**
+     * A fake platform with a manual clock and a timer queue.
+     */
+    private static final class FakePlatform implements LocationSource.Platform {
+        private final Set<String> enabled = new HashSet<>();
+        private final Map<String, LocationListener> listeners = new HashMap<>();
+        private final Map<String, Location> lastKnown = new HashMap<>();
+        private final Map<Runnable, Long> timers = new HashMap<>();
+        private long now = 1567602256000L;
+
+        @Override
+        public boolean isEnabled(String provider) {
+            return this.enabled.contains(provider);
+        }
+
+        @Override
+        public void request(String provider, long interval, float minDistance, LocationListener listener) {
+            this.listeners.put(provider, listener);
+        }
+
+        @Override
+        public void remove(LocationListener listener) {
+            this.listeners.values().remove(listener);
+        }
+
+        @Override
+        public Location getLastKnown(String provider) {
+            return this.lastKnown.get(provider);
+        }
+
+        @Override
+        public long now() {
+            return this.now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            this.timers.put(task, this.now + delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            this.timers.remove(task);
+        }
+
+        private boolean isRequested(String provider) {
+            return this.listeners.containsKey(provider);
+        }
+
+        /**
+         * Advances the clock, running any timers that expire.
+         */
+        private void advance(long millis) {
+            this.now += millis;
+            for (Map.Entry<Runnable, Long> timer : new ArrayList<>(this.timers.entrySet())) {
+                if (timer.getValue() <= this.now && this.timers.remove(timer.getKey()) != null) timer.getKey().run();
+            }
+        }
+
+        /**
+         * Delivers a fix from a provider, if it is requested.
+         */
+        private void fix(String provider, float accuracy) {
+            LocationListener listener = this.listeners.get(provider);
+            if (listener != null) listener.onLocationChanged(location(provider, accuracy, this.now));
+        }
+    }
+
+    private static Location location(String provider, float accuracy, long time) {
+        Location loc = new Location(provider);
+        loc.setLatitude(59.9139);
+        loc.setLongitude(10.7522);
+        loc.setAccuracy(accuracy);
+        loc.setTime(time);
+        return loc;
+    }
+
+    private FakePlatform platform;
+    private List<Location> received;
+    private LocationSource source;
+
+    @Before
+    public void setUp() {
+        this.platform = new FakePlatform();
+        this.platform.enabled.add(GPS);
+        this.platform.enabled.add(NETWORK);
+        this.platform.enabled.add(PASSIVE);
+        this.received = new ArrayList<>();
+        this.source = new LocationSource(this.platform, new LocationSource.Callback() {
+            @Override
+            public void onLocation(Location location) {
+                received.add(location);
+            }
+        });
+    }
+
+    @Test
+    public void start_requestsAllProviders() {
+        this.source.start(1000L, 0F);
+        assertEquals(LocationSource.Mode.ACQUIRING, this.source.getMode());
+        assertTrue(this.platform.isRequested(GPS));
+        assertTrue(this.platform.isRequested(NETWORK));
+        assertTrue(this.platform.isRequested(PASSIVE));
+    }
+
+    @Test
+    public void coarseFix_isDeliveredBeforeGps() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(2000L);
+        this.platform.fix(NETWORK, 800F);
+        assertEquals(1, this.received.size());
+        assertEquals(2000L, this.source.getStats().getTimeToFirstFix());
+        assertEquals(-1L, this.source.getStats().getTimeToFirstAccurateFix());
+
+        this.platform.advance(10000L);
+        this.platform.fix(GPS, 5F);
+        assertEquals(12000L, this.source.getStats().getTimeToFirstAccurateFix());
+        assertEquals(LocationSource.Mode.GPS, this.source.getMode());
+        assertFalse(this.platform.isRequested(NETWORK));
+        assertTrue(this.platform.isRequested(PASSIVE));
+        assertEquals(1L, this.source.getStats().getSwitches());
+    }
+
+    @Test
+    public void recentLastKnownLocation_isDeliveredImmediately() {
+        this.platform.lastKnown.put(NETWORK, location(NETWORK, 50F, this.platform.now - 10000L));
+        this.platform.lastKnown.put(GPS, location(GPS, 5F, this.platform.now - 3600000L));
+        this.source.start(1000L, 0F);
+        assertEquals(1, this.received.size());
+        assertEquals(NETWORK, this.received.get(0).getProvider());
+        assertEquals(0L, this.source.getStats().getTimeToFirstFix());
+    }
+
+    @Test
+    public void staleLastKnownLocation_isIgnored() {
+        this.platform.lastKnown.put(GPS, location(GPS, 5F, this.platform.now - 3600000L));
+        this.source.start(1000L, 0F);
+        assertTrue(this.received.isEmpty());
+        assertEquals(-1L, this.source.getStats().getTimeToFirstFix());
+    }
+
+    @Test
+    public void accurateNetwork_turnsOffGps() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(NETWORK, 12F);
+        assertEquals(LocationSource.Mode.NETWORK, this.source.getMode());
+        assertFalse(this.platform.isRequested(GPS));
+
+        // The network provider degrading brings back the GPS.
+        this.platform.advance(1000L);
+        this.platform.fix(NETWORK, 300F);
+        assertEquals(LocationSource.Mode.ACQUIRING, this.source.getMode());
+        assertTrue(this.platform.isRequested(GPS));
+        assertEquals(2L, this.source.getStats().getSwitches());
+    }
+
+    @Test
+    public void silentGps_fallsBackToAcquiring() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(GPS, 5F);
+        assertEquals(LocationSource.Mode.GPS, this.source.getMode());
+
+        // Entering a tunnel.
+        this.platform.advance(31000L);
+        assertEquals(LocationSource.Mode.ACQUIRING, this.source.getMode());
+        assertTrue(this.platform.isRequested(NETWORK));
+    }
+
+    @Test
+    public void silentGpsWithMinDistance_isNotAFailure() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(GPS, 5F);
+        this.source.update(30000L, 10F);
+        this.platform.advance(600000L);
+        assertEquals(LocationSource.Mode.GPS, this.source.getMode());
+    }
+
+    @Test
+    public void powerSaving_prefersCoarseNetwork() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(GPS, 5F);
+        assertEquals(LocationSource.Mode.GPS, this.source.getMode());
+
+        this.source.setPowerSaving(true);
+        assertEquals(LocationSource.Mode.ACQUIRING, this.source.getMode());
+        this.platform.advance(1000L);
+        this.platform.fix(NETWORK, 60F);
+        assertEquals(LocationSource.Mode.NETWORK, this.source.getMode());
+        assertFalse(this.platform.isRequested(GPS));
+        assertEquals(3L, this.source.getStats().getSwitches());
+    }
+
+    @Test
+    public void gpsOff_usesNetworkOnly() {
+        this.platform.enabled.remove(GPS);
+        assertTrue(this.source.isAvailable());
+        this.source.start(1000L, 0F);
+        assertFalse(this.platform.isRequested(GPS));
+        this.platform.advance(1000L);
+        this.platform.fix(NETWORK, 40F);
+        assertEquals(1, this.received.size());
+    }
+
+    @Test
+    public void allProvidersOff_isUnavailable() {
+        this.platform.enabled.clear();
+        assertFalse(this.source.isAvailable());
+    }
+
+    @Test
+    public void lessAccurateFixFromOtherProvider_isDropped() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(GPS, 5F);
+        this.platform.advance(500L);
+        this.platform.fix(PASSIVE, 40F);
+        assertEquals(1, this.received.size());
+        assertEquals(1L, this.source.getStats().getPassiveFixes());
+    }
+
+    @Test
+    public void olderFix_isDropped() {
+        this.source.start(1000L, 0F);
+        this.platform.advance(1000L);
+        this.platform.fix(NETWORK, 500F);
+        this.platform.listeners.get(GPS).onLocationChanged(location(GPS, 500F, this.platform.now - 100L));
+        assertEquals(1, this.received.size());
+    }
+
+    @Test
+    public void stop_removesAllProviders() {
+        this.source.start(1000L, 0F);
+        this.source.stop();
+        assertTrue(this.platform.listeners.isEmpty());
+        this.platform.advance(1000L);
+        assertNull(this.platform.listeners.get(GPS));
+    }
+}
@@ -0,0 +1,152 @@
+package info.varden.hauk.service;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.varden.hauk.HTTPThread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the memory allocated per location update on the push path, from the sampling policy to
+ * the request body being written to the connection, once the path has warmed up.
+ */
+public class PushPathAllocationTest {
+    private static final String URL = "https://example.com/api/post.php";
+    private static final String SESSION = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopq";
+
+    private static final int WARMUP = 20000;
+    private static final int MEASURED = 20000;
+
+    // The only object allocated per upload is the small request descriptor passed to the executor.
+    private static final long MAX_BYTES_PER_UPLOAD = 64L;
+
+    /**
+     * An output stream that discards everything written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        private long written = 0L;
+
+        @Override
+        public void write(int b) {
+            this.written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.written += len;
+        }
+    }
+
+    /**
+     * The push path of LocationPushService, without Android and the network.
+     */
+    private static final class PushPath {
+        private final SamplingPolicy sampling = new AdaptiveSamplingPolicy(1000L);
+        private final NullOutputStream connection = new NullOutputStream();
+        private final List<LocationBatch> inFlight = new ArrayList<>();
+        private final LocationBatcher batcher;
+        private long uploads = 0L;
+
+        private PushPath(LocationBatch.Format format, int batchSize) {
+            this.batcher = new LocationBatcher(SESSION, format, new BatchPolicy(batchSize, 60000L, BatchPolicy.DEFAULT_MAX_BYTES), new LocationBatcher.Flusher() {
+                @Override
+                public void flush(LocationBatch batch) {
+                    try {
+                        batch.toRequest(URL).statusOnly().writeBody(connection);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    uploads++;
+                    // Completion is reported later, as it is when the request has been sent.
+                    inFlight.add(batch);
+                }
+            });
+        }
+
+        private void fix(int i) {
+            // Walking at about 1.4 m/s, one fix per second.
+            double lat = 59.913868D + i * 0.0000125D;
+            double lon = 10.752245D + (i % 100) * 0.0000001D;
+            long now = 1567602256000L + i * 1000L;
+            if (this.sampling.accept(lat, lon, now, 5F, 1.4F, 0F)) {
+                this.batcher.add(lat, lon, now / 1000D, 5F, 1.4F);
+            }
+            for (int j = 0; j < this.inFlight.size(); j++) this.batcher.recycle(this.inFlight.get(j));
+            this.inFlight.clear();
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void assertSteadyState(LocationBatch.Format format, int batchSize) {
+        PushPath path = new PushPath(format, batchSize);
+        for (int i = 0; i < WARMUP; i++) path.fix(i);
+
+        long uploads = path.uploads;
+        long before = allocatedBytes();
+        for (int i = WARMUP; i < WARMUP + MEASURED; i++) path.fix(i);
+        long allocated = allocatedBytes() - before;
+        uploads = path.uploads - uploads;
+
+        assertTrue(uploads > 0L);
+        assertTrue(path.connection.written > 0L);
+        assertTrue(format + " allocated " + allocated + " bytes", allocated <= uploads * MAX_BYTES_PER_UPLOAD);
+    }
+
+    @Test
+    public void formPath_isAllocationFree() {
+        assertSteadyState(LocationBatch.Format.FORM, 1);
+        assertSteadyState(LocationBatch.Format.FORM, 20);
+    }
+
+    @Test
+    public void binaryPath_isAllocationFree() {
+        assertSteadyState(LocationBatch.Format.BINARY, 1);
+        assertSteadyState(LocationBatch.Format.BINARY, 20);
+    }
+
+    @Test
+    public void deltaPath_isAllocationFree() {
+        assertSteadyState(LocationBatch.Format.DELTA, 1);
+        assertSteadyState(LocationBatch.Format.DELTA, 20);
+    }
+
+    @Test
+    public void reusedBatch_encodesLikeNewBatch() throws IOException {
+        for (LocationBatch.Format format : LocationBatch.Format.values()) {
+            LocationBatch reused = new LocationBatch(SESSION, 10, format);
+            for (int i = 0; i < 10; i++) reused.add(50D + i, 10D, 1000D + i, 5F, Float.NaN);
+            reused.toRequest(URL);
+            reused.reset();
+
+            LocationBatch fresh = new LocationBatch(SESSION, 10, format);
+            for (int i = 0; i < 3; i++) {
+                reused.add(59.9D, 10.7D - i, 2000.5D + i, Float.NaN, 1.25F);
+                fresh.add(59.9D, 10.7D - i, 2000.5D + i, Float.NaN, 1.25F);
+            }
+            HTTPThread.Request a = reused.toRequest(URL);
+            HTTPThread.Request b = fresh.toRequest(URL);
+            assertEquals(b.getBodyLength(), a.getBodyLength());
+            assertEquals(new String(b.getBodyBytes(), "ISO-8859-1"), new String(a.getBodyBytes(), "ISO-8859-1"));
+        }
+    }
+
+    @Test
+    public void formNumbers_arePlainDecimals() {
+        LocationBatch batch = new LocationBatch("s", 1, LocationBatch.Format.FORM);
+        batch.add(-33.8567844D, 151.2152967D, 1567602256.1234D, 4.5F, 0F);
+        assertEquals("sid=s&lat=-33.8567844&lon=151.2152967&time=1567602256.123&acc=4.5&spd=0.0", batch.encode());
+    }
+}
@@ -0,0 +1,156 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import info.varden.hauk.metrics.Metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the registry that passes location updates on to several concurrent shares.
+ */
+public class ShareRegistryTest {
+    /**
+     * A share that records the times of the location updates it receives.
+     */
+    private static final class FakeShare implements ShareRegistry.Share {
+        private final SamplingPolicy sampling;
+        private final Metrics metrics = new Metrics();
+        private final List<Long> received = new ArrayList<>();
+        private Runnable onLocation = null;
+
+        private FakeShare(long interval) {
+            this.sampling = new FixedSamplingPolicy(interval);
+        }
+
+        @Override
+        public SamplingPolicy getSampling() {
+            return this.sampling;
+        }
+
+        @Override
+        public Metrics getMetrics() {
+            return this.metrics;
+        }
+
+        @Override
+        public void onLocation(Location location, long now) {
+            this.received.add(now);
+            if (this.onLocation != null) this.onLocation.run();
+        }
+    }
+
+    private static final Location LOCATION = new Location("gps");
+
+    @Test
+    public void locationRequest_satisfiesFastestShare() {
+        ShareRegistry<FakeShare> registry = new ShareRegistry<>();
+        assertEquals(-1L, registry.getInterval());
+
+        registry.add(1, new FakeShare(10000L));
+        registry.add(2, new FakeShare(1000L));
+        registry.add(3, new FakeShare(5000L));
+        assertEquals(1000L, registry.getInterval());
+        assertEquals(0F, registry.getMinDistance(), 0F);
+
+        // The subscription slows down when the fastest share stops.
+        registry.remove(2);
+        assertEquals(5000L, registry.getInterval());
+    }
+
+    @Test
+    public void sharesAreKeptInOrderAndIdentifiedById() {
+        ShareRegistry<FakeShare> registry = new ShareRegistry<>();
+        FakeShare family = new FakeShare(1000L);
+        FakeShare dispatch = new FakeShare(1000L);
+        assertTrue(registry.add(7, family));
+        assertTrue(registry.add(3, dispatch));
+        assertFalse(registry.add(7, new FakeShare(1000L)));
+
+        assertSame(family, registry.first());
+        assertSame(dispatch, registry.get(3));
+        assertEquals(2, registry.size());
+
+        assertSame(family, registry.remove(7));
+        assertNull(registry.remove(7));
+        assertSame(dispatch, registry.first());
+        registry.remove(3);
+        assertTrue(registry.isEmpty());
+        assertNull(registry.first());
+    }
+
+    @Test
+    public void dispatch_passesUpdatesOnAtEachSharesOwnRate() {
+        ShareRegistry<FakeShare> registry = new ShareRegistry<>();
+        FakeShare fast = new FakeShare(1000L);
+        FakeShare slow = new FakeShare(5000L);
+        registry.add(1, fast);
+        registry.add(2, slow);
+
+        // Location providers deliver updates a little early or late.
+        long[] times = {0L, 980L, 2010L, 3000L, 3990L, 4990L, 6000L, 9700L};
+        for (long time : times) registry.dispatch(LOCATION, time);
+
+        assertEquals(times.length, fast.received.size());
+        assertEquals(list(0L, 4990L, 9700L), slow.received);
+    }
+
+    @Test
+    public void dispatch_allowsSharesToBeStoppedWhileUpdating() {
+        final ShareRegistry<FakeShare> registry = new ShareRegistry<>();
+        FakeShare first = new FakeShare(1000L);
+        FakeShare second = new FakeShare(1000L);
+        first.onLocation = new Runnable() {
+            @Override
+            public void run() {
+                registry.remove(1);
+            }
+        };
+        registry.add(1, first);
+        registry.add(2, second);
+
+        registry.dispatch(LOCATION, 0L);
+        registry.dispatch(LOCATION, 1000L);
+
+        assertEquals(list(0L), first.received);
+        assertEquals(list(0L, 1000L), second.received);
+    }
+
+    @Test
+    public void metrics_areKeptPerShareUntilRemoved() {
+        ShareRegistry<FakeShare> registry = new ShareRegistry<>();
+        FakeShare family = new FakeShare(1000L);
+        FakeShare dispatch = new FakeShare(5000L);
+        registry.add(1, family);
+        registry.add(2, dispatch);
+        family.metrics.recordFix();
+
+        List<Metrics> metrics = registry.getMetrics();
+        assertEquals(2, metrics.size());
+        assertSame(family.metrics, metrics.get(0));
+        assertSame(dispatch.metrics, metrics.get(1));
+        assertEquals(1L, metrics.get(0).snapshot().getFixes());
+        assertEquals(0L, metrics.get(1).snapshot().getFixes());
+
+        // The metrics of a stopped share are no longer shown.
+        registry.remove(1);
+        metrics = registry.getMetrics();
+        assertEquals(1, metrics.size());
+        assertSame(dispatch.metrics, metrics.get(0));
+    }
+
+    private static List<Long> list(Long... values) {
+        List<Long> list = new ArrayList<>();
+        for (Long value : values) list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,383 @@
+package info.varden.hauk.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import info.varden.hauk.protocol.HaukClient;
+import info.varden.hauk.server.Config;
+import info.varden.hauk.server.HaukServer;
+import info.varden.hauk.server.Share;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the stream uplink against the JVM backend, through a relay that can cut or stall the
+ * connection.
+ */
+public class StreamUplinkTest {
+    private HaukServer server;
+    private Relay relay;
+    private String session;
+    private RecordingListener listener;
+    private StreamUplink uplink;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new HaukServer(new Config()
+                .setPassword("hunter2")
+                .setAddress("127.0.0.1", 0)
+                .setThreads(2)
+                .setMaxCachedPoints(100));
+        this.server.start();
+        this.session = new HaukClient(this.server.getBaseUrl(), false).create("hunter2", 600, 1).getId();
+        this.relay = new Relay(new URL(this.server.getBaseUrl()).getPort());
+        this.listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.uplink != null) this.uplink.stop();
+        this.relay.close();
+        this.server.stop();
+    }
+
+    private void start(String baseUrl, String session, long heartbeat) throws IOException {
+        this.uplink = new StreamUplink(baseUrl, session, heartbeat, 50L, 200L, this.listener);
+    }
+
+    private LocationBatch batch(int i) {
+        LocationBatch batch = new LocationBatch(this.session, 2, LocationBatch.Format.DELTA);
+        batch.add(59.9138 + i / 10000D, 10.7522, 1567602256D + i, 5F, 1.5F);
+        batch.add(59.9138 + i / 10000D, 10.7523, 1567602256.5D + i, 5F, 1.5F);
+        return batch;
+    }
+
+    private long stored() {
+        Share share = this.server.getStore().getBySession(this.session, System.currentTimeMillis() / 1000L);
+        return share.getTrail().getLastSequence();
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            Thread.sleep(10L);
+        }
+    }
+
+    private void waitForDelivered(final int points) throws Exception {
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return listener.delivered.get() == points;
+            }
+        });
+    }
+
+    @Test
+    public void frames_areStoredAndAcknowledged() throws Exception {
+        start(this.server.getBaseUrl(), this.session, StreamUplink.DEFAULT_HEARTBEAT);
+        for (int i = 0; i < 5; i++) assertTrue(this.uplink.offer(batch(i)));
+        waitForDelivered(10);
+
+        assertEquals(StreamUplink.State.READY, this.uplink.getState());
+        assertEquals(0, this.uplink.getPending());
+        assertEquals(1L, this.uplink.getStats().getConnects());
+        assertEquals(5L, this.uplink.getStats().getFrames());
+        assertEquals(10L, stored());
+        assertEquals(1, this.server.getStreams());
+    }
+
+    @Test
+    public void lostConnection_resumesFromLastAccepted() throws Exception {
+        start(this.relay.getBaseUrl(), this.session, StreamUplink.DEFAULT_HEARTBEAT);
+        for (int i = 0; i < 2; i++) assertTrue(this.uplink.offer(batch(i)));
+        waitForDelivered(4);
+
+        // The backend receives the next frames, but its acknowledgements are lost along with the
+        // connection, so the uplink does not know which frames arrived.
+        this.relay.mute();
+        for (int i = 2; i < 5; i++) assertTrue(this.uplink.offer(batch(i)));
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return stored() == 10L;
+            }
+        });
+        assertEquals(3, this.uplink.getPending());
+        this.relay.cut();
+
+        for (int i = 5; i < 7; i++) assertTrue(this.uplink.offer(batch(i)));
+        waitForDelivered(14);
+
+        assertEquals(1L, this.uplink.getStats().getResumes());
+        assertEquals(14L, stored());
+        // The frames the backend reported as accepted when the uplink reconnected were not sent
+        // again.
+        assertEquals(0L, this.server.getDuplicateFrames());
+        assertEquals(7L, this.uplink.getStats().getFrames());
+    }
+
+    @Test
+    public void silentConnection_isReplacedAfterMissedHeartbeats() throws Exception {
+        start(this.relay.getBaseUrl(), this.session, 200L);
+        assertTrue(this.uplink.offer(batch(0)));
+        waitForDelivered(2);
+
+        // Heartbeats keep an idle connection alive.
+        Thread.sleep(700L);
+        assertTrue(this.uplink.getStats().getHeartbeats() >= 2L);
+        assertEquals(1L, this.uplink.getStats().getConnects());
+
+        // A connection that silently stops forwarding is replaced.
+        this.relay.stall();
+        assertTrue(this.uplink.offer(batch(1)));
+        waitForDelivered(4);
+        assertEquals(1L, this.uplink.getStats().getResumes());
+        assertEquals(4L, stored());
+    }
+
+    @Test
+    public void bufferingBackend_fallsBackWithPendingUpdates() throws Exception {
+        // Like a proxy that buffers request bodies, MockWebServer only answers once the request
+        // body is complete, which a stream never is.
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.OFF);
+        MockWebServer legacy = new MockWebServer();
+        for (int i = 0; i < StreamUplink.MAX_ATTEMPTS; i++) legacy.enqueue(new MockResponse().setResponseCode(404));
+        legacy.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            start("http://127.0.0.1:" + legacy.getPort() + "/", this.session, 100L);
+            for (int i = 0; i < 3; i++) assertTrue(this.uplink.offer(batch(i)));
+            waitFor(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return uplink.getState() == StreamUplink.State.FALLBACK;
+                }
+            });
+
+            assertEquals(StreamUplink.MAX_ATTEMPTS, this.uplink.getStats().getConnects());
+            assertEquals(3, this.listener.fallback.size());
+            assertEquals(1567602256D, this.listener.fallback.get(0).getTime(0), 0D);
+            assertFalse(this.uplink.offer(batch(3)));
+        } finally {
+            legacy.shutdown();
+        }
+    }
+
+    @Test
+    public void missingEndpoint_fallsBack() throws Exception {
+        start(this.server.getBaseUrl() + "legacy/", this.session, StreamUplink.DEFAULT_HEARTBEAT);
+        assertTrue(this.uplink.offer(batch(0)));
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return uplink.getState() == StreamUplink.State.FALLBACK;
+            }
+        });
+        assertEquals(1, this.listener.fallback.size());
+    }
+
+    @Test
+    public void expiredSession_isRejected() throws Exception {
+        start(this.server.getBaseUrl(), "0123456789abcdef", StreamUplink.DEFAULT_HEARTBEAT);
+        assertTrue(this.uplink.offer(batch(0)));
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return uplink.getState() == StreamUplink.State.CLOSED;
+            }
+        });
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return listener.rejected.size() == 1;
+            }
+        });
+        assertEquals("Session expired!", this.listener.rejected.get(0));
+        assertEquals(0, this.uplink.getPending());
+    }
+
+    @Test
+    public void stop_returnsUnacknowledgedUpdates() throws Exception {
+        start(this.relay.getBaseUrl(), this.session, StreamUplink.DEFAULT_HEARTBEAT);
+        this.relay.mute();
+        for (int i = 0; i < 3; i++) assertTrue(this.uplink.offer(batch(i)));
+
+        List<LocationBatch> pending = this.uplink.stop();
+        assertEquals(3, pending.size());
+        assertEquals(StreamUplink.State.CLOSED, this.uplink.getState());
+        assertFalse(this.uplink.offer(batch(3)));
+        this.uplink = null;
+    }
+
+    @Test
+    public void capability_isDetected() {
+        assertTrue(StreamUplink.isSupported("batch binary delta stream\n"));
+        assertFalse(StreamUplink.isSupported("batch binary delta"));
+        assertFalse(StreamUplink.isSupported(null));
+    }
+
+    /**
+     * A listener that records the uplink's callbacks.
+     */
+    private static final class RecordingListener extends StreamUplink.Listener {
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+        private final List<LocationBatch> fallback = Collections.synchronizedList(new ArrayList<LocationBatch>());
+
+        @Override
+        public void onDelivered(int points, long latency) {
+            this.delivered.addAndGet(points);
+        }
+
+        @Override
+        public void onRejected(String message) {
+            this.rejected.add(message);
+        }
+
+        @Override
+        public void onFallback(List<LocationBatch> pending) {
+            this.fallback.addAll(pending);
+        }
+    }
+
+    /**
+     * Relays connections to the backend. Connections can be cut, stalled so that nothing is
+     * forwarded in either direction, or muted so that nothing is forwarded back to the client.
+     * New connections are always relayed normally.
+     */
+    private static final class Relay {
+        private final ServerSocket listener;
+        private final int target;
+        private final List<Pipe> pipes = Collections.synchronizedList(new ArrayList<Pipe>());
+
+        private Relay(int target) throws IOException {
+            this.target = target;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread accept = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Socket client = listener.accept();
+                            Socket backend = new Socket();
+                            backend.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Relay.this.target));
+                            Pipe pipe = new Pipe(client, backend);
+                            pipes.add(pipe);
+                            pipe.start();
+                        }
+                    } catch (IOException e) {
+                        // The relay was closed.
+                    }
+                }
+            });
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        private String getBaseUrl() {
+            return "http://127.0.0.1:" + this.listener.getLocalPort() + "/";
+        }
+
+        private void cut() {
+            synchronized (this.pipes) {
+                for (Pipe pipe : this.pipes) pipe.close();
+                this.pipes.clear();
+            }
+        }
+
+        private void stall() {
+            synchronized (this.pipes) {
+                for (Pipe pipe : this.pipes) pipe.stalled = true;
+                this.pipes.clear();
+            }
+        }
+
+        private void mute() {
+            synchronized (this.pipes) {
+                for (Pipe pipe : this.pipes) pipe.muted = true;
+            }
+        }
+
+        private void close() throws IOException {
+            this.listener.close();
+            cut();
+        }
+    }
+
+    /**
+     * A relayed connection.
+     */
+    private static final class Pipe {
+        private final Socket client;
+        private final Socket backend;
+        private volatile boolean stalled = false;
+        private volatile boolean muted = false;
+
+        private Pipe(Socket client, Socket backend) {
+            this.client = client;
+            this.backend = backend;
+        }
+
+        private void start() throws IOException {
+            pump(this.client.getInputStream(), this.backend.getOutputStream(), false);
+            pump(this.backend.getInputStream(), this.client.getOutputStream(), true);
+        }
+
+        private void pump(final InputStream in, final OutputStream out, final boolean downstream) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[4096];
+                    try {
+                        int read;
+                        while ((read = in.read(buf)) > 0) {
+                            if (stalled || (downstream && muted)) continue;
+                            out.write(buf, 0, read);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // The connection was closed.
+                    }
+                    close();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void close() {
+            try {
+                this.client.close();
+            } catch (IOException e) {
+                // Closed either way.
+            }
+            try {
+                this.backend.close();
+            } catch (IOException e) {
+                // Closed either way.
+            }
+        }
+    }
+}
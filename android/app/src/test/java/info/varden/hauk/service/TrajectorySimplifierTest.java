@@ -0,0 +1,187 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the trajectory simplifier, including a replay harness that runs recorded GPX tracks
+ * through it and reports the point reduction and the largest deviation from the original track.
+ */
+public class TrajectorySimplifierTest {
+    private static final String[] TRACKS = {"city_drive.gpx", "park_walk.gpx"};
+    private static final double[] TOLERANCES = {2D, 5D, 10D, 25D};
+
+    // Roughly one meter in degrees of latitude.
+    private static final double METER = 1D / 111195D;
+
+    /**
+     * A recorded track as parallel arrays of points.
+     */
+    private static final class Track {
+        private final List<double[]> points = new ArrayList<>();
+    }
+
+    /**
+     * A sink that records all emitted points.
+     */
+    private static final class Recorder extends TrajectorySimplifier.Sink {
+        private final List<double[]> points = new ArrayList<>();
+
+        @Override
+        public void emit(double lat, double lon, double time, float acc, float spd) {
+            if (!this.points.isEmpty()) assertTrue(time > this.points.get(this.points.size() - 1)[2]);
+            this.points.add(new double[] {lat, lon, time});
+        }
+    }
+
+    private static Track load(String name) throws Exception {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Track track = new Track();
+        try (InputStream in = TrajectorySimplifierTest.class.getResourceAsStream("/gpx/" + name)) {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+            NodeList pts = doc.getElementsByTagName("trkpt");
+            for (int i = 0; i < pts.getLength(); i++) {
+                Element pt = (Element) pts.item(i);
+                double time = fmt.parse(pt.getElementsByTagName("time").item(0).getTextContent()).getTime() / 1000D;
+                track.points.add(new double[] {Double.parseDouble(pt.getAttribute("lat")), Double.parseDouble(pt.getAttribute("lon")), time});
+            }
+        }
+        return track;
+    }
+
+    /**
+     * Calculates the distance in meters from a point to a segment on a local projection.
+     */
+    private static double distanceToSegment(double[] p, double[] a, double[] b) {
+        double scale = Math.cos(Math.toRadians(a[0]));
+        double px = (p[1] - a[1]) * scale / METER, py = (p[0] - a[0]) / METER;
+        double bx = (b[1] - a[1]) * scale / METER, by = (b[0] - a[0]) / METER;
+        double len2 = bx * bx + by * by;
+        double t = len2 == 0D ? 0D : Math.max(0D, Math.min(1D, (px * bx + py * by) / len2));
+        return Math.hypot(px - t * bx, py - t * by);
+    }
+
+    /**
+     * Returns the largest distance from any original point to the segment of the simplified trail
+     * that spans its timestamp.
+     */
+    private static double maxDeviation(List<double[]> original, List<double[]> simplified) {
+        double max = 0D;
+        int seg = 0;
+        for (double[] p : original) {
+            while (seg < simplified.size() - 2 && simplified.get(seg + 1)[2] < p[2]) seg++;
+            max = Math.max(max, distanceToSegment(p, simplified.get(seg), simplified.get(Math.min(seg + 1, simplified.size() - 1))));
+        }
+        return max;
+    }
+
+    private static Recorder replay(List<double[]> points, double tolerance, double maxDelay) {
+        Recorder rec = new Recorder();
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(tolerance, maxDelay, TrajectorySimplifier.DEFAULT_WINDOW, rec);
+        for (double[] p : points) simplifier.add(p[0], p[1], p[2], 5F, Float.NaN);
+        simplifier.flush();
+        assertEquals(points.size(), simplifier.getReceived());
+        assertEquals(rec.points.size(), simplifier.getEmitted());
+        return rec;
+    }
+
+    @Test
+    public void replayRecordedTracks() throws Exception {
+        for (String name : TRACKS) {
+            Track track = load(name);
+            for (double tolerance : TOLERANCES) {
+                Recorder rec = replay(track.points, tolerance, 30D);
+                double deviation = maxDeviation(track.points, rec.points);
+                double reduction = 1D - (double) rec.points.size() / track.points.size();
+
+                // Allow for the difference between the simplifier's projection and this one.
+                assertTrue(name + " deviation " + deviation, deviation <= tolerance + 0.1D);
+                assertTrue(name + " reduction " + reduction, reduction > 0D);
+            }
+        }
+    }
+
+    @Test
+    public void straightLine_keepsOnlyEndPoints() {
+        List<double[]> line = new ArrayList<>();
+        for (int i = 0; i < 20; i++) line.add(new double[] {59.9 + i * 10 * METER, 10.7, i});
+        Recorder rec = replay(line, 1D, 1000D);
+        assertEquals(2, rec.points.size());
+        assertEquals(0D, rec.points.get(0)[2], 0D);
+        assertEquals(19D, rec.points.get(1)[2], 0D);
+    }
+
+    @Test
+    public void corner_isEmitted() {
+        List<double[]> path = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) path.add(new double[] {59.9 + i * 10 * METER, 10.7, i});
+        double lonMeter = METER / Math.cos(Math.toRadians(59.9 + 100 * METER));
+        for (int i = 1; i <= 10; i++) path.add(new double[] {59.9 + 100 * METER, 10.7 + i * 10 * lonMeter, 10 + i});
+        Recorder rec = replay(path, 1D, 1000D);
+        assertEquals(3, rec.points.size());
+        assertEquals(10D, rec.points.get(1)[2], 0D);
+    }
+
+    @Test
+    public void heldUpdate_isEmittedAfterMaxDelay() {
+        List<double[]> line = new ArrayList<>();
+        for (int i = 0; i < 100; i++) line.add(new double[] {59.9 + i * METER, 10.7, i});
+        Recorder rec = replay(line, 1D, 30D);
+        for (int i = 1; i < rec.points.size(); i++) {
+            assertTrue(rec.points.get(i)[2] - rec.points.get(i - 1)[2] <= 30D);
+        }
+    }
+
+    @Test
+    public void fullWindow_emitsNewestUpdate() {
+        List<double[]> line = new ArrayList<>();
+        for (int i = 0; i < 200; i++) line.add(new double[] {59.9 + i * METER, 10.7, i});
+        Recorder rec = replay(line, 1D, 1000D);
+        // One anchor, then one update per full window, plus the final flush.
+        assertEquals(1 + (199 + TrajectorySimplifier.DEFAULT_WINDOW) / (TrajectorySimplifier.DEFAULT_WINDOW + 1), rec.points.size());
+    }
+
+    @Test
+    public void batch_alwaysKeepsNewestUpdate() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(1D, 1000D, TrajectorySimplifier.DEFAULT_WINDOW, null);
+        LocationBatch batch = new LocationBatch("session", 20, LocationBatch.Format.DELTA);
+
+        // A straight line, sent as two batches. Each batch keeps its newest update, which is the
+        // live location, and drops the updates in between.
+        for (int i = 0; i < 10; i++) batch.add(59.9 + i * 10 * METER, 10.7, i, 5F, Float.NaN);
+        simplifier.simplify(batch);
+        assertEquals(2, batch.size());
+        assertEquals(0D, batch.getTime(0), 0D);
+        assertEquals(9D, batch.getTime(1), 0D);
+
+        batch.reset();
+        for (int i = 10; i < 20; i++) batch.add(59.9 + i * 10 * METER, 10.7, i, 5F, Float.NaN);
+        simplifier.simplify(batch);
+        assertEquals(1, batch.size());
+        assertEquals(19D, batch.getTime(0), 0D);
+        assertEquals(59.9 + 190 * METER, batch.getLatitude(0), 0D);
+
+        // A single update is always sent as it is.
+        batch.reset();
+        batch.add(59.9 + 200 * METER, 10.7, 20D, 5F, Float.NaN);
+        simplifier.simplify(batch);
+        assertEquals(1, batch.size());
+        assertEquals(20D, batch.getTime(0), 0D);
+    }
+}
@@ -0,0 +1,112 @@
+package info.varden.hauk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building request bodies and reading responses in HTTPClient.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestBenchmark {
+    private static final String URL = "https://example.com/api/post.php";
+
+    private HashMap<String, String> payload;
+    private byte[] createResponse;
+    private byte[] fetchResponse;
+    private ByteArrayInputStream postResponse;
+    private byte[] statusBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.payload = point(59.913868D, 10.752245D, 1567602256.123D, 4.5F, 1.2F);
+        this.createResponse = "OK\nABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopq\nhttps://example.com/?ABCD-1234\nbatch binary delta\n".getBytes("UTF-8");
+
+        // A fetch.php response with a trail of 100 points, as received by viewers.
+        StringBuilder sb = new StringBuilder("{\"type\":0,\"expire\":1567605856,\"interval\":1,\"points\":[");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("[59.9138").append(i).append(",10.7522").append(i).append(",").append(1567602256 + i).append(",4.5,1.2]");
+        }
+        sb.append("]}\n");
+        this.fetchResponse = sb.toString().getBytes("UTF-8");
+
+        this.postResponse = new ByteArrayInputStream("OK\n".getBytes("UTF-8"));
+        this.statusBuffer = new byte[512];
+    }
+
+    /**
+     * Builds the payload of a single location update as the pusher did before batching, with every
+     * value converted to a string and stored in a map.
+     */
+    private static HashMap<String, String> point(double lat, double lon, double time, float acc, float spd) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("lat", String.valueOf(lat));
+        data.put("lon", String.valueOf(lon));
+        data.put("time", String.valueOf(time));
+        data.put("sid", "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopq");
+        data.put("spd", String.valueOf(spd));
+        data.put("acc", String.valueOf(acc));
+        return data;
+    }
+
+    @Benchmark
+    public HashMap<String, String> buildPayload() {
+        return point(59.913868D, 10.752245D, 1567602256.123D, 4.5F, 1.2F);
+    }
+
+    @Benchmark
+    public String encodeForm() throws IOException {
+        return HTTPClient.encode(this.payload);
+    }
+
+    @Benchmark
+    public byte[] buildAndEncodeRequest() throws IOException {
+        return new HTTPThread.Request(URL, point(59.913868D, 10.752245D, 1567602256.123D, 4.5F, 1.2F)).getBodyBytes();
+    }
+
+    @Benchmark
+    public String[] parseCreateResponse() throws IOException {
+        return HTTPClient.readBody(new ByteArrayInputStream(this.createResponse), this.createResponse.length).getData();
+    }
+
+    /**
+     * Reads only the fields of a create.php response that are used, as MainActivity does.
+     */
+    @Benchmark
+    public String readCreateFields() throws IOException {
+        HTTPThread.Response resp = HTTPClient.readBody(new ByteArrayInputStream(this.createResponse), this.createResponse.length);
+        HTTPThread.Reader reader = resp.getReader();
+        if (!resp.isOK() || !reader.skipLine()) return null;
+        String session = reader.next();
+        String link = reader.next();
+        return reader.next() + session + link;
+    }
+
+    @Benchmark
+    public String[] parseFetchResponse() throws IOException {
+        return HTTPClient.readBody(new ByteArrayInputStream(this.fetchResponse), -1).getData();
+    }
+
+    /**
+     * Checks only the status of a post.php response, as the location pusher does.
+     */
+    @Benchmark
+    public boolean readPostStatus() throws IOException {
+        this.postResponse.reset();
+        return HTTPClient.readStatus(this.postResponse, this.statusBuffer).isOK();
+    }
+}
@@ -0,0 +1,173 @@
+package info.varden.hauk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Compares the HTTP/1.1 and HTTP/2 transports of HTTPClient against a loopback server that answers
+ * every location update with "OK", as post.php does. The HTTP/2 server uses h2c, so that the
+ * comparison measures the transports themselves rather than TLS.
+ *
+ * pushLatency sends location updates at a fixed rate and samples the time each request takes.
+ * pushThroughput sends updates from several threads as fast as possible, which shows how well each
+ * transport handles concurrent requests to the same backend.
+ *
+ * @author Marius Lindvall
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransportBenchmark {
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public boolean pushLatency(Paced backend) {
+        return backend.client.post(backend.request).isOK();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(8)
+    public boolean pushThroughput(Backend backend) {
+        return backend.client.post(backend.request).isOK();
+    }
+
+    /**
+     * A loopback backend and a client that talks to it over the given transport.
+     */
+    @State(Scope.Benchmark)
+    public static class Backend {
+        @Param({"HTTP_1_1", "HTTP_2"})
+        public HTTPClient.Transport transport;
+
+        private MockWebServer server;
+        HTTPClient client;
+        HTTPThread.Request request;
+
+        @Setup
+        public void setUp() throws IOException {
+            // The server logs every request, which would be measured along with the transport.
+            Logger.getLogger(MockWebServer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+            this.server = new MockWebServer();
+            this.server.setServerSocketFactory(new NoDelayServerSocketFactory());
+            if (this.transport == HTTPClient.Transport.HTTP_2) {
+                this.server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+            } else {
+                this.server.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+            }
+            this.server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return new MockResponse().setBody("OK\n");
+                }
+            });
+            this.server.start(InetAddress.getLoopbackAddress(), 0);
+
+            String url = "http://127.0.0.1:" + this.server.getPort() + "/api/post.php";
+            HTTPClient.setPreferredTransport(this.transport);
+            this.client = HTTPClient.forUrl(url);
+
+            // A typical single location update as sent by the pusher.
+            byte[] body = "sid=ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopq&lat=59.913868&lon=10.752245&time=1567602256.123&spd=1.2&acc=4.5".getBytes("UTF-8");
+            this.request = new HTTPThread.Request(url, HTTPThread.Request.FORM, body, body.length).statusOnly();
+        }
+
+        @TearDown(Level.Iteration)
+        public void forgetRequests() throws InterruptedException {
+            // The server records every request it receives; discard them to keep memory use flat.
+            while (this.server.takeRequest(0L, TimeUnit.SECONDS) != null) {}
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            this.server.shutdown();
+            HTTPClient.setPreferredTransport(HTTPClient.Transport.HTTP_1_1);
+        }
+    }
+
+    /**
+     * Creates server sockets whose connections have Nagle's algorithm disabled, as is the case for
+     * real web servers. Otherwise, every response that the server writes in more than one piece is
+     * delayed until the client acknowledges the first piece.
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A backend that location updates are sent to at a fixed rate.
+     */
+    public static class Paced extends Backend {
+        // The number of location updates sent per second.
+        @Param({"1", "10", "100"})
+        public int rate;
+
+        private long period;
+        private long next;
+
+        @Setup
+        public void startPacing() {
+            this.period = TimeUnit.SECONDS.toNanos(1) / this.rate;
+            this.next = System.nanoTime();
+        }
+
+        /**
+         * Waits until the next location update is due. This runs outside of the measured time.
+         */
+        @Setup(Level.Invocation)
+        public void pace() {
+            this.next += this.period;
+            long delay = this.next - System.nanoTime();
+            if (delay > 0L) LockSupport.parkNanos(delay);
+            else this.next = System.nanoTime();
+        }
+    }
+}
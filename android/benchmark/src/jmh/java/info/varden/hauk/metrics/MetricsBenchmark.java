@@ -0,0 +1,47 @@
+package info.varden.hauk.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recording metrics on the push path, from a single thread and from several
+ * threads recording into the same registry at once.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private final Metrics metrics = new Metrics();
+    private long latency = 0L;
+
+    /**
+     * Records what the pusher records for every uploaded batch.
+     */
+    @Benchmark
+    public void recordPush() {
+        this.latency = (this.latency + 7919L) % 5000000000L;
+        this.metrics.recordFix();
+        this.metrics.recordUpload(1, 44L);
+        this.metrics.recordDelivery(1, this.latency);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordPushContended() {
+        recordPush();
+    }
+
+    @Benchmark
+    public Metrics.Snapshot snapshot() {
+        return this.metrics.snapshot();
+    }
+}
@@ -0,0 +1,108 @@
+package info.varden.hauk.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares expiring shares with the timing wheel to the Ruby backend's approach of scanning all
+ * shares for expired ones before every request. Shares expire uniformly over the next day, and
+ * every expired share is replaced by a new one, so the number of live shares stays constant.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExpiryBenchmark {
+    private static final long START = 1567602256L;
+    private static final int MAX_DURATION = 86400;
+
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    private final Random random = new Random(42L);
+
+    private ExpiryWheel<Long> wheel;
+    private List<ExpiryWheel.Timer<Long>> timers;
+    private final List<Long> fired = new ArrayList<>();
+    private long wheelNow;
+
+    private ConcurrentHashMap<Long, Long> expiries;
+    private long scanNow;
+    private long nextId;
+
+    @Setup
+    public void setUp() {
+        this.wheel = new ExpiryWheel<>(START);
+        this.timers = new ArrayList<>(this.sessions);
+        this.expiries = new ConcurrentHashMap<>();
+        for (long i = 0; i < this.sessions; i++) {
+            long expire = START + 1L + this.random.nextInt(MAX_DURATION);
+            ExpiryWheel.Timer<Long> timer = new ExpiryWheel.Timer<>(expire);
+            this.wheel.schedule(timer, expire);
+            this.timers.add(timer);
+            this.expiries.put(i, expire);
+        }
+        this.wheelNow = START;
+        this.scanNow = START;
+        this.nextId = this.sessions;
+    }
+
+    /**
+     * Advances the wheel by one second and replaces the shares that expired. This runs once per
+     * second regardless of the request rate.
+     */
+    @Benchmark
+    public int wheelTick() {
+        this.wheel.advance(++this.wheelNow, this.fired);
+        int expired = this.fired.size();
+        for (int i = 0; i < expired; i++) {
+            this.wheel.schedule(new ExpiryWheel.Timer<Long>(0L), this.wheelNow + 1L + this.random.nextInt(MAX_DURATION));
+        }
+        this.fired.clear();
+        return expired;
+    }
+
+    /**
+     * Extends a random share by an hour.
+     */
+    @Benchmark
+    public void wheelExtend() {
+        ExpiryWheel.Timer<Long> timer = this.timers.get(this.random.nextInt(this.timers.size()));
+        this.wheel.schedule(timer, this.wheelNow + 3600L + this.random.nextInt(MAX_DURATION));
+    }
+
+    /**
+     * Scans all shares and replaces the ones that expired, as the Ruby backend does before every
+     * request. Time advances by one second every thousand requests.
+     */
+    @Benchmark
+    public int scanPerRequest() {
+        if (++this.nextId % 1000L == 0L) this.scanNow++;
+        int expired = 0;
+        for (Iterator<Map.Entry<Long, Long>> it = this.expiries.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() < this.scanNow) {
+                it.remove();
+                expired++;
+            }
+        }
+        for (int i = 0; i < expired; i++) {
+            this.expiries.put(this.nextId++, this.scanNow + 1L + this.random.nextInt(MAX_DURATION));
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,76 @@
+package info.varden.hauk.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding the api/fetch.php response of a share for every viewer to serving it from the
+ * cache of the share, for viewers fetching the whole trail. The share is not posted to while the
+ * benchmark runs, as for the viewers polling between two posts.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FetchBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long START = 1567602256L;
+
+    @Param({"10", "250"})
+    public int points;
+
+    private Share share;
+
+    @Setup
+    public void setUp() {
+        this.share = new Share("session", "ABCD-1234", 1D, START + 3600L, this.points);
+        Points batch = new Points();
+        for (int i = 0; i < this.points; i++) {
+            batch.add(52.52D + i / 10000D, 13.405D + i / 10000D, START + i, 4.5D, 1.25D);
+        }
+        this.share.append(batch);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return FetchBenchmark.encode(this.share, -1L).getBody();
+    }
+
+    @Benchmark
+    public byte[] cached() {
+        long version = this.share.getVersion();
+        FetchCache.Entry entry = this.share.cache.get(version, -1L);
+        if (entry == null) {
+            entry = FetchBenchmark.encode(this.share, -1L);
+            this.share.cache.put(version, entry);
+        }
+        return entry.getBody();
+    }
+
+    @Benchmark
+    public byte[] cachedGzipped() {
+        long version = this.share.getVersion();
+        FetchCache.Entry entry = this.share.cache.get(version, -1L);
+        if (entry == null) {
+            entry = FetchBenchmark.encode(this.share, -1L);
+            this.share.cache.put(version, entry);
+        }
+        return entry.getGzipped();
+    }
+
+    private static FetchCache.Entry encode(Share share, long since) {
+        StringBuilder sb = new StringBuilder(64 + share.getTrail().size() * 64);
+        share.writeJson(sb, since);
+        return new FetchCache.Entry(since, sb.toString().getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,121 @@
+package info.varden.hauk.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares storing a pushed location update in the JVM backend's ring buffer with the pattern used
+ * by the PHP backend, where the whole share is read from memcached as JSON, decoded, appended to,
+ * trimmed to max_cached_pts, encoded and written back for every update. The memcached round trip
+ * itself is not included, so the baseline is a lower bound of its cost.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TrailBenchmark {
+    // The number of shares updates are spread over.
+    private static final int SHARES = 1024;
+
+    @Param({"3", "100", "1000"})
+    public int capacity;
+
+    private Trail[] trails;
+    private ConcurrentHashMap<Integer, String> blobs;
+
+    @Setup
+    public void setUp() {
+        this.trails = new Trail[SHARES];
+        this.blobs = new ConcurrentHashMap<>();
+        for (int i = 0; i < SHARES; i++) {
+            Trail trail = new Trail(this.capacity);
+            for (int j = 0; j < this.capacity; j++) trail.append(59.913868D + j * 1E-5D, 10.752245D + j * 2E-5D, 1567602256D + j, 4.5D, 1.4D);
+            this.trails[i] = trail;
+
+            StringBuilder sb = new StringBuilder("{\"i\":1,\"x\":1567688656,\"l\":");
+            trail.writeJson(sb);
+            this.blobs.put(i, sb.append('}').toString());
+        }
+    }
+
+    @Benchmark
+    public void ringBuffer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.trails[random.nextInt(SHARES)].append(59.9D + random.nextDouble() * 0.01D, 10.75D, 1567602256.5D, 4.5D, Double.NaN);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void ringBufferContended() {
+        ringBuffer();
+    }
+
+    @Benchmark
+    public void readModifyWrite() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer key = random.nextInt(SHARES);
+        List<double[]> points = decode(this.blobs.get(key));
+        points.add(new double[] {59.9D + random.nextDouble() * 0.01D, 10.75D, 1567602256.5D, 4.5D, Double.NaN});
+        if (points.size() > this.capacity) points = points.subList(points.size() - this.capacity, points.size());
+        this.blobs.put(key, encode(points));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void readModifyWriteContended() {
+        readModifyWrite();
+    }
+
+    /**
+     * Decodes the point list of a fetch response, as json_decode() does in the memcached wrapper.
+     */
+    private static List<double[]> decode(String json) {
+        List<double[]> points = new ArrayList<>();
+        int pos = json.indexOf("\"l\":[") + 5;
+        while (json.charAt(pos) == '[') {
+            double[] point = new double[5];
+            pos++;
+            for (int i = 0; i < 5; i++) {
+                int end = pos;
+                while (json.charAt(end) != ',' && json.charAt(end) != ']') end++;
+                String value = json.substring(pos, end);
+                point[i] = value.equals("null") ? Double.NaN : Double.parseDouble(value);
+                pos = end + 1;
+            }
+            points.add(point);
+            if (json.charAt(pos) == ',') pos++;
+        }
+        return points;
+    }
+
+    /**
+     * Encodes the share with its point list, as json_encode() does in the memcached wrapper.
+     */
+    private static String encode(List<double[]> points) {
+        StringBuilder sb = new StringBuilder("{\"i\":1,\"x\":1567688656,\"l\":[");
+        for (int i = 0; i < points.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append('[');
+            for (int j = 0; j < 5; j++) {
+                if (j > 0) sb.append(',');
+                Trail.appendNumber(sb, points.get(i)[j]);
+            }
+            sb.append(']');
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,79 @@
+package info.varden.hauk.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding batches of location updates in each of the wire formats, from adding the
+ * points to a batch to producing the request body.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LocationEncodingBenchmark {
+    private static final String URL = "https://example.com/api/post.php";
+    private static final String SESSION = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopq";
+
+    @Param({"FORM", "BINARY", "DELTA"})
+    public LocationBatch.Format format;
+
+    @Param({"1", "50"})
+    public int points;
+
+    // A walk north-east at roughly 1.4 m/s with one update per second.
+    private double[] lat;
+    private double[] lon;
+    private double[] time;
+
+    // A batch that is reset and refilled for every request, as the pusher does.
+    private LocationBatch reused;
+
+    @Setup
+    public void setUp() {
+        this.lat = new double[this.points];
+        this.lon = new double[this.points];
+        this.time = new double[this.points];
+        for (int i = 0; i < this.points; i++) {
+            this.lat[i] = 59.913868D + i * 0.00001D;
+            this.lon[i] = 10.752245D + i * 0.00002D;
+            this.time[i] = 1567602256D + i;
+        }
+        this.reused = new LocationBatch(SESSION, this.points, this.format);
+    }
+
+    private LocationBatch fill() {
+        return fill(new LocationBatch(SESSION, this.points, this.format));
+    }
+
+    private LocationBatch fill(LocationBatch batch) {
+        for (int i = 0; i < this.points; i++) batch.add(this.lat[i], this.lon[i], this.time[i], 4.5F, 1.4F);
+        return batch;
+    }
+
+    @Benchmark
+    public int addPoints() {
+        return fill().getEncodedSize();
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() throws IOException {
+        return fill().toRequest(URL).getBodyBytes();
+    }
+
+    @Benchmark
+    public int encodeReusedRequest() throws IOException {
+        this.reused.reset();
+        return fill(this.reused).toRequest(URL).getBodyLength();
+    }
+}
@@ -0,0 +1,53 @@
+package info.varden.hauk.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the cost per location update of the trajectory simplifier on a winding track, where
+ * the corridor check has to scan most of the window for every update.
+ *
+ * @author Marius Lindvall
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrajectorySimplifierBenchmark {
+    private static final int POINTS = 1000;
+
+    private final double[] lat = new double[POINTS];
+    private final double[] lon = new double[POINTS];
+
+    private TrajectorySimplifier simplifier;
+    private Blackhole blackhole;
+    private int next;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        for (int i = 0; i < POINTS; i++) {
+            this.lat[i] = 59.913868D + i * 0.00001D + Math.sin(i / 10D) * 0.00002D;
+            this.lon[i] = 10.752245D + i * 0.00002D;
+        }
+        this.blackhole = blackhole;
+        this.simplifier = new TrajectorySimplifier(5D, 30D, TrajectorySimplifier.DEFAULT_WINDOW, new TrajectorySimplifier.Sink() {
+            @Override
+            public void emit(double lat, double lon, double time, float acc, float spd) {
+                TrajectorySimplifierBenchmark.this.blackhole.consume(lat);
+            }
+        });
+    }
+
+    @Benchmark
+    public void add() {
+        int i = this.next++;
+        this.simplifier.add(this.lat[i % POINTS], this.lon[i % POINTS], i, 4.5F, 1.4F);
+    }
+}
@@ -0,0 +1,260 @@
+package info.varden.hauk.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * A simulated viewer subscribed to api/events.php of a share, as a browser with an EventSource
+ * would be. Viewers are non-blocking connections driven by a selector, so that thousands of them
+ * can be run from a single thread.
+ *
+ * Only as much of HTTP and server-sent events is implemented as the backend uses: the response
+ * must be chunked, and only the ID of each event and the end event are parsed. When the
+ * connection is lost, the viewer can be reconnected and resumes after the last event it received.
+ *
+ * @author Marius Lindvall
+ */
+final class EventViewer {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Only the start of each line of the stream is kept, which is enough for IDs and event names.
+    private static final int MAX_LINE = 32;
+
+    /**
+     * Receives the events of a viewer. Called on the selector thread.
+     */
+    interface Listener {
+        /**
+         * Called for each event with data, with the sequence number of its newest point. The first
+         * event of each connection has the points the viewer did not have when it connected.
+         */
+        void onEvent(EventViewer viewer, long id, boolean first);
+
+        /**
+         * Called when the share has ended.
+         */
+        void onEnd(EventViewer viewer);
+
+        /**
+         * Called when the connection is lost or the backend rejects the viewer.
+         */
+        void onDisconnect(EventViewer viewer, Exception reason);
+    }
+
+    private enum State { HEADERS, CHUNK_SIZE, CHUNK_DATA, CHUNK_END }
+
+    private final InetSocketAddress address;
+    private final String host;
+    private final String path;
+    private final int share;
+    private final Listener listener;
+
+    private SocketChannel channel = null;
+    private ByteBuffer request = null;
+
+    // The state of the response parser.
+    private State state;
+    private final StringBuilder headers = new StringBuilder();
+    private long chunkLeft;
+    private boolean sizeRead;
+    private final char[] line = new char[MAX_LINE];
+    private int lineLength;
+    private long pendingId;
+
+    // The ID of the last event received, or -1 if none has been received, and the number of
+    // events received on the current connection.
+    private long lastEventId = -1L;
+    private long received = 0L;
+
+    /**
+     * Creates a viewer. It does not connect until connect() is called.
+     *
+     * @param address  The address of the backend.
+     * @param host     The value of the Host header.
+     * @param path     The path of the stream, including the query, e.g.
+     *                 "/api/events.php?id=ABCD-1234".
+     * @param share    The index of the share the viewer views, for the listener.
+     * @param listener Receives the events.
+     */
+    EventViewer(InetSocketAddress address, String host, String path, int share, Listener listener) {
+        this.address = address;
+        this.host = host;
+        this.path = path;
+        this.share = share;
+        this.listener = listener;
+    }
+
+    int getShare() {
+        return this.share;
+    }
+
+    /**
+     * Returns whether the viewer has received an event since it last connected.
+     */
+    boolean isSubscribed() {
+        return this.received > 0L;
+    }
+
+    /**
+     * Starts connecting to the backend. Must be called on the selector thread.
+     */
+    void connect(Selector selector) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(this.path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(this.host).append("\r\n");
+        sb.append("Accept: text/event-stream\r\n");
+        if (this.lastEventId >= 0L) sb.append("Last-Event-ID: ").append(this.lastEventId).append("\r\n");
+        sb.append("\r\n");
+        this.request = ByteBuffer.wrap(sb.toString().getBytes(US_ASCII));
+
+        this.state = State.HEADERS;
+        this.headers.setLength(0);
+        this.lineLength = 0;
+        this.pendingId = -1L;
+        this.received = 0L;
+
+        this.channel = SocketChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.socket().setTcpNoDelay(true);
+        if (this.channel.connect(this.address)) {
+            this.channel.register(selector, SelectionKey.OP_WRITE, this);
+        } else {
+            this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * Handles a ready key of the viewer. Must be called on the selector thread.
+     *
+     * @param key    The key of the viewer.
+     * @param buffer A buffer to read into, which may be shared between viewers.
+     */
+    void handle(SelectionKey key, ByteBuffer buffer) {
+        try {
+            if (key.isConnectable()) {
+                this.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable()) {
+                this.channel.write(this.request);
+                if (!this.request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isValid() && key.isReadable()) {
+                buffer.clear();
+                int read = this.channel.read(buffer);
+                if (read < 0) throw new IOException("Connection closed by the backend");
+                buffer.flip();
+                while (buffer.hasRemaining() && this.channel != null) parse(buffer);
+            }
+        } catch (IOException e) {
+            disconnect(e);
+        }
+    }
+
+    /**
+     * Closes the connection. The listener is told unless the reason is null.
+     */
+    void disconnect(Exception reason) {
+        if (this.channel == null) return;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // The connection is closed either way.
+        }
+        this.channel = null;
+        if (reason != null) this.listener.onDisconnect(this, reason);
+    }
+
+    private void parse(ByteBuffer buffer) throws IOException {
+        switch (this.state) {
+            case HEADERS:
+                while (buffer.hasRemaining()) {
+                    this.headers.append((char) (buffer.get() & 0xFF));
+                    int length = this.headers.length();
+                    if (length >= 4 && this.headers.lastIndexOf("\r\n\r\n") == length - 4) {
+                        String head = this.headers.toString().toLowerCase(Locale.ROOT);
+                        if (!head.startsWith("http/1.1 200") || !head.contains("transfer-encoding: chunked")) {
+                            throw new IOException("Not an event stream: " + head.substring(0, head.indexOf('\r')));
+                        }
+                        startChunk();
+                        return;
+                    }
+                    if (length > 8192) throw new IOException("Response headers too long");
+                }
+                return;
+
+            case CHUNK_SIZE:
+                while (buffer.hasRemaining()) {
+                    char c = (char) (buffer.get() & 0xFF);
+                    if (c == '\n') {
+                        if (this.chunkLeft == 0L) {
+                            // The last chunk ends the response.
+                            throw new IOException("Stream closed by the backend");
+                        }
+                        this.state = State.CHUNK_DATA;
+                        return;
+                    }
+                    // The size ends at the CR or at the first chunk extension, which is skipped.
+                    int digit = Character.digit(c, 16);
+                    if (digit < 0) this.sizeRead = true;
+                    else if (!this.sizeRead) this.chunkLeft = this.chunkLeft * 16 + digit;
+                }
+                return;
+
+            case CHUNK_DATA:
+                while (buffer.hasRemaining() && this.chunkLeft > 0L) {
+                    this.chunkLeft--;
+                    onByte((char) (buffer.get() & 0xFF));
+                    if (this.channel == null) return;
+                }
+                if (this.chunkLeft == 0L) this.state = State.CHUNK_END;
+                return;
+
+            case CHUNK_END:
+                // The CRLF after the chunk data.
+                if ((char) buffer.get() == '\n') startChunk();
+                return;
+        }
+    }
+
+    private void startChunk() {
+        this.state = State.CHUNK_SIZE;
+        this.chunkLeft = 0L;
+        this.sizeRead = false;
+    }
+
+    /**
+     * Parses a byte of the event stream.
+     */
+    private void onByte(char c) {
+        if (c != '\n') {
+            if (c != '\r' && this.lineLength < MAX_LINE) this.line[this.lineLength++] = c;
+            return;
+        }
+        String text = new String(this.line, 0, this.lineLength);
+        this.lineLength = 0;
+        if (text.isEmpty()) {
+            // An empty line dispatches the event.
+            if (this.pendingId >= 0L) {
+                this.lastEventId = this.pendingId;
+                this.listener.onEvent(this, this.pendingId, this.received++ == 0L);
+            }
+            this.pendingId = -1L;
+        } else if (text.startsWith("id: ")) {
+            try {
+                this.pendingId = Long.parseLong(text.substring(4).trim());
+            } catch (NumberFormatException e) {
+                this.pendingId = -1L;
+            }
+        } else if (text.equals("event: end")) {
+            disconnect(null);
+            this.listener.onEnd(this);
+        }
+    }
+}
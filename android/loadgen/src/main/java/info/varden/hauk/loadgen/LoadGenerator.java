@@ -0,0 +1,246 @@
+package info.varden.hauk.loadgen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.varden.hauk.HTTPClient;
+import info.varden.hauk.metrics.Metrics;
+import info.varden.hauk.protocol.HaukClient;
+
+/**
+ * A headless load generator that simulates a fleet of devices sharing their location with a Hauk
+ * backend. Each simulated share creates a session, pushes batched location updates at a fixed
+ * interval through the same protocol client as the app, and stops its session at the end of the
+ * run. Throughput, upload latency percentiles and failures are reported as the run progresses and
+ * in a summary at the end.
+ *
+ * The load generator exercises the protocol only. The app's sampling, trail simplification,
+ * request coalescing and offline queue are not simulated - see SimulatedShare.
+ *
+ * Unless a backend is given with --url, the load is generated against a stand-in backend on
+ * localhost. Options:
+ *
+ *   --url URL              The Hauk backend to load. Default: a local stand-in.
+ *   --password PASSWORD    The password of the backend. Default: empty.
+ *   --shares N             The number of concurrent shares. Default: 1000.
+ *   --interval MS          The interval between location updates, in milliseconds. Default: 1000.
+ *   --batch N              The number of location updates per upload. Default: 1.
+ *   --duration S           The length of the run, in seconds. Default: 60.
+ *   --ramp S               The time over which the shares are started, in seconds. Default: 10.
+ *   --threads N            The number of threads running the shares. Default: 64.
+ *   --connections N        The number of independent connections to the backend. Default: 64.
+ *   --http2                Use HTTP/2, multiplexing all requests on one connection per origin.
+ *   --track FILE           Replay the trail in FILE rather than generating synthetic tracks.
+ *   --seed N               The seed for synthetic tracks. Default: 1.
+ *   --server-latency MS    The delay added to every response by the stand-in. Default: 0.
+ *   --capabilities LIST    The protocol features announced by the stand-in. Default: "binary".
+ *   --json                 Print the final report as JSON.
+ *
+ * @author Marius Lindvall
+ */
+public final class LoadGenerator {
+    // How often to print progress, in seconds.
+    private static final long PROGRESS_INTERVAL = 5L;
+
+    // The area synthetic tracks are generated in.
+    private static final double CENTER_LAT = 59.9139D;
+    private static final double CENTER_LON = 10.7522D;
+
+    private String url = null;
+    private String password = "";
+    private int shares = 1000;
+    private long interval = 1000L;
+    private int batch = 1;
+    private int duration = 60;
+    private int ramp = 10;
+    private int threads = 64;
+    private int connections = 64;
+    private boolean http2 = false;
+    private File trackFile = null;
+    private long seed = 1L;
+    private long serverLatency = 0L;
+    private String capabilities = "binary";
+    private boolean json = false;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator gen = new LoadGenerator();
+        try {
+            gen.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("See the documentation of " + LoadGenerator.class.getName() + " for the available options.");
+            System.exit(2);
+            return;
+        }
+        gen.run();
+        // Keep-alive connections and the HTTP/2 dispatcher keep non-daemon threads running.
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--http2": this.http2 = true; continue;
+                case "--json": this.json = true; continue;
+                default: break;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--url": this.url = value; break;
+                    case "--password": this.password = value; break;
+                    case "--shares": this.shares = positive(arg, Integer.parseInt(value)); break;
+                    case "--interval": this.interval = positive(arg, Integer.parseInt(value)); break;
+                    case "--batch": this.batch = positive(arg, Integer.parseInt(value)); break;
+                    case "--duration": this.duration = positive(arg, Integer.parseInt(value)); break;
+                    case "--ramp": this.ramp = Math.max(0, Integer.parseInt(value)); break;
+                    case "--threads": this.threads = positive(arg, Integer.parseInt(value)); break;
+                    case "--connections": this.connections = positive(arg, Integer.parseInt(value)); break;
+                    case "--track": this.trackFile = new File(value); break;
+                    case "--seed": this.seed = Long.parseLong(value); break;
+                    case "--server-latency": this.serverLatency = Math.max(0, Integer.parseInt(value)); break;
+                    case "--capabilities": this.capabilities = value; break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+            }
+        }
+    }
+
+    private static int positive(String arg, int value) {
+        if (value <= 0) throw new IllegalArgumentException(arg + " must be positive");
+        return value;
+    }
+
+    private void run() throws Exception {
+        List<double[]> trail = this.trackFile != null ? Track.load(this.trackFile) : null;
+
+        StandInServer standIn = null;
+        String server = this.url;
+        if (server == null) {
+            standIn = StandInServer.start(Math.max(4, this.threads), this.serverLatency, this.capabilities);
+            server = standIn.getBaseUrl();
+        }
+
+        // The platform HTTP stack keeps at most this many idle connections per origin.
+        System.setProperty("http.maxConnections", String.valueOf(this.connections));
+        HTTPClient.setPreferredTransport(this.http2 ? HTTPClient.Transport.HTTP_2 : HTTPClient.Transport.HTTP_1_1);
+
+        // Each client sends one request at a time over HTTP/1.1, so the number of clients is the
+        // number of connections the load is spread over. Over HTTP/2, they share one connection.
+        HaukClient[] clients = new HaukClient[this.connections];
+        for (int i = 0; i < clients.length; i++) clients[i] = new HaukClient(server, false);
+
+        System.err.println(String.format(Locale.US, "Running %d shares against %s for %d s (interval %d ms, batch %d, %s)",
+                this.shares, server, this.duration, this.interval, this.batch, this.http2 ? "HTTP/2" : "HTTP/1.1"));
+
+        final Metrics metrics = new Metrics();
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(this.threads);
+        executor.setRemoveOnCancelPolicy(true);
+
+        final List<SimulatedShare> running = new ArrayList<>();
+        final List<ScheduledFuture<?>> futures = new ArrayList<>();
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger createFailed = new AtomicInteger();
+
+        // Start the shares evenly spread over the ramp-up time. Sessions are created on the
+        // executor, so that the backend sees creations at the same rate.
+        Random random = new Random(this.seed);
+        long rampNanos = TimeUnit.SECONDS.toNanos(this.ramp);
+        for (int i = 0; i < this.shares; i++) {
+            Track track = trail != null ? Track.replay(trail, random.nextInt(trail.size())) : Track.synthetic(random, CENTER_LAT, CENTER_LON);
+            final SimulatedShare share = new SimulatedShare(clients[i % clients.length], metrics, track, this.batch, this.interval);
+            long delay = rampNanos * i / this.shares;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        share.create(password, duration + ramp + 60);
+                    } catch (Exception e) {
+                        createFailed.incrementAndGet();
+                        metrics.recordFailure(Metrics.Failure.classify(e));
+                        return;
+                    }
+                    created.incrementAndGet();
+                    synchronized (running) {
+                        if (executor.isShutdown()) return;
+                        running.add(share);
+                        futures.add(executor.scheduleAtFixedRate(share, 0L, interval, TimeUnit.MILLISECONDS));
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        ScheduledFuture<?> progress = executor.scheduleAtFixedRate(new Runnable() {
+            private Metrics.Snapshot last = metrics.snapshot();
+
+            @Override
+            public void run() {
+                Metrics.Snapshot now = metrics.snapshot();
+                System.err.println(progressLine(now, this.last, created.get()));
+                this.last = now;
+            }
+        }, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.ramp + this.duration));
+        progress.cancel(false);
+        Metrics.Snapshot result = metrics.snapshot();
+
+        // Stop generating load, then remove the sessions from the backend.
+        synchronized (running) {
+            for (ScheduledFuture<?> future : futures) future.cancel(false);
+            executor.shutdown();
+        }
+        executor.awaitTermination(30L, TimeUnit.SECONDS);
+        for (SimulatedShare share : running) share.stop();
+
+        long requests = 0L;
+        long handshakes = 0L;
+        for (HaukClient client : clients) {
+            requests += client.getStats().getRequests();
+            handshakes += client.getStats().getHandshakes();
+        }
+
+        if (this.json) {
+            System.out.println(String.format(Locale.US, "{\"shares\":%d,\"created\":%d,\"createFailed\":%d,\"requests\":%d,\"handshakes\":%d,\"metrics\":%s}",
+                    this.shares, created.get(), createFailed.get(), requests, handshakes, result.toJson()));
+        } else {
+            double seconds = result.getUptime() / 1000D;
+            System.out.println(result.toString());
+            System.out.println(String.format(Locale.US, "Shares: %d of %d created, %d failed", created.get(), this.shares, createFailed.get()));
+            System.out.println(String.format(Locale.US, "Throughput: %.1f uploads/s, %.1f points/s",
+                    result.getUploads() / seconds, result.getDelivered() / seconds));
+            System.out.println(String.format(Locale.US, "Connections: %d requests, %d TLS handshakes", requests, handshakes));
+        }
+        if (standIn != null) {
+            System.out.println(String.format(Locale.US, "Stand-in: %d requests, %d points received, %d rejected, %d sessions left",
+                    standIn.getRequests(), standIn.getPoints(), standIn.getRejected(), standIn.getActiveSessions()));
+            standIn.stop();
+        }
+    }
+
+    /**
+     * Formats the progress since the previous snapshot.
+     */
+    private static String progressLine(Metrics.Snapshot now, Metrics.Snapshot last, int shares) {
+        double seconds = Math.max(1L, now.getUptime() - last.getUptime()) / 1000D;
+        return String.format(Locale.US, "%4ds  %6d shares  %8.1f uploads/s  %8.1f points/s  p50 %7.1f ms  p99 %7.1f ms  %d failures",
+                now.getUptime() / 1000L, shares,
+                (now.getUploads() - last.getUploads()) / seconds,
+                (now.getDelivered() - last.getDelivered()) / seconds,
+                now.getLatency(50) / 1000D, now.getLatency(99) / 1000D, now.getFailures());
+    }
+}
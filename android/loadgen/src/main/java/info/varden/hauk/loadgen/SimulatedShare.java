@@ -0,0 +1,114 @@
+package info.varden.hauk.loadgen;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.metrics.Metrics;
+import info.varden.hauk.protocol.HaukClient;
+import info.varden.hauk.protocol.Session;
+import info.varden.hauk.service.BatchPolicy;
+import info.varden.hauk.service.LocationBatch;
+import info.varden.hauk.service.LocationBatcher;
+
+/**
+ * A simulated device sharing its location. The share is created with api/create.php, produces a
+ * location update every interval, which is batched and pushed to the backend, and is removed with
+ * api/stop.php when the run ends.
+ *
+ * This simulates the protocol, not the app. Updates go through the app's batcher, encoders and
+ * HTTP client, but the rest of the app's push pipeline (SharePipeline) depends on Android and is
+ * not run: there is no sampling policy, trail simplification, coalescing in the request executor,
+ * offline queue or retry. Every update is produced and every batch is sent exactly once, so the
+ * request rate seen by the backend is an upper bound on that of the same number of phones.
+ *
+ * The share is run once per interval by a scheduled executor, which never runs it on more than one
+ * thread at a time. Requests are made synchronously, so a slow backend delays the following
+ * updates, as it does on a phone. Upload latency is measured from the time the update was due
+ * rather than the time the request was sent, so that this delay is included in the latency.
+ *
+ * @author Marius Lindvall
+ */
+final class SimulatedShare implements Runnable {
+    private final HaukClient client;
+    private final Metrics metrics;
+    private final Track track;
+    private final int batchSize;
+    private final long interval;
+
+    private Session session = null;
+    private LocationBatcher batcher = null;
+
+    // The time the next location update is due, and the time the update that completed the
+    // current batch was due, on the System.nanoTime() clock.
+    private long nextDue;
+    private long batchDue;
+
+    /**
+     * Creates a simulated share.
+     *
+     * @param client    The client for the backend.
+     * @param metrics   The metrics to record uploads, deliveries and failures in.
+     * @param track     The movement of the device.
+     * @param batchSize The number of location updates per upload.
+     * @param interval  The interval between location updates, in milliseconds.
+     */
+    SimulatedShare(HaukClient client, Metrics metrics, Track track, int batchSize, long interval) {
+        this.client = client;
+        this.metrics = metrics;
+        this.track = track;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    /**
+     * Creates the session for this share.
+     *
+     * @param password The password of the backend.
+     * @param duration The duration of the share, in seconds.
+     * @throws Exception if the session could not be created.
+     */
+    void create(String password, int duration) throws Exception {
+        this.session = this.client.create(password, duration, (int) Math.max(1L, this.interval / 1000L));
+        BatchPolicy policy = new BatchPolicy(this.batchSize, this.batchSize * this.interval, BatchPolicy.DEFAULT_MAX_BYTES);
+        this.batcher = new LocationBatcher(this.session.getId(), this.session.getFormat(), policy, new LocationBatcher.Flusher() {
+            @Override
+            public void flush(LocationBatch batch) {
+                push(batch);
+            }
+        });
+        this.nextDue = System.nanoTime();
+    }
+
+    /**
+     * Produces the next location update, and pushes the batch if it is full.
+     */
+    @Override
+    public synchronized void run() {
+        if (this.batcher == null) return;
+        this.batchDue = this.nextDue;
+        this.nextDue += this.interval * 1000000L;
+
+        this.track.next(this.interval / 1000D);
+        this.metrics.recordFix();
+        this.batcher.add(this.track.lat, this.track.lon, System.currentTimeMillis() / 1000D, this.track.acc, this.track.spd);
+    }
+
+    /**
+     * Removes the share from the backend. Updates that have not been pushed yet are discarded.
+     */
+    synchronized void stop() {
+        if (this.session == null) return;
+        HTTPThread.Response resp = this.client.stop(this.session.getId());
+        if (resp.getException() != null) this.metrics.recordFailure(Metrics.Failure.classify(resp.getException()));
+        this.session = null;
+        this.batcher = null;
+    }
+
+    private void push(LocationBatch batch) {
+        this.metrics.recordUpload(batch.size(), batch.getEncodedSize());
+        HTTPThread.Response resp = this.client.post(batch);
+        Exception e = resp.getException();
+        if (e != null) this.metrics.recordFailure(Metrics.Failure.classify(e));
+        else if (!resp.isOK()) this.metrics.recordFailure(Metrics.Failure.REJECTED);
+        else this.metrics.recordDelivery(batch.size(), System.nanoTime() - this.batchDue);
+        this.batcher.recycle(batch);
+    }
+}
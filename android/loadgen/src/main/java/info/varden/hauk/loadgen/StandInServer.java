@@ -0,0 +1,232 @@
+package info.varden.hauk.loadgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info.varden.hauk.service.BinaryLocationCodec;
+import info.varden.hauk.service.DeltaLocationCodec;
+import info.varden.hauk.service.LocationBatch;
+
+/**
+ * A minimal stand-in for the Hauk backend on localhost, so that load can be generated without a
+ * real server. It implements api/create.php, api/post.php and api/stop.php closely enough for the
+ * app's client: sessions are created without checking the password, pushed location updates are
+ * decoded and counted, and updates for unknown sessions are rejected as the real backend does.
+ * Nothing is stored.
+ *
+ * The server can add a fixed delay to every response to simulate a slower backend or network.
+ *
+ * @author Marius Lindvall
+ */
+final class StandInServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String baseUrl;
+    private final String capabilities;
+    private final long delay;
+
+    // The number of points received for each active session.
+    private final ConcurrentHashMap<String, AtomicLong> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSession = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong points = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Starts a stand-in server on a free port on the loopback interface.
+     *
+     * @param threads      The number of threads handling requests.
+     * @param delay        The delay added to every response, in milliseconds.
+     * @param capabilities The optional protocol features to announce, separated by spaces, e.g.
+     *                     "binary delta".
+     * @return The running server.
+     * @throws IOException if the server could not be started.
+     */
+    static StandInServer start(int threads, long delay, String capabilities) throws IOException {
+        return new StandInServer(threads, delay, capabilities);
+    }
+
+    private StandInServer(int threads, long delay, String capabilities) throws IOException {
+        this.delay = delay;
+        this.capabilities = capabilities;
+        // Without this, small responses wait for delayed ACKs, adding about 40 ms to every request.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        this.baseUrl = "http://" + this.server.getAddress().getAddress().getHostAddress() + ":" + this.server.getAddress().getPort() + "/";
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.executor);
+
+        this.server.createContext("/api/create.php", new Handler() {
+            @Override
+            String handle(byte[] body, String contentType) {
+                String session = Long.toHexString(0x1000000L + nextSession.incrementAndGet());
+                sessions.put(session, new AtomicLong());
+                return "OK\n" + session + "\n" + baseUrl + "?" + session + "\n" + StandInServer.this.capabilities + "\n";
+            }
+        });
+        this.server.createContext("/api/post.php", new Handler() {
+            @Override
+            String handle(byte[] body, String contentType) {
+                LocationBatch batch = decode(body, contentType);
+                AtomicLong received = batch != null ? sessions.get(batch.getSession()) : null;
+                if (received == null) {
+                    rejected.incrementAndGet();
+                    return "Session expired!\n";
+                }
+                received.addAndGet(batch.size());
+                points.addAndGet(batch.size());
+                return "OK\n";
+            }
+        });
+        this.server.createContext("/api/stop.php", new Handler() {
+            @Override
+            String handle(byte[] body, String contentType) {
+                String session = decodeForm(new String(body, UTF_8)).getSession();
+                if (session == null || sessions.remove(session) == null) {
+                    rejected.incrementAndGet();
+                    return "Session expired!\n";
+                }
+                return "OK\n";
+            }
+        });
+        this.server.start();
+    }
+
+    String getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Returns the number of points received for valid sessions.
+     */
+    long getPoints() {
+        return this.points.get();
+    }
+
+    /**
+     * Returns the number of requests for sessions that do not exist, or with bodies that could not
+     * be decoded.
+     */
+    long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Returns the number of sessions that have been created and not stopped.
+     */
+    int getActiveSessions() {
+        return this.sessions.size();
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decodes the body of an api/post.php request, or returns null if it is invalid.
+     */
+    private static LocationBatch decode(byte[] body, String contentType) {
+        try {
+            if (contentType != null && contentType.startsWith(BinaryLocationCodec.CONTENT_TYPE)) {
+                // Both binary formats share a header, and are told apart by their version byte.
+                if (body.length > 1 && body[1] == 2) return DeltaLocationCodec.decode(body, 0, body.length);
+                return BinaryLocationCodec.decode(body, 0, body.length);
+            }
+            LocationBatch batch = decodeForm(new String(body, UTF_8));
+            return batch.getSession() != null ? batch : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a form-encoded body with either a single point or arrays of points.
+     */
+    private static LocationBatch decodeForm(String body) {
+        String session = null;
+        int count = 0;
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            String key;
+            String value;
+            try {
+                key = URLDecoder.decode(pair.substring(0, eq), "UTF-8");
+                value = URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            } catch (IOException | IllegalArgumentException e) {
+                continue;
+            }
+            if (key.equals("sid")) session = value;
+            else if (key.equals("lat") || key.equals("lat[]")) count++;
+        }
+        // Only the number of points is needed, so the points themselves are not decoded.
+        LocationBatch batch = new LocationBatch(session, Math.max(count, 1), LocationBatch.Format.FORM);
+        for (int i = 0; i < count; i++) batch.add(0D, 0D, 0D, Float.NaN, Float.NaN);
+        return batch;
+    }
+
+    /**
+     * Reads the request body, and writes the response returned by handle() as plain text.
+     */
+    private abstract class Handler implements HttpHandler {
+        abstract String handle(byte[] body, String contentType);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                byte[] body = readFully(exchange.getRequestBody());
+                String response = handle(body, exchange.getRequestHeaders().getFirst("Content-Type"));
+                if (delay > 0L) Thread.sleep(delay);
+
+                byte[] bytes = response.getBytes(UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(bytes);
+                os.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = is.read(buf)) > 0) out.write(buf, 0, read);
+        is.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+package info.varden.hauk.loadgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The movement of a simulated device. A track is either a synthetic walk or drive, or a replay of
+ * a recorded trail. Each call to next() moves the device to its next location.
+ *
+ * @author Marius Lindvall
+ */
+abstract class Track {
+    // The current location of the device.
+    double lat;
+    double lon;
+    float acc;
+    float spd;
+
+    /**
+     * Moves the device to its next location.
+     *
+     * @param seconds The time since the previous location, in seconds.
+     */
+    abstract void next(double seconds);
+
+    /**
+     * Creates a synthetic track that starts at a random place around the given center and moves
+     * in a random direction at a random, slowly changing speed.
+     *
+     * @param random The source of randomness. Tracks created from equally seeded sources are equal.
+     * @param lat    The latitude of the center, in degrees.
+     * @param lon    The longitude of the center, in degrees.
+     */
+    static Track synthetic(Random random, double lat, double lon) {
+        return new Synthetic(random, lat, lon);
+    }
+
+    /**
+     * Creates a track that replays a recorded trail, starting at the given point and starting
+     * over when the end is reached. One point is replayed per location update.
+     *
+     * @param points The points of the trail, as latitude and longitude pairs.
+     * @param start  The index of the first point to replay.
+     */
+    static Track replay(List<double[]> points, int start) {
+        return new Replay(points, start);
+    }
+
+    /**
+     * Loads a recorded trail from a file with one point per line, as comma-separated latitude and
+     * longitude in degrees. Further columns, empty lines and lines starting with '#' are ignored.
+     *
+     * @param file The file to load.
+     * @return The points of the trail.
+     * @throws IOException if the file cannot be read or has no valid points.
+     */
+    static List<double[]> load(File file) throws IOException {
+        List<double[]> points = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] columns = line.split(",");
+                try {
+                    points.add(new double[] {Double.parseDouble(columns[0].trim()), Double.parseDouble(columns[1].trim())});
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException(file + ":" + number + ": expected latitude,longitude");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (points.isEmpty()) throw new IOException(file + ": no points");
+        return points;
+    }
+
+    private static final class Synthetic extends Track {
+        // Meters per degree of latitude.
+        private static final double METERS_PER_DEGREE = 111320D;
+
+        private final Random random;
+        private double heading;
+
+        private Synthetic(Random random, double lat, double lon) {
+            this.random = random;
+            // Devices start within about 10 km of the center, walking, cycling or driving.
+            this.lat = lat + (random.nextDouble() - 0.5D) * 0.2D;
+            this.lon = lon + (random.nextDouble() - 0.5D) * 0.2D;
+            this.heading = random.nextDouble() * 2D * Math.PI;
+            this.spd = 1F + random.nextFloat() * 19F;
+            this.acc = 5F;
+        }
+
+        @Override
+        void next(double seconds) {
+            this.heading += (this.random.nextDouble() - 0.5D) * 0.3D;
+            this.spd = Math.max(0F, Math.min(30F, this.spd + (this.random.nextFloat() - 0.5F)));
+            this.acc = 3F + this.random.nextFloat() * 12F;
+            double distance = this.spd * seconds;
+            this.lat += Math.cos(this.heading) * distance / METERS_PER_DEGREE;
+            this.lon += Math.sin(this.heading) * distance / (METERS_PER_DEGREE * Math.cos(Math.toRadians(this.lat)));
+        }
+    }
+
+    private static final class Replay extends Track {
+        private final List<double[]> points;
+        private int index;
+
+        private Replay(List<double[]> points, int start) {
+            this.points = points;
+            this.index = start % points.size();
+            this.acc = 5F;
+            this.spd = Float.NaN;
+            double[] point = points.get(this.index);
+            this.lat = point[0];
+            this.lon = point[1];
+        }
+
+        @Override
+        void next(double seconds) {
+            this.index = (this.index + 1) % this.points.size();
+            double[] point = this.points.get(this.index);
+            this.lat = point[0];
+            this.lon = point[1];
+        }
+    }
+}
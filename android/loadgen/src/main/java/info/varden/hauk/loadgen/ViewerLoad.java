@@ -0,0 +1,392 @@
+package info.varden.hauk.loadgen;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import info.varden.hauk.HTTPThread;
+import info.varden.hauk.metrics.LatencyHistogram;
+import info.varden.hauk.protocol.HaukClient;
+import info.varden.hauk.protocol.Session;
+import info.varden.hauk.server.Config;
+import info.varden.hauk.server.EventDispatcher;
+import info.varden.hauk.server.HaukServer;
+import info.varden.hauk.service.LocationBatch;
+
+/**
+ * A load test of the push path for viewers. A number of active shares post a location update
+ * every interval, while a number of idle shares post nothing. Thousands of viewers subscribe to
+ * api/events.php of the shares, as browsers with the viewer page open would, and the time from
+ * each post until a viewer receives it is measured once all viewers have connected. All viewers
+ * run on a single selector thread.
+ *
+ * Unless a backend is given with --url, the load is generated against the JVM backend, embedded
+ * in the same process, and its counters are included in the report. Each viewer uses a socket on
+ * both ends, so the limit of open files may have to be raised, e.g. with ulimit -n 25000 for the
+ * default of 10000 viewers. Options:
+ *
+ *   --url URL              The Hauk backend to load. Default: an embedded JVM backend.
+ *   --password PASSWORD    The password of the backend. Default: empty.
+ *   --shares N             The number of active shares. Default: 100.
+ *   --idle-shares N        The number of idle shares. Default: 100.
+ *   --viewers N            The number of viewers of the active shares. Default: 5000.
+ *   --idle-viewers N       The number of viewers of the idle shares. Default: 5000.
+ *   --interval MS          The interval between location updates, in milliseconds. Default: 1000.
+ *   --duration S           The length of the run, in seconds. Default: 60.
+ *   --ramp S               The time over which the viewers connect, in seconds. Default: 10.
+ *   --connections N        The number of connections posting updates. Default: 16.
+ *   --seed N               The seed for the tracks and timing. Default: 1.
+ *   --json                 Print the final report as JSON.
+ *
+ * @author Marius Lindvall
+ */
+public final class ViewerLoad implements EventViewer.Listener {
+    // How often to print progress, in seconds.
+    private static final long PROGRESS_INTERVAL = 5L;
+
+    // How long a viewer waits before reconnecting, in milliseconds.
+    private static final long RECONNECT_DELAY = 1000L;
+
+    // The number of recent posts per share whose send times are kept to measure latency.
+    private static final int SLOTS = 64;
+
+    // The area synthetic tracks are generated in.
+    private static final double CENTER_LAT = 59.9139D;
+    private static final double CENTER_LON = 10.7522D;
+
+    private String url = null;
+    private String password = "";
+    private int activeShares = 100;
+    private int idleShares = 100;
+    private int activeViewers = 5000;
+    private int idleViewers = 5000;
+    private long interval = 1000L;
+    private int duration = 60;
+    private int ramp = 10;
+    private int connections = 16;
+    private long seed = 1L;
+    private boolean json = false;
+
+    // The time each recent post was sent, by share and sequence number, on the System.nanoTime()
+    // clock.
+    private AtomicLongArray[] sent;
+
+    // The latency once all viewers have connected, and in the current progress interval, in
+    // microseconds.
+    private final LatencyHistogram latency = newHistogram();
+    private volatile LatencyHistogram window = newHistogram();
+    private volatile boolean measuring = false;
+    private final AtomicInteger subscribed = new AtomicInteger();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong ended = new AtomicLong();
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong postFailures = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<EventViewer> pending = new ConcurrentLinkedQueue<>();
+    private final List<EventViewer> viewers = new ArrayList<>();
+    private ScheduledThreadPoolExecutor executor;
+    private Selector selector;
+    private volatile boolean running = true;
+
+    private ViewerLoad() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ViewerLoad load = new ViewerLoad();
+        try {
+            load.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("See the documentation of " + ViewerLoad.class.getName() + " for the available options.");
+            System.exit(2);
+            return;
+        }
+        load.run();
+        // Keep-alive connections keep non-daemon threads running.
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--json")) {
+                this.json = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--url": this.url = value; break;
+                    case "--password": this.password = value; break;
+                    case "--shares": this.activeShares = positive(arg, Integer.parseInt(value)); break;
+                    case "--idle-shares": this.idleShares = Math.max(0, Integer.parseInt(value)); break;
+                    case "--viewers": this.activeViewers = Math.max(0, Integer.parseInt(value)); break;
+                    case "--idle-viewers": this.idleViewers = Math.max(0, Integer.parseInt(value)); break;
+                    case "--interval": this.interval = positive(arg, Integer.parseInt(value)); break;
+                    case "--duration": this.duration = positive(arg, Integer.parseInt(value)); break;
+                    case "--ramp": this.ramp = Math.max(0, Integer.parseInt(value)); break;
+                    case "--connections": this.connections = positive(arg, Integer.parseInt(value)); break;
+                    case "--seed": this.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+            }
+        }
+        if (this.idleViewers > 0 && this.idleShares == 0) throw new IllegalArgumentException("--idle-viewers requires --idle-shares");
+    }
+
+    private static int positive(String arg, int value) {
+        if (value <= 0) throw new IllegalArgumentException(arg + " must be positive");
+        return value;
+    }
+
+    private void run() throws Exception {
+        HaukServer embedded = null;
+        String server = this.url;
+        if (server == null) {
+            // Without this, pushed events wait for delayed ACKs, adding about 40 ms to the latency.
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            embedded = new HaukServer(new Config()
+                    .setPassword(this.password)
+                    .setAddress("127.0.0.1", 0));
+            embedded.start();
+            server = embedded.getBaseUrl();
+        }
+        URL base = new URL(HaukClient.toBaseUrl(server));
+        int port = base.getPort() >= 0 ? base.getPort() : base.getDefaultPort();
+        InetSocketAddress address = new InetSocketAddress(base.getHost(), port);
+        String host = base.getHost() + (base.getPort() >= 0 ? ":" + base.getPort() : "");
+
+        System.setProperty("http.maxConnections", String.valueOf(this.connections));
+        HaukClient[] clients = new HaukClient[this.connections];
+        for (int i = 0; i < clients.length; i++) clients[i] = new HaukClient(server, false);
+
+        // Create the shares, each with one point, so that viewers have something to show.
+        int shareCount = this.activeShares + this.idleShares;
+        int seconds = (int) Math.max(1L, this.interval / 1000L);
+        Session[] sessions = new Session[shareCount];
+        String[] links = new String[shareCount];
+        this.sent = new AtomicLongArray[this.activeShares];
+        final AtomicLong[] sequences = new AtomicLong[this.activeShares];
+        for (int i = 0; i < shareCount; i++) {
+            sessions[i] = clients[i % clients.length].create(this.password, this.ramp + this.duration + 60, seconds);
+            links[i] = sessions[i].getViewUrl().substring(sessions[i].getViewUrl().indexOf('?') + 1);
+            LocationBatch batch = new LocationBatch(sessions[i].getId(), 1, sessions[i].getFormat());
+            batch.add(CENTER_LAT, CENTER_LON, System.currentTimeMillis() / 1000D, Float.NaN, Float.NaN);
+            if (!clients[i % clients.length].post(batch).isOK()) throw new IOException("Could not post to share " + links[i]);
+            if (i < this.activeShares) {
+                this.sent[i] = new AtomicLongArray(SLOTS);
+                sequences[i] = new AtomicLong(1L);
+            }
+        }
+
+        System.err.println(String.format(Locale.US, "Running %d viewers of %d active and %d viewers of %d idle shares against %s for %d s (interval %d ms)",
+                this.activeViewers, this.activeShares, this.idleViewers, this.idleShares, server, this.duration, this.interval));
+
+        this.selector = Selector.open();
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, "viewers");
+        loop.start();
+
+        this.executor = new ScheduledThreadPoolExecutor(this.connections + 1);
+        this.executor.setRemoveOnCancelPolicy(true);
+
+        // Connect the viewers evenly spread over the ramp-up time.
+        int viewerCount = this.activeViewers + this.idleViewers;
+        long rampNanos = TimeUnit.SECONDS.toNanos(this.ramp);
+        for (int i = 0; i < viewerCount; i++) {
+            int share = i < this.activeViewers ? i % this.activeShares : this.activeShares + (i - this.activeViewers) % this.idleShares;
+            final EventViewer viewer = new EventViewer(address, host, base.getPath() + "api/events.php?id=" + links[share], share, this);
+            this.viewers.add(viewer);
+            this.executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect(viewer);
+                }
+            }, rampNanos * i / viewerCount, TimeUnit.NANOSECONDS);
+        }
+
+        // Post to the active shares, at random offsets within the interval.
+        Random random = new Random(this.seed);
+        List<ScheduledFuture<?>> posters = new ArrayList<>();
+        for (int i = 0; i < this.activeShares; i++) {
+            final int share = i;
+            final HaukClient client = clients[i % clients.length];
+            final Session session = sessions[i];
+            final Track track = Track.synthetic(random, CENTER_LAT, CENTER_LON);
+            final LocationBatch batch = new LocationBatch(session.getId(), 1, session.getFormat());
+            posters.add(this.executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    track.next(interval / 1000D);
+                    batch.reset();
+                    batch.add(track.lat, track.lon, System.currentTimeMillis() / 1000D, track.acc, track.spd);
+                    long seq = sequences[share].incrementAndGet();
+                    sent[share].set((int) (seq % SLOTS), System.nanoTime());
+                    HTTPThread.Response resp = client.post(batch);
+                    posts.incrementAndGet();
+                    if (resp.getException() != null || !resp.isOK()) postFailures.incrementAndGet();
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(random.nextInt((int) this.interval)), TimeUnit.MILLISECONDS.toNanos(this.interval), TimeUnit.NANOSECONDS));
+        }
+
+        final long start = System.nanoTime();
+        ScheduledFuture<?> progress = this.executor.scheduleAtFixedRate(new Runnable() {
+            private long lastEvents = 0L;
+
+            @Override
+            public void run() {
+                long now = events.get();
+                LatencyHistogram last = window;
+                window = newHistogram();
+                System.err.println(String.format(Locale.US, "%4ds  %6d viewers  %9.1f events/s  p50 %7.1f ms  p99 %7.1f ms  %d disconnects",
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), subscribed.get(),
+                        (now - this.lastEvents) / (double) PROGRESS_INTERVAL,
+                        last.getValueAtPercentile(50D) / 1000D, last.getValueAtPercentile(99D) / 1000D, disconnects.get()));
+                this.lastEvents = now;
+            }
+        }, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+        // Latency is reported for the time after the ramp-up, when all viewers are connected.
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.ramp));
+        this.measuring = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+        progress.cancel(false);
+        for (ScheduledFuture<?> poster : posters) poster.cancel(false);
+        int peak = this.subscribed.get();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        EventDispatcher dispatcher = embedded != null ? embedded.getDispatcher() : null;
+        long published = dispatcher != null ? dispatcher.getPublished() : 0L;
+        long delivered = dispatcher != null ? dispatcher.getDelivered() : 0L;
+        long evicted = dispatcher != null ? dispatcher.getEvicted() : 0L;
+
+        // Stopping the shares ends the streams of their viewers.
+        this.running = false;
+        for (int i = 0; i < shareCount; i++) clients[i % clients.length].stop(sessions[i].getId());
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (this.subscribed.get() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10L);
+        this.executor.shutdownNow();
+        this.selector.close();
+        loop.join(5000L);
+        if (embedded != null) embedded.stop();
+
+        double secs = elapsed / 1000D;
+        if (this.json) {
+            System.out.println(String.format(Locale.US, "{\"viewers\":%d,\"subscribed\":%d,\"ended\":%d,\"events\":%d,\"disconnects\":%d,\"posts\":%d,\"postFailures\":%d,"
+                            + "\"latency\":{\"count\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d},\"threads\":%d,\"published\":%d,\"delivered\":%d,\"evicted\":%d}",
+                    viewerCount, peak, this.ended.get(), this.events.get(), this.disconnects.get(), this.posts.get(), this.postFailures.get(),
+                    this.latency.getCount(), this.latency.getMean(), this.latency.getValueAtPercentile(50D), this.latency.getValueAtPercentile(90D),
+                    this.latency.getValueAtPercentile(99D), this.latency.getMax(), threads, published, delivered, evicted));
+        } else {
+            System.out.println(String.format(Locale.US, "Viewers: %d of %d subscribed, %d streams ended, %d disconnects", peak, viewerCount, this.ended.get(), this.disconnects.get()));
+            System.out.println(String.format(Locale.US, "Posts: %d (%.1f/s), %d failed", this.posts.get(), this.posts.get() / secs, this.postFailures.get()));
+            System.out.println(String.format(Locale.US, "Events: %d (%.1f/s)", this.events.get(), this.events.get() / secs));
+            System.out.println(String.format(Locale.US, "Latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    this.latency.getValueAtPercentile(50D) / 1000D, this.latency.getValueAtPercentile(90D) / 1000D,
+                    this.latency.getValueAtPercentile(99D) / 1000D, this.latency.getMax() / 1000D));
+            System.out.println(String.format(Locale.US, "Threads: %d", threads));
+            if (dispatcher != null) {
+                System.out.println(String.format(Locale.US, "Backend: %d frames published, %d written to viewers, %d viewers evicted", published, delivered, evicted));
+            }
+        }
+    }
+
+    private static LatencyHistogram newHistogram() {
+        return new LatencyHistogram(TimeUnit.MINUTES.toMicros(1L));
+    }
+
+    /**
+     * Runs the viewers until the selector is closed.
+     */
+    private void select() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (this.selector.isOpen()) {
+                this.selector.select(100L);
+                EventViewer viewer;
+                while ((viewer = this.pending.poll()) != null) {
+                    try {
+                        viewer.connect(this.selector);
+                    } catch (IOException e) {
+                        viewer.disconnect(null);
+                        onDisconnect(viewer, e);
+                    }
+                }
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    ((EventViewer) key.attachment()).handle(key, buffer);
+                }
+                this.selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The run is over.
+        }
+        for (EventViewer viewer : this.viewers) viewer.disconnect(null);
+    }
+
+    private void connect(EventViewer viewer) {
+        if (!this.running) return;
+        this.pending.add(viewer);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void onEvent(EventViewer viewer, long id, boolean first) {
+        this.events.incrementAndGet();
+        if (first) {
+            this.subscribed.incrementAndGet();
+            // The first event of a connection is the trail so far, not a new post.
+            return;
+        }
+        int share = viewer.getShare();
+        if (share >= this.activeShares) return;
+        long sentAt = this.sent[share].get((int) (id % SLOTS));
+        if (sentAt == 0L) return;
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt);
+        this.window.record(micros);
+        if (this.measuring) this.latency.record(micros);
+    }
+
+    @Override
+    public void onEnd(EventViewer viewer) {
+        this.ended.incrementAndGet();
+        if (viewer.isSubscribed()) this.subscribed.decrementAndGet();
+    }
+
+    @Override
+    public void onDisconnect(final EventViewer viewer, Exception reason) {
+        if (viewer.isSubscribed()) this.subscribed.decrementAndGet();
+        if (!this.running) return;
+        this.disconnects.incrementAndGet();
+        // Reconnect as a browser would, resuming after the last event received.
+        this.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(viewer);
+            }
+        }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,188 @@
+package info.varden.hauk.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The configuration of the backend. The settings and their defaults mirror those of the PHP
+ * backend's config.php. Settings can be changed in code when the backend is embedded, or loaded
+ * from a properties file when it runs on its own.
+ *
+ * @author Marius Lindvall
+ */
+public final class Config {
+    private String password = "";
+    private String publicUrl = "http://localhost:9494/";
+    private String bind = "0.0.0.0";
+    private int port = 9494;
+    private int threads = 16;
+    private int maxDuration = 86400;
+    private double minInterval = 1D;
+    private int maxCachedPoints = 3;
+    private int viewerBuffer = 32;
+    private int maxStreams = 64;
+    private boolean gzip = true;
+
+    /**
+     * Loads a configuration from a properties file. Settings that are not in the file keep their
+     * defaults.
+     *
+     * @param file The file to load.
+     * @throws IOException if the file cannot be read.
+     * @throws NumberFormatException if a numeric setting is invalid.
+     */
+    public static Config load(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+        Config config = new Config();
+        config.password = props.getProperty("password", config.password);
+        config.publicUrl = props.getProperty("public_url", config.publicUrl);
+        config.bind = props.getProperty("bind", config.bind);
+        config.port = Integer.parseInt(props.getProperty("port", String.valueOf(config.port)));
+        config.threads = Integer.parseInt(props.getProperty("threads", String.valueOf(config.threads)));
+        config.maxDuration = Integer.parseInt(props.getProperty("max_duration", String.valueOf(config.maxDuration)));
+        config.minInterval = Double.parseDouble(props.getProperty("min_interval", String.valueOf(config.minInterval)));
+        config.maxCachedPoints = Integer.parseInt(props.getProperty("max_cached_pts", String.valueOf(config.maxCachedPoints)));
+        config.viewerBuffer = Integer.parseInt(props.getProperty("viewer_buffer", String.valueOf(config.viewerBuffer)));
+        config.maxStreams = Integer.parseInt(props.getProperty("max_streams", String.valueOf(config.maxStreams)));
+        config.gzip = Boolean.parseBoolean(props.getProperty("gzip", String.valueOf(config.gzip)));
+        return config;
+    }
+
+    /**
+     * Sets the password required to create shares. Unlike the PHP backend, the password is given
+     * in plain text, as in the Ruby backend.
+     */
+    public Config setPassword(String password) {
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Sets the URL of the viewer page, to which link IDs are appended to form share links.
+     */
+    public Config setPublicUrl(String publicUrl) {
+        this.publicUrl = publicUrl;
+        return this;
+    }
+
+    /**
+     * Sets the address and port to listen on. Port 0 picks a free port.
+     */
+    public Config setAddress(String bind, int port) {
+        this.bind = bind;
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads handling requests.
+     */
+    public Config setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the longest allowed share, in seconds.
+     */
+    public Config setMaxDuration(int maxDuration) {
+        this.maxDuration = maxDuration;
+        return this;
+    }
+
+    /**
+     * Sets the shortest allowed interval between location updates, in seconds.
+     */
+    public Config setMinInterval(double minInterval) {
+        this.minInterval = minInterval;
+        return this;
+    }
+
+    /**
+     * Sets the number of points kept for each share. Older points are dropped.
+     */
+    public Config setMaxCachedPoints(int maxCachedPoints) {
+        this.maxCachedPoints = maxCachedPoints;
+        return this;
+    }
+
+    /**
+     * Sets the number of events that can be queued for a viewer subscribed to a share before the
+     * viewer is considered too slow and disconnected.
+     */
+    public Config setViewerBuffer(int viewerBuffer) {
+        this.viewerBuffer = viewerBuffer;
+        return this;
+    }
+
+    /**
+     * Sets the number of location update streams that can be open at the same time. Each open
+     * stream holds a thread, in addition to the threads handling requests.
+     */
+    public Config setMaxStreams(int maxStreams) {
+        this.maxStreams = maxStreams;
+        return this;
+    }
+
+    /**
+     * Sets whether large api/fetch.php responses are compressed for viewers that accept gzip.
+     * Compressed responses are cached along with the uncompressed ones.
+     */
+    public Config setGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public String getPassword() {
+        return this.password;
+    }
+
+    public String getPublicUrl() {
+        return this.publicUrl;
+    }
+
+    public String getBind() {
+        return this.bind;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public int getMaxDuration() {
+        return this.maxDuration;
+    }
+
+    public double getMinInterval() {
+        return this.minInterval;
+    }
+
+    public int getMaxCachedPoints() {
+        return this.maxCachedPoints;
+    }
+
+    public int getViewerBuffer() {
+        return this.viewerBuffer;
+    }
+
+    public int getMaxStreams() {
+        return this.maxStreams;
+    }
+
+    public boolean isGzip() {
+        return this.gzip;
+    }
+}
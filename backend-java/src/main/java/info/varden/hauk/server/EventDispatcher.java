@@ -0,0 +1,206 @@
+package info.varden.hauk.server;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes new points to viewers as server-sent events, so that viewers do not have to poll
+ * api/fetch.php. When points are posted to a share that has subscribers, the new points are
+ * serialized once, as an api/fetch.php response with only the new points, and the same frame is
+ * queued for every subscriber of the share. The frames are written to the viewers by a small pool
+ * of writer threads, so that the number of threads does not grow with the number of viewers.
+ *
+ * Each event has the sequence number of the newest point it contains as its ID, so that a viewer
+ * that reconnects resumes after the last event it received. Subscribers are sent a comment every
+ * HEARTBEAT_INTERVAL seconds, which keeps proxies from closing idle streams and detects viewers
+ * that have gone away. Subscribers whose buffers overflow, or whose writes are blocked for longer
+ * than WRITE_TIMEOUT seconds, are evicted. Blocked writes are checked for every STALL_INTERVAL
+ * seconds and whenever frames are published, so that viewers that stop reading cannot hold on to
+ * the writer threads much longer than WRITE_TIMEOUT.
+ *
+ * @author Marius Lindvall
+ */
+public final class EventDispatcher {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // How often heartbeat() should be called, in seconds.
+    public static final long HEARTBEAT_INTERVAL = 15L;
+
+    // How often evictStalled() should be called, in seconds.
+    public static final long STALL_INTERVAL = 1L;
+
+    // How long a write to a viewer may be blocked before it is evicted, in seconds.
+    private static final long WRITE_TIMEOUT = 10L;
+
+    // Sent to end the stream when the share is stopped or has expired.
+    static final byte[] END = "event: end\ndata: \n\n".getBytes(UTF_8);
+
+    // A comment, which viewers ignore.
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF_8);
+
+    private final ExecutorService writers;
+    private final int buffer;
+    private final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param threads The number of threads writing to viewers.
+     * @param buffer  The number of frames that can be queued for a viewer before it is evicted.
+     */
+    public EventDispatcher(int threads, int buffer) {
+        this.buffer = buffer;
+        this.writers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hauk-events-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Subscribes a viewer to a stream. The caller must hold the lock of the stream while taking
+     * the snapshot of the trail that is sent as the first frame.
+     *
+     * @param stream     The stream to subscribe to.
+     * @param first      The first frame to send, with the points the viewer does not have yet.
+     * @param out        The body of the response to write frames to.
+     * @param connection Closes the connection to the viewer.
+     */
+    void subscribe(EventStream stream, byte[] first, OutputStream out, Closeable connection) {
+        Subscriber subscriber = new Subscriber(this, stream, out, connection, this.buffer);
+        this.subscribers.add(subscriber);
+        subscriber.offer(first);
+        // The share may have ended since the snapshot was taken.
+        if (!stream.add(subscriber)) subscriber.end();
+    }
+
+    /**
+     * Queues a frame for every subscriber of a stream, and evicts those that do not keep up. The
+     * caller must hold the lock of the stream.
+     */
+    void publish(EventStream stream, byte[] frame) {
+        this.published.incrementAndGet();
+        long stalled = stalledSince();
+        for (Subscriber subscriber : stream.subscribers()) {
+            if (subscriber.isStalledSince(stalled) || !subscriber.offer(frame)) evict(subscriber);
+        }
+    }
+
+    /**
+     * Sends a heartbeat to every subscriber, and evicts those whose buffers are full. Should be
+     * called every HEARTBEAT_INTERVAL seconds.
+     */
+    public void heartbeat() {
+        for (Subscriber subscriber : this.subscribers) {
+            if (!subscriber.offer(HEARTBEAT)) evict(subscriber);
+        }
+    }
+
+    /**
+     * Evicts every subscriber whose write has been blocked for longer than the write timeout,
+     * freeing the writer thread it holds. Should be called every STALL_INTERVAL seconds.
+     */
+    public void evictStalled() {
+        long stalled = stalledSince();
+        for (Subscriber subscriber : this.subscribers) {
+            if (subscriber.isStalledSince(stalled)) evict(subscriber);
+        }
+    }
+
+    /**
+     * Ends the streams of all subscribers and stops the writer threads.
+     */
+    public void shutdown() {
+        for (Subscriber subscriber : this.subscribers) subscriber.end();
+        this.writers.shutdown();
+        try {
+            if (!this.writers.awaitTermination(5L, TimeUnit.SECONDS)) this.writers.shutdownNow();
+        } catch (InterruptedException e) {
+            this.writers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of subscribed viewers.
+     */
+    public int getSubscribers() {
+        return this.subscribers.size();
+    }
+
+    /**
+     * Returns the number of frames serialized for publishing. Each is sent to all subscribers of
+     * its share.
+     */
+    public long getPublished() {
+        return this.published.get();
+    }
+
+    /**
+     * Returns the number of frames written to viewers, including heartbeats.
+     */
+    public long getDelivered() {
+        return this.delivered.get();
+    }
+
+    /**
+     * Returns the number of viewers that have been evicted for not keeping up.
+     */
+    public long getEvicted() {
+        return this.evicted.get();
+    }
+
+    /**
+     * Encodes a server-sent event with the given ID and data. The data must be on a single line.
+     */
+    static byte[] frame(long id, CharSequence data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        sb.append("id: ").append(id).append("\ndata: ").append(data).append("\n\n");
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    void execute(Subscriber subscriber) {
+        try {
+            this.writers.execute(subscriber);
+        } catch (RejectedExecutionException e) {
+            // The dispatcher has been shut down, and the server closes all connections.
+            this.subscribers.remove(subscriber);
+        }
+    }
+
+    void recordDelivered(int frames) {
+        this.delivered.addAndGet(frames);
+    }
+
+    void unregister(Subscriber subscriber) {
+        this.subscribers.remove(subscriber);
+    }
+
+    private static long stalledSince() {
+        return System.nanoTime() - TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT);
+    }
+
+    private void evict(Subscriber subscriber) {
+        if (subscriber.evict()) this.evicted.incrementAndGet();
+    }
+}
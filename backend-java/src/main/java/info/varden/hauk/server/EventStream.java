@@ -0,0 +1,59 @@
+package info.varden.hauk.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The viewers subscribed to the events of a share. New points are published to every subscriber
+ * by an EventDispatcher, and the stream is closed when the share ends.
+ *
+ * Points are appended to the trail and published while holding the lock of the stream, and new
+ * subscribers take their first snapshot of the trail under the same lock, so that a subscriber
+ * never misses points published while it subscribes.
+ *
+ * @author Marius Lindvall
+ */
+public final class EventStream {
+    private final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    // Guarded by this.
+    private boolean closed = false;
+
+    /**
+     * Adds a subscriber, unless the stream has been closed.
+     *
+     * @return true if the subscriber was added.
+     */
+    synchronized boolean add(Subscriber subscriber) {
+        if (this.closed) return false;
+        this.subscribers.add(subscriber);
+        return true;
+    }
+
+    void remove(Subscriber subscriber) {
+        this.subscribers.remove(subscriber);
+    }
+
+    /**
+     * Ends the stream for all subscribers, e.g. because the share was stopped or has expired.
+     */
+    synchronized void close() {
+        if (this.closed) return;
+        this.closed = true;
+        for (Subscriber subscriber : this.subscribers) subscriber.end();
+        this.subscribers.clear();
+    }
+
+    public boolean isEmpty() {
+        return this.subscribers.isEmpty();
+    }
+
+    public int size() {
+        return this.subscribers.size();
+    }
+
+    Iterable<Subscriber> subscribers() {
+        return this.subscribers;
+    }
+}
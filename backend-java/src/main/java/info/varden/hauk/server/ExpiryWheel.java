@@ -0,0 +1,176 @@
+package info.varden.hauk.server;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel that tracks when shares expire. Scheduling, rescheduling and
+ * cancelling a timer take constant time, and advancing the wheel by one tick takes amortized
+ * constant time plus the number of timers that fire, regardless of how many timers are pending.
+ *
+ * The wheel has four levels of 64 slots each, and a tick is one second. Level 0 holds the timers
+ * that fire within the next 64 seconds, one slot per second. Each further level covers a 64 times
+ * longer span with 64 times coarser slots, so the four levels span about 194 days. A timer is put
+ * in the lowest level that covers its deadline. Whenever the slots of a level wrap around, the
+ * next slot of the level above is emptied and its timers are moved down to the level that now
+ * covers them. Timers further in the future than the wheel spans are parked in the top level and
+ * moved again when their slot comes around.
+ *
+ * Timers are linked into their slots through the timer objects themselves, so the wheel does not
+ * allocate after it has been created.
+ *
+ * @author Marius Lindvall
+ */
+final class ExpiryWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    // The number of ticks spanned by the whole wheel.
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    /**
+     * A timer for one value. A timer is scheduled in at most one slot at a time.
+     */
+    static final class Timer<T> {
+        private final T value;
+        private long deadline;
+        private Timer<T> prev = null;
+        private Timer<T> next = null;
+
+        Timer(T value) {
+            this.value = value;
+        }
+
+        T getValue() {
+            return this.value;
+        }
+
+        private boolean isScheduled() {
+            return this.prev != null;
+        }
+
+        private void unlink() {
+            this.prev.next = this.next;
+            this.next.prev = this.prev;
+            this.prev = null;
+            this.next = null;
+        }
+    }
+
+    // Each slot is a circular list with a sentinel timer as its head.
+    private final Timer<T>[][] slots;
+
+    // The last tick that has been processed. All timers with a deadline up to and including this
+    // tick have fired.
+    private long current;
+    private int size = 0;
+
+    /**
+     * Creates an empty wheel.
+     *
+     * @param now The current time, in seconds since the UNIX epoch.
+     */
+    @SuppressWarnings("unchecked")
+    ExpiryWheel(long now) {
+        this.current = now;
+        this.slots = new Timer[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer<T> head = new Timer<>(null);
+                head.prev = head;
+                head.next = head;
+                this.slots[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules a timer to fire at the given tick, replacing its previous deadline if it is already
+     * scheduled. Deadlines that have already passed fire on the next tick.
+     *
+     * @param timer    The timer to schedule.
+     * @param deadline The time the timer fires, in seconds since the UNIX epoch.
+     */
+    synchronized void schedule(Timer<T> timer, long deadline) {
+        if (timer.isScheduled()) {
+            timer.unlink();
+            this.size--;
+        }
+        timer.deadline = Math.max(deadline, this.current + 1L);
+        insert(timer);
+        this.size++;
+    }
+
+    /**
+     * Cancels a timer.
+     *
+     * @return true if the timer was scheduled.
+     */
+    synchronized boolean cancel(Timer<T> timer) {
+        if (!timer.isScheduled()) return false;
+        timer.unlink();
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time, firing all timers with a deadline up to and including
+     * it. Fired timers are no longer scheduled.
+     *
+     * @param now     The current time, in seconds since the UNIX epoch.
+     * @param expired The list to add the values of the fired timers to.
+     */
+    synchronized void advance(long now, List<T> expired) {
+        while (this.current < now) {
+            long tick = ++this.current;
+
+            // Move timers down from the levels whose next slot is due, starting with the lowest.
+            for (int level = 1; level < LEVELS && (tick & ((1L << (BITS * level)) - 1L)) == 0L; level++) {
+                cascade(this.slots[level][(int) (tick >>> (BITS * level)) & MASK]);
+            }
+
+            Timer<T> head = this.slots[0][(int) tick & MASK];
+            while (head.next != head) {
+                Timer<T> timer = head.next;
+                timer.unlink();
+                this.size--;
+                expired.add(timer.value);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return this.size;
+    }
+
+    private void cascade(Timer<T> head) {
+        if (head.next == head) return;
+        // Detach the list first, so that timers that land in the same slot again are not revisited.
+        Timer<T> timer = head.next;
+        head.prev.next = null;
+        head.next = head;
+        head.prev = head;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    private void insert(Timer<T> timer) {
+        long delta = timer.deadline - this.current;
+        // Timers beyond the span of the wheel are parked in the farthest slot of the top level.
+        long deadline = delta < SPAN ? timer.deadline : this.current + SPAN - 1L;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+
+        Timer<T> head = this.slots[level][(int) (deadline >>> (BITS * level)) & MASK];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+}
@@ -0,0 +1,107 @@
+package info.varden.hauk.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The encoded api/fetch.php responses of a share, so that viewers that fetch the same points
+ * between two posts share one encoding rather than each serializing the trail again.
+ *
+ * Responses are cached for a version of the share, which changes whenever points are posted or
+ * the share is extended, and for the cursor the viewer passed. Viewers are nearly always either
+ * fetching the whole trail, up to date, or one post behind, so a few responses per share cover
+ * them all. A response cached for an older version is never returned, and all responses are
+ * dropped as soon as the share changes.
+ *
+ * @author Marius Lindvall
+ */
+final class FetchCache {
+    // The number of responses kept per share.
+    private static final int SIZE = 4;
+
+    /**
+     * An encoded response, and the same response compressed with gzip, which is only created the
+     * first time a viewer accepts it.
+     */
+    static final class Entry {
+        private final long since;
+        private final byte[] body;
+        private volatile byte[] gzipped = null;
+
+        Entry(long since, byte[] body) {
+            this.since = since;
+            this.body = body;
+        }
+
+        byte[] getBody() {
+            return this.body;
+        }
+
+        /**
+         * Returns the body compressed with gzip. If two viewers ask at once, it may be compressed
+         * twice, and either result is kept.
+         */
+        byte[] getGzipped() {
+            byte[] gzipped = this.gzipped;
+            if (gzipped == null) {
+                gzipped = gzip(this.body);
+                this.gzipped = gzipped;
+            }
+            return gzipped;
+        }
+    }
+
+    // The version of the share the responses were encoded for. Guarded by this.
+    private long version = -1L;
+    private final Entry[] entries = new Entry[SIZE];
+    private int next = 0;
+
+    /**
+     * Returns the response cached for the given version and cursor, or null if there is none.
+     */
+    synchronized Entry get(long version, long since) {
+        if (version != this.version) return null;
+        for (Entry entry : this.entries) {
+            if (entry != null && entry.since == since) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Caches a response. It is dropped if the share has changed since the given version.
+     *
+     * @param version The version of the share, read before the response was encoded.
+     * @param entry   The response.
+     */
+    synchronized void put(long version, Entry entry) {
+        if (version < this.version) return;
+        if (version > this.version) invalidate(version);
+        this.entries[this.next] = entry;
+        this.next = (this.next + 1) % SIZE;
+    }
+
+    /**
+     * Drops all responses cached for versions older than the given one.
+     */
+    synchronized void invalidate(long version) {
+        if (version <= this.version) return;
+        this.version = version;
+        Arrays.fill(this.entries, null);
+        this.next = 0;
+    }
+
+    private static byte[] gzip(byte[] body) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+            GZIPOutputStream gz = new GZIPOutputStream(out);
+            gz.write(body);
+            gz.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // Streams in memory do not throw.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,604 @@
+package info.varden.hauk.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Hauk backend for the JVM, implementing api/create.php, api/post.php, api/fetch.php and
+ * api/stop.php as the PHP backend does. In addition, viewers can subscribe to api/events.php to
+ * have new points pushed to them as server-sent events rather than polling api/fetch.php, and the
+ * app can stream location updates to api/stream.php rather than making one api/post.php request
+ * per update. It has no dependencies outside the JDK, so it can be embedded, e.g. to run the app's protocol tests
+ * against, or run on its own with
+ *
+ *   java info.varden.hauk.server.HaukServer [config.properties]
+ *
+ * Shares are kept in memory in a SessionStore, and each share keeps its most recent points in a
+ * Trail. Encoded api/fetch.php responses are cached per share until points are posted again, and
+ * new points are pushed to subscribed viewers by an EventDispatcher. Streamed location updates
+ * are read by a StreamReceiver. Expired shares are removed once per second. As with the PHP backend, all responses have HTTP status 200, and errors are
+ * reported in the response body. The viewer page is not served; point public_url to a copy of the
+ * PHP or Ruby frontend.
+ *
+ * The JDK HTTP server delays small writes until the previous write is acknowledged, which adds
+ * about 40 ms to pushed events. main() turns this off by setting the system property
+ * sun.net.httpserver.nodelay. The property applies to every HTTP server in the JVM and is read
+ * when the first one is created, so applications that embed the backend and push events should
+ * set it themselves before starting it.
+ *
+ * @author Marius Lindvall
+ */
+public final class HaukServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The optional protocol features announced to clients when a share is created.
+    static final String CAPABILITIES = "batch binary delta stream";
+
+    // The largest accepted request body.
+    private static final int MAX_BODY = 1 << 20;
+
+    // The smallest api/fetch.php response that is compressed, in bytes. Smaller responses gain
+    // little from compression, and may even grow.
+    private static final int GZIP_MIN_SIZE = 512;
+
+    // Decoded points are only needed for the duration of a request, so each thread reuses a list.
+    private static final ThreadLocal<Points> points = new ThreadLocal<Points>() {
+        @Override
+        protected Points initialValue() {
+            return new Points();
+        }
+    };
+
+    private final Config config;
+    private final SessionStore store;
+    private final byte[] password;
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    private EventDispatcher dispatcher = null;
+    private StreamReceiver receiver = null;
+
+    // The number of api/fetch.php responses served from and added to the cache.
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    // Removes expired shares once per second, sends heartbeats to subscribed viewers, and evicts
+    // viewers whose writes are blocked and location update streams that have gone silent.
+    private ScheduledExecutorService expiry = null;
+
+    // Stores the points in streamed frames.
+    private final StreamReceiver.Sink sink = new StreamReceiver.Sink() {
+        @Override
+        String accept(Share share, byte[] body) {
+            Points decoded = points.get();
+            decoded.clear();
+            String session = LocationDecoder.decodeBinary(body, decoded);
+            if (session == null) return "Invalid location data!";
+            if (!decoded.isValid()) return "Invalid location!";
+            if (!session.equals(share.getSession())) return "Invalid session!";
+            // The share may have expired or been stopped while the stream was open.
+            if (store.getBySession(session, now()) != share) return "Session expired!";
+            append(share, decoded);
+            return null;
+        }
+    };
+
+    /**
+     * Creates a backend. It does not accept requests until it is started.
+     *
+     * @param config The configuration of the backend.
+     */
+    public HaukServer(Config config) {
+        this.config = config;
+        this.store = new SessionStore(config.getMaxCachedPoints(), now());
+        this.password = config.getPassword().getBytes(UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // The backend owns the JVM here, so the JVM-wide setting can be changed. See above.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        Config config = args.length > 0 ? Config.load(new File(args[0])) : new Config();
+        HaukServer server = new HaukServer(config);
+        server.start();
+        System.out.println("Hauk backend listening on " + server.getBaseUrl());
+    }
+
+    /**
+     * Starts accepting requests.
+     *
+     * @throws IOException if the server could not bind to its address.
+     */
+    public synchronized void start() throws IOException {
+        if (this.server != null) throw new IllegalStateException("Already started");
+        this.dispatcher = new EventDispatcher(this.config.getThreads(), this.config.getViewerBuffer());
+        this.receiver = new StreamReceiver(this.config.getMaxStreams());
+        this.server = HttpServer.create(new InetSocketAddress(this.config.getBind(), this.config.getPort()), 1024);
+        this.executor = Executors.newFixedThreadPool(this.config.getThreads());
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/api/create.php", new Handler() {
+            @Override
+            String respond(HttpExchange exchange) throws IOException {
+                return create(exchange);
+            }
+        });
+        this.server.createContext("/api/post.php", new Handler() {
+            @Override
+            String respond(HttpExchange exchange) throws IOException {
+                return post(exchange);
+            }
+        });
+        this.server.createContext("/api/fetch.php", new Handler() {
+            @Override
+            String respond(HttpExchange exchange) throws IOException {
+                return fetch(exchange);
+            }
+        });
+        this.server.createContext("/api/events.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                events(exchange);
+            }
+        });
+        this.server.createContext("/api/stream.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stream(exchange);
+            }
+        });
+        this.server.createContext("/api/stop.php", new Handler() {
+            @Override
+            String respond(HttpExchange exchange) throws IOException {
+                return stop(exchange);
+            }
+        });
+        this.server.start();
+
+        this.expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hauk-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.expiry.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                store.expire(now());
+            }
+        }, 1L, 1L, TimeUnit.SECONDS);
+        this.expiry.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.heartbeat();
+            }
+        }, EventDispatcher.HEARTBEAT_INTERVAL, EventDispatcher.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+        this.expiry.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.evictStalled();
+            }
+        }, EventDispatcher.STALL_INTERVAL, EventDispatcher.STALL_INTERVAL, TimeUnit.SECONDS);
+        this.expiry.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                receiver.evictIdle();
+            }
+        }, StreamReceiver.IDLE_INTERVAL, StreamReceiver.IDLE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops accepting requests and waits for requests in progress to complete.
+     */
+    public synchronized void stop() {
+        if (this.server == null) return;
+        this.expiry.shutdownNow();
+        this.dispatcher.shutdown();
+        this.receiver.shutdown();
+        this.server.stop(0);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.server = null;
+    }
+
+    /**
+     * Returns the base URL of the running backend, with a trailing slash, e.g.
+     * "http://127.0.0.1:9494/".
+     */
+    public synchronized String getBaseUrl() {
+        if (this.server == null) throw new IllegalStateException("Not started");
+        InetSocketAddress address = this.server.getAddress();
+        String host = address.getAddress().isAnyLocalAddress() ? "localhost" : address.getAddress().getHostAddress();
+        return "http://" + host + ":" + address.getPort() + "/";
+    }
+
+    public SessionStore getStore() {
+        return this.store;
+    }
+
+    /**
+     * Returns the dispatcher pushing points to subscribed viewers, or null if the backend has not
+     * been started.
+     */
+    public synchronized EventDispatcher getDispatcher() {
+        return this.dispatcher;
+    }
+
+    /**
+     * Returns the number of open location update streams.
+     */
+    public synchronized int getStreams() {
+        return this.receiver != null ? this.receiver.getStreams() : 0;
+    }
+
+    /**
+     * Returns the number of streamed frames that had already been accepted when they were
+     * received, e.g. because the app sent them again after reconnecting.
+     */
+    public synchronized long getDuplicateFrames() {
+        return this.receiver != null ? this.receiver.getDuplicates() : 0L;
+    }
+
+    /**
+     * Returns the number of api/fetch.php responses that were served from the cache.
+     */
+    public long getCacheHits() {
+        return this.cacheHits.get();
+    }
+
+    /**
+     * Returns the number of api/fetch.php responses that had to be encoded.
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.get();
+    }
+
+    /**
+     * Creates a share for a client.
+     */
+    private String create(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> form = readForm(exchange);
+        String pwd = first(form, "pwd");
+        String dur = first(form, "dur");
+        String interval = first(form, "int");
+        if (pwd == null || dur == null || interval == null) return "Missing data!\n";
+        if (!MessageDigest.isEqual(pwd.getBytes(UTF_8), this.password)) return "Incorrect password!\n";
+
+        int d;
+        double i;
+        try {
+            d = Integer.parseInt(dur);
+            i = Double.parseDouble(interval);
+        } catch (NumberFormatException e) {
+            return "Missing data!\n";
+        }
+        if (d > this.config.getMaxDuration()) return "Share period is too long!\n";
+        if (i > this.config.getMaxDuration()) return "Ping interval is too long!\n";
+        if (i < this.config.getMinInterval()) return "Ping interval is too short!\n";
+
+        Share share = this.store.create(i, now() + d);
+        return "OK\n" + share.getSession() + "\n" + this.config.getPublicUrl() + "?" + share.getLink() + "\n" + CAPABILITIES + "\n";
+    }
+
+    /**
+     * Stores location updates pushed by a client.
+     */
+    private String post(HttpExchange exchange) throws IOException {
+        Points decoded = points.get();
+        decoded.clear();
+
+        String session;
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith(LocationDecoder.CONTENT_TYPE)) {
+            byte[] body = readBody(exchange);
+            session = body != null ? LocationDecoder.decodeBinary(body, decoded) : null;
+            if (session == null) return "Invalid location data!\n";
+        } else {
+            try {
+                session = LocationDecoder.decodeForm(readForm(exchange), decoded);
+            } catch (NumberFormatException e) {
+                return "Invalid location!\n";
+            }
+            if (session == null) return "Missing data!\n";
+        }
+        if (!decoded.isValid()) return "Invalid location!\n";
+
+        Share share = this.store.getBySession(session, now());
+        if (share == null) return "Session expired!\n";
+        append(share, decoded);
+        return "OK\n";
+    }
+
+    /**
+     * Appends posted points to a share, and pushes them to its viewers. The new points are
+     * serialized once, and the same frame is pushed to all viewers.
+     */
+    private void append(Share share, Points decoded) {
+        EventStream events = share.getEvents();
+        synchronized (events) {
+            long since = share.getTrail().getLastSequence();
+            share.append(decoded);
+            if (!events.isEmpty()) {
+                StringBuilder sb = new StringBuilder(64 + decoded.size() * 64);
+                long last = share.writeJson(sb, since);
+                this.dispatcher.publish(events, EventDispatcher.frame(last, sb));
+            }
+        }
+    }
+
+    /**
+     * Opens a stream of location updates from a client, identified by the session and by a
+     * stream ID chosen by the client. The frames of the stream are read by the StreamReceiver,
+     * and stored as if they were posted to api/post.php.
+     */
+    private void stream(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> query = parseForm(exchange.getRequestURI().getRawQuery());
+        String session = first(query, "sid");
+        String id = first(query, "stream");
+        Share share = session != null ? this.store.getBySession(session, now()) : null;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod()) || id == null || id.isEmpty()) {
+                send(exchange, "ERR Missing data!\n");
+            } else if (share == null) {
+                send(exchange, "ERR Session expired!\n");
+            } else if (this.receiver.open(exchange, share, share.getStream(id), this.sink)) {
+                // The exchange is closed by the receiver when the stream ends.
+                return;
+            } else {
+                // The client falls back to api/post.php if it cannot open a stream.
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(503, -1L);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            exchange.sendResponseHeaders(500, -1L);
+        }
+        exchange.close();
+    }
+
+    /**
+     * Returns the trail of a share to a viewer, or only its new points if the viewer passes the
+     * sequence number of the last point it has as "since". Responses are encoded once per version
+     * of the share and cursor, and served to all viewers from the share's FetchCache until points
+     * are posted again.
+     */
+    private String fetch(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> query = parseForm(exchange.getRequestURI().getRawQuery());
+        String link = first(query, "id");
+        Share share = link != null ? this.store.getByLink(link, now()) : null;
+        if (share == null) return "Invalid session!\n";
+
+        // Viewers that already have the trail only ask for the points after their cursor. The
+        // version must be read before the response is encoded.
+        long version = share.getVersion();
+        long since = share.normalize(parseSince(first(query, "since")));
+
+        FetchCache.Entry entry = share.cache.get(version, since);
+        if (entry != null) {
+            this.cacheHits.incrementAndGet();
+        } else {
+            this.cacheMisses.incrementAndGet();
+            StringBuilder sb = new StringBuilder(64 + share.getTrail().size() * 64);
+            share.writeJson(sb, since);
+            // Tell the viewer that it can subscribe to api/events.php rather than polling.
+            sb.setLength(sb.length() - 1);
+            sb.append(",\"e\":1}");
+            entry = new FetchCache.Entry(since, sb.toString().getBytes(UTF_8));
+            share.cache.put(version, entry);
+        }
+
+        byte[] body = entry.getBody();
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "text/json");
+        if (this.config.isGzip()) {
+            headers.set("Vary", "Accept-Encoding");
+            if (body.length >= GZIP_MIN_SIZE && acceptsGzip(exchange)) {
+                headers.set("Content-Encoding", "gzip");
+                body = entry.getGzipped();
+            }
+        }
+        send(exchange, body);
+        return null;
+    }
+
+    /**
+     * Subscribes a viewer to new points of a share. The response is a stream of server-sent
+     * events, starting with the points after the viewer's cursor, in the same format as
+     * api/fetch.php. The cursor is taken from the Last-Event-ID header when the viewer
+     * reconnects, or from "since". The stream ends with an "end" event when the share ends.
+     */
+    private void events(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> query = parseForm(exchange.getRequestURI().getRawQuery());
+        String link = first(query, "id");
+        Share share = link != null ? this.store.getByLink(link, now()) : null;
+        if (share == null) {
+            try {
+                send(exchange, "Invalid session!\n");
+            } finally {
+                exchange.close();
+            }
+            return;
+        }
+
+        String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        long since = parseSince(lastEventId != null ? lastEventId : first(query, "since"));
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // Keeps nginx from buffering the stream.
+        exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+        // Otherwise, streams that end return their connections to the small keep-alive pool of
+        // the HTTP server, which then closes other connections as soon as their responses are sent.
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(200, 0L);
+
+        // The exchange is left open, and is closed by the dispatcher when the stream ends.
+        final HttpExchange ex = exchange;
+        EventStream events = share.getEvents();
+        synchronized (events) {
+            StringBuilder sb = new StringBuilder(64 + share.getTrail().size() * 64);
+            long last = share.writeJson(sb, since);
+            this.dispatcher.subscribe(events, EventDispatcher.frame(last, sb), exchange.getResponseBody(), new Closeable() {
+                @Override
+                public void close() {
+                    ex.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Ends a share at the request of its client.
+     */
+    private String stop(HttpExchange exchange) throws IOException {
+        String session = first(readForm(exchange), "sid");
+        if (session == null) return "Missing data!\n";
+        this.store.remove(session);
+        return "OK\n";
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return accepted != null && accepted.toLowerCase(Locale.ROOT).contains("gzip");
+    }
+
+    /**
+     * Parses the sequence number of the last point a viewer has, or returns -1 if the viewer has
+     * no points or the number is invalid.
+     */
+    private static long parseSince(String cursor) {
+        if (cursor == null) return -1L;
+        try {
+            return Math.max(0L, Long.parseLong(cursor.trim()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+    /**
+     * Handles a request, and writes the response returned by respond(), unless respond() returns
+     * null after writing the response itself. Unless the handler sets another content type, the
+     * response is sent as plain text.
+     */
+    private abstract static class Handler implements HttpHandler {
+        abstract String respond(HttpExchange exchange) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String response;
+                try {
+                    response = respond(exchange);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    exchange.sendResponseHeaders(500, -1L);
+                    return;
+                }
+                if (response != null) send(exchange, response);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a response. Unless another content type has been set, it is sent as plain text.
+     */
+    private static void send(HttpExchange exchange, String response) throws IOException {
+        send(exchange, response.getBytes(UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, byte[] bytes) throws IOException {
+        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    /**
+     * Reads the request body, or returns null if it is larger than MAX_BODY.
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream is = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = is.read(buf)) > 0) {
+            if (out.size() + read > MAX_BODY) return null;
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, List<String>> readForm(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        return parseForm(body != null ? new String(body, UTF_8) : null);
+    }
+
+    /**
+     * Parses a form-encoded string. Repeated keys, such as lat[], are collected in order.
+     */
+    static Map<String, List<String>> parseForm(String encoded) {
+        Map<String, List<String>> form = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) return form;
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            try {
+                key = URLDecoder.decode(key, "UTF-8");
+                value = URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                continue;
+            }
+            List<String> values = form.get(key);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                form.put(key, values);
+            }
+            values.add(value);
+        }
+        return form;
+    }
+
+    private static String first(Map<String, List<String>> form, String key) {
+        List<String> values = form.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
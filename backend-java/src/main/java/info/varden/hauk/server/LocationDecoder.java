@@ -0,0 +1,140 @@
+package info.varden.hauk.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the location updates in api/post.php requests, in any of the formats the app sends:
+ * form fields with one or several points, or the compact binary and delta formats announced by
+ * the "binary" and "delta" capabilities. See BinaryLocationCodec and DeltaLocationCodec in the
+ * app for the binary layouts.
+ *
+ * @author Marius Lindvall
+ */
+final class LocationDecoder {
+    // The MIME type of binary api/post.php requests.
+    static final String CONTENT_TYPE = "application/x-hauk-location";
+
+    private static final int MAGIC = 0x48;
+    private static final int RECORD_SIZE = 20;
+    private static final int UNKNOWN = 0xFFFF;
+
+    private LocationDecoder() {
+    }
+
+    /**
+     * Decodes form fields. Each point field may be given once, or as an array with one entry per
+     * point (lat[]=...&lat[]=...).
+     *
+     * @param form The form fields.
+     * @param out  The list to add the points to.
+     * @return The session ID, or null if fields are missing or the arrays differ in length.
+     * @throws NumberFormatException if a value is not a number.
+     */
+    static String decodeForm(Map<String, List<String>> form, Points out) {
+        String session = first(form, "sid");
+        List<String> lats = field(form, "lat");
+        List<String> lons = field(form, "lon");
+        List<String> times = field(form, "time");
+        // Not all devices report speed and accuracy.
+        List<String> accuracies = field(form, "acc");
+        List<String> speeds = field(form, "spd");
+        if (session == null || lats.isEmpty() || lons.size() != lats.size() || times.size() != lats.size()) return null;
+
+        for (int i = 0; i < lats.size(); i++) {
+            out.add(Double.parseDouble(lats.get(i)), Double.parseDouble(lons.get(i)), Double.parseDouble(times.get(i)),
+                    optional(accuracies, i), optional(speeds, i));
+        }
+        return session;
+    }
+
+    /**
+     * Decodes a binary body.
+     *
+     * @param in  The request body.
+     * @param out The list to add the points to.
+     * @return The session ID, or null if the body is invalid.
+     */
+    static String decodeBinary(byte[] in, Points out) {
+        if (in.length < 3 || (in[0] & 0xFF) != MAGIC) return null;
+        int sessionLength = in[2] & 0xFF;
+        if (in.length < 3 + sessionLength) return null;
+        StringBuilder session = new StringBuilder(sessionLength);
+        for (int i = 0; i < sessionLength; i++) session.append((char) (in[3 + i] & 0xFF));
+
+        int pos = 3 + sessionLength;
+        switch (in[1]) {
+            case 1:
+                // Fixed-size records of absolute values.
+                if (in.length < pos + 2) return null;
+                int count = getShort(in, pos);
+                pos += 2;
+                if (in.length != pos + count * RECORD_SIZE) return null;
+                for (int i = 0; i < count; i++, pos += RECORD_SIZE) {
+                    int acc = getShort(in, pos + 16);
+                    int spd = getShort(in, pos + 18);
+                    out.add(getInt(in, pos) / 1E7D, getInt(in, pos + 4) / 1E7D, getLong(in, pos + 8) / 1000D,
+                            acc == UNKNOWN ? Double.NaN : acc / 10D, spd == UNKNOWN ? Double.NaN : spd / 100D);
+                }
+                return session.toString();
+
+            case 2:
+                // Varint-encoded deltas between consecutive points.
+                long lat = 0L, lon = 0L, time = 0L;
+                long[] values = new long[5];
+                while (pos < in.length) {
+                    for (int i = 0; i < 5; i++) {
+                        long value = 0L;
+                        int shift = 0;
+                        int b;
+                        do {
+                            if (pos == in.length || shift > 63) return null;
+                            b = in[pos++] & 0xFF;
+                            value |= (long) (b & 0x7F) << shift;
+                            shift += 7;
+                        } while ((b & 0x80) != 0);
+                        values[i] = value;
+                    }
+                    // Undo the zigzag encoding of the signed deltas.
+                    lat += (values[0] >>> 1) ^ -(values[0] & 1L);
+                    lon += (values[1] >>> 1) ^ -(values[1] & 1L);
+                    time += (values[2] >>> 1) ^ -(values[2] & 1L);
+                    out.add(lat / 1E7D, lon / 1E7D, time / 1000D,
+                            values[3] == 0L ? Double.NaN : (values[3] - 1L) / 10D, values[4] == 0L ? Double.NaN : (values[4] - 1L) / 100D);
+                }
+                return session.toString();
+
+            default:
+                return null;
+        }
+    }
+
+    private static String first(Map<String, List<String>> form, String key) {
+        List<String> values = form.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static List<String> field(Map<String, List<String>> form, String key) {
+        List<String> values = form.get(key + "[]");
+        if (values == null) values = form.get(key);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+
+    private static double optional(List<String> values, int index) {
+        if (index >= values.size() || values.get(index).isEmpty()) return Double.NaN;
+        return Double.parseDouble(values.get(index));
+    }
+
+    private static int getShort(byte[] in, int pos) {
+        return (in[pos] & 0xFF) << 8 | (in[pos + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] in, int pos) {
+        return (in[pos] & 0xFF) << 24 | (in[pos + 1] & 0xFF) << 16 | (in[pos + 2] & 0xFF) << 8 | (in[pos + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] in, int pos) {
+        return (long) getInt(in, pos) << 32 | (getInt(in, pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,73 @@
+package info.varden.hauk.server;
+
+import java.util.Arrays;
+
+/**
+ * A reusable list of location points decoded from one api/post.php request, held in parallel
+ * primitive arrays. Unknown accuracy and speed values are stored as NaN.
+ *
+ * @author Marius Lindvall
+ */
+final class Points {
+    private double[] lat = new double[8];
+    private double[] lon = new double[8];
+    private double[] time = new double[8];
+    private double[] acc = new double[8];
+    private double[] spd = new double[8];
+    private int size = 0;
+
+    void clear() {
+        this.size = 0;
+    }
+
+    void add(double lat, double lon, double time, double acc, double spd) {
+        if (this.size == this.lat.length) {
+            int capacity = this.size * 2;
+            this.lat = Arrays.copyOf(this.lat, capacity);
+            this.lon = Arrays.copyOf(this.lon, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.acc = Arrays.copyOf(this.acc, capacity);
+            this.spd = Arrays.copyOf(this.spd, capacity);
+        }
+        this.lat[this.size] = lat;
+        this.lon[this.size] = lon;
+        this.time[this.size] = time;
+        this.acc[this.size] = acc;
+        this.spd[this.size] = spd;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    double getLatitude(int index) {
+        return this.lat[index];
+    }
+
+    double getLongitude(int index) {
+        return this.lon[index];
+    }
+
+    double getTime(int index) {
+        return this.time[index];
+    }
+
+    double getAccuracy(int index) {
+        return this.acc[index];
+    }
+
+    double getSpeed(int index) {
+        return this.spd[index];
+    }
+
+    /**
+     * Checks whether all points have a valid latitude and longitude.
+     */
+    boolean isValid() {
+        for (int i = 0; i < this.size; i++) {
+            if (!(this.lat[i] >= -90D && this.lat[i] <= 90D && this.lon[i] >= -180D && this.lon[i] <= 180D)) return false;
+        }
+        return true;
+    }
+}
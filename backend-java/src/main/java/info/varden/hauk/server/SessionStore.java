@@ -0,0 +1,170 @@
+package info.varden.hauk.server;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The active shares of the backend, by session ID and by link ID.
+ *
+ * Shares are removed when they expire by calling expire() once per second, which advances an
+ * ExpiryWheel, so the cost of expiry does not grow with the number of shares. Lookups also check
+ * the expiry time, so that a share is never returned after it has expired even if expire() has
+ * not caught up yet.
+ *
+ * @author Marius Lindvall
+ */
+public final class SessionStore {
+    // The number of random bytes in a session ID. Session IDs are hex-encoded.
+    private static final int SESSION_ID_SIZE = 32;
+
+    private final ConcurrentHashMap<String, Share> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Share> links = new ConcurrentHashMap<>();
+    private final ExpiryWheel<Share> wheel;
+    private final SecureRandom random = new SecureRandom();
+    private final int capacity;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param capacity The number of points kept for each share.
+     * @param now      The current time, in seconds since the UNIX epoch.
+     */
+    public SessionStore(int capacity, long now) {
+        this.capacity = capacity;
+        this.wheel = new ExpiryWheel<>(now);
+    }
+
+    /**
+     * Creates a new share with a random session ID and a link ID that is not in use.
+     *
+     * @param interval The interval between location updates, in seconds.
+     * @param expire   The time the share expires, in seconds since the UNIX epoch.
+     * @return The share.
+     */
+    public Share create(double interval, long expire) {
+        byte[] id = new byte[SESSION_ID_SIZE];
+        while (true) {
+            this.random.nextBytes(id);
+            String session = toHex(id);
+            Share share = new Share(session, toLink(id), interval, expire, this.capacity);
+            if (this.links.putIfAbsent(share.getLink(), share) == null) {
+                this.sessions.put(session, share);
+                schedule(share);
+                return share;
+            }
+        }
+    }
+
+    /**
+     * Returns the share with the given session ID, or null if it does not exist or has expired.
+     */
+    public Share getBySession(String session, long now) {
+        return check(this.sessions.get(session), now);
+    }
+
+    /**
+     * Returns the share with the given link ID, or null if it does not exist or has expired.
+     */
+    public Share getByLink(String link, long now) {
+        return check(this.links.get(link), now);
+    }
+
+    /**
+     * Changes the time a share expires, e.g. to extend it.
+     *
+     * @param session The session ID.
+     * @param expire  The new expiry time, in seconds since the UNIX epoch.
+     * @param now     The current time, in seconds since the UNIX epoch.
+     * @return The share, or null if it does not exist or has already expired.
+     */
+    public Share extend(String session, long expire, long now) {
+        Share share = getBySession(session, now);
+        if (share == null) return null;
+        synchronized (share) {
+            share.setExpire(expire);
+            schedule(share);
+        }
+        return share;
+    }
+
+    /**
+     * Removes the share with the given session ID, along with all of its data, and ends the event
+     * streams of its viewers.
+     *
+     * @return The removed share, or null if there was no such share.
+     */
+    public Share remove(String session) {
+        Share share = this.sessions.remove(session);
+        if (share != null) {
+            this.links.remove(share.getLink(), share);
+            this.wheel.cancel(share.timer);
+            share.getEvents().close();
+        }
+        return share;
+    }
+
+    /**
+     * Removes all shares that have expired.
+     *
+     * @param now The current time, in seconds since the UNIX epoch.
+     * @return The number of shares removed.
+     */
+    public int expire(long now) {
+        List<Share> expired = new ArrayList<>();
+        this.wheel.advance(now, expired);
+        int removed = 0;
+        for (Share share : expired) {
+            // The share may have been extended after its timer fired.
+            if (share.getExpire() < now && remove(share.getSession()) == share) removed++;
+        }
+        return removed;
+    }
+
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Schedules the removal of a share. A share expires once its expiry time has passed, so its
+     * timer fires one second later.
+     */
+    private void schedule(Share share) {
+        this.wheel.schedule(share.timer, share.getExpire() + 1L);
+    }
+
+    private Share check(Share share, long now) {
+        if (share == null || share.getExpire() >= now) return share;
+        remove(share.getSession());
+        return null;
+    }
+
+    /**
+     * Derives the public link ID from a session ID, as the PHP backend does: the first and last four
+     * digits of the uppercase base 36 SHA-256 sum of the binary session ID, separated by a dash.
+     */
+    static String toLink(byte[] session) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(session);
+            String s = new BigInteger(1, hash).toString(36).toUpperCase(Locale.ROOT);
+            return s.substring(0, 4) + "-" + s.substring(s.length() - 4);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+}
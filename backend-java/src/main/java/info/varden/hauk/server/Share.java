@@ -0,0 +1,161 @@
+package info.varden.hauk.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A location share on the backend. The share is identified by its secret session ID towards the
+ * app that created it, and by its public link ID towards viewers.
+ *
+ * @author Marius Lindvall
+ */
+public final class Share {
+    // The largest number of location update streams whose positions are kept for each share. The
+    // app only has one stream per share at a time, but starts a new one if it is restarted.
+    private static final int MAX_STREAMS = 4;
+
+    private final String session;
+    private final String link;
+    private final double interval;
+    private final Trail trail;
+    private final EventStream events = new EventStream();
+
+    // The timer that removes the share from the store when it expires.
+    final ExpiryWheel.Timer<Share> timer = new ExpiryWheel.Timer<>(this);
+
+    // The time the share expires, in seconds since the UNIX epoch.
+    private volatile long expire;
+
+    // Incremented whenever points are appended or the expiry time changes, which invalidates the
+    // cached api/fetch.php responses.
+    private final AtomicLong version = new AtomicLong();
+    final FetchCache cache = new FetchCache();
+
+    // The positions of the location update streams of the share, by stream ID, least recently
+    // used first. Guarded by itself.
+    private final Map<String, StreamReceiver.Position> streams = new LinkedHashMap<String, StreamReceiver.Position>(MAX_STREAMS + 1, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StreamReceiver.Position> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    Share(String session, String link, double interval, long expire, int capacity) {
+        this.session = session;
+        this.link = link;
+        this.interval = interval;
+        this.expire = expire;
+        this.trail = new Trail(capacity);
+    }
+
+    public String getSession() {
+        return this.session;
+    }
+
+    public String getLink() {
+        return this.link;
+    }
+
+    /**
+     * Returns the interval between location updates, in seconds.
+     */
+    public double getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * Returns the time the share expires, in seconds since the UNIX epoch.
+     */
+    public long getExpire() {
+        return this.expire;
+    }
+
+    void setExpire(long expire) {
+        this.expire = expire;
+        changed();
+    }
+
+    /**
+     * Returns the version of the share, which changes whenever points are posted to it or its
+     * expiry time changes.
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * Appends posted points to the trail. Points must be appended through the share rather than
+     * the trail, so that cached responses are invalidated.
+     */
+    void append(Points points) {
+        this.trail.append(points);
+        changed();
+    }
+
+    /**
+     * Returns the cursor that selects the same points for api/fetch.php as the given cursor, so
+     * that viewers whose cursors select the same points share a cached response. Cursors that
+     * select the whole trail are returned as -1.
+     */
+    long normalize(long since) {
+        synchronized (this.trail) {
+            long last = this.trail.getLastSequence();
+            return since > last || since <= last - this.trail.size() ? -1L : since;
+        }
+    }
+
+    /**
+     * Invalidates cached responses. The version is incremented after the change: responses are
+     * encoded after reading the version, so a response cached for a version always includes all
+     * changes up to that version.
+     */
+    private void changed() {
+        this.cache.invalidate(this.version.incrementAndGet());
+    }
+
+    /**
+     * Returns the position of a location update stream, which is created if the stream is new.
+     */
+    StreamReceiver.Position getStream(String id) {
+        synchronized (this.streams) {
+            StreamReceiver.Position position = this.streams.get(id);
+            if (position == null) {
+                position = new StreamReceiver.Position();
+                this.streams.put(id, position);
+            }
+            return position;
+        }
+    }
+
+    public Trail getTrail() {
+        return this.trail;
+    }
+
+    /**
+     * Returns the viewers subscribed to new points of the share.
+     */
+    public EventStream getEvents() {
+        return this.events;
+    }
+
+    /**
+     * Writes the share as an api/fetch.php response: a JSON object with the interval (i), the
+     * expiry time (x), the sequence number of the newest point (s) and the trail (l).
+     *
+     * @param sb    The builder to write to.
+     * @param since The sequence number of the last point the viewer has, to only write newer
+     *              points, or -1 to write the whole trail. If the viewer is ahead of the share,
+     *              e.g. because the backend was restarted, the whole trail is written, and the
+     *              viewer can tell from s that it must start over.
+     * @return The sequence number of the newest point written, as s.
+     */
+    public long writeJson(StringBuilder sb, long since) {
+        sb.append("{\"i\":");
+        Trail.appendNumber(sb, this.interval);
+        sb.append(",\"x\":").append(this.expire).append(",\"l\":");
+        long last = this.trail.writeJson(sb, since > this.trail.getLastSequence() ? -1L : since);
+        sb.append(",\"s\":").append(last).append('}');
+        return last;
+    }
+}
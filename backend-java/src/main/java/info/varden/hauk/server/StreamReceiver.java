@@ -0,0 +1,287 @@
+package info.varden.hauk.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives location updates that the app streams in the body of a single long-lived
+ * api/stream.php request, rather than making one api/post.php request per update. The request
+ * body is sent with chunked transfer encoding and read as it arrives, while acknowledgements are
+ * written to the chunked response body at the same time, so no protocol upgrade is needed.
+ *
+ * The request names the session and a stream ID chosen by the app, which identifies the stream
+ * across reconnects. The response starts with a line "READY <seq>", with the sequence number of
+ * the last frame accepted on the stream, or 0. Each frame in the request body consists of a 64-bit
+ * big-endian sequence number, a 32-bit length and an api/post.php request body of that length in
+ * the binary or delta format. Every frame is answered with "ACK <seq>", with the sequence number
+ * of the last frame accepted so far. Frames that were already accepted, e.g. because the app sent
+ * them again after reconnecting, are acknowledged but not applied again. A frame with sequence
+ * number 0 and no body is a heartbeat. If a frame is rejected, the response ends with
+ * "ERR <message>".
+ *
+ * Request bodies can only be read by blocking, so each open stream holds a thread of its own, and
+ * the number of open streams is limited. Streams that send nothing, not even heartbeats, for
+ * TIMEOUT seconds are closed, so that connections that silently died do not hold their thread.
+ *
+ * @author Marius Lindvall
+ */
+final class StreamReceiver {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // How long a stream may be silent before it is closed, in seconds.
+    static final long TIMEOUT = 60L;
+
+    // How often evictIdle() should be called, in seconds.
+    static final long IDLE_INTERVAL = 1L;
+
+    // The largest accepted frame body.
+    private static final int MAX_FRAME = 1 << 16;
+
+    private final ThreadPoolExecutor readers;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Decides what to do with the body of a frame.
+     */
+    abstract static class Sink {
+        /**
+         * Stores the location updates in a frame.
+         *
+         * @param share The share the stream was opened for.
+         * @param body  The body of the frame, in the binary or delta api/post.php format.
+         * @return null if the updates were stored, or an error message if they were rejected.
+         */
+        abstract String accept(Share share, byte[] body);
+    }
+
+    /**
+     * The position of a stream, which outlives the connections it is sent on. Guarded by itself.
+     */
+    static final class Position {
+        // The sequence number of the last accepted frame.
+        private long last = 0L;
+        // The connection currently reading the stream. Frames read by older connections of the
+        // same stream are ignored.
+        private Connection reader = null;
+    }
+
+    /**
+     * Creates a receiver.
+     *
+     * @param max The largest number of streams that can be open at the same time.
+     */
+    StreamReceiver(int max) {
+        this.readers = new ThreadPoolExecutor(0, max, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hauk-stream-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts reading a stream on a thread of its own. The response headers have not been sent
+     * yet.
+     *
+     * @param exchange The api/stream.php request.
+     * @param share    The share the stream is opened for.
+     * @param position The position of the stream.
+     * @param sink     Stores the location updates in the frames.
+     * @return false if too many streams are open.
+     */
+    boolean open(HttpExchange exchange, Share share, Position position, Sink sink) {
+        Connection connection = new Connection(exchange, share, position, sink);
+        this.connections.add(connection);
+        try {
+            this.readers.execute(connection);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.connections.remove(connection);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the streams that have been silent for longer than TIMEOUT seconds. Should be called
+     * every IDLE_INTERVAL seconds.
+     */
+    void evictIdle() {
+        long idle = System.nanoTime() - TimeUnit.SECONDS.toNanos(TIMEOUT);
+        for (Connection connection : this.connections) {
+            if (connection.lastFrame - idle < 0L) connection.reset();
+        }
+    }
+
+    /**
+     * Closes all streams and stops their threads.
+     */
+    void shutdown() {
+        this.readers.shutdownNow();
+        try {
+            this.readers.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of open streams.
+     */
+    int getStreams() {
+        return this.connections.size();
+    }
+
+    /**
+     * Returns the number of frames received, including heartbeats and frames received again.
+     */
+    long getFrames() {
+        return this.frames.get();
+    }
+
+    /**
+     * Returns the number of frames that had already been accepted when they were received.
+     */
+    long getDuplicates() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * A connection reading a stream.
+     */
+    private final class Connection implements Runnable {
+        private final HttpExchange exchange;
+        private final Share share;
+        private final Position position;
+        private final Sink sink;
+
+        // The time the last frame was received, on the System.nanoTime() clock.
+        private volatile long lastFrame = System.nanoTime();
+
+        // The thread reading the connection, or null before it starts and once it is done.
+        // Guarded by this.
+        private Thread thread = null;
+
+        private Connection(HttpExchange exchange, Share share, Position position, Sink sink) {
+            this.exchange = exchange;
+            this.share = share;
+            this.position = position;
+            this.sink = sink;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                this.thread = Thread.currentThread();
+            }
+            // Whether the connection ends cleanly, after the app ended the request body.
+            boolean clean = false;
+            try {
+                long last;
+                Connection replaced;
+                synchronized (this.position) {
+                    last = this.position.last;
+                    replaced = this.position.reader;
+                    this.position.reader = this;
+                }
+                // The app reconnected before the old connection was found to be dead.
+                if (replaced != null) replaced.reset();
+
+                this.exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                // Keeps nginx from buffering the acknowledgements.
+                this.exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+                this.exchange.getResponseHeaders().set("Connection", "close");
+                this.exchange.sendResponseHeaders(200, 0L);
+                OutputStream out = this.exchange.getResponseBody();
+                write(out, "READY " + last);
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(this.exchange.getRequestBody()));
+                while (true) {
+                    long seq;
+                    try {
+                        seq = in.readLong();
+                    } catch (EOFException e) {
+                        clean = true;
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME || (seq <= 0L && length > 0)) {
+                        write(out, "ERR Invalid frame!");
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    this.lastFrame = System.nanoTime();
+                    frames.incrementAndGet();
+
+                    String error = null;
+                    synchronized (this.position) {
+                        if (this.position.reader != this) break;
+                        if (seq > this.position.last) {
+                            error = this.sink.accept(this.share, body);
+                            if (error == null) this.position.last = seq;
+                        } else if (seq > 0L) {
+                            duplicates.incrementAndGet();
+                        }
+                        last = this.position.last;
+                    }
+                    if (error != null) {
+                        write(out, "ERR " + error.trim());
+                        break;
+                    }
+                    write(out, "ACK " + last);
+                }
+            } catch (IOException e) {
+                // The app has gone away, or the connection was reset by reset().
+            } finally {
+                synchronized (this.position) {
+                    if (this.position.reader == this) this.position.reader = null;
+                }
+                synchronized (this) {
+                    this.thread = null;
+                }
+                connections.remove(this);
+                // Closing the exchange reads the rest of the request body, which would block if the
+                // app is still sending. With the interrupt flag set, the connection is reset at once.
+                if (!clean) Thread.currentThread().interrupt();
+                this.exchange.close();
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Resets the connection, even if a read from it is blocked. Interrupting a thread that
+         * blocks on a channel closes the channel.
+         */
+        private synchronized void reset() {
+            if (this.thread != null) this.thread.interrupt();
+        }
+
+        private void write(OutputStream out, String message) throws IOException {
+            out.write((message + "\n").getBytes(UTF_8));
+            out.flush();
+        }
+    }
+}
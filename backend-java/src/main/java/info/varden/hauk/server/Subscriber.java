@@ -0,0 +1,194 @@
+package info.varden.hauk.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A viewer subscribed to the events of a share. Frames published to the subscriber are queued in
+ * a bounded buffer and written to the viewer's connection by one of the writer threads of the
+ * EventDispatcher, so that publishing never waits for a viewer. A subscriber is scheduled on the
+ * writer threads when a frame is queued while it is idle, and writes all frames queued by then
+ * before flushing its connection once.
+ *
+ * A viewer that does not keep up, so that its buffer overflows or a write blocks for too long, is
+ * evicted: its queued frames are dropped and its connection is reset. The viewer can reconnect
+ * and resume from the last event it received.
+ *
+ * @author Marius Lindvall
+ */
+final class Subscriber implements Runnable {
+    private final EventDispatcher dispatcher;
+    private final EventStream stream;
+    private final OutputStream out;
+    private final Closeable connection;
+    private final int capacity;
+    private final ArrayDeque<byte[]> queue;
+
+    // The frames being written. Only used by the thread running the subscriber.
+    private final List<byte[]> batch = new ArrayList<>();
+
+    // Guarded by this. A subscriber is scheduled while it is queued on or running on a writer
+    // thread. It ends once the frames queued before end() have been written.
+    private boolean scheduled = false;
+    private boolean ending = false;
+    private boolean evicted = false;
+    private boolean closed = false;
+
+    // The thread writing to the connection, and the time the write started, on the
+    // System.nanoTime() clock. Guarded by this.
+    private Thread writer = null;
+    private long writeStarted = 0L;
+
+    /**
+     * Creates a subscriber.
+     *
+     * @param dispatcher The dispatcher that runs the subscriber.
+     * @param stream     The stream the subscriber is subscribed to.
+     * @param out        The body of the response to write frames to.
+     * @param connection Closes the connection to the viewer.
+     * @param capacity   The number of frames that can be queued before the subscriber is evicted.
+     */
+    Subscriber(EventDispatcher dispatcher, EventStream stream, OutputStream out, Closeable connection, int capacity) {
+        this.dispatcher = dispatcher;
+        this.stream = stream;
+        this.out = out;
+        this.connection = connection;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 16));
+    }
+
+    /**
+     * Queues a frame to be written to the viewer. Frames offered after the subscriber has ended
+     * are ignored.
+     *
+     * @return false if the buffer of the subscriber is full, in which case it should be evicted.
+     */
+    boolean offer(byte[] frame) {
+        synchronized (this) {
+            if (this.ending || this.evicted || this.closed) return true;
+            if (this.queue.size() >= this.capacity) return false;
+            this.queue.add(frame);
+            if (!schedule()) return true;
+        }
+        this.dispatcher.execute(this);
+        return true;
+    }
+
+    /**
+     * Ends the stream: the frames queued so far are written, followed by an end event, and the
+     * connection is closed.
+     */
+    void end() {
+        synchronized (this) {
+            if (this.ending || this.evicted || this.closed) return;
+            this.ending = true;
+            this.queue.add(EventDispatcher.END);
+            if (!schedule()) return;
+        }
+        this.dispatcher.execute(this);
+    }
+
+    /**
+     * Evicts the subscriber: the queued frames are dropped, and the connection is reset, even if
+     * a write to it is blocked.
+     *
+     * @return false if the subscriber had already been evicted.
+     */
+    boolean evict() {
+        synchronized (this) {
+            if (this.evicted) return false;
+            this.evicted = true;
+            this.queue.clear();
+            // Interrupting a thread that blocks on a channel closes the channel. This also resets
+            // a connection that blocks while it is being closed cleanly.
+            if (this.writer != null) this.writer.interrupt();
+            if (this.closed || !schedule()) return true;
+        }
+        this.dispatcher.execute(this);
+        return true;
+    }
+
+    /**
+     * Returns whether a write to the viewer has been blocked since before the given time, on the
+     * System.nanoTime() clock.
+     */
+    synchronized boolean isStalledSince(long time) {
+        return this.writer != null && this.writeStarted - time < 0L;
+    }
+
+    private boolean schedule() {
+        if (this.scheduled) return false;
+        this.scheduled = true;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean close;
+            boolean reset;
+            synchronized (this) {
+                if (this.closed) return;
+                reset = this.evicted;
+                if (!reset && this.queue.isEmpty()) {
+                    this.scheduled = false;
+                    return;
+                }
+                while (!this.queue.isEmpty()) this.batch.add(this.queue.poll());
+                // The end event is the last frame queued, so the connection is closed after it.
+                close = reset || this.ending;
+                this.writer = Thread.currentThread();
+                this.writeStarted = System.nanoTime();
+            }
+
+            try {
+                if (!reset) {
+                    for (byte[] frame : this.batch) this.out.write(frame);
+                    this.out.flush();
+                    this.dispatcher.recordDelivered(this.batch.size());
+                }
+            } catch (IOException e) {
+                // The viewer has gone away, or the write was interrupted by evict().
+                close = true;
+                reset = true;
+            }
+            this.batch.clear();
+            if (close) close(reset);
+
+            synchronized (this) {
+                this.writer = null;
+            }
+            // Clear an interrupt from evict() that arrived after the last write completed.
+            Thread.interrupted();
+            if (close) {
+                this.stream.remove(this);
+                this.dispatcher.unregister(this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the connection to the viewer.
+     *
+     * @param reset Whether to reset the connection rather than end the response cleanly, which
+     *              writes to the connection and could block on a viewer that does not read.
+     */
+    private void close(boolean reset) {
+        synchronized (this) {
+            this.closed = true;
+            this.queue.clear();
+        }
+        // With the interrupt flag set, the first blocking write closes the channel at once.
+        if (reset) Thread.currentThread().interrupt();
+        try {
+            this.connection.close();
+        } catch (IOException e) {
+            // The connection is closed either way.
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package info.varden.hauk.server;
+
+import java.math.BigDecimal;
+
+/**
+ * The most recent points of a share, kept in a fixed-capacity ring buffer of parallel primitive
+ * arrays. When the buffer is full, each new point overwrites the oldest one.
+ *
+ * The backends written in PHP and Ruby store the trail as a list of point arrays, which is read,
+ * appended to, trimmed and written back in full for every api/post.php request. Here, appending a
+ * point writes five doubles and allocates nothing, and the trail is only serialized when it is
+ * fetched.
+ *
+ * Every point has a sequence number, counting all points ever appended to the trail, starting at
+ * 1. Viewers pass the sequence number of the last point they have to fetch only newer points.
+ *
+ * @author Marius Lindvall
+ */
+public final class Trail {
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] time;
+    private final double[] acc;
+    private final double[] spd;
+
+    // The index of the oldest point, and the number of points held.
+    private int head = 0;
+    private int size = 0;
+
+    // The sequence number of the newest point, or 0 if there are none.
+    private long last = 0L;
+
+    /**
+     * Creates an empty trail.
+     *
+     * @param capacity The number of points kept, i.e. max_cached_pts.
+     */
+    public Trail(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this.lat = new double[capacity];
+        this.lon = new double[capacity];
+        this.time = new double[capacity];
+        this.acc = new double[capacity];
+        this.spd = new double[capacity];
+    }
+
+    /**
+     * Appends a point to the trail, dropping the oldest point if the trail is full.
+     *
+     * @param lat  Latitude in degrees.
+     * @param lon  Longitude in degrees.
+     * @param time Timestamp in seconds since the UNIX epoch.
+     * @param acc  Accuracy in meters, or NaN if unknown.
+     * @param spd  Speed in meters per second, or NaN if unknown.
+     */
+    public synchronized void append(double lat, double lon, double time, double acc, double spd) {
+        int capacity = this.lat.length;
+        int index = this.head + this.size;
+        if (index >= capacity) index -= capacity;
+        this.lat[index] = lat;
+        this.lon[index] = lon;
+        this.time[index] = time;
+        this.acc[index] = acc;
+        this.spd[index] = spd;
+        if (this.size < capacity) {
+            this.size++;
+        } else if (++this.head == capacity) {
+            this.head = 0;
+        }
+        this.last++;
+    }
+
+    /**
+     * Appends all given points to the trail, in order.
+     */
+    synchronized void append(Points points) {
+        for (int i = 0; i < points.size(); i++) {
+            append(points.getLatitude(i), points.getLongitude(i), points.getTime(i), points.getAccuracy(i), points.getSpeed(i));
+        }
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public int getCapacity() {
+        return this.lat.length;
+    }
+
+    /**
+     * Returns the sequence number of the newest point, or 0 if no points have been appended.
+     */
+    public synchronized long getLastSequence() {
+        return this.last;
+    }
+
+    /**
+     * Writes the trail as a JSON array of [lat, lon, time, acc, spd] arrays, oldest point first,
+     * as in the "l" field of api/fetch.php responses. Unknown values are written as null.
+     *
+     * @param sb The builder to write to.
+     */
+    public void writeJson(StringBuilder sb) {
+        writeJson(sb, -1L);
+    }
+
+    /**
+     * Writes the points newer than the given sequence number, as writeJson(StringBuilder) does.
+     * Points that have already been dropped from the trail are skipped.
+     *
+     * @param sb    The builder to write to.
+     * @param since The sequence number of the last point the viewer has, or -1 for all points.
+     * @return The sequence number of the newest point.
+     */
+    public synchronized long writeJson(StringBuilder sb, long since) {
+        int capacity = this.lat.length;
+        int count = since < 0L ? this.size : (int) Math.min(this.size, Math.max(0L, this.last - since));
+        int start = this.head + this.size - count;
+        if (start >= capacity) start -= capacity;
+        sb.append('[');
+        for (int n = 0, i = start; n < count; n++, i = i + 1 == capacity ? 0 : i + 1) {
+            if (n > 0) sb.append(',');
+            sb.append('[');
+            appendNumber(sb, this.lat[i]);
+            sb.append(',');
+            appendNumber(sb, this.lon[i]);
+            sb.append(',');
+            appendNumber(sb, this.time[i]);
+            sb.append(',');
+            appendNumber(sb, this.acc[i]);
+            sb.append(',');
+            appendNumber(sb, this.spd[i]);
+            sb.append(']');
+        }
+        sb.append(']');
+        return this.last;
+    }
+
+    /**
+     * Writes a number in JSON notation, without an exponent, or null if it is NaN.
+     */
+    static void appendNumber(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1E15D) {
+            sb.append((long) value);
+        } else {
+            String str = Double.toString(value);
+            // Timestamps in seconds are printed in scientific notation by Double.toString().
+            if (str.indexOf('E') >= 0) str = BigDecimal.valueOf(value).toPlainString();
+            sb.append(str);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package info.varden.hauk.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the fan-out of server-sent events to viewers, without HTTP connections.
+ */
+public class EventDispatcherTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EventDispatcher dispatcher;
+    private EventStream stream;
+
+    @Before
+    public void setUp() {
+        dispatcher = new EventDispatcher(2, 2);
+        stream = new EventStream();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void publishedFrames_reachEverySubscriberInOrder() throws Exception {
+        Viewer[] viewers = new Viewer[50];
+        synchronized (stream) {
+            for (int i = 0; i < viewers.length; i++) {
+                viewers[i] = new Viewer(false);
+                dispatcher.subscribe(stream, EventDispatcher.frame(0L, "first"), viewers[i], viewers[i]);
+            }
+            dispatcher.publish(stream, EventDispatcher.frame(1L, "second"));
+        }
+        String expected = "id: 0\ndata: first\n\nid: 1\ndata: second\n\n";
+        for (Viewer viewer : viewers) assertTrue(viewer.await(expected.length()));
+        for (Viewer viewer : viewers) assertEquals(expected, viewer.received());
+        assertEquals(1L, dispatcher.getPublished());
+        // Frames are counted once they have been flushed.
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (dispatcher.getDelivered() < 2L * viewers.length && System.currentTimeMillis() < deadline) Thread.sleep(1L);
+        assertEquals(2L * viewers.length, dispatcher.getDelivered());
+        assertEquals(viewers.length, dispatcher.getSubscribers());
+    }
+
+    @Test
+    public void slowSubscriber_isEvictedWithoutHoldingUpOthers() throws Exception {
+        Viewer slow = new Viewer(true);
+        Viewer fast = new Viewer(false);
+        synchronized (stream) {
+            dispatcher.subscribe(stream, EventDispatcher.frame(0L, "x"), slow, slow);
+            dispatcher.subscribe(stream, EventDispatcher.frame(0L, "x"), fast, fast);
+        }
+        // The first frame blocks the slow viewer's writer, so further frames queue up until its
+        // buffer of two frames overflows. The fast viewer receives each frame as it is published.
+        int size = EventDispatcher.frame(0L, "x").length;
+        assertTrue(slow.blocked.await(5L, TimeUnit.SECONDS));
+        assertTrue(fast.await(size));
+        for (int i = 1; i <= 3; i++) {
+            synchronized (stream) {
+                dispatcher.publish(stream, EventDispatcher.frame(i, "x"));
+            }
+            assertTrue(fast.await((i + 1) * size));
+        }
+
+        assertTrue(slow.closed.await(5L, TimeUnit.SECONDS));
+        assertEquals(1L, dispatcher.getEvicted());
+        assertFalse(fast.isClosed());
+        while (stream.size() > 1) Thread.sleep(1L);
+        assertEquals(1, dispatcher.getSubscribers());
+    }
+
+    @Test
+    public void closedStream_endsEverySubscriber() throws Exception {
+        Viewer viewer = new Viewer(false);
+        synchronized (stream) {
+            dispatcher.subscribe(stream, EventDispatcher.frame(3L, "x"), viewer, viewer);
+        }
+        stream.close();
+        assertTrue(viewer.closed.await(5L, TimeUnit.SECONDS));
+        assertEquals("id: 3\ndata: x\n\nevent: end\ndata: \n\n", viewer.received());
+        assertTrue(stream.isEmpty());
+
+        // Viewers that subscribe after the share has ended are ended at once.
+        Viewer late = new Viewer(false);
+        synchronized (stream) {
+            dispatcher.subscribe(stream, EventDispatcher.frame(3L, "x"), late, late);
+        }
+        assertTrue(late.closed.await(5L, TimeUnit.SECONDS));
+        assertTrue(late.received().endsWith("event: end\ndata: \n\n"));
+    }
+
+    /**
+     * A viewer connection, which either receives everything written to it, or blocks on the first
+     * write until it is interrupted, as a viewer that does not read would.
+     */
+    private static final class Viewer extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final boolean slow;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        private Viewer(boolean slow) {
+            this.slow = slow;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.slow) {
+                this.blocked.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1L));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            synchronized (this) {
+                this.buffer.write(b, off, len);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            this.closed.countDown();
+        }
+
+        boolean isClosed() {
+            return this.closed.getCount() == 0L;
+        }
+
+        synchronized String received() {
+            return new String(this.buffer.toByteArray(), UTF_8);
+        }
+
+        synchronized boolean await(int bytes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (this.buffer.size() < bytes) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0L) return false;
+                wait(left);
+            }
+            return true;
+        }
+    }
+}
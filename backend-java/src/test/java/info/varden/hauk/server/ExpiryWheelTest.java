@@ -0,0 +1,123 @@
+package info.varden.hauk.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the timing wheel that expires shares.
+ */
+public class ExpiryWheelTest {
+    private static final long START = 1567602256L;
+
+    @Test
+    public void timers_fireExactlyAtTheirDeadlineOnEveryLevel() {
+        ExpiryWheel<Long> wheel = new ExpiryWheel<>(START);
+        long[] delays = {1L, 2L, 63L, 64L, 65L, 4095L, 4096L, 4097L, 86400L, 262143L, 262144L, 300000L};
+        for (long delay : delays) wheel.schedule(new ExpiryWheel.Timer<>(delay), START + delay);
+        assertEquals(delays.length, wheel.size());
+
+        List<Long> fired = new ArrayList<>();
+        for (long now = START + 1L; now <= START + 300000L; now++) {
+            wheel.advance(now, fired);
+            for (Long delay : fired) assertEquals(START + delay, now);
+            fired.clear();
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void randomDeadlines_fireInOrderAcrossLargeSteps() {
+        ExpiryWheel<Long> wheel = new ExpiryWheel<>(START);
+        Random random = new Random(42L);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            long deadline = START + 1L + random.nextInt(200000);
+            deadlines.add(deadline);
+            wheel.schedule(new ExpiryWheel.Timer<>(deadline), deadline);
+        }
+
+        // Advance in uneven steps, as a backend that is busy or paused would.
+        List<Long> fired = new ArrayList<>();
+        long now = START;
+        while (wheel.size() > 0) {
+            now += 1L + random.nextInt(3000);
+            int from = fired.size();
+            wheel.advance(now, fired);
+            for (int i = from; i < fired.size(); i++) {
+                assertTrue(fired.get(i) <= now);
+                assertTrue(fired.get(i) > now - 3001L);
+            }
+        }
+        Collections.sort(deadlines);
+        List<Long> sorted = new ArrayList<>(fired);
+        Collections.sort(sorted);
+        assertEquals(deadlines, sorted);
+    }
+
+    @Test
+    public void rescheduledTimer_firesOnlyAtNewDeadline() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(START);
+        ExpiryWheel.Timer<String> timer = new ExpiryWheel.Timer<>("share");
+        wheel.schedule(timer, START + 100L);
+        wheel.schedule(timer, START + 5000L);
+        assertEquals(1, wheel.size());
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(START + 4999L, fired);
+        assertTrue(fired.isEmpty());
+        wheel.advance(START + 5000L, fired);
+        assertEquals(Collections.singletonList("share"), fired);
+    }
+
+    @Test
+    public void cancelledTimer_neverFires() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(START);
+        ExpiryWheel.Timer<String> timer = new ExpiryWheel.Timer<>("share");
+        wheel.schedule(timer, START + 70L);
+        assertTrue(wheel.cancel(timer));
+        assertFalse(wheel.cancel(timer));
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(START + 1000L, fired);
+        assertTrue(fired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void deadlineBeyondSpan_isParkedUntilDue() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(0L);
+        long deadline = (1L << 24) * 3L + 12345L;
+        wheel.schedule(new ExpiryWheel.Timer<>("far"), deadline);
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(deadline - 1L, fired);
+        assertTrue(fired.isEmpty());
+        wheel.advance(deadline, fired);
+        assertEquals(Collections.singletonList("far"), fired);
+    }
+
+    @Test
+    public void store_removesExpiredSharesAndKeepsExtendedOnes() {
+        SessionStore store = new SessionStore(3, START);
+        Share expiring = store.create(1D, START + 60L);
+        Share extended = store.create(1D, START + 60L);
+        store.extend(extended.getSession(), START + 3600L, START + 30L);
+
+        assertEquals(0, store.expire(START + 60L));
+        assertEquals(1, store.expire(START + 61L));
+        assertEquals(null, store.getBySession(expiring.getSession(), START + 61L));
+        assertEquals(null, store.getByLink(expiring.getLink(), START + 61L));
+        assertEquals(extended, store.getByLink(extended.getLink(), START + 61L));
+
+        assertEquals(1, store.expire(START + 3601L));
+        assertEquals(0, store.size());
+    }
+}
@@ -0,0 +1,100 @@
+package info.varden.hauk.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the cache of encoded api/fetch.php responses, and how shares version it.
+ */
+public class FetchCacheTest {
+    private static FetchCache.Entry entry(long since) {
+        return new FetchCache.Entry(since, ("response " + since).getBytes());
+    }
+
+    @Test
+    public void entries_areOnlyReturnedForTheirVersionAndCursor() {
+        FetchCache cache = new FetchCache();
+        FetchCache.Entry all = entry(-1L);
+        FetchCache.Entry upToDate = entry(7L);
+        cache.put(3L, all);
+        cache.put(3L, upToDate);
+
+        assertSame(all, cache.get(3L, -1L));
+        assertSame(upToDate, cache.get(3L, 7L));
+        assertNull(cache.get(3L, 6L));
+        assertNull(cache.get(4L, -1L));
+
+        // A change drops all entries, and entries encoded before it are not cached.
+        cache.invalidate(4L);
+        assertNull(cache.get(3L, -1L));
+        cache.put(3L, entry(-1L));
+        assertNull(cache.get(4L, -1L));
+        assertNull(cache.get(3L, -1L));
+    }
+
+    @Test
+    public void oldestEntries_areReplacedWhenFull() {
+        FetchCache cache = new FetchCache();
+        for (long since = 0L; since < 6L; since++) cache.put(1L, entry(since));
+        assertNull(cache.get(1L, 0L));
+        assertNull(cache.get(1L, 1L));
+        for (long since = 2L; since < 6L; since++) assertEquals(since, Long.parseLong(new String(cache.get(1L, since).getBody()).substring(9)));
+    }
+
+    @Test
+    public void gzipped_isCompressedOnceAndDecompressesToBody() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) sb.append("[52.52,13.405,").append(1567602256 + i).append(",null,null],");
+        FetchCache.Entry entry = new FetchCache.Entry(-1L, sb.toString().getBytes("UTF-8"));
+
+        byte[] gzipped = entry.getGzipped();
+        assertSame(gzipped, entry.getGzipped());
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) > 0) out.write(buf, 0, read);
+        assertArrayEquals(entry.getBody(), out.toByteArray());
+    }
+
+    @Test
+    public void share_changesVersionOnPostAndExtend() {
+        Share share = new Share("session", "ABCD-1234", 1D, 1567602256L, 3);
+        long version = share.getVersion();
+        share.cache.put(version, entry(-1L));
+
+        Points points = new Points();
+        points.add(52.52D, 13.405D, 1567602256D, Double.NaN, Double.NaN);
+        share.append(points);
+        assertEquals(version + 1L, share.getVersion());
+        assertNull(share.cache.get(version, -1L));
+
+        share.setExpire(1567602300L);
+        assertEquals(version + 2L, share.getVersion());
+    }
+
+    @Test
+    public void share_normalizesCursorsThatSelectTheWholeTrail() {
+        Share share = new Share("session", "ABCD-1234", 1D, 1567602256L, 3);
+        Points points = new Points();
+        for (int i = 0; i < 5; i++) points.add(52.52D, 13.405D, 1567602256D + i, Double.NaN, Double.NaN);
+        share.append(points);
+
+        // Points 3 to 5 are kept.
+        assertEquals(-1L, share.normalize(-1L));
+        assertEquals(-1L, share.normalize(0L));
+        assertEquals(-1L, share.normalize(2L));
+        assertEquals(3L, share.normalize(3L));
+        assertEquals(5L, share.normalize(5L));
+        assertEquals(-1L, share.normalize(6L));
+    }
+}
@@ -0,0 +1,66 @@
+package info.varden.hauk.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the ring buffer that holds the most recent points of a share.
+ */
+public class TrailTest {
+    private static String json(Trail trail) {
+        StringBuilder sb = new StringBuilder();
+        trail.writeJson(sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void emptyTrail_isEmptyArray() {
+        assertEquals("[]", json(new Trail(3)));
+    }
+
+    @Test
+    public void append_keepsOnlyMostRecentPointsInOrder() {
+        Trail trail = new Trail(3);
+        for (int i = 1; i <= 7; i++) trail.append(i, -i, 1000 + i, Double.NaN, Double.NaN);
+
+        assertEquals(3, trail.size());
+        assertEquals("[[5,-5,1005,null,null],[6,-6,1006,null,null],[7,-7,1007,null,null]]", json(trail));
+    }
+
+    @Test
+    public void writeJson_writesNumbersWithoutExponent() {
+        Trail trail = new Trail(1);
+        trail.append(52.52D, 13.405D, 1567602256.994D, 4.5D, 0.01D);
+        assertEquals("[[52.52,13.405,1567602256.994,4.5,0.01]]", json(trail));
+    }
+
+    @Test
+    public void writeJson_sinceCursor_writesOnlyNewerPoints() {
+        Trail trail = new Trail(3);
+        assertEquals(0L, trail.getLastSequence());
+        for (int i = 1; i <= 5; i++) trail.append(i, i, i, Double.NaN, Double.NaN);
+
+        StringBuilder sb = new StringBuilder();
+        assertEquals(5L, trail.writeJson(sb, 3L));
+        assertEquals("[[4,4,4,null,null],[5,5,5,null,null]]", sb.toString());
+
+        // Points that have been dropped are skipped.
+        sb.setLength(0);
+        trail.writeJson(sb, 0L);
+        assertEquals("[[3,3,3,null,null],[4,4,4,null,null],[5,5,5,null,null]]", sb.toString());
+
+        sb.setLength(0);
+        trail.writeJson(sb, 5L);
+        assertEquals("[]", sb.toString());
+    }
+
+    @Test
+    public void append_batchFromRequest() {
+        Points points = new Points();
+        for (int i = 0; i < 20; i++) points.add(i, i, i, 1D, Double.NaN);
+        Trail trail = new Trail(2);
+        trail.append(points);
+        assertEquals("[[18,18,18,1,null],[19,19,19,1,null]]", json(trail));
+    }
+}
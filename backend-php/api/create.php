@@ -31,10 +31,12 @@ $memcache->set($PREFIX_SESSION.$sid, array(
 $memcache->set($PREFIX_LOCDATA.sessionToID($sid), array(
     "i" => $i,
     "x" => $expire,
+    "s" => 0,
     "l" => array()
 ), $d);
 
-// Convert the session ID to a link ID and return these two to the client.
-echo "OK\n{$sid}\n".CONFIG["public_url"]."?".sessionToID($sid)."\n";
+// Convert the session ID to a link ID and return these two to the client. The
+// fourth line lists optional protocol features supported by this backend.
+echo "OK\n{$sid}\n".CONFIG["public_url"]."?".sessionToID($sid)."\nbatch binary delta\n";
 
 ?>
@@ -1,7 +1,8 @@
 <?php
 
 // This script is called by the client to receive location updates. A link ID is
-// required to retrieve data.
+// required to retrieve data. An optional "since" cursor limits the response to
+// new points.
 
 foreach (array("id") as $field) if (!isset($_GET[$field])) die("Invalid session!\n");
 
@@ -11,6 +12,17 @@ $locdata = $memcache->get($PREFIX_LOCDATA.$_GET["id"]);
 
 // If the link data key is not set, the session probably expired.
 if ($locdata === false) die("Invalid session!\n");
-else { header("Content-Type: text/json"); echo json_encode($locdata); }
+if (!isset($locdata["s"])) $locdata["s"] = count($locdata["l"]);
+
+// Viewers that already have the trail pass the sequence number of the last point
+// they have, and only get the points after it. If the viewer is ahead of the
+// share, its state is stale, and it gets the whole trail to start over with.
+if (isset($_GET["since"])) {
+    $new = $locdata["s"] - intval($_GET["since"]);
+    if ($new >= 0) $locdata["l"] = $new > 0 ? array_slice($locdata["l"], -$new) : array();
+}
+
+header("Content-Type: text/json");
+echo json_encode($locdata);
 
 ?>
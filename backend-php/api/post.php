@@ -4,37 +4,68 @@
 // server. Each update contains a location and timestamp from when the location
 // was fetched by the client.
 
-foreach (array("lat", "lon", "time", "sid") as $field) if (!isset($_POST[$field])) die("Missing data!");
+include("../include/inc.php");
 
-// Perform input validation.
-$lat = floatval($_POST["lat"]);
-$lon = floatval($_POST["lon"]);
-$time = floatval($_POST["time"]);
-if ($lat < -90 || $lat > 90 || $lon < -180 || $lon > 180) die("Invalid location!\n");
+if (isset($_SERVER["CONTENT_TYPE"]) && $_SERVER["CONTENT_TYPE"] == "application/x-hauk-location") {
+    // Clients may send updates in a compact binary format instead of form
+    // fields. This is decoded directly to a list of points.
+    $decoded = decodeBinaryLocations(file_get_contents("php://input"));
+    if ($decoded === false) die("Invalid location data!\n");
+    list($sid, $points) = $decoded;
+    foreach ($points as $point) {
+        if ($point[0] < -90 || $point[0] > 90 || $point[1] < -180 || $point[1] > 180) die("Invalid location!\n");
+    }
+} else {
+    foreach (array("lat", "lon", "time", "sid") as $field) if (!isset($_POST[$field])) die("Missing data!");
 
-// Not all devices report speed and accuracy, but if available, report them too.
-$speed = isset($_POST["spd"]) ? floatval($_POST["spd"]) : null;
-$accuracy = isset($_POST["acc"]) ? floatval($_POST["acc"]) : null;
+    // Clients may send several location updates in one request by posting each
+    // of the point fields as an array (lat[]=...&lat[]=...), with one entry per
+    // point. A request with scalar fields is handled as a batch of one point.
+    $lats = (array) $_POST["lat"];
+    $lons = (array) $_POST["lon"];
+    $times = (array) $_POST["time"];
+    $speeds = isset($_POST["spd"]) ? (array) $_POST["spd"] : array();
+    $accuracies = isset($_POST["acc"]) ? (array) $_POST["acc"] : array();
+    if (count($lons) != count($lats) || count($times) != count($lats)) die("Missing data!\n");
+
+    $points = array();
+    for ($n = 0; $n < count($lats); $n++) {
+        // Perform input validation.
+        $lat = floatval($lats[$n]);
+        $lon = floatval($lons[$n]);
+        $time = floatval($times[$n]);
+        if ($lat < -90 || $lat > 90 || $lon < -180 || $lon > 180) die("Invalid location!\n");
+
+        // Not all devices report speed and accuracy, but if available, report them too.
+        $speed = isset($speeds[$n]) && $speeds[$n] !== "" ? floatval($speeds[$n]) : null;
+        $accuracy = isset($accuracies[$n]) && $accuracies[$n] !== "" ? floatval($accuracies[$n]) : null;
+        $points[] = [$lat, $lon, $time, $accuracy, $speed];
+    }
+    $sid = $_POST["sid"];
+}
 
-include("../include/inc.php");
 $memcache = memConnect();
 
 // Retrieve the session and associated location data from memcached.
-$sid = $_POST["sid"];
 $session = $memcache->get($PREFIX_SESSION.$sid);
 $locdata = $memcache->get($PREFIX_LOCDATA.sessionToID($sid));
 if ($session === false) die("Session expired!\n");
 if ($locdata === false) $locdata = ["l" => []];
 
-// The location data object contains the sharing interval (i), duration (d) and
-// a location list (l). Each entry in the location list contains a latitude,
-// longitude, timestamp, accuracy and speed, in that order, as an array.
+// The location data object contains the sharing interval (i), duration (d), the
+// sequence number of the last point (s) and a location list (l). Each entry in
+// the location list contains a latitude, longitude, timestamp, accuracy and
+// speed, in that order, as an array. Sequence numbers count all points ever
+// posted to the share, so that viewers can fetch only the points they lack.
 $locdata["i"] = $session["interval"];
 $locdata["x"] = $session["expire"];
-$locdata["l"][] = [$lat, $lon, $time, $accuracy, $speed];
+$locdata["s"] = (isset($locdata["s"]) ? $locdata["s"] : count($locdata["l"])) + count($points);
+foreach ($points as $point) $locdata["l"][] = $point;
 
 // Ensure that we don't exceed the maximum number of points stored in memcached.
-while (count($locdata["l"]) > CONFIG["max_cached_pts"]) array_shift($locdata["l"]);
+if (count($locdata["l"]) > CONFIG["max_cached_pts"]) {
+    $locdata["l"] = array_slice($locdata["l"], -CONFIG["max_cached_pts"]);
+}
 
 // Check if the session expired; otherwise, return the location data.
 $remain = $session["expire"] - time();
@@ -64,6 +64,75 @@ if (extension_loaded("memcached")) {
     die("No compatible memcached extension (memcache or memcached) is enabled in your PHP config!\n");
 }
 
+// Decodes a request body in one of the compact binary location formats (MIME
+// type application/x-hauk-location) that clients may use instead of form fields
+// if the backend announces the "binary" or "delta" capability. See
+// BinaryLocationCodec and DeltaLocationCodec in the Android app for the layout.
+// Returns an array of the session ID and a list of points in the same format as
+// stored in memcached, or false if the body is invalid.
+function decodeBinaryLocations($body) {
+    if (strlen($body) < 3 || ord($body[0]) != 0x48) return false;
+    $len = ord($body[2]);
+    if (strlen($body) < 3 + $len) return false;
+    $sid = substr($body, 3, $len);
+
+    switch (ord($body[1])) {
+        case 1:
+            // Fixed-size records of absolute values.
+            if (strlen($body) < 5 + $len) return false;
+            $count = unpack("n", substr($body, 3 + $len, 2))[1];
+            if (strlen($body) != 5 + $len + $count * 20) return false;
+
+            $points = array();
+            for ($n = 0, $pos = 5 + $len; $n < $count; $n++, $pos += 20) {
+                $r = unpack("Nlat/Nlon/Nth/Ntl/nacc/nspd", substr($body, $pos, 20));
+                // unpack() has no big-endian signed formats, so convert manually.
+                $lat = $r["lat"] >= 0x80000000 ? $r["lat"] - 0x100000000 : $r["lat"];
+                $lon = $r["lon"] >= 0x80000000 ? $r["lon"] - 0x100000000 : $r["lon"];
+                $time = ($r["th"] * 4294967296 + $r["tl"]) / 1000;
+                $acc = $r["acc"] == 0xFFFF ? null : $r["acc"] / 10;
+                $spd = $r["spd"] == 0xFFFF ? null : $r["spd"] / 100;
+                $points[] = [$lat / 1E7, $lon / 1E7, $time, $acc, $spd];
+            }
+            return array($sid, $points);
+
+        case 2:
+            // Varint-encoded deltas between consecutive points.
+            $values = array();
+            $value = 0;
+            $shift = 0;
+            for ($pos = 3 + $len; $pos < strlen($body); $pos++) {
+                $b = ord($body[$pos]);
+                $value |= ($b & 0x7F) << $shift;
+                $shift += 7;
+                if ($shift > 63) return false;
+                if ($b & 0x80) continue;
+                $values[] = $value;
+                $value = 0;
+                $shift = 0;
+            }
+            if ($shift != 0 || count($values) % 5 != 0) return false;
+
+            $points = array();
+            $lat = 0;
+            $lon = 0;
+            $time = 0;
+            for ($n = 0; $n < count($values); $n += 5) {
+                // Undo the zigzag encoding of the signed deltas.
+                $lat += ($values[$n] >> 1) ^ -($values[$n] & 1);
+                $lon += ($values[$n + 1] >> 1) ^ -($values[$n + 1] & 1);
+                $time += ($values[$n + 2] >> 1) ^ -($values[$n + 2] & 1);
+                $acc = $values[$n + 3] == 0 ? null : ($values[$n + 3] - 1) / 10;
+                $spd = $values[$n + 4] == 0 ? null : ($values[$n + 4] - 1) / 100;
+                $points[] = [$lat / 1E7, $lon / 1E7, $time / 1000, $acc, $spd];
+            }
+            return array($sid, $points);
+
+        default:
+            return false;
+    }
+}
+
 // Returns a memcached instance.
 function memConnect() {
     $memcache = new MemWrapper(CONFIG["memcached_host"], CONFIG["memcached_port"]);
@@ -70,6 +70,74 @@ def random_friendly_id
   "#{adjectives.pop}-#{adjectives.pop}-#{nouns.pop}-#{digits}"
 end
 
+helpers do
+  # Reads the session ID and a list of points from form fields. Each point field may be an array, with one entry per point.
+  def decode_form_locations
+    [:lat, :lon, :time, :sid].each { |e| halt(400, "Missing data\n") if !params[e] }
+    lats = Array(params[:lat])
+    lons = Array(params[:lon])
+    times = Array(params[:time])
+    # Not all devices report speed and accuracy, but if available, report them too.
+    speeds = Array(params[:spd])
+    accuracies = Array(params[:acc])
+    halt(400, "Missing data\n") if lons.size != lats.size || times.size != lats.size
+    points = lats.each_index.map do |n|
+      speed = speeds[n].to_s.empty? ? nil : speeds[n].to_f
+      accuracy = accuracies[n].to_s.empty? ? nil : accuracies[n].to_f
+      [lats[n].to_f, lons[n].to_f, times[n].to_f, accuracy, speed]
+    end
+    [params[:sid], points]
+  end
+
+  # Decodes a body in one of the compact binary location formats (application/x-hauk-location).
+  # See BinaryLocationCodec and DeltaLocationCodec in the Android app for the layout. Returns nil if the body is invalid.
+  def decode_binary_locations(body)
+    return nil if body.bytesize < 3 || body.getbyte(0) != 0x48
+    len = body.getbyte(2)
+    return nil if body.bytesize < 3 + len
+    sid = body.byteslice(3, len)
+    case body.getbyte(1)
+    when 1
+      # Fixed-size records of absolute values.
+      return nil if body.bytesize < 5 + len
+      count = body.byteslice(3 + len, 2).unpack('n')[0]
+      return nil if body.bytesize != 5 + len + count * 20
+      points = count.times.map do |n|
+        lat, lon, time, acc, spd = body.byteslice(5 + len + n * 20, 20).unpack('l>l>q>nn')
+        [lat / 1e7, lon / 1e7, time / 1000.0, acc == 0xFFFF ? nil : acc / 10.0, spd == 0xFFFF ? nil : spd / 100.0]
+      end
+      [sid, points]
+    when 2
+      # Varint-encoded deltas between consecutive points.
+      values = decode_varints(body.byteslice(3 + len, body.bytesize))
+      return nil if !values || values.size % 5 != 0
+      lat = lon = time = 0
+      points = values.each_slice(5).map do |dlat, dlon, dtime, acc, spd|
+        # Undo the zigzag encoding of the signed deltas.
+        lat += (dlat >> 1) ^ -(dlat & 1)
+        lon += (dlon >> 1) ^ -(dlon & 1)
+        time += (dtime >> 1) ^ -(dtime & 1)
+        [lat / 1e7, lon / 1e7, time / 1000.0, acc == 0 ? nil : (acc - 1) / 10.0, spd == 0 ? nil : (spd - 1) / 100.0]
+      end
+      [sid, points]
+    end
+  end
+
+  # Decodes a sequence of little-endian base-128 varints. Returns nil if the last varint is truncated.
+  def decode_varints(bytes)
+    values = []
+    value = shift = 0
+    bytes.each_byte do |b|
+      value |= (b & 0x7F) << shift
+      shift += 7
+      next if b & 0x80 != 0
+      values << value
+      value = shift = 0
+    end
+    shift == 0 ? values : nil
+  end
+end
+
 before do
   SESSIONS.delete_if {|k, v| v[:expire] < Time.now.to_i }
 end
@@ -112,22 +180,34 @@ post '/api/create.php' do
     expire: Time.now.to_i + duration,
     interval: interval,
     fid: fid,
+    seq: 0,
     locations: []
   }
-  "OK\n#{sid}\n#{CONFIG[:public_url]}?#{fid}\n"
+  # The fourth line lists optional protocol features supported by this backend.
+  "OK\n#{sid}\n#{CONFIG[:public_url]}?#{fid}\nbatch binary delta\n"
 end
 
 # Called by the client to receive location updates. A link ID is required to retrieve data.
+# Viewers that already have the trail pass the sequence number (s) of the last point they have as since, and only get
+# the points after it. If the viewer is ahead of the share, it gets the whole trail to start over with.
 # Test: curl localhost:9494/api/fetch.php?id=xxxxxx
+# Test: curl 'localhost:9494/api/fetch.php?id=xxxxxx&since=12'
 get '/api/fetch.php' do
   fid = params[:id]
   sid = Digest::MD5.hexdigest("#{fid}#{CONFIG[:salt]}")
-  if SESSIONS[sid.to_sym]
+  if (share = SESSIONS[sid.to_sym])
+    seq = share[:seq] || share[:locations].size
+    locations = share[:locations]
+    if params[:since]
+      new_points = seq - params[:since].to_i
+      locations = locations.last(new_points) if new_points >= 0
+    end
     content_type :json
     {
-      i: SESSIONS[sid.to_sym][:interval],
-      x: SESSIONS[sid.to_sym][:expire],
-      l: SESSIONS[sid.to_sym][:locations]
+      i: share[:interval],
+      x: share[:expire],
+      s: seq,
+      l: locations
     }.to_json
   else
     halt(404, "Invalid session!\n")
@@ -136,19 +216,20 @@ end
 
 # Called from the Hauk app to push location updates to the server.
 # Each update contains a location and timestamp from when the location was fetched by the client.
+# Several updates may be sent in one request by posting each point field as an array, with one entry per point.
 # Test: curl -d 'lat=52.52&lon=13.40&time=1567602256.994&sid=xxxxxx' localhost:9494/api/post.php
+# Test: curl -d 'lat[]=52.52&lon[]=13.40&time[]=1567602256.994&lat[]=52.53&lon[]=13.41&time[]=1567602257.994&sid=xxxxxx' localhost:9494/api/post.php
 post '/api/post.php' do
-  [:lat, :lon, :time, :sid].each { |e| halt(400, "Missing data\n") if !params[e] }
-  lat = params[:lat].to_f
-  lon = params[:lon].to_f
-  time = params[:time].to_f
-  halt(400, "Invalid location!\n") if lat < -90 || lat > 90 || lon < -180 || lon > 180
-  # Not all devices report speed and accuracy, but if available, report them too.
-  speed = params[:spd] ? params[:spd].to_f : nil
-  accuracy = params[:acc] ? params[:acc].to_f : nil
-  sid = params[:sid]
+  if request.media_type == 'application/x-hauk-location'
+    sid, points = decode_binary_locations(request.body.read)
+    halt(400, "Invalid location data!\n") if !sid
+  else
+    sid, points = decode_form_locations
+  end
+  halt(400, "Invalid location!\n") if points.any? { |p| p[0] < -90 || p[0] > 90 || p[1] < -180 || p[1] > 180 }
   if SESSIONS[sid.to_sym]
-    SESSIONS[sid.to_sym][:locations] << [lat, lon, time, accuracy, speed]
+    SESSIONS[sid.to_sym][:seq] = (SESSIONS[sid.to_sym][:seq] || SESSIONS[sid.to_sym][:locations].size) + points.size
+    SESSIONS[sid.to_sym][:locations].concat(points)
     SESSIONS[sid.to_sym][:locations].shift(SESSIONS[sid.to_sym][:locations].size - CONFIG[:max_cached_pts]) if SESSIONS[sid.to_sym][:locations].size > CONFIG[:max_cached_pts]
     "OK\n"
   else
@@ -13,6 +13,10 @@ var markerLayer = L.layerGroup().addTo(map);
 // A list of points received from the server.
 var points = [];
 
+// The sequence number of the last point received from the server. After the
+// first fetch, only points newer than this are requested.
+var cursor = null;
+
 // The leaflet marker.
 var marker = null;
 var icon = null;
@@ -71,36 +75,72 @@ getJSON("./api/fetch.php?id=" + id, function(data) {
         document.getElementById("countdown").textContent = time;
     }, 1000);
 
+    // Shows that the share has ended and stops all tasks.
+    var interval = null;
+    var events = null;
+    function expire() {
+        clearInterval(interval);
+        clearInterval(interval2);
+        if (events !== null) events.close();
+        document.getElementById("countdown").textContent = "Expired";
+        document.getElementById("expired").style.display = "block";
+    }
+
     // The location data contains an interval. Schedule a task that fetches data
     // once per interval time.
-    var interval = setInterval(function() {
-        // Stop the task if the share has expired.
-        if ((Date.now() / 1000) >= data.x) {
-            clearInterval(interval);
-            clearInterval(interval2);
-            document.getElementById("countdown").textContent = "Expired";
-            document.getElementById("expired").style.display = "block";
-        }
-
-        getJSON("./api/fetch.php?id=" + id, function(data) {
-            processUpdate(data);
-        }, function() {
-            clearInterval(interval);
-            clearInterval(interval2);
-            document.getElementById("countdown").textContent = "Expired";
-            document.getElementById("expired").style.display = "block";
-        });
-    }, data.i * 1000);
-
+    function poll() {
+        interval = setInterval(function() {
+            // Stop the task if the share has expired.
+            if ((Date.now() / 1000) >= data.x) expire();
+
+            var url = "./api/fetch.php?id=" + id;
+            if (cursor !== null) url += "&since=" + cursor;
+            getJSON(url, function(update) {
+                // The share may have been extended since it was first fetched.
+                data.x = update.x;
+                processUpdate(update);
+            }, expire);
+        }, data.i * 1000);
+    }
 
+    // Backends that can push new points to viewers announce it with "e". New
+    // points then arrive as soon as they are posted, rather than once per
+    // interval.
+    function subscribe() {
+        events = new EventSource("./api/events.php?id=" + id + "&since=" + cursor);
+        events.onmessage = function(e) {
+            var update = JSON.parse(e.data);
+            data.x = update.x;
+            processUpdate(update);
+        };
+        // The backend ends the stream when the share is stopped or expires.
+        events.addEventListener("end", expire);
+        // The browser reconnects by itself if the connection is lost, resuming
+        // after the last event received. If the stream cannot be opened at all,
+        // e.g. through a proxy that does not support it, fall back to polling.
+        events.onerror = function() {
+            if (events.readyState === EventSource.CLOSED) {
+                events = null;
+                poll();
+            }
+        };
+    }
 
     processUpdate(data);
+    if (data.e !== undefined && cursor !== null && window.EventSource) {
+        subscribe();
+    } else {
+        poll();
+    }
 }, function() {
     document.getElementById("notfound").style.display = "block";
 });
 
 // Parses the data returned from ./api/fetch.php and updates the map marker.
 function processUpdate(data) {
+    // Older backends do not number their points, and always send the whole trail.
+    if (data.s !== undefined) cursor = data.s;
+
     // Get the last location received.
     var lastPoint = points.length > 0 ? points[points.length - 1] : null;
 